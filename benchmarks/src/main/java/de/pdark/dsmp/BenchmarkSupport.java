@@ -0,0 +1,104 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Helpers for the benchmarks: A base directory with a config and a cache,
+ * and quiet logging (the debug output of DSMP would dominate the numbers).
+ * 
+ * @author digulla
+ * 
+ */
+public class BenchmarkSupport
+{
+    /** Only log warnings and errors. */
+    public static void quiet ()
+    {
+        Logger.getRootLogger().setLevel(Level.WARN);
+        Logger.getLogger("de.pdark").setLevel(Level.WARN);
+        Logger.getLogger("downloadLog").setLevel(Level.WARN);
+    }
+    
+    /** Create an empty temporary base directory. */
+    public static File createBaseDir () throws IOException
+    {
+        File dir = File.createTempFile("dsmp-bench-", "");
+        if (!dir.delete() || !dir.mkdirs())
+            throw new IOException ("Can't create "+dir.getAbsolutePath());
+        return dir;
+    }
+    
+    /**
+     * Write <code>dsmp.conf.xml</code> to <code>baseDir</code> and load it.
+     * 
+     * @param body The elements inside of <code>&lt;dsmp-config&gt;</code>
+     */
+    public static Config createConfig (File baseDir, String body) throws IOException
+    {
+        System.clearProperty("dsmp.conf");
+        write (new File (baseDir, "dsmp.conf.xml"), ("<dsmp-config>\n"
+                + "<directories cache=\"cache\" patches=\"patches\" />\n"
+                + body
+                + "</dsmp-config>\n").getBytes("ISO-8859-1"));
+        Config config = new Config (baseDir.getAbsolutePath());
+        config.reload();
+        return config;
+    }
+    
+    /** Write a file (and its parent directories). */
+    public static void write (File f, byte[] data) throws IOException
+    {
+        IOUtils.mkdirs(f.getParentFile());
+        OutputStream out = new FileOutputStream (f);
+        try
+        {
+            out.write(data);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    
+    /** Random bytes which always look the same for the same size. */
+    public static byte[] content (int size)
+    {
+        byte[] data = new byte[size];
+        new Random (size).nextBytes(data);
+        return data;
+    }
+    
+    /** Delete a directory with everything in it. */
+    public static void delete (File f)
+    {
+        File[] children = f.listFiles();
+        if (children != null)
+        {
+            for (File child: children)
+                delete (child);
+        }
+        f.delete();
+    }
+}
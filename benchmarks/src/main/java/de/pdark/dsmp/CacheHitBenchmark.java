@@ -0,0 +1,194 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serve a file from the cache to a client on the loopback interface, with
+ * both front ends: One connection per request and many requests on one
+ * keep-alive connection.
+ * 
+ * @author digulla
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheHitBenchmark
+{
+    private static final String URL = "http://repo1.maven.org/maven2/org/apache/maven/maven-core/3.9.6/maven-core-3.9.6.jar";
+
+    @Param({ "blocking", "nio" })
+    public String frontend;
+
+    @Param({ "1024", "1048576" })
+    public int size;
+
+    private File baseDir;
+    private int port;
+    private Server server;
+    private Thread serverThread;
+    private byte[] request;
+    private byte[] persistentRequest;
+
+    @Setup
+    public void setUp () throws Exception
+    {
+        BenchmarkSupport.quiet();
+        baseDir = BenchmarkSupport.createBaseDir();
+        
+        ServerSocket tmp = new ServerSocket (0);
+        port = tmp.getLocalPort();
+        tmp.close();
+        
+        Config config = BenchmarkSupport.createConfig(baseDir, "<server port=\""+port+"\" frontend=\""+frontend
+                +"\" keep-alive-timeout=\"600\" max-requests=\"0\" />\n");
+        BenchmarkSupport.write(RequestHandler.getCacheFile(new URL (URL), config.getCacheDirectory()), BenchmarkSupport.content(size));
+        
+        request = ("GET "+URL+" HTTP/1.1\r\nHost: repo1.maven.org\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1");
+        persistentRequest = ("GET "+URL+" HTTP/1.1\r\nHost: repo1.maven.org\r\n\r\n").getBytes("ISO-8859-1");
+        
+        server = new Server (config);
+        serverThread = new Thread ("dsmp-benchmark-server") {
+            @Override
+            public void run ()
+            {
+                server.handleRequests();
+            }
+        };
+        serverThread.start();
+    }
+
+    @TearDown
+    public void tearDown () throws Exception
+    {
+        server.terminateAll();
+        serverThread.join(10000);
+        BenchmarkSupport.delete(baseDir);
+    }
+
+    /** A keep-alive connection of one benchmark thread */
+    @State(Scope.Thread)
+    public static class Connection
+    {
+        private Socket socket;
+        private OutputStream out;
+        private InputStream in;
+
+        @Setup
+        public void setUp (CacheHitBenchmark benchmark) throws IOException
+        {
+            socket = new Socket ("localhost", benchmark.port);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(10000);
+            out = socket.getOutputStream();
+            in = new BufferedInputStream (socket.getInputStream(), 64*1024);
+        }
+
+        @TearDown
+        public void tearDown () throws IOException
+        {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    public long connectionPerRequest () throws Exception
+    {
+        Socket socket = new Socket ("localhost", port);
+        try
+        {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(10000);
+            socket.getOutputStream().write(request);
+            
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[64*1024];
+            long total = 0;
+            int len;
+            while ((len = in.read(buffer)) != -1)
+                total += len;
+            return total;
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    public long keepAlive (Connection connection) throws Exception
+    {
+        connection.out.write(persistentRequest);
+        return readResponse (connection.in);
+    }
+
+    /** Read one response with a <code>Content-length</code> header. */
+    private long readResponse (InputStream in) throws IOException
+    {
+        // Read the header byte by byte, so no byte of the body is lost
+        StringBuilder header = new StringBuilder (256);
+        while (header.length() < 4 || !"\r\n\r\n".equals (header.substring(header.length() - 4)))
+        {
+            int c = in.read();
+            if (c == -1)
+                throw new IOException ("Connection closed in the header:\n"+header);
+            header.append ((char)c);
+        }
+        
+        int pos = header.indexOf("Content-length: ");
+        if (pos == -1 || !header.toString().startsWith("HTTP/1.1 200 "))
+            throw new IOException ("Unexpected response:\n"+header);
+        int end = header.indexOf("\r\n", pos);
+        long remaining = Long.parseLong(header.substring(pos + "Content-length: ".length(), end));
+        long total = remaining;
+        
+        byte[] buffer = new byte[64*1024];
+        while (remaining > 0)
+        {
+            int len = in.read(buffer, 0, (int)Math.min (buffer.length, remaining));
+            if (len == -1)
+                throw new IOException ("Connection closed in the body");
+            remaining -= len;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calculate the checksums of downloads (MD5, SHA-1 and SHA-256 in one pass):
+ * While the data streams through (as <code>ProxyDownload</code> does it),
+ * from a file (patches) and including writing the checksum files.
+ * 
+ * @author digulla
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChecksumBenchmark
+{
+    @Param({ "1024", "65536", "4194304" })
+    public int size;
+
+    private File baseDir;
+    private File file;
+    private byte[] data;
+
+    @Setup
+    public void setUp () throws Exception
+    {
+        data = BenchmarkSupport.content(size);
+        baseDir = BenchmarkSupport.createBaseDir();
+        file = new File (baseDir, "data.jar");
+        BenchmarkSupport.write(file, data);
+    }
+
+    @TearDown
+    public void tearDown ()
+    {
+        BenchmarkSupport.delete(baseDir);
+    }
+
+    /** Like a download: The data arrives in blocks of 64KB */
+    @Benchmark
+    public String streaming ()
+    {
+        Checksums checksums = new Checksums ();
+        int block = 64*1024;
+        for (int offset=0; offset<data.length; offset+=block)
+            checksums.update(data, offset, Math.min (block, data.length - offset));
+        return checksums.get("sha1");
+    }
+
+    @Benchmark
+    public String calcFile () throws Exception
+    {
+        return Checksums.calc(file).get("sha1");
+    }
+
+    @Benchmark
+    public File[] writeFiles () throws Exception
+    {
+        return Checksums.calc(file).writeFiles(file);
+    }
+}
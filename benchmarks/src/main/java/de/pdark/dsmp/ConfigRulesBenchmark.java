@@ -0,0 +1,162 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Match URLs against big sets of <code>redirect</code>, <code>allow</code>/<code>deny</code>
+ * and <code>no-proxy</code> rules. Each set mixes URL prefixes, globs (not
+ * for redirects) and regular expressions; the URLs hit the first rule, the
+ * last rule or none.
+ * 
+ * @author digulla
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigRulesBenchmark
+{
+    @Param({ "10", "1000" })
+    public int rules;
+
+    private File baseDir;
+    private Config config;
+    private String first;
+    private String last;
+    private String none;
+    private URL firstURL;
+    private URL lastURL;
+    private URL noneURL;
+
+    @Setup
+    public void setUp () throws Exception
+    {
+        BenchmarkSupport.quiet();
+        baseDir = BenchmarkSupport.createBaseDir();
+        
+        StringBuilder body = new StringBuilder ();
+        StringBuilder noProxy = new StringBuilder ("localhost");
+        for (int i=0; i<rules; i++)
+        {
+            String host = "repo"+i+".example";
+            switch (i % 3)
+            {
+            case 0:
+                body.append ("<redirect from=\"http://"+host+"/maven2\" to=\"http://mirror.example/maven2\" />\n");
+                body.append ("<deny url=\"http://"+host+"/maven2/org/broken/\" />\n");
+                break;
+            case 1:
+                body.append ("<redirect regex=\"http://"+host.replace(".", "\\.")+"/m([0-9])/(.*)\" to=\"http://mirror.example/maven$1/$2\" />\n");
+                body.append ("<deny glob=\"http://"+host+"/**/*-SNAPSHOT.jar\" />\n");
+                break;
+            default:
+                body.append ("<redirect from=\"http://"+host+"/legacy\" to=\"http://mirror.example/legacy\" />\n");
+                body.append ("<deny regex=\"http://"+host.replace(".", "\\.")+"/.*\\.(zip|tar\\.gz)\" />\n");
+                break;
+            }
+            noProxy.append (",").append (i % 2 == 0 ? "host"+i+".intranet.example" : ".domain"+i+".example");
+        }
+        body.append ("<proxy host=\"proxy.example\" port=\"3128\" user=\"\" password=\"\" no-proxy=\""+noProxy+"\" />\n");
+        config = BenchmarkSupport.createConfig(baseDir, body.toString());
+        
+        first = "http://repo0.example/maven2/org/apache/maven/maven-core/3.9.6/maven-core-3.9.6.pom";
+        last = "http://repo"+(rules - 1)+".example/maven2/org/apache/maven/maven-core/3.9.6/maven-core-3.9.6.pom";
+        none = "http://repo1.maven.org/maven2/org/apache/maven/maven-core/3.9.6/maven-core-3.9.6.pom";
+        firstURL = new URL ("http://host0.intranet.example/maven2/a/b/1/b-1.pom");
+        lastURL = new URL ("http://www.domain"+(rules - 1 - ((rules - 1) % 2 == 0 ? 1 : 0))+".example/maven2/a/b/1/b-1.pom");
+        noneURL = new URL (none);
+    }
+
+    @TearDown
+    public void tearDown ()
+    {
+        BenchmarkSupport.delete(baseDir);
+    }
+
+    @Benchmark
+    public String mirrorFirst ()
+    {
+        return config.getMirror(first);
+    }
+
+    @Benchmark
+    public String mirrorLast ()
+    {
+        return config.getMirror(last);
+    }
+
+    @Benchmark
+    public String mirrorNone ()
+    {
+        return config.getMirror(none);
+    }
+
+    @Benchmark
+    public boolean allowedFirst ()
+    {
+        return config.isAllowed(first);
+    }
+
+    @Benchmark
+    public boolean allowedLast ()
+    {
+        return config.isAllowed(last);
+    }
+
+    @Benchmark
+    public boolean allowedNone ()
+    {
+        return config.isAllowed(none);
+    }
+
+    @Benchmark
+    public boolean useProxyFirst ()
+    {
+        return config.useProxy(firstURL);
+    }
+
+    @Benchmark
+    public boolean useProxyLast ()
+    {
+        return config.useProxy(lastURL);
+    }
+
+    @Benchmark
+    public boolean useProxyNone ()
+    {
+        return config.useProxy(noneURL);
+    }
+}
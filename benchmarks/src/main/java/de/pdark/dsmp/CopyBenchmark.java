@@ -0,0 +1,116 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copy streams with <code>IOUtils.copy()</code>: From memory (the cost of
+ * the copy itself) and from a file (what the blocking front end does for
+ * clients without a channel).
+ * 
+ * @author digulla
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CopyBenchmark
+{
+    @Param({ "1024", "65536", "4194304" })
+    public int size;
+
+    private File baseDir;
+    private File file;
+    private byte[] data;
+    private OutputStream sink;
+    private long written;
+
+    @Setup
+    public void setUp () throws Exception
+    {
+        data = BenchmarkSupport.content(size);
+        baseDir = BenchmarkSupport.createBaseDir();
+        file = new File (baseDir, "data.jar");
+        BenchmarkSupport.write(file, data);
+        
+        // Count the data without keeping it
+        sink = new OutputStream () {
+            @Override
+            public void write (int b)
+            {
+                written ++;
+            }
+            
+            @Override
+            public void write (byte[] b, int off, int len)
+            {
+                written += len;
+            }
+        };
+    }
+
+    @TearDown
+    public void tearDown ()
+    {
+        BenchmarkSupport.delete(baseDir);
+    }
+
+    @Benchmark
+    public long copyFromMemory () throws Exception
+    {
+        written = 0;
+        IOUtils.copy(new ByteArrayInputStream (data), sink);
+        return written;
+    }
+
+    @Benchmark
+    public long copyFromFile () throws Exception
+    {
+        written = 0;
+        InputStream in = new FileInputStream (file);
+        try
+        {
+            IOUtils.copy(in, sink);
+        }
+        finally
+        {
+            in.close();
+        }
+        return written;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Map URLs to files in the cache and the patches: The plain path
+ * computation, the lookup which checks for a patch on the disk and the
+ * lookup in the index.
+ * 
+ * @author digulla
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathResolutionBenchmark
+{
+    private File baseDir;
+    private Config config;
+    private File cacheDir;
+    private URL cached;
+    private URL missing;
+    private URL patched;
+    private URL withPort;
+
+    @Setup
+    public void setUp () throws Exception
+    {
+        BenchmarkSupport.quiet();
+        baseDir = BenchmarkSupport.createBaseDir();
+        config = BenchmarkSupport.createConfig(baseDir, "");
+        cacheDir = config.getCacheDirectory();
+        
+        cached = new URL ("http://repo1.maven.org/maven2/org/apache/maven/maven-core/3.9.6/maven-core-3.9.6.pom");
+        missing = new URL ("http://repo1.maven.org/maven2/org/apache/maven/maven-core/3.9.6/maven-core-3.9.6.jar");
+        patched = new URL ("http://repo1.maven.org/maven2/org/apache/maven/maven-model/3.9.6/maven-model-3.9.6.pom");
+        withPort = new URL ("http://nexus.example:8081/repository/maven-public/org/apache/maven/maven-core/3.9.6/maven-core-3.9.6.pom");
+        
+        BenchmarkSupport.write(RequestHandler.getCacheFile(cached, cacheDir), "<pom/>\n".getBytes("ISO-8859-1"));
+        BenchmarkSupport.write(RequestHandler.getCacheFile(patched, config.getPatchesDirectory()), "<pom/>\n".getBytes("ISO-8859-1"));
+        
+        // Wait until the index knows the files
+        CacheIndex index = CacheIndex.get(config);
+        long timeout = System.currentTimeMillis() + 10000;
+        while (index.lookup(patched) == null || index.lookup(cached) == null)
+        {
+            if (System.currentTimeMillis() > timeout)
+                throw new IllegalStateException ("The cache wasn't indexed");
+            Thread.sleep(10);
+        }
+    }
+
+    @TearDown
+    public void tearDown ()
+    {
+        CacheIndex.shutdownAll();
+        BenchmarkSupport.delete(baseDir);
+    }
+
+    @Benchmark
+    public File cacheFile ()
+    {
+        return RequestHandler.getCacheFile(cached, cacheDir);
+    }
+
+    @Benchmark
+    public File cacheFileWithPort ()
+    {
+        return RequestHandler.getCacheFile(withPort, cacheDir);
+    }
+
+    /** Looks for the patch on the disk */
+    @Benchmark
+    public File patchFile ()
+    {
+        return RequestHandler.getPatchFile(missing, config);
+    }
+
+    @Benchmark
+    public File localFileHit ()
+    {
+        return RequestHandler.getLocalFile(cached, config);
+    }
+
+    @Benchmark
+    public File localFilePatch ()
+    {
+        return RequestHandler.getLocalFile(patched, config);
+    }
+
+    @Benchmark
+    public File localFileMiss ()
+    {
+        return RequestHandler.getLocalFile(missing, config);
+    }
+
+    @Benchmark
+    public URL resolveURL () throws Exception
+    {
+        return RequestHandler.resolveURL(cached.toString(), config);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parse the request headers which Maven sends. This replaces the line
+ * reading of the old <code>RequestHandler</code>: Both front ends now
+ * parse the header with <code>HttpRequestParser</code>.
+ * 
+ * <p>Run it with <code>-prof gc</code> to see how much each request
+ * allocates.
+ * 
+ * @author digulla
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParsingBenchmark
+{
+    private static final String MAVEN = "GET http://repo1.maven.org/maven2/org/apache/maven/maven-core/3.9.6/maven-core-3.9.6.pom HTTP/1.1\r\n"
+            + "Cache-control: no-cache\r\n"
+            + "Cache-store: no-store\r\n"
+            + "Pragma: no-cache\r\n"
+            + "Expires: 0\r\n"
+            + "Accept-Encoding: gzip\r\n"
+            + "User-Agent: Apache-Maven/3.9.6 (Java 17.0.9; Linux 6.1)\r\n"
+            + "Host: repo1.maven.org\r\n"
+            + "Proxy-Connection: Keep-Alive\r\n"
+            + "\r\n";
+
+    private static final String CONDITIONAL = "GET http://repo1.maven.org/maven2/org/apache/maven/maven-core/maven-metadata.xml HTTP/1.1\r\n"
+            + "Host: repo1.maven.org\r\n"
+            + "If-Modified-Since: Sat, 29 Oct 2016 19:43:31 GMT\r\n"
+            + "If-None-Match: \"1f3-157131a2e38\"\r\n"
+            + "Range: bytes=100-\r\n"
+            + "Connection: keep-alive\r\n"
+            + "\r\n";
+
+    private static final String MINIMAL = "GET http://repo1.maven.org/maven2/junit/junit/4.12/junit-4.12.jar HTTP/1.0\r\n\r\n";
+
+    @Param({ "maven", "conditional", "minimal" })
+    public String header;
+
+    private byte[] data;
+    private HttpRequestParser parser;
+    private HttpRequest request;
+
+    @Setup
+    public void setUp () throws Exception
+    {
+        String text = "maven".equals (header) ? MAVEN : "conditional".equals (header) ? CONDITIONAL : MINIMAL;
+        data = text.getBytes("ISO-8859-1");
+        parser = new HttpRequestParser (HttpRequestParser.MAX_HEADER_SIZE);
+        request = new HttpRequest ();
+    }
+
+    @Benchmark
+    public HttpRequest parse () throws HeaderTooLarge
+    {
+        if (parser.parse(data, 0, data.length, request) != data.length)
+            throw new IllegalStateException ("Header wasn't parsed");
+        return request;
+    }
+
+    /** Headers which arrive in two packets are parsed twice. */
+    @Benchmark
+    public HttpRequest parseSplit () throws HeaderTooLarge
+    {
+        int half = data.length / 2;
+        if (parser.parse(data, 0, half, request) != -1)
+            throw new IllegalStateException ("Half a header was parsed");
+        if (parser.parse(data, 0, data.length, request) != data.length)
+            throw new IllegalStateException ("Header wasn't parsed");
+        return request;
+    }
+}
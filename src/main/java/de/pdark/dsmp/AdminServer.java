@@ -0,0 +1,217 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * A tiny HTTP server on a separate port which serves <code>/metrics</code>
+ * in the Prometheus text format.
+ * 
+ * <p>It runs in a thread of its own and answers one request per connection,
+ * so scrapes work even when all workers of the proxy are busy. The port is
+ * set with <code>&lt;admin port="..." address="..."&gt;</code>; changes need
+ * a restart. By default, it only listens on the loopback interface.
+ * 
+ * @author digulla
+ * 
+ */
+public class AdminServer
+{
+    public static final Logger log = Logger.getLogger(AdminServer.class);
+    
+    public static final String METRICS_PATH = "/metrics";
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    
+    private final Config config;
+    private final ServerSocket socket;
+    private final Thread thread;
+    private volatile boolean closed;
+    
+    /** How long to wait after accept() failed (for example, when there are no file handles left) */
+    static final long ACCEPT_ERROR_DELAY = 1000;
+    
+    public AdminServer (Config config, String address, int port) throws IOException
+    {
+        this.config = config;
+        
+        socket = new ServerSocket ();
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress (address, port));
+        
+        thread = new Thread ("dsmp-admin") {
+            @Override
+            public void run ()
+            {
+                handleRequests ();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        log.info ("Serving metrics on "+getAddress().getHostAddress()+" port "+getPort());
+    }
+    
+    /** The port of the server (useful when it was started with port 0). */
+    public int getPort ()
+    {
+        return socket.getLocalPort();
+    }
+    
+    /** The address on which the server listens. */
+    public InetAddress getAddress ()
+    {
+        return socket.getInetAddress();
+    }
+    
+    private void handleRequests ()
+    {
+        while (!closed)
+        {
+            Socket client;
+            try
+            {
+                client = socket.accept();
+            }
+            catch (IOException e)
+            {
+                if (closed)
+                    break;
+                
+                // The error usually persists for a while; don't spin
+                log.error ("Error accepting connection to the admin port", e);
+                try
+                {
+                    Thread.sleep(ACCEPT_ERROR_DELAY);
+                }
+                catch (InterruptedException ie)
+                {
+                    break;
+                }
+                continue;
+            }
+            
+            try
+            {
+                client.setSoTimeout(10000);
+                handle (client);
+            }
+            catch (Exception e)
+            {
+                log.debug ("Error answering request on the admin port", e);
+            }
+            finally
+            {
+                try
+                {
+                    client.close();
+                }
+                catch (IOException e)
+                {
+                    log.debug ("Error closing connection to the admin port", e);
+                }
+            }
+        }
+    }
+    
+    private void handle (Socket client) throws IOException
+    {
+        HttpRequestParser parser = new HttpRequestParser (HttpRequestParser.MAX_HEADER_SIZE);
+        HttpRequest request = new HttpRequest ();
+        byte[] buffer = new byte[4*1024];
+        int len = 0;
+        InputStream in = client.getInputStream();
+        while (true)
+        {
+            if (len == buffer.length)
+                throw new HeaderTooLarge (buffer.length);
+            int n = in.read(buffer, len, buffer.length - len);
+            if (n == -1)
+                return;
+            len += n;
+            if (parser.parse(buffer, 0, len, request) != -1)
+                break;
+        }
+        
+        String status;
+        String body;
+        String path = getPath (request.getDownloadURL());
+        if (request.getMethod() == null)
+            throw new IOException ("Invalid request on the admin port");
+        if (request.getDownloadURL() == null)
+        {
+            status = "HTTP/1.1 405 Method Not Allowed";
+            body = "";
+        }
+        else if (path != null && (METRICS_PATH.equals (path) || path.startsWith(METRICS_PATH+"?")))
+        {
+            status = "HTTP/1.1 200 OK";
+            body = Metrics.render(config.snapshot());
+        }
+        else
+        {
+            status = "HTTP/1.1 404 Not Found";
+            body = "";
+        }
+        
+        byte[] data = body.getBytes("UTF-8");
+        StringBuilder header = new StringBuilder ();
+        header.append (status).append ("\r\n");
+        header.append ("Content-type: ").append (CONTENT_TYPE).append ("\r\n");
+        header.append ("Content-length: ").append (data.length).append ("\r\n");
+        header.append ("Connection: close\r\n\r\n");
+        
+        OutputStream out = client.getOutputStream();
+        out.write(header.toString().getBytes("ISO-8859-1"));
+        if (!HttpRequest.HEAD.equals (request.getMethod()))
+            out.write(data);
+        out.flush();
+    }
+    
+    /** Strip scheme and host from an absolute request target. */
+    static String getPath (String target)
+    {
+        if (target == null || target.startsWith("/"))
+            return target;
+        
+        int pos = target.indexOf("://");
+        if (pos == -1)
+            return target;
+        pos = target.indexOf('/', pos + 3);
+        return pos == -1 ? "/" : target.substring(pos);
+    }
+    
+    public void close ()
+    {
+        closed = true;
+        thread.interrupt();
+        try
+        {
+            socket.close();
+        }
+        catch (IOException e)
+        {
+            log.warn ("Error closing admin socket", e);
+        }
+    }
+}
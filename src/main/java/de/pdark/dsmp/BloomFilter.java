@@ -0,0 +1,98 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A set of strings which can say "definitely not in the set" without
+ * looking at the strings.
+ * 
+ * <p>It can answer "maybe in the set" for strings which were never added
+ * (about 1% of them when the filter holds as many strings as it was
+ * created for). Strings can't be removed; create a new filter instead.
+ * 
+ * @author digulla
+ * 
+ */
+public class BloomFilter
+{
+    private static final int HASHES = 7;
+
+    private final AtomicLongArray bits;
+    private final int size;
+
+    /**
+     * @param expected How many strings the filter should hold.
+     */
+    public BloomFilter (int expected)
+    {
+        // About 10 bits per string give 1% false positives with 7 hashes
+        long n = Math.max (1024L, Math.min (Integer.MAX_VALUE - 63L, expected * 10L));
+        bits = new AtomicLongArray ((int)((n + 63) / 64));
+        size = bits.length() * 64;
+    }
+
+    public void add (String s)
+    {
+        int h1 = s.hashCode();
+        int h2 = mix (h1);
+        for (int i=0; i<HASHES; i++)
+        {
+            int bit = index (h1 + i*h2);
+            int word = bit >>> 6;
+            long mask = 1L << bit;
+            long old;
+            do
+            {
+                old = bits.get(word);
+                if ((old & mask) != 0)
+                    break;
+            }
+            while (!bits.compareAndSet(word, old, old | mask));
+        }
+    }
+
+    /** <code>false</code> if <code>s</code> was never added. */
+    public boolean mightContain (String s)
+    {
+        int h1 = s.hashCode();
+        int h2 = mix (h1);
+        for (int i=0; i<HASHES; i++)
+        {
+            int bit = index (h1 + i*h2);
+            if ((bits.get(bit >>> 6) & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    private int index (int hash)
+    {
+        return (hash & Integer.MAX_VALUE) % size;
+    }
+
+    /** A second, independent hash for double hashing */
+    private static int mix (int h)
+    {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h | 1;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of byte arrays of the same size, so connections don't need a
+ * new buffer for every request.
+ * 
+ * @author digulla
+ * 
+ */
+public class BufferPool
+{
+    /** The buffers for request headers */
+    public static final BufferPool REQUESTS = new BufferPool (8*1024, 1024);
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<byte[]> free = new ConcurrentLinkedQueue<byte[]> ();
+    private final AtomicInteger pooled = new AtomicInteger ();
+
+    /**
+     * @param bufferSize The size of the buffers
+     * @param maxPooled How many unused buffers to keep at most
+     */
+    public BufferPool (int bufferSize, int maxPooled)
+    {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public int getBufferSize ()
+    {
+        return bufferSize;
+    }
+
+    /** Get a buffer from the pool or a new one if the pool is empty. */
+    public byte[] acquire ()
+    {
+        byte[] buffer = free.poll();
+        if (buffer == null)
+            return new byte[bufferSize];
+
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back. Buffers of the wrong size (for example after
+     * they were grown) are dropped.
+     */
+    public void release (byte[] buffer)
+    {
+        if (buffer == null || buffer.length != bufferSize)
+            return;
+
+        if (pooled.incrementAndGet() > maxPooled)
+        {
+            pooled.decrementAndGet();
+            return;
+        }
+        free.offer(buffer);
+    }
+
+    /** How many unused buffers are in the pool. */
+    public int size ()
+    {
+        return pooled.get();
+    }
+}
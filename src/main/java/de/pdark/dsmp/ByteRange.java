@@ -0,0 +1,169 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * One range of bytes from the <code>Range</code> header of a request
+ * (RFC 7233). <code>start</code> and <code>end</code> are both inclusive.
+ * 
+ * @author digulla
+ * 
+ */
+public class ByteRange
+{
+    /** Clients which ask for more ranges than this get the whole file */
+    public static final int MAX_RANGES = 32;
+    
+    private final long start;
+    private final long end;
+
+    public ByteRange (long start, long end)
+    {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long getStart ()
+    {
+        return start;
+    }
+
+    public long getEnd ()
+    {
+        return end;
+    }
+
+    public long getLength ()
+    {
+        return end - start + 1;
+    }
+
+    /** The value for the <code>Content-Range</code> header. */
+    public String toContentRange (long fileLength)
+    {
+        return "bytes "+start+"-"+end+"/"+fileLength;
+    }
+
+    @Override
+    public String toString ()
+    {
+        return start+"-"+end;
+    }
+
+    /**
+     * Parse the value of a <code>Range</code> header for a file with
+     * <code>length</code> bytes. Overlapping and adjacent ranges are merged.
+     * 
+     * @return <code>null</code> if the header must be ignored (syntax errors,
+     * other units than <code>bytes</code>, too many ranges) or an empty list
+     * if none of the ranges is satisfiable.
+     */
+    public static List<ByteRange> parse (String value, long length)
+    {
+        value = value.trim ();
+        if (!value.regionMatches(true, 0, "bytes=", 0, 6))
+            return null;
+        
+        String[] specs = value.substring(6).split(",");
+        List<ByteRange> result = new ArrayList<ByteRange> (specs.length);
+        for (String spec: specs)
+        {
+            spec = spec.trim ();
+            if (spec.length() == 0)
+                continue;
+            
+            int dash = spec.indexOf('-');
+            if (dash == -1)
+                return null;
+            
+            long first = parseNumber (spec.substring(0, dash).trim ());
+            long last = parseNumber (spec.substring(dash+1).trim ());
+            if (first == -1)
+            {
+                // "-n": The last n bytes
+                if (dash != 0 || last == -1)
+                    return null;
+                if (last > 0 && length > 0)
+                    result.add (new ByteRange (Math.max (0, length - last), length - 1));
+                continue;
+            }
+            if (dash == spec.length()-1)
+                last = length - 1;
+            else if (last == -1 || last < first)
+                return null;
+            
+            if (first < length)
+                result.add (new ByteRange (first, Math.min (last, length - 1)));
+        }
+        
+        return merge (result);
+    }
+
+    /** Sort and merge the ranges. */
+    private static List<ByteRange> merge (List<ByteRange> ranges)
+    {
+        if (ranges.size() < 2)
+            return ranges;
+        
+        Collections.sort (ranges, new Comparator<ByteRange> () {
+            public int compare (ByteRange o1, ByteRange o2)
+            {
+                return o1.start < o2.start ? -1 : o1.start == o2.start ? 0 : 1;
+            }
+        });
+        
+        List<ByteRange> result = new ArrayList<ByteRange> (ranges.size());
+        ByteRange current = ranges.get(0);
+        for (int i=1; i<ranges.size(); i++)
+        {
+            ByteRange r = ranges.get(i);
+            if (r.start <= current.end + 1)
+                current = new ByteRange (current.start, Math.max (current.end, r.end));
+            else
+            {
+                result.add (current);
+                current = r;
+            }
+        }
+        result.add (current);
+        
+        if (result.size() > MAX_RANGES)
+            return null;
+        return result;
+    }
+
+    /** @return -1 if <code>s</code> isn't a number */
+    private static long parseNumber (String s)
+    {
+        if (s.length() == 0 || s.length() > 18)
+            return -1;
+        
+        long result = 0;
+        for (int i=0; i<s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+}
@@ -0,0 +1,664 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import org.apache.commons.lang.ObjectUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Know what's in the cache and patches directories without asking the
+ * file system for every request.
+ * 
+ * <p>The index is filled by a background thread when the proxy starts.
+ * Downloads add their files when they are complete. The patches directory
+ * is watched for changes, so the index knows all patches. Files which
+ * are not in the index are looked up on disk, so files which are copied
+ * into the cache by hand are found, too. The exception are files which the
+ * remote repository didn't have a moment ago (see <code>NegativeCache</code>);
+ * a request for them never touches the disk.
+ * 
+ * <p>When <code>&lt;index enabled="false"&gt;</code>, every lookup goes
+ * to the disk.
+ * 
+ * @author digulla
+ * 
+ */
+public class CacheIndex
+{
+    public static final Logger log = Logger.getLogger(CacheIndex.class);
+
+    /** What we know about a file in the cache or in the patches. */
+    public static class Entry
+    {
+        private final File file;
+        private final long length;
+        private final long lastModified;
+        private final String contentType;
+        private final boolean patch;
+
+        public Entry (File file, long length, long lastModified, boolean patch)
+        {
+            this.file = file;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.contentType = contentTypeOf (file.getName());
+            this.patch = patch;
+        }
+
+        public File getFile ()
+        {
+            return file;
+        }
+
+        public long getLength ()
+        {
+            return length;
+        }
+
+        public long getLastModified ()
+        {
+            return lastModified;
+        }
+
+        public String getContentType ()
+        {
+            return contentType;
+        }
+
+        public boolean isPatch ()
+        {
+            return patch;
+        }
+    }
+
+    private static volatile CacheIndex current;
+
+    private final CacheRoots cacheRoots;
+    private final File patchesDirectory;
+    private final boolean enabled;
+    /** The newest config generation with these directories */
+    private volatile long generation;
+
+    private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<String, Entry> ();
+    private final ConcurrentHashMap<String, Entry> patches = new ConcurrentHashMap<String, Entry> ();
+    private final CountDownLatch scanned = new CountDownLatch (1);
+
+    private volatile WatchService watcher;
+    private final Map<WatchKey, Path> watchedDirectories = new HashMap<WatchKey, Path> ();
+    /** If the patches directory is watched, the index knows all patches */
+    private volatile boolean patchesComplete;
+    /** After the scan, the index knows all files which were downloaded */
+    private volatile boolean cacheComplete;
+    private volatile boolean closed;
+
+    private CacheIndex (Config config)
+    {
+        cacheRoots = config.getCacheRoots();
+        patchesDirectory = config.getPatchesDirectory();
+        enabled = config.isIndexEnabled();
+        generation = config.getGeneration();
+
+        if (!enabled)
+        {
+            scanned.countDown();
+            return;
+        }
+
+        Thread t = new Thread ("dsmp-index") {
+            @Override
+            public void run ()
+            {
+                scanAndWatch ();
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Get the index for the directories in the config. If they have
+     * changed, a new index is created, but only for a config which is
+     * newer than the one of the current index: Requests which still have
+     * an older snapshot get the current index.
+     */
+    public static CacheIndex get (Config config)
+    {
+        CacheIndex result = current;
+        if (result != null && result.isUsableFor(config))
+            return result;
+
+        synchronized (CacheIndex.class)
+        {
+            result = current;
+            if (result != null && result.isUsableFor(config))
+                return result;
+
+            if (result != null)
+                result.close();
+            result = new CacheIndex (config);
+            current = result;
+            return result;
+        }
+    }
+
+    /** Stop watching the patches. */
+    public static void shutdownAll ()
+    {
+        synchronized (CacheIndex.class)
+        {
+            if (current != null)
+                current.close();
+            current = null;
+        }
+    }
+
+    /**
+     * Forget a file, for example because it couldn't be opened.
+     */
+    public static void forget (File f)
+    {
+        CacheIndex index = current;
+        if (index != null)
+            index.remove(f);
+    }
+
+    private boolean isUsableFor (Config config)
+    {
+        long configGeneration = config.getGeneration();
+        if (!matches (config))
+            return generation > configGeneration;
+        
+        if (generation < configGeneration)
+        {
+            synchronized (this)
+            {
+                generation = Math.max (generation, configGeneration);
+            }
+        }
+        return true;
+    }
+
+    private boolean matches (Config config)
+    {
+        return ObjectUtils.equals(cacheRoots, config.getCacheRoots())
+            && ObjectUtils.equals(patchesDirectory, config.getPatchesDirectory())
+            && enabled == config.isIndexEnabled();
+    }
+
+    /**
+     * Find the file to serve for <code>url</code>: The patch if there is
+     * one, the file in the cache otherwise.
+     *
+     * @return <code>null</code> if the file isn't there.
+     */
+    public Entry lookup (URL url)
+    {
+        String key = getKey (url);
+
+        Entry e = lookupPatch (key, url);
+        if (e != null)
+            return e;
+
+        if (enabled)
+        {
+            e = cache.get(key);
+            if (e != null)
+            {
+                CacheJanitor.touch(key);
+                Prefetcher.used(key);
+                return e;
+            }
+        }
+
+        // Failed recently; the remote repository didn't have the file
+        if (ProxyDownload.getNegativeCache().contains(url.toString()))
+            return null;
+
+        e = stat (cacheRoots.find(key), false);
+        if (e != null)
+        {
+            if (enabled)
+                cache.put(key, e);
+            CacheJanitor.touch(key);
+            Prefetcher.used(key);
+        }
+        return e;
+    }
+
+    private Entry lookupPatch (String key, URL url)
+    {
+        Entry e = patchesComplete ? patches.get(key) : stat (new File (patchesDirectory, key), true);
+        if (e != null)
+            return e;
+
+        // Generate missing checksums for patches
+        String ext = StringUtils.substringAfterLast(url.getPath(), ".").toLowerCase();
+        if (!Checksums.isChecksum (ext))
+            return null;
+
+        String sourceKey = StringUtils.substringBeforeLast(key, ".");
+        File source = new File (patchesDirectory, sourceKey);
+        if (patchesComplete ? !patches.containsKey(sourceKey) : !source.exists())
+            return null;
+
+        File f = new File (patchesDirectory, key);
+        RequestHandler.generateChecksum (source, f, ext);
+        e = stat (f, true);
+        if (e != null && enabled)
+            patches.put(key, e);
+        return e;
+    }
+
+    /**
+     * A file in the cache has been created or replaced.
+     */
+    public void update (File f)
+    {
+        if (!enabled)
+            return;
+
+        String key = getCacheKey (f);
+        if (key == null)
+            return;
+
+        Entry e = stat (f, false);
+        if (e == null)
+            cache.remove(key);
+        else
+            cache.put(key, e);
+    }
+
+    /** Forget a file in the cache or the patches. */
+    public void remove (File f)
+    {
+        String key = getCacheKey (f);
+        if (key != null)
+        {
+            // Only if the index doesn't know a copy in another directory
+            Entry e = cache.get(key);
+            if (e == null || e.getFile().equals(f))
+                cache.remove(key);
+        }
+        key = getKey (patchesDirectory, f);
+        if (key != null)
+            patches.remove(key);
+    }
+
+    /**
+     * Has the cache been scanned? Then all files which were downloaded
+     * since the start are known without looking at the disk.
+     */
+    public boolean isComplete ()
+    {
+        return cacheComplete;
+    }
+
+    /** Does the index know a file in the cache with the key of <code>f</code>? */
+    public boolean contains (File f)
+    {
+        String key = getCacheKey (f);
+        return key != null && cache.containsKey(key);
+    }
+
+    /** The number of files in the index. */
+    public int size ()
+    {
+        return cache.size() + patches.size();
+    }
+
+    /**
+     * Wait until the directories have been scanned.
+     *
+     * @return <code>false</code> if the scan didn't finish in time.
+     */
+    public boolean awaitScan (long timeout, TimeUnit unit) throws InterruptedException
+    {
+        return scanned.await(timeout, unit);
+    }
+
+    private static Entry stat (File f, boolean patch)
+    {
+        // lastModified() is 0 if the file doesn't exist
+        long lastModified = f.lastModified();
+        if (lastModified == 0 && !f.exists())
+            return null;
+        if (f.isDirectory())
+            return null;
+        return new Entry (f, f.length(), lastModified, patch);
+    }
+
+    /** The path of the file for <code>url</code>, relative to the cache or patches directory. */
+    public static String getKey (URL url)
+    {
+        StringBuilder buffer = new StringBuilder (url.getHost());
+        if (url.getPort() != -1 && url.getPort() != 80)
+        {
+            buffer.append ('/');
+            buffer.append (url.getPort());
+        }
+        buffer.append (url.getPath());
+        return buffer.toString();
+    }
+
+    private String getCacheKey (File f)
+    {
+        File root = cacheRoots.getRoot(f);
+        return root == null ? null : getKey (root, f);
+    }
+
+    private static String getKey (File root, File f)
+    {
+        String rootPath = root.getAbsolutePath() + File.separator;
+        String path = f.getAbsolutePath();
+        if (!path.startsWith(rootPath))
+            return null;
+
+        return path.substring(rootPath.length()).replace(File.separatorChar, '/');
+    }
+
+    private static String contentTypeOf (String name)
+    {
+        String ext = StringUtils.substringAfterLast(name, ".").toLowerCase();
+        String type = RequestHandler.CONTENT_TYPES.get (ext);
+        return type == null ? "text/plain" : type;
+    }
+
+    private void scanAndWatch ()
+    {
+        try
+        {
+            try
+            {
+                watcher = FileSystems.getDefault().newWatchService();
+            }
+            catch (IOException e)
+            {
+                log.warn ("Can't watch "+patchesDirectory.getAbsolutePath()+"; patches will be looked up on disk", e);
+            }
+
+            long start = System.currentTimeMillis();
+            scanPatches ();
+            patchesComplete = watcher != null;
+            scanCache ();
+            cacheComplete = true;
+            log.info ("Indexed "+cache.size()+" files in the cache and "+patches.size()+" patches in "
+                    +(System.currentTimeMillis() - start)+"ms");
+        }
+        catch (IOException e)
+        {
+            log.error ("Error indexing "+cacheRoots, e);
+        }
+        finally
+        {
+            scanned.countDown();
+        }
+
+        if (watcher != null)
+            watchPatches ();
+    }
+
+    /**
+     * Index the cache directories. When there are several, each one is
+     * scanned by its own thread since they are usually on different disks.
+     */
+    private void scanCache () throws IOException
+    {
+        List<File> roots = cacheRoots.getRoots();
+        if (roots.size() == 1)
+        {
+            scan (roots.get(0), roots.get(0).toPath(), cache, false, false);
+            return;
+        }
+
+        final List<IOException> errors = Collections.synchronizedList(new ArrayList<IOException> ());
+        List<Thread> threads = new ArrayList<Thread> ();
+        for (final File root: roots)
+        {
+            Thread t = new Thread ("dsmp-index-"+threads.size()) {
+                @Override
+                public void run ()
+                {
+                    try
+                    {
+                        scan (root, root.toPath(), cache, false, false);
+                    }
+                    catch (IOException e)
+                    {
+                        errors.add(e);
+                    }
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+
+        for (Thread t: threads)
+        {
+            try
+            {
+                t.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException ("Interrupted while indexing "+cacheRoots);
+            }
+        }
+        if (!errors.isEmpty())
+            throw errors.get(0);
+    }
+
+    /** Scan the patches again and drop the ones which are gone. */
+    private void scanPatches () throws IOException
+    {
+        ConcurrentHashMap<String, Entry> found = new ConcurrentHashMap<String, Entry> ();
+        scan (patchesDirectory, patchesDirectory.toPath(), found, true, true);
+        patches.keySet().retainAll(found.keySet());
+        patches.putAll(found);
+    }
+
+    private void scan (final File root, final Path dir, final ConcurrentHashMap<String, Entry> map, final boolean patch, final boolean watch) throws IOException
+    {
+        if (!Files.isDirectory(dir))
+            return;
+
+        final Path blobs = ContentStore.getBlobsDirectory(root).toPath();
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path> () {
+            @Override
+            public FileVisitResult preVisitDirectory (Path d, BasicFileAttributes attrs) throws IOException
+            {
+                if (closed)
+                    return FileVisitResult.TERMINATE;
+                if (!patch && d.equals(blobs))
+                    return FileVisitResult.SKIP_SUBTREE;
+                if (watch && watcher != null)
+                    register (d);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile (Path file, BasicFileAttributes attrs)
+            {
+                if (!attrs.isRegularFile())
+                    return FileVisitResult.CONTINUE;
+
+                File f = file.toFile();
+                // Skip downloads which are still running
+                if (f.getName().endsWith(".new"))
+                    return FileVisitResult.CONTINUE;
+
+                String key = getKey (root, f);
+                if (key != null)
+                {
+                    Entry e = new Entry (f, attrs.size(), attrs.lastModifiedTime().toMillis(), patch);
+                    // Downloads which finished during the scan know better
+                    Entry old = map.putIfAbsent(key, e);
+                    // Prefer the copy in the home directory if a file hasn't been moved yet
+                    if (old != null && !patch && !old.getFile().equals(f) && cacheRoots.getHome(key).equals(root))
+                        map.replace(key, old, e);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed (Path file, IOException e)
+            {
+                log.warn ("Can't index "+file, e);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void register (Path dir) throws IOException
+    {
+        WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        synchronized (watchedDirectories)
+        {
+            watchedDirectories.put(key, dir);
+        }
+    }
+
+    private void watchPatches ()
+    {
+        while (!closed)
+        {
+            WatchKey key;
+            try
+            {
+                key = watcher.take();
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            catch (ClosedWatchServiceException e)
+            {
+                return;
+            }
+
+            Path dir;
+            synchronized (watchedDirectories)
+            {
+                dir = watchedDirectories.get(key);
+            }
+
+            try
+            {
+                for (WatchEvent<?> event: key.pollEvents())
+                {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null)
+                    {
+                        log.debug ("Too many changes in the patches; scanning them again");
+                        scanPatches ();
+                        continue;
+                    }
+
+                    Path path = dir.resolve((Path)event.context());
+                    patchChanged (path, event.kind() == StandardWatchEventKinds.ENTRY_DELETE);
+                }
+            }
+            catch (IOException e)
+            {
+                log.warn ("Error updating the index of "+patchesDirectory.getAbsolutePath(), e);
+            }
+
+            if (!key.reset())
+            {
+                synchronized (watchedDirectories)
+                {
+                    watchedDirectories.remove(key);
+                }
+            }
+        }
+    }
+
+    private void patchChanged (Path path, boolean deleted) throws IOException
+    {
+        File f = path.toFile();
+        String key = getKey (patchesDirectory, f);
+        if (key == null)
+            return;
+
+        if (deleted)
+        {
+            // Could have been a directory
+            String prefix = key + "/";
+            for (String k: patches.keySet())
+            {
+                if (k.startsWith(prefix))
+                    patches.remove(k);
+            }
+            patches.remove(key);
+            log.debug ("Patch removed: "+key);
+            return;
+        }
+
+        if (Files.isDirectory(path))
+        {
+            scan (patchesDirectory, path, patches, true, true);
+            return;
+        }
+
+        Entry e = stat (f, true);
+        if (e != null)
+        {
+            patches.put(key, e);
+            log.debug ("Patch changed: "+key);
+        }
+    }
+
+    private void close ()
+    {
+        closed = true;
+        if (watcher != null)
+        {
+            try
+            {
+                watcher.close();
+            }
+            catch (IOException e)
+            {
+                log.warn ("Error closing watch service", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,591 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keep the cache below the limits in <code>&lt;cache-limit&gt;</code>.
+ * 
+ * <p>A background thread measures the cache from time to time. When it's
+ * too big, the coldest files are deleted until the cache is 10% below the
+ * limits. A file is deleted together with its checksums, its signature
+ * and its compressed copy.
+ * 
+ * <p>How cold a file is depends on when it was used last and how often:
+ * The time since the last use is divided by the logarithm of the number
+ * of uses. The uses are counted in memory when the index finds a file,
+ * so hits don't touch the file system. Files which haven't been used since
+ * the proxy started count as used when they were downloaded (or
+ * revalidated) last.
+ * 
+ * <p>The patches directory is never touched, neither are files which
+ * are being downloaded or which were written a moment ago.
+ * 
+ * <p>When the cache is spread over several directories and they change,
+ * the janitor moves the files which are not in their home directory
+ * (see <code>CacheRoots</code>).
+ * 
+ * <p>Blobs which no file in the cache uses anymore are deleted, too
+ * (see <code>ContentStore</code>).
+ * 
+ * @author digulla
+ * 
+ */
+public class CacheJanitor
+{
+    public static final Logger log = Logger.getLogger(CacheJanitor.class);
+    
+    /** Delete files until the cache is this much of the limit */
+    static final double LOW_WATER = 0.9;
+    /** Don't delete files which were written in the last minute */
+    static final long GRACE_MILLIS = 60*1000L;
+    /** Older versions remembered failed downloads in these files */
+    static final String STATUS_SUFFIX = ".status";
+    
+    /** How often and how recently a file was used */
+    private static class Access
+    {
+        private volatile long lastAccess;
+        /** Not exact: Concurrent hits can be lost, which doesn't matter here */
+        private volatile int hits;
+    }
+    
+    /** The uses of files in the cache since the start, by their key in the index */
+    private static final ConcurrentHashMap<String, Access> ACCESS = new ConcurrentHashMap<String, Access> ();
+    private static final AtomicLong EVICTED_FILES = new AtomicLong ();
+    private static final AtomicLong EVICTED_BYTES = new AtomicLong ();
+    private static volatile long cacheSize = -1;
+    private static volatile long cacheFiles = -1;
+    /** Without a limit, nothing is evicted and the uses of files don't matter */
+    private static volatile boolean tracking = true;
+    
+    private final Config config;
+    private final ScheduledExecutorService executor;
+    /** The cache directories which were balanced last */
+    private CacheRoots balanced;
+    
+    public CacheJanitor (Config config)
+    {
+        this.config = config;
+        track (config);
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory () {
+            public Thread newThread (Runnable r)
+            {
+                Thread t = new Thread (r, "dsmp-janitor");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        schedule ();
+    }
+    
+    /**
+     * Remember that the file with this key (see <code>CacheIndex.getKey()</code>)
+     * was used.
+     */
+    public static void touch (String key)
+    {
+        if (!tracking)
+            return;
+        
+        key = getGroupKey (key);
+        Access access = ACCESS.get(key);
+        if (access == null)
+        {
+            Access created = new Access ();
+            access = ACCESS.putIfAbsent(key, created);
+            if (access == null)
+                access = created;
+        }
+        access.lastAccess = System.currentTimeMillis();
+        access.hits ++;
+    }
+    
+    /** The number of files which were deleted to keep the cache small. */
+    public static long getEvictedFiles ()
+    {
+        return EVICTED_FILES.get();
+    }
+    
+    /** The number of bytes which were freed to keep the cache small. */
+    public static long getEvictedBytes ()
+    {
+        return EVICTED_BYTES.get();
+    }
+    
+    /** The size of the cache in bytes when it was measured last or -1. */
+    public static long getCacheSize ()
+    {
+        return cacheSize;
+    }
+    
+    /** The number of files in the cache when it was measured last or -1. */
+    public static long getCacheFiles ()
+    {
+        return cacheFiles;
+    }
+    
+    /**
+     * Remember the uses of files only when the cache has a limit.
+     * 
+     * @return <code>true</code> if it has one.
+     */
+    static boolean track (Config config)
+    {
+        tracking = config.getCacheLimitSize() > 0 || config.getCacheLimitFiles() > 0;
+        if (!tracking)
+            ACCESS.clear();
+        return tracking;
+    }
+    
+    /** Was the file with this key used since it was last checked? */
+    static boolean isUsed (String key)
+    {
+        return ACCESS.containsKey(getGroupKey (key));
+    }
+    
+    private void schedule ()
+    {
+        try
+        {
+            executor.schedule(new Runnable () {
+                public void run ()
+                {
+                    try
+                    {
+                        Config snapshot = config.snapshot();
+                        CacheRoots roots = snapshot.getCacheRoots();
+                        // Until a pass finds nothing to move (files can be busy)
+                        if (!roots.equals(balanced) && rebalance (snapshot) == 0)
+                            balanced = roots;
+                        clean (snapshot);
+                        // Free the space of the content which is no longer used
+                        ContentStore.collect (snapshot);
+                    }
+                    catch (Exception e)
+                    {
+                        log.error ("Error cleaning the cache", e);
+                    }
+                    schedule ();
+                }
+            }, config.getCacheLimitInterval(), TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // Closed
+        }
+    }
+    
+    public void close ()
+    {
+        executor.shutdownNow();
+    }
+    
+    /** The files which are deleted together: A file with its checksums, signature and compressed copy */
+    static class Group
+    {
+        private final String key;
+        private final List<File> files = new ArrayList<File> ();
+        private long size;
+        private long lastModified;
+        private double coldness;
+        
+        public Group (String key)
+        {
+            this.key = key;
+        }
+    }
+    
+    /**
+     * Delete the coldest files if the cache is bigger than the limits.
+     * 
+     * @return The number of deleted files.
+     */
+    public static int clean (Config config) throws IOException
+    {
+        if (!track (config))
+            return 0;
+        long maxSize = config.getCacheLimitSize();
+        int maxFiles = config.getCacheLimitFiles();
+        
+        final Map<String, Group> groups = new HashMap<String, Group> ();
+        final long[] total = new long[2];
+        // Files with the same content (see ContentStore) need the space only once
+        final Set<Object> contents = new HashSet<Object> ();
+        
+        walk (config, new Visitor () {
+            public void visit (File root, String key, File f, BasicFileAttributes attrs)
+            {
+                if (attrs.fileKey() == null || contents.add(attrs.fileKey()))
+                    total[0] += attrs.size();
+                total[1] ++;
+                
+                // Parts of running downloads and temporary files
+                if (key == null)
+                    return;
+                
+                key = getGroupKey (key);
+                Group g = groups.get(key);
+                if (g == null)
+                {
+                    g = new Group (key);
+                    groups.put(key, g);
+                }
+                g.files.add(f);
+                g.size += attrs.size();
+                g.lastModified = Math.max (g.lastModified, attrs.lastModifiedTime().toMillis());
+            }
+        });
+        
+        CacheIndex index = CacheIndex.get(config);
+        int orphans = deleteOrphans (groups, total, index);
+        
+        cacheSize = total[0];
+        cacheFiles = total[1];
+        
+        // Forget the uses of files which are gone
+        ACCESS.keySet().retainAll(groups.keySet());
+        
+        boolean tooBig = maxSize > 0 && total[0] > maxSize;
+        boolean tooMany = maxFiles > 0 && total[1] > maxFiles;
+        if (!tooBig && !tooMany)
+        {
+            log.debug ("Cache has "+total[1]+" files with "+total[0]+" bytes; nothing to do");
+            return orphans;
+        }
+        
+        long targetSize = maxSize > 0 ? (long)(maxSize * LOW_WATER) : Long.MAX_VALUE;
+        long targetFiles = maxFiles > 0 ? (long)Math.ceil(maxFiles * LOW_WATER) : Long.MAX_VALUE;
+        log.info ("Cache has "+total[1]+" files with "+total[0]+" bytes; cleaning up to "
+                +(maxFiles > 0 ? targetFiles+" files" : "")+(maxSize > 0 && maxFiles > 0 ? " and " : "")
+                +(maxSize > 0 ? targetSize+" bytes" : ""));
+        
+        long now = System.currentTimeMillis();
+        List<Group> candidates = new ArrayList<Group> (groups.size());
+        for (Group g: groups.values())
+        {
+            if (now - g.lastModified < GRACE_MILLIS)
+                continue;
+            
+            Access access = ACCESS.get(g.key);
+            long lastAccess = g.lastModified;
+            int hits = 0;
+            if (access != null)
+            {
+                lastAccess = Math.max (lastAccess, access.lastAccess);
+                hits = access.hits;
+            }
+            g.coldness = Math.max (0, now - lastAccess) / (1 + Math.log (1 + hits) / Math.log (2));
+            candidates.add(g);
+        }
+        Collections.sort(candidates, new Comparator<Group> () {
+            public int compare (Group a, Group b)
+            {
+                return Double.compare(b.coldness, a.coldness);
+            }
+        });
+        
+        long size = total[0];
+        long files = total[1];
+        int deleted = orphans;
+        for (Group g: candidates)
+        {
+            if (size <= targetSize && files <= targetFiles)
+                break;
+            
+            // The file might be replaced by a download right now
+            File primary = config.getCacheRoots().getFile(g.key);
+            if (ProxyDownload.isDownloading(primary))
+                continue;
+            
+            for (File f: g.files)
+            {
+                long len = f.length();
+                // Other files (besides the blob) have the same content
+                if (links (f) > 2)
+                    len = 0;
+                if (!f.delete())
+                {
+                    log.warn ("Can't delete "+f.getAbsolutePath());
+                    continue;
+                }
+                
+                index.remove(f);
+                Response.getHotCache().remove(f);
+                Response.getMappedFiles().remove(f);
+                size -= len;
+                files --;
+                deleted ++;
+                EVICTED_FILES.incrementAndGet();
+                EVICTED_BYTES.addAndGet(len);
+            }
+            ACCESS.remove(g.key);
+            log.debug ("Evicted "+g.key);
+        }
+        
+        cacheSize = size;
+        cacheFiles = files;
+        log.info ("Deleted "+deleted+" files from the cache; "+files+" files with "+size+" bytes are left");
+        return deleted;
+    }
+    
+    /**
+     * Delete the <code>.status</code> files of older versions when the file
+     * which they belong to is gone. They are never used anymore and would
+     * stay in the cache forever.
+     * 
+     * @return The number of deleted files.
+     */
+    private static int deleteOrphans (Map<String, Group> groups, long[] total, CacheIndex index)
+    {
+        int deleted = 0;
+        for (Iterator<Group> iter = groups.values().iterator(); iter.hasNext();)
+        {
+            Group g = iter.next();
+            boolean orphan = true;
+            for (File f: g.files)
+                orphan &= f.getName().endsWith(STATUS_SUFFIX);
+            if (!orphan)
+                continue;
+            
+            for (File f: g.files)
+            {
+                long len = f.length();
+                if (!f.delete())
+                {
+                    log.warn ("Can't delete "+f.getAbsolutePath());
+                    continue;
+                }
+                
+                index.remove(f);
+                total[0] -= len;
+                total[1] --;
+                deleted ++;
+            }
+            iter.remove();
+            log.debug ("Deleted the orphaned status of "+g.key);
+        }
+        return deleted;
+    }
+    
+    private static int links (File f)
+    {
+        try
+        {
+            return ContentStore.getLinks(f);
+        }
+        catch (IOException e)
+        {
+            return 1;
+        }
+    }
+    
+    /**
+     * Move the files which are not in their home directory. This is
+     * necessary when a cache directory has been added (or removed from the
+     * config while its files were moved into the other ones by hand).
+     * 
+     * @return The number of moved files.
+     */
+    public static int rebalance (final Config config) throws IOException
+    {
+        final CacheRoots roots = config.getCacheRoots();
+        if (roots.getRoots().size() == 1)
+            return 0;
+        
+        // File -> key
+        final Map<File, String> misplaced = new LinkedHashMap<File, String> ();
+        walk (config, new Visitor () {
+            public void visit (File root, String key, File f, BasicFileAttributes attrs)
+            {
+                if (key == null)
+                    return;
+                
+                if (!roots.getHome(key).equals(root))
+                    misplaced.put(f, key);
+            }
+        });
+        if (misplaced.isEmpty())
+            return 0;
+        
+        log.info ("Moving "+misplaced.size()+" files to their home in "+roots);
+        long now = System.currentTimeMillis();
+        CacheIndex index = CacheIndex.get(config);
+        int moved = 0;
+        for (Map.Entry<File, String> entry: misplaced.entrySet())
+        {
+            File f = entry.getKey();
+            File dest = roots.getFile(entry.getValue());
+            // Still being written; try again next time
+            if (now - f.lastModified() < GRACE_MILLIS || ProxyDownload.isDownloading(roots.getFile(getGroupKey (entry.getValue()))))
+                continue;
+            
+            try
+            {
+                if (move (f, dest, index))
+                    moved ++;
+            }
+            catch (IOException e)
+            {
+                log.warn ("Can't move "+f.getAbsolutePath()+" to "+dest.getAbsolutePath(), e);
+            }
+        }
+        log.info ("Moved "+moved+" files");
+        return moved;
+    }
+    
+    /**
+     * Move <code>f</code> to <code>dest</code> (usually on another disk). The
+     * copy is renamed when it's complete, so clients never see a partial file.
+     * If <code>dest</code> already exists, it wins.
+     * 
+     * @return <code>false</code> if <code>f</code> has vanished.
+     */
+    private static boolean move (File f, File dest, CacheIndex index) throws IOException
+    {
+        if (!dest.exists())
+        {
+            IOUtils.mkdirs (dest.getParentFile());
+            File tmp = new File (dest.getAbsolutePath()+".move.new");
+            try
+            {
+                Files.copy(f.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            }
+            catch (NoSuchFileException e)
+            {
+                return false;
+            }
+            Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            index.update(dest);
+        }
+        
+        if (!f.delete())
+            throw new IOException ("Can't delete "+f.getAbsolutePath());
+        index.remove(f);
+        Response.getHotCache().remove(f);
+        Response.getMappedFiles().remove(f);
+        return true;
+    }
+    
+    private interface Visitor
+    {
+        /**
+         * @param key The key of <code>f</code> in the index or <code>null</code> for temporary files
+         */
+        void visit (File root, String key, File f, BasicFileAttributes attrs);
+    }
+    
+    /** Visit all files in all cache directories. */
+    private static void walk (Config config, final Visitor visitor) throws IOException
+    {
+        final Path patches = config.getPatchesDirectory().toPath().toAbsolutePath();
+        for (File dir: config.getCacheRoots().getRoots())
+        {
+            final File root = dir.getAbsoluteFile();
+            if (!root.isDirectory())
+                continue;
+            
+            final int prefix = root.getAbsolutePath().length() + 1;
+            final Path blobs = ContentStore.getBlobsDirectory(root).toPath();
+            Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path> () {
+                @Override
+                public FileVisitResult preVisitDirectory (Path dir, BasicFileAttributes attrs)
+                {
+                    // In case someone put the patches into the cache
+                    return dir.startsWith(patches) || dir.equals(blobs) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                }
+                
+                @Override
+                public FileVisitResult visitFile (Path file, BasicFileAttributes attrs)
+                {
+                    if (!attrs.isRegularFile())
+                        return FileVisitResult.CONTINUE;
+                    
+                    File f = file.toFile();
+                    String key = null;
+                    if (!f.getName().endsWith(".new"))
+                        key = f.getAbsolutePath().substring(prefix).replace(File.separatorChar, '/');
+                    visitor.visit(root, key, f, attrs);
+                    return FileVisitResult.CONTINUE;
+                }
+                
+                @Override
+                public FileVisitResult visitFileFailed (Path file, IOException e)
+                {
+                    log.warn ("Can't read "+file, e);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+    }
+    
+    /**
+     * The key of the file which the file with <code>key</code> belongs to:
+     * The key itself unless it's a checksum, a signature, a compressed copy,
+     * a backup or the status file of an older version.
+     */
+    static String getGroupKey (String key)
+    {
+        while (true)
+        {
+            if (key.endsWith(GzipVariants.SUFFIX))
+                key = key.substring(0, key.length() - GzipVariants.SUFFIX.length());
+            else if (key.endsWith(ProxyDownload.VALIDATED_SUFFIX))
+                key = key.substring(0, key.length() - ProxyDownload.VALIDATED_SUFFIX.length());
+            else if (key.endsWith(STATUS_SUFFIX))
+                key = key.substring(0, key.length() - STATUS_SUFFIX.length());
+            else if (key.endsWith(".bak"))
+                key = key.substring(0, key.length() - 4);
+            else
+            {
+                int slash = key.lastIndexOf('/');
+                int dot = key.lastIndexOf('.');
+                if (dot <= slash + 1 || !Checksums.isSidecar(key))
+                    return key;
+                key = key.substring(0, dot);
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The directories which hold the cache.
+ * 
+ * <p>The cache can be spread over several directories (usually on
+ * different disks). Each file has a home directory which is picked by a
+ * hash of its key (rendezvous hashing): When a directory is added, only
+ * the files which now belong to the new directory have to move. A file
+ * shares its home with its checksums, signature and compressed copy.
+ * 
+ * <p>Directories can be reserved for metadata (POMs and XML files), for
+ * example to keep them on a fast disk.
+ * 
+ * <p>Files which are not in their home (because they were downloaded
+ * before a directory was added) are still found; the janitor moves them
+ * home in the background.
+ * 
+ * @author digulla
+ * 
+ */
+public class CacheRoots
+{
+    private final List<File> roots;
+    /** The directories which get everything but metadata */
+    private final File[] data;
+    /** The directories which get metadata; same as <code>data</code> if there are none */
+    private final File[] metadata;
+    private final long[] dataSeeds;
+    private final long[] metadataSeeds;
+
+    /**
+     * @param roots All directories. The first one is the main cache directory.
+     * @param metadataRoots The directories in <code>roots</code> which only get metadata
+     */
+    public CacheRoots (List<File> roots, List<File> metadataRoots)
+    {
+        if (roots.isEmpty())
+            throw new IllegalArgumentException ("No cache directories");
+        
+        this.roots = Collections.unmodifiableList(new ArrayList<File> (roots));
+        
+        List<File> data = new ArrayList<File> ();
+        for (File root: roots)
+        {
+            if (!metadataRoots.contains(root))
+                data.add(root);
+        }
+        if (data.isEmpty())
+            throw new IllegalArgumentException ("All cache directories are reserved for metadata");
+        
+        this.data = data.toArray(new File[data.size()]);
+        this.metadata = metadataRoots.isEmpty() ? this.data : metadataRoots.toArray(new File[metadataRoots.size()]);
+        dataSeeds = seeds (this.data);
+        metadataSeeds = seeds (this.metadata);
+    }
+
+    /** A cache in a single directory. */
+    public CacheRoots (File root)
+    {
+        this (Collections.singletonList(root), Collections.<File>emptyList());
+    }
+
+    private static long[] seeds (File[] dirs)
+    {
+        long[] result = new long[dirs.length];
+        for (int i=0; i<dirs.length; i++)
+            result[i] = mix (dirs[i].getAbsolutePath().hashCode());
+        return result;
+    }
+
+    /** All directories; the main cache directory comes first. */
+    public List<File> getRoots ()
+    {
+        return roots;
+    }
+
+    /** The main cache directory. */
+    public File getMainRoot ()
+    {
+        return roots.get(0);
+    }
+
+    /**
+     * The directory where the file with <code>key</code> (see
+     * <code>CacheIndex.getKey()</code>) belongs.
+     */
+    public File getHome (String key)
+    {
+        String group = CacheJanitor.getGroupKey (key);
+        if (isMetadata (group))
+            return pick (group, metadata, metadataSeeds);
+        return pick (group, data, dataSeeds);
+    }
+
+    /** Where the file with <code>key</code> belongs. */
+    public File getFile (String key)
+    {
+        return new File (getHome (key), key);
+    }
+
+    /**
+     * Find the file with <code>key</code>: In its home or, if it hasn't
+     * been moved yet, in one of the other directories.
+     * 
+     * @return The file in its home if it doesn't exist anywhere.
+     */
+    public File find (String key)
+    {
+        File home = getHome (key);
+        File f = new File (home, key);
+        if (roots.size() == 1 || f.exists())
+            return f;
+        
+        for (File root: roots)
+        {
+            if (root.equals(home))
+                continue;
+            File other = new File (root, key);
+            if (other.exists())
+                return other;
+        }
+        return f;
+    }
+
+    /**
+     * The directory which contains <code>f</code>.
+     * 
+     * @return <code>null</code> if <code>f</code> isn't in the cache.
+     */
+    public File getRoot (File f)
+    {
+        String path = f.getAbsolutePath();
+        for (File root: roots)
+        {
+            String rootPath = root.getAbsolutePath() + File.separator;
+            if (path.startsWith(rootPath))
+                return root;
+        }
+        return null;
+    }
+
+    /** POMs and XML files (like <code>maven-metadata.xml</code>) */
+    static boolean isMetadata (String groupKey)
+    {
+        return groupKey.endsWith(".pom") || groupKey.endsWith(".xml");
+    }
+
+    private static File pick (String group, File[] dirs, long[] seeds)
+    {
+        if (dirs.length == 1)
+            return dirs[0];
+        
+        long hash = mix (group.hashCode());
+        int best = 0;
+        long bestScore = Long.MIN_VALUE;
+        for (int i=0; i<dirs.length; i++)
+        {
+            long score = mix (hash ^ seeds[i]);
+            if (score > bestScore)
+            {
+                bestScore = score;
+                best = i;
+            }
+        }
+        return dirs[best];
+    }
+
+    /** The finalizer of MurmurHash3; spreads similar inputs over the whole range */
+    private static long mix (long h)
+    {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public boolean equals (Object obj)
+    {
+        if (!(obj instanceof CacheRoots))
+            return false;
+        CacheRoots other = (CacheRoots)obj;
+        return roots.equals(other.roots) && Arrays.equals(metadata, other.metadata);
+    }
+
+    @Override
+    public int hashCode ()
+    {
+        return roots.hashCode();
+    }
+
+    @Override
+    public String toString ()
+    {
+        return roots.toString();
+    }
+}
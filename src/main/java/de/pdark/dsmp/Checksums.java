@@ -0,0 +1,204 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.SystemUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Calculate the checksums which Maven uses (MD5, SHA-1 and SHA-256)
+ * in one pass over the data.
+ * 
+ * @author digulla
+ * 
+ */
+public class Checksums
+{
+    /** The extensions of the checksum files, in the order of the algorithms */
+    public static final String[] EXTENSIONS = { "md5", "sha1", "sha256" };
+    private static final String[] ALGORITHMS = { "MD5", "SHA-1", "SHA-256" };
+
+    private final MessageDigest[] digests = new MessageDigest[ALGORITHMS.length];
+    private String[] results;
+
+    public Checksums ()
+    {
+        for (int i=0; i<ALGORITHMS.length; i++)
+        {
+            try
+            {
+                digests[i] = MessageDigest.getInstance(ALGORITHMS[i]);
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                throw new RuntimeException ("Java doesn't support "+ALGORITHMS[i], e);
+            }
+        }
+    }
+
+    public void update (byte[] buffer, int offset, int len)
+    {
+        if (results != null)
+            throw new IllegalStateException ("Checksums have already been calculated");
+
+        for (MessageDigest digest: digests)
+            digest.update(buffer, offset, len);
+    }
+
+    /**
+     * Get the checksum as a lowercase hex string.
+     *
+     * @param ext The extension of the checksum file, for example <code>sha1</code>.
+     */
+    public String get (String ext)
+    {
+        if (results == null)
+        {
+            results = new String[digests.length];
+            for (int i=0; i<digests.length; i++)
+                results[i] = toHex (digests[i].digest());
+        }
+
+        for (int i=0; i<EXTENSIONS.length; i++)
+        {
+            if (EXTENSIONS[i].equals (ext))
+                return results[i];
+        }
+        throw new IllegalArgumentException ("Unknown checksum "+ext);
+    }
+
+    /**
+     * Write <code>f.md5</code>, <code>f.sha1</code> and <code>f.sha256</code>.
+     *
+     * @return The files which were written.
+     */
+    public File[] writeFiles (File f) throws IOException
+    {
+        File[] result = new File[EXTENSIONS.length];
+        for (int i=0; i<EXTENSIONS.length; i++)
+        {
+            result[i] = new File (f.getAbsolutePath()+"."+EXTENSIONS[i]);
+            write (result[i], get (EXTENSIONS[i]));
+        }
+        return result;
+    }
+
+    /** Write a checksum file; the file is replaced in one step. */
+    public static void write (File f, String checksum) throws IOException
+    {
+        write (f, (checksum + SystemUtils.LINE_SEPARATOR).getBytes("ISO-8859-1"));
+    }
+
+    /** Write a checksum file with the content from a remote repository; the file is replaced in one step. */
+    public static void write (File f, byte[] content) throws IOException
+    {
+        File tmp = new File (f.getAbsolutePath()+".new");
+        OutputStream out = new FileOutputStream (tmp);
+        try
+        {
+            out.write(content);
+        }
+        finally
+        {
+            out.close();
+        }
+
+        if (f.exists())
+            f.delete();
+        if (!tmp.renameTo(f))
+            throw new IOException ("Can't rename "+tmp.getAbsolutePath()+" to "+f.getAbsolutePath());
+    }
+
+    /** Calculate the checksums of a file. */
+    public static Checksums calc (File f) throws IOException
+    {
+        Checksums result = new Checksums ();
+        InputStream in = new FileInputStream (f);
+        try
+        {
+            byte[] buffer = new byte[64*1024];
+            int len;
+            while ((len = in.read(buffer)) != -1)
+                result.update(buffer, 0, len);
+        }
+        finally
+        {
+            in.close();
+        }
+        return result;
+    }
+
+    /** Is this the extension of a checksum file? */
+    public static boolean isChecksum (String ext)
+    {
+        for (String s: EXTENSIONS)
+        {
+            if (s.equals (ext))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Does the path belong to a file which shouldn't get checksums of its own
+     * (checksums and signatures)?
+     */
+    public static boolean isSidecar (String path)
+    {
+        String ext = StringUtils.substringAfterLast(path, ".").toLowerCase();
+        return isChecksum (ext) || "asc".equals (ext) || "sha512".equals (ext);
+    }
+
+    /**
+     * Get the checksum from the content of a checksum file. Some repositories
+     * add the file name or use uppercase letters.
+     *
+     * @return <code>null</code> if there is no checksum in the content.
+     */
+    public static String parse (String content)
+    {
+        String s = StringUtils.trimToNull(content);
+        if (s == null)
+            return null;
+
+        int pos = 0;
+        while (pos < s.length() && !Character.isWhitespace(s.charAt(pos)))
+            pos ++;
+        return s.substring(0, pos).toLowerCase();
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static String toHex (byte[] bytes)
+    {
+        char[] chars = new char[bytes.length * 2];
+        for (int i=0; i<bytes.length; i++)
+        {
+            chars[2*i] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[2*i+1] = HEX[bytes[i] & 0xf];
+        }
+        return new String (chars);
+    }
+}
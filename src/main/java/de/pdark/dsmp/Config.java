@@ -29,14 +29,18 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Read and manage the configuration.
  * 
  * <p>Unlike the standard config classes, this one allows to reload
- * the config at any convenient time.
+ * the config at any convenient time. Code which needs several values
+ * that fit together should work with a <code>snapshot()</code>.
  * 
  * @author digulla
  *
@@ -45,99 +49,236 @@ public class Config
 {
     public static final Logger log = Logger.getLogger(Config.class);
     
-    private Document config;
+    private final String BASE_DIR;
+    /** The current settings. They are replaced as a whole when the config is reloaded. */
+    private volatile Settings settings;
+    /** Snapshots can't be reloaded */
+    private final boolean snapshot;
     private long configLastModified;
-    private String BASE_DIR = null;
-    private int serverPort = 8080;
-    private String proxyHost = "proxy";
-    private int proxyPort = 80;
-    private String proxyUser;
-    private String proxyPassword;
-    private File cacheDirectory = new File ("cache");
-    private File patchesDirectory = new File ("patches");
+    /** Counts the loaded settings, so the newer of two snapshots can be told apart */
+    private static final AtomicLong GENERATIONS = new AtomicLong ();
 
+    /**
+     * All values of the config file. The values are parsed and checked
+     * before the new settings replace the old ones, so readers never see
+     * a config which is only partially loaded.
+     */
+    private static final class Settings
+    {
+        private final long generation = GENERATIONS.incrementAndGet();
+        private final CacheRoots cacheRoots;
+        private final File patchesDirectory;
+        private final RuleSet<String> mirrors;
+        private final RuleSet<Boolean> allowDeny;
+        private final RuleSet<String> cacheControl;
+        private final RuleSet<Long> policies;
+        private final String[] noProxy;
+        private final RuleTrie noProxyTrie;
+        private final int serverPort;
+        private final int adminPort;
+        private final String adminAddress;
+        private final String serverExecutor;
+        private final int maxThreads;
+        private final int queueSize;
+        private final String serverFrontend;
+        private final int eventLoops;
+        private final int keepAliveTimeout;
+        private final int maxRequests;
+        private final long copyThreshold;
+        private final long mmapThreshold;
+        private final long mmapCacheSize;
+        private final int upstreamMaxConnections;
+        private final int upstreamMaxConnectionsPerHost;
+        private final int upstreamIdleTimeout;
+        private final int upstreamConnectTimeout;
+        private final int upstreamReadTimeout;
+        private final int negativeCacheTTL;
+        private final int negativeCacheMaxEntries;
+        private final File negativeCacheFile;
+        private final boolean indexEnabled;
+        private final long hotCacheSize;
+        private final boolean generateChecksums;
+        private final boolean verifyChecksums;
+        private final long hotCacheMaxObject;
+        private final long cacheLimitSize;
+        private final int cacheLimitFiles;
+        private final long cacheLimitInterval;
+        private final boolean gzipEnabled;
+        private final long gzipMinSize;
+        private final Set<String> gzipExtensions;
+        private final boolean dedupEnabled;
+        private final long dedupMinSize;
+        private final boolean prefetchEnabled;
+        private final int prefetchDepth;
+        private final int prefetchRate;
+        private final boolean prefetchJars;
+        private final String proxyHost;
+        private final int proxyPort;
+        private final String proxyUser;
+        private final String proxyPassword;
 
+        private Settings (Config config, Element root)
+        {
+            cacheRoots = config.getCacheRoots (root);
+            patchesDirectory = config.getPatchesDirectory (root);
+            mirrors = config.getMirrors (root);
+            allowDeny = config.getAllowDeny (root);
+            cacheControl = config.getCacheControl (root);
+            policies = config.getPolicies (root);
+            noProxy = config.getNoProxy (root);
+            noProxyTrie = config.getNoProxyTrie (root, noProxy);
+            serverPort = config.getPort (root);
+            adminPort = config.getAdminPort (root);
+            adminAddress = config.getAdminAddress (root);
+            serverExecutor = config.getServerExecutor (root);
+            maxThreads = config.getMaxThreads (root);
+            queueSize = config.getQueueSize (root);
+            serverFrontend = config.getServerFrontend (root);
+            eventLoops = config.getEventLoops (root);
+            keepAliveTimeout = config.getKeepAliveTimeout (root);
+            maxRequests = config.getMaxRequests (root);
+            copyThreshold = config.getSizeProperty (root, "serving", "copy-below", 16*1024);
+            mmapThreshold = config.getSizeProperty (root, "serving", "mmap-above", 0);
+            mmapCacheSize = config.getSizeProperty (root, "serving", "mmap-cache", 512L*1024*1024);
+            upstreamMaxConnections = config.getUpstreamProperty (root, "max-connections", 100, 1);
+            upstreamMaxConnectionsPerHost = config.getUpstreamProperty (root, "max-connections-per-host", 20, 1);
+            upstreamIdleTimeout = config.getUpstreamProperty (root, "idle-timeout", 60, 1);
+            upstreamConnectTimeout = config.getUpstreamProperty (root, "connect-timeout", 30, 0);
+            upstreamReadTimeout = config.getUpstreamProperty (root, "read-timeout", 120, 0);
+            negativeCacheTTL = config.getNegativeCacheTTL (root);
+            negativeCacheMaxEntries = config.getNegativeCacheMaxEntries (root);
+            negativeCacheFile = config.getNegativeCacheFile (root);
+            indexEnabled = config.getBooleanProperty (root, "index", "enabled", true);
+            hotCacheSize = config.getSizeProperty (root, "hot-cache", "size", 0);
+            generateChecksums = config.getBooleanProperty (root, "checksums", "generate", true);
+            verifyChecksums = config.getBooleanProperty (root, "checksums", "verify", true);
+            hotCacheMaxObject = config.getHotCacheMaxObject (root);
+            cacheLimitSize = config.getSizeProperty (root, "cache-limit", "size", 0);
+            cacheLimitFiles = config.getCacheLimitFiles (root);
+            cacheLimitInterval = config.getCacheLimitInterval (root);
+            gzipEnabled = config.getBooleanProperty (root, "gzip", "enabled", true);
+            gzipMinSize = config.getSizeProperty (root, "gzip", "min-size", 512);
+            gzipExtensions = config.getGzipExtensions (root);
+            dedupEnabled = config.getBooleanProperty (root, "dedup", "enabled", false);
+            dedupMinSize = config.getSizeProperty (root, "dedup", "min-size", 4096);
+            prefetchEnabled = config.getBooleanProperty (root, "prefetch", "enabled", false);
+            prefetchDepth = config.getPrefetchProperty (root, "depth", 1);
+            prefetchRate = config.getPrefetchProperty (root, "rate", 5);
+            prefetchJars = config.getBooleanProperty (root, "prefetch", "jars", true);
+            proxyHost = config.getProxyHost (root);
+            proxyPort = config.getProxyPort (root);
+            proxyUser = config.getProxyUsername (root);
+            proxyPassword = config.getProxyPassword (root);
+        }
+    }
+
+    public Config (String path)
+    {
+        this.BASE_DIR = path;
+        this.snapshot = false;
+    }
+
+    private Config (String path, Settings settings)
+    {
+        this.BASE_DIR = path;
+        this.settings = settings;
+        this.snapshot = true;
+    }
 
-    public void reload ()
+    /**
+     * Get a copy of the current config which doesn't change when the
+     * config is reloaded. Take one snapshot per request, so all parts
+     * of the request see the same config.
+     */
+    public Config snapshot ()
+    {
+        if (snapshot)
+            return this;
+        return new Config (BASE_DIR, settings ());
+    }
+
+    private Settings settings ()
+    {
+        Settings result = settings;
+        if (result == null)
+            throw new IllegalStateException ("The config hasn't been loaded yet");
+        return result;
+    }
+
+    /**
+     * Settings which were loaded later have a larger generation. Shared
+     * objects which are built from the config use this so a request
+     * with an old snapshot doesn't replace them with old settings.
+     */
+    public long getGeneration ()
+    {
+        return settings ().generation;
+    }
+
+    /** The config file in the base directory (or the one in the system property <code>dsmp.conf</code>). */
+    public File getConfigFile ()
     {
         String fileName = System.getProperty("dsmp.conf", "dsmp.conf.xml");
         File configFile = new File (fileName);
         if (!configFile.isAbsolute())
             configFile = new File (getBaseDirectory(), fileName);
-        
-        // TODO This means one access to the file system per Config method call
+        return configFile;
+    }
+
+    /**
+     * Load the config file if it has changed since the last call.
+     * 
+     * <p>If the new config contains errors, the old one is kept. If there
+     * is no old config, an <code>Error</code> is thrown.
+     */
+    public synchronized void reload ()
+    {
+        if (snapshot)
+            throw new IllegalStateException ("A snapshot of the config can't be reloaded");
+
+        File configFile = getConfigFile ();
         long lastModified = configFile.lastModified();
-        if (config == null || lastModified != configLastModified)
-        {
-            log.info((config == null ? "Loading" : "Reloading")+ " config from "+configFile.getAbsolutePath());
-            configLastModified = lastModified;
-
-            SAXBuilder builder = new SAXBuilder ();
-            Throwable t = null;
-            Document doc = config;
-            List<MirrorEntry> tmpMirrors = mirrors;
-            List<AllowDeny> tmpAllowDeny = allowDeny;
-            String[] tmpNoProxy = noProxy;
-            int tmpPort = serverPort;
-            String tmpProxyHost = proxyHost;
-            int tmpProxyPort = proxyPort;
-            String tmpProxyUser = proxyUser;
-            String tmpProxyPassword = proxyPassword;
-            File tmpCacheDirectory = cacheDirectory;
-            File tmpPatchesDirectory = patchesDirectory;
-            
-            try
-            {
-                doc = builder.build(configFile);
-                Element root = doc.getRootElement ();
-                tmpCacheDirectory = getCacheDirectory (root);
-                tmpPatchesDirectory = getPatchesDirectory (root);
-                tmpMirrors = getMirrors (root);
-                tmpAllowDeny = getAllowDeny (root);
-                tmpNoProxy = getNoProxy (root);
-                tmpPort = getPort (root);
-                tmpProxyHost = getProxyHost (root);
-                tmpProxyPort = getProxyPort (root);
-                tmpProxyUser = getProxyUsername (root);
-                tmpProxyPassword = getProxyPassword (root);
-            }
-            catch (JDOMException e)
-            {
-                t = e;
-            }
-            catch (IOException e)
-            {
-                t = e;
-            }
-            
-            if (t != null)
-            {
-                String msg = "Error loading config from "+configFile.getAbsolutePath();
-                log.error (msg, t);
-                if (config == null)
-                    throw new Error (msg, t);
-            }
+        if (settings != null && lastModified == configLastModified)
+            return;
+
+        log.info((settings == null ? "Loading" : "Reloading")+ " config from "+configFile.getAbsolutePath());
+        configLastModified = lastModified;
 
-            // TODO All options should be checked for errors
-
-            // After the error checking, save the new parameters
-            config = doc;
-            cacheDirectory = tmpCacheDirectory;
-            patchesDirectory = tmpPatchesDirectory;
-            mirrors = tmpMirrors;
-            allowDeny = tmpAllowDeny;
-            noProxy = tmpNoProxy;
-            serverPort = tmpPort;
-            proxyHost = tmpProxyHost;
-            proxyPort = tmpProxyPort;
-            proxyUser = tmpProxyUser;
-            proxyPassword = tmpProxyPassword;
+        SAXBuilder builder = new SAXBuilder ();
+        Throwable t = null;
+        Settings tmpSettings = null;
+        try
+        {
+            Document doc = builder.build(configFile);
+            tmpSettings = new Settings (this, doc.getRootElement ());
         }
-    }
-    
-    public Config (String path)
-    {
-        this.BASE_DIR = path;
+        catch (JDOMException e)
+        {
+            t = e;
+        }
+        catch (IOException e)
+        {
+            t = e;
+        }
+        catch (RuntimeException e)
+        {
+            Metrics.configReloaded(false);
+            throw e;
+        }
+        
+        if (t != null)
+        {
+            String msg = "Error loading config from "+configFile.getAbsolutePath();
+            log.error (msg, t);
+            Metrics.configReloaded(false);
+            if (settings == null)
+                throw new Error (msg, t);
+            return;
+        }
+
+        // After the error checking, save the new parameters
+        settings = tmpSettings;
+        Metrics.configReloaded(true);
     }
     
     private int getPort (Element root)
@@ -151,7 +292,424 @@ public class Config
     
     public int getPort ()
     {
-        return serverPort;
+        return settings ().serverPort;
+    }
+    
+    private int getAdminPort (Element root)
+    {
+        int port = getIntProperty (root, "admin", "port", 0);
+        int max = 0xffff;
+        if (port < 0 || port > max)
+            throw new RuntimeException ("Value for admin.port must be between 0 and "+max);
+        return port;
+    }
+    
+    /**
+     * The port of the admin server which serves <code>/metrics</code>.
+     * 
+     * @return 0 if there is no admin server.
+     */
+    public int getAdminPort ()
+    {
+        return settings ().adminPort;
+    }
+    
+    private String getAdminAddress (Element root)
+    {
+        String address = getStringProperty (root, "admin", "address", "127.0.0.1").trim ();
+        if (address.length() == 0)
+            throw new RuntimeException ("Value for admin.address must not be empty");
+        return address;
+    }
+    
+    /**
+     * The address on which the admin server listens. The default is the
+     * loopback interface, so the metrics aren't visible on the network;
+     * <code>0.0.0.0</code> means all interfaces.
+     */
+    public String getAdminAddress ()
+    {
+        return settings ().adminAddress;
+    }
+
+    public static final String EXECUTOR_POOL = "pool";
+    public static final String EXECUTOR_VIRTUAL = "virtual";
+    
+    private String getServerExecutor (Element root)
+    {
+        String value = getStringProperty (root, "server", "executor", EXECUTOR_POOL).trim ();
+        if (!EXECUTOR_POOL.equals (value) && !EXECUTOR_VIRTUAL.equals (value))
+            throw new RuntimeException ("Value for server.executor must be '"+EXECUTOR_POOL+"' or '"+EXECUTOR_VIRTUAL+"' but was '"+value+"'");
+        return value;
+    }
+    
+    /**
+     * How client connections are executed: <code>pool</code> (a bounded
+     * pool of platform threads with a queue) or <code>virtual</code>
+     * (one virtual thread per connection; needs Java 21).
+     */
+    public String getServerExecutor ()
+    {
+        return settings ().serverExecutor;
+    }
+    
+    private int getMaxThreads (Element root)
+    {
+        int value = getIntProperty (root, "server", "max-threads", 50);
+        if (value < 1)
+            throw new RuntimeException ("Value for server.max-threads must be at least 1");
+        return value;
+    }
+    
+    /** The maximum number of worker threads in the pool. */
+    public int getMaxThreads ()
+    {
+        return settings ().maxThreads;
+    }
+    
+    private int getQueueSize (Element root)
+    {
+        int value = getIntProperty (root, "server", "queue-size", 500);
+        if (value < 0)
+            throw new RuntimeException ("Value for server.queue-size must not be negative");
+        return value;
+    }
+    
+    /** How many connections may wait for a free worker thread before new ones are refused. */
+    public int getQueueSize ()
+    {
+        return settings ().queueSize;
+    }
+
+    public static final String FRONTEND_BLOCKING = "blocking";
+    public static final String FRONTEND_NIO = "nio";
+    
+    private String getServerFrontend (Element root)
+    {
+        String value = getStringProperty (root, "server", "frontend", FRONTEND_BLOCKING).trim ();
+        if (!FRONTEND_BLOCKING.equals (value) && !FRONTEND_NIO.equals (value))
+            throw new RuntimeException ("Value for server.frontend must be '"+FRONTEND_BLOCKING+"' or '"+FRONTEND_NIO+"' but was '"+value+"'");
+        return value;
+    }
+    
+    /**
+     * How connections are accepted: <code>blocking</code> (one worker per
+     * connection) or <code>nio</code> (a few event loops which serve cache
+     * hits themselves and only pass downloads to the workers).
+     */
+    public String getServerFrontend ()
+    {
+        return settings ().serverFrontend;
+    }
+    
+    private int getEventLoops (Element root)
+    {
+        int value = getIntProperty (root, "server", "event-loops", 2);
+        if (value < 1)
+            throw new RuntimeException ("Value for server.event-loops must be at least 1");
+        return value;
+    }
+    
+    /** The number of event loop threads of the <code>nio</code> front end. */
+    public int getEventLoops ()
+    {
+        return settings ().eventLoops;
+    }
+    
+    private int getKeepAliveTimeout (Element root)
+    {
+        int value = getIntProperty (root, "server", "keep-alive-timeout", 15);
+        if (value < 1)
+            throw new RuntimeException ("Value for server.keep-alive-timeout must be at least 1");
+        return value;
+    }
+    
+    /** Close connections which waited this many seconds for the next request. */
+    public int getKeepAliveTimeout ()
+    {
+        return settings ().keepAliveTimeout;
+    }
+    
+    private int getMaxRequests (Element root)
+    {
+        int value = getIntProperty (root, "server", "max-requests", 1000);
+        if (value < 0)
+            throw new RuntimeException ("Value for server.max-requests must not be negative");
+        return value;
+    }
+    
+    /** Close connections after this many requests. 0 means no limit. */
+    public int getMaxRequests ()
+    {
+        return settings ().maxRequests;
+    }
+    
+    /** Files smaller than this are read into memory and sent together with the headers. */
+    public long getCopyThreshold ()
+    {
+        return settings ().copyThreshold;
+    }
+    
+    /** Files of at least this size are memory-mapped. 0 means never map files. */
+    public long getMmapThreshold ()
+    {
+        return settings ().mmapThreshold;
+    }
+    
+    /** How many bytes of memory-mapped files to keep around. */
+    public long getMmapCacheSize ()
+    {
+        return settings ().mmapCacheSize;
+    }
+
+    private int getUpstreamProperty (Element root, String attribute, int defaultValue, int min)
+    {
+        int value = getIntProperty (root, "upstream", attribute, defaultValue);
+        if (value < min)
+            throw new RuntimeException ("Value for upstream."+attribute+" must be at least "+min);
+        return value;
+    }
+    
+    /** The maximum number of open connections to all remote repositories. */
+    public int getUpstreamMaxConnections ()
+    {
+        return settings ().upstreamMaxConnections;
+    }
+    
+    /** The maximum number of open connections to a single remote repository (or the proxy). */
+    public int getUpstreamMaxConnectionsPerHost ()
+    {
+        return settings ().upstreamMaxConnectionsPerHost;
+    }
+    
+    /** Close connections to remote repositories which were idle for this many seconds. */
+    public int getUpstreamIdleTimeout ()
+    {
+        return settings ().upstreamIdleTimeout;
+    }
+    
+    /** How many seconds to wait for a connection to a remote repository. 0 means forever. */
+    public int getUpstreamConnectTimeout ()
+    {
+        return settings ().upstreamConnectTimeout;
+    }
+    
+    /** How many seconds to wait for data from a remote repository. 0 means forever. */
+    public int getUpstreamReadTimeout ()
+    {
+        return settings ().upstreamReadTimeout;
+    }
+
+    private int getNegativeCacheTTL (Element root)
+    {
+        int value = getIntProperty (root, "negative-cache", "ttl", 3600);
+        if (value < 0)
+            throw new RuntimeException ("Value for negative-cache.ttl must not be negative");
+        return value;
+    }
+    
+    /** How many seconds to remember that a file doesn't exist. 0 means don't remember. */
+    public int getNegativeCacheTTL ()
+    {
+        return settings ().negativeCacheTTL;
+    }
+    
+    private int getNegativeCacheMaxEntries (Element root)
+    {
+        int value = getIntProperty (root, "negative-cache", "max-entries", 100000);
+        if (value < 1)
+            throw new RuntimeException ("Value for negative-cache.max-entries must be at least 1");
+        return value;
+    }
+    
+    /** How many failed downloads to remember. */
+    public int getNegativeCacheMaxEntries ()
+    {
+        return settings ().negativeCacheMaxEntries;
+    }
+    
+    private File getNegativeCacheFile (Element root)
+    {
+        String s = getStringProperty(root, "negative-cache", "file", null);
+        if (StringUtils.isBlank(s))
+            return null;
+        
+        File f = new File (s.trim ());
+        if (!f.isAbsolute())
+            f = new File (getBaseDirectory (), s.trim ());
+        return f;
+    }
+    
+    /**
+     * Where to save the failed downloads when the proxy stops.
+     * <code>null</code> means they are forgotten.
+     */
+    public File getNegativeCacheFile ()
+    {
+        return settings ().negativeCacheFile;
+    }
+
+    /**
+     * Keep an index of the cache and the patches in memory, so cached
+     * files can be served without looking at the disk.
+     */
+    public boolean isIndexEnabled ()
+    {
+        return settings ().indexEnabled;
+    }
+
+    /** How many bytes of small files (with their headers) to keep in memory. 0 means none. */
+    public long getHotCacheSize ()
+    {
+        return settings ().hotCacheSize;
+    }
+    
+    private long getHotCacheMaxObject (Element root)
+    {
+        long value = getSizeProperty (root, "hot-cache", "max-object", 64*1024);
+        if (value < 1 || value > Integer.MAX_VALUE / 2)
+            throw new RuntimeException ("Value for hot-cache.max-object must be between 1 and 1g");
+        return value;
+    }
+    
+    /** Only files up to this size are kept in the hot-object cache. */
+    public long getHotCacheMaxObject ()
+    {
+        return settings ().hotCacheMaxObject;
+    }
+
+    /**
+     * The biggest size of the cache in bytes. When it's bigger, the files
+     * which haven't been used for the longest time are deleted.
+     * 
+     * @return 0 if there is no limit.
+     */
+    public long getCacheLimitSize ()
+    {
+        return settings ().cacheLimitSize;
+    }
+    
+    private int getCacheLimitFiles (Element root)
+    {
+        int value = getIntProperty (root, "cache-limit", "files", 0);
+        if (value < 0)
+            throw new RuntimeException ("Value for cache-limit.files must be 0 or more");
+        return value;
+    }
+    
+    /**
+     * The most files in the cache (checksums and compressed copies count, too).
+     * 
+     * @return 0 if there is no limit.
+     */
+    public int getCacheLimitFiles ()
+    {
+        return settings ().cacheLimitFiles;
+    }
+    
+    private long getCacheLimitInterval (Element root)
+    {
+        String value = getStringProperty (root, "cache-limit", "interval", "5m");
+        long result = parseTTL (value);
+        if (result < 1000)
+            throw new RuntimeException ("Value for cache-limit.interval must be at least 1s but was '"+value+"'");
+        return result;
+    }
+    
+    /** Milliseconds between two checks of the size of the cache. */
+    public long getCacheLimitInterval ()
+    {
+        return settings ().cacheLimitInterval;
+    }
+
+    private Set<String> getGzipExtensions (Element root)
+    {
+        String value = getStringProperty (root, "gzip", "extensions", "pom xml txt asc");
+        Set<String> result = new HashSet<String> ();
+        for (String ext: StringUtils.split(value.toLowerCase(), " ,"))
+            result.add (ext);
+        return Collections.unmodifiableSet(result);
+    }
+    
+    /** Send gzip variants of text files to clients which accept them. */
+    public boolean isGzipEnabled ()
+    {
+        return settings ().gzipEnabled;
+    }
+    
+    /** Smaller files aren't compressed. */
+    public long getGzipMinSize ()
+    {
+        return settings ().gzipMinSize;
+    }
+    
+    /** The extensions of the files which are compressed (in lower case). */
+    public Set<String> getGzipExtensions ()
+    {
+        return settings ().gzipExtensions;
+    }
+    
+    /** Store downloads with the same content only once. */
+    public boolean isDedupEnabled ()
+    {
+        return settings ().dedupEnabled;
+    }
+    
+    /** Smaller downloads are always stored on their own. */
+    public long getDedupMinSize ()
+    {
+        return settings ().dedupMinSize;
+    }
+    
+    private int getPrefetchProperty (Element root, String attribute, int defaultValue)
+    {
+        int value = getIntProperty (root, "prefetch", attribute, defaultValue);
+        if (value < 0)
+            throw new RuntimeException ("Value for prefetch."+attribute+" must be 0 or more");
+        return value;
+    }
+    
+    /** Download the parent and the dependencies of POMs before the clients ask for them. */
+    public boolean isPrefetchEnabled ()
+    {
+        return settings ().prefetchEnabled;
+    }
+    
+    /**
+     * How many levels of dependencies are prefetched: 1 means the dependencies
+     * of the POMs which clients download, 2 their dependencies, too.
+     */
+    public int getPrefetchDepth ()
+    {
+        return settings ().prefetchDepth;
+    }
+    
+    /**
+     * The most prefetched downloads per second.
+     * 
+     * @return 0 if there is no limit.
+     */
+    public int getPrefetchRate ()
+    {
+        return settings ().prefetchRate;
+    }
+    
+    /** Prefetch the JARs of dependencies, too (not only their POMs). */
+    public boolean isPrefetchJars ()
+    {
+        return settings ().prefetchJars;
+    }
+    
+    /** Write the MD5, SHA-1 and SHA-256 files of downloads into the cache. */
+    public boolean isGenerateChecksums ()
+    {
+        return settings ().generateChecksums;
+    }
+    
+    /** Compare downloads with the checksums of the remote repository. */
+    public boolean isVerifyChecksums ()
+    {
+        return settings ().verifyChecksums;
     }
 
     private File getCacheDirectory (Element root)
@@ -159,18 +717,78 @@ public class Config
         String defaultValue = "cache";
         
         String s = getStringProperty(root, "directories", "cache", defaultValue);
-        File f = new File (s);
+        return getDirectory (s);
+    }
+    
+    /**
+     * The main cache directory plus the ones in the <code>cache</code> elements
+     * inside of <code>directories</code>. The ones with <code>metadata="true"</code>
+     * only get metadata.
+     */
+    private CacheRoots getCacheRoots (Element root)
+    {
+        List<File> roots = new ArrayList<File> ();
+        List<File> metadataRoots = new ArrayList<File> ();
+        roots.add (getCacheDirectory (root));
+        
+        Element directories = root.getChild("directories");
+        if (directories != null)
+        {
+            for (Iterator iter = directories.getChildren("cache").iterator(); iter.hasNext();)
+            {
+                Element element = (Element)iter.next();
+                String dir = element.getAttributeValue("dir");
+                if (StringUtils.isBlank(dir))
+                    throw new RuntimeException ("dir attribute is missing or empty in cache element");
+                
+                File f = getDirectory (dir.trim());
+                if (roots.contains(f))
+                    throw new RuntimeException ("Cache directory "+f.getAbsolutePath()+" is configured twice");
+                for (File other: roots)
+                {
+                    if (isInside (f, other) || isInside (other, f))
+                        throw new RuntimeException ("Cache directories "+other.getAbsolutePath()+" and "+f.getAbsolutePath()+" overlap");
+                }
+                roots.add(f);
+                
+                String metadata = StringUtils.defaultString(element.getAttributeValue("metadata"), "false").trim();
+                if ("true".equalsIgnoreCase(metadata))
+                    metadataRoots.add(f);
+                else if (!"false".equalsIgnoreCase(metadata))
+                    throw new RuntimeException ("Value for cache.metadata must be 'true' or 'false' but was '"+metadata+"'");
+            }
+        }
+        
+        return new CacheRoots (roots, metadataRoots);
+    }
+    
+    private static boolean isInside (File f, File dir)
+    {
+        return f.getAbsolutePath().startsWith(dir.getAbsolutePath() + File.separator);
+    }
+    
+    /** Resolve <code>path</code> against the base directory and create it. */
+    private File getDirectory (String path)
+    {
+        File f = new File (path);
         if (!f.isAbsolute())
-            f = new File (getBaseDirectory (), s);
+            f = new File (getBaseDirectory (), path);
         
         IOUtils.mkdirs (f);
         
         return f;
     }
     
+    /** The main cache directory. */
     public File getCacheDirectory ()
     {
-        return cacheDirectory;
+        return settings ().cacheRoots.getMainRoot();
+    }
+    
+    /** All directories of the cache and where each file belongs. */
+    public CacheRoots getCacheRoots ()
+    {
+        return settings ().cacheRoots;
     }
     
     private File getPatchesDirectory (Element root)
@@ -178,18 +796,12 @@ public class Config
         String defaultValue = "patches";
         
         String s = getStringProperty(root, "directories", "patches", defaultValue);
-        File f = new File (s);
-        if (!f.isAbsolute())
-            f = new File (getBaseDirectory (), s);
-        
-        IOUtils.mkdirs (f);
-        
-        return f;
+        return getDirectory (s);
     }
 
     public File getPatchesDirectory ()
     {
-        return patchesDirectory;
+        return settings ().patchesDirectory;
     }
     
     public File getBaseDirectory ()
@@ -247,6 +859,54 @@ public class Config
         }
     }
 
+    private boolean getBooleanProperty (Element root, String element, String attribute, boolean defaultValue)
+    {
+        String value = getStringProperty(root, element, attribute, null);
+        if (value == null)
+            return defaultValue;
+        
+        value = value.trim ();
+        if ("true".equalsIgnoreCase (value))
+            return true;
+        if ("false".equalsIgnoreCase (value))
+            return false;
+        throw new RuntimeException ("Value for "+element+"."+attribute+" must be 'true' or 'false' but was '"+value+"'");
+    }
+
+    /**
+     * Read a size in bytes. The value can have a suffix <code>k</code>,
+     * <code>m</code> or <code>g</code> (for KB, MB and GB).
+     */
+    private long getSizeProperty (Element root, String element, String attribute, long defaultValue)
+    {
+        String value = getStringProperty(root, element, attribute, null);
+        if (value == null)
+            return defaultValue;
+        
+        String s = value.trim ().toLowerCase ();
+        long factor = 1;
+        if (s.endsWith ("k"))
+            factor = 1024L;
+        else if (s.endsWith ("m"))
+            factor = 1024L*1024;
+        else if (s.endsWith ("g"))
+            factor = 1024L*1024*1024;
+        if (factor != 1)
+            s = s.substring (0, s.length()-1).trim ();
+        
+        try
+        {
+            long result = Long.parseLong(s) * factor;
+            if (result < 0)
+                throw new RuntimeException ("Value for "+element+"."+attribute+" must not be negative");
+            return result;
+        }
+        catch (NumberFormatException e)
+        {
+            throw (NumberFormatException)(new NumberFormatException ("Error convertion value '"+value+"' of property "+element+"@"+attribute+": "+e.getMessage()).initCause(e));
+        }
+    }
+
     private boolean hasProxy (Element root)
     {
         return hasProperty (root, "proxy");
@@ -262,7 +922,7 @@ public class Config
 
     public String getProxyUsername ()
     {
-        return proxyUser;
+        return settings ().proxyUser;
     }
     
     private String getProxyPassword (Element root)
@@ -275,7 +935,7 @@ public class Config
 
     public String getProxyPassword ()
     {
-        return proxyPassword;
+        return settings ().proxyPassword;
     }
     
     private String getProxyHost (Element root)
@@ -288,7 +948,7 @@ public class Config
     
     public String getProxyHost ()
     {
-        return proxyHost;
+        return settings ().proxyHost;
     }
     
     private int getProxyPort (Element root)
@@ -302,97 +962,82 @@ public class Config
     
     public int getProxyPort ()
     {
-        return proxyPort;
+        return settings ().proxyPort;
     }
     
-    private class MirrorEntry
+    /**
+     * Compile the <code>redirect</code> elements. A redirect either has a
+     * <code>from</code> prefix which is replaced with <code>to</code> or a
+     * <code>regex</code> which must match the whole URL; <code>to</code>
+     * can then use groups like <code>$1</code>.
+     */
+    private RuleSet<String> getMirrors (Element root)
     {
-        private String from;
-        private String to;
-        
-        public MirrorEntry (String from, String to)
-        {
-            this.from = fix (from);
-            this.to = fix (to);
-        }
-
-        private String fix (String s)
-        {
-            s = s.trim ();
-            if (!s.endsWith("/"))
-                s += "/";
-            return s;
-        }
-        
-        public URL getMirrorURL (String s)
-        {
-            //log.debug(s);
-            //log.debug(from);
-            
-            if (s.startsWith(from))
-            {
-                s = s.substring(from.length());
-                s = to + s;
-                try
-                {
-                    return new URL (s);
-                }
-                catch (MalformedURLException e)
-                {
-                    throw new RuntimeException ("Couldn't create URL from "+s, e);
-                }
-            }
-            
-            return null;
-        }
-    }
-    
-    private List<MirrorEntry> mirrors = Collections.emptyList ();
-    
-    public List<MirrorEntry> getMirrors (Element root)
-    {
-        List<MirrorEntry> l = new ArrayList<MirrorEntry> ();
+        RuleSet.Builder<String> builder = new RuleSet.Builder<String> ();
         for (Iterator iter = root.getChildren("redirect").iterator(); iter.hasNext();)
         {
             Element element = (Element)iter.next();
             String from = element.getAttributeValue("from");
+            String regex = element.getAttributeValue("regex");
             String to = element.getAttributeValue("to");
             
-            if (StringUtils.isBlank(from))
-                throw new RuntimeException ("from attribute is missing or empty in redirect element");
             if (StringUtils.isBlank(to))
                 throw new RuntimeException ("to attribute is missing or empty in redirect element");
             
-            l.add (new MirrorEntry (from, to));
+            if (!StringUtils.isBlank(regex))
+                builder.add (RuleSet.Kind.REGEX, regex.trim(), to.trim());
+            else if (!StringUtils.isBlank(from))
+                builder.add (RuleSet.Kind.PREFIX, fixMirrorURL (from), fixMirrorURL (to));
+            else
+                throw new RuntimeException ("from attribute is missing or empty in redirect element");
         }
 
-        return l;
+        return builder.build();
+    }
+    
+    private String fixMirrorURL (String s)
+    {
+        s = s.trim ();
+        if (!s.endsWith("/"))
+            s += "/";
+        return s;
     }
     
-    public List<MirrorEntry> getMirrors ()
+    /** The compiled <code>redirect</code> rules, for example to show how often they were used. */
+    public RuleSet<String> getMirrors ()
     {
-        return mirrors;
+        return settings ().mirrors;
     }
     
     public URL getMirror (URL url) throws MalformedURLException
     {
         String s = url.toString();
+        String mirror = getMirror (s);
+        return mirror == s ? url : new URL (mirror);
+    }
+    
+    /**
+     * Apply the first matching <code>redirect</code> rule to <code>url</code>.
+     * 
+     * @return <code>url</code> itself if no rule matches.
+     */
+    public String getMirror (String url)
+    {
+        RuleSet.Rule<String> rule = settings ().mirrors.find(url);
+        if (rule == null)
+            return url;
         
-        for (MirrorEntry entry: getMirrors())
-        {
-            URL mirror = entry.getMirrorURL(s);
-            if (mirror != null)
-            {
-                log.info ("Redirecting request to mirror "+mirror.toString());
-                return mirror;
-            }
-        }
+        String mirror;
+        if (rule.getKind() == RuleSet.Kind.PREFIX)
+            mirror = rule.getValue() + url.substring(rule.getPattern().length());
+        else
+            mirror = rule.getRegex().matcher(url).replaceFirst(rule.getValue());
         
-        return url;
+        if (log.isDebugEnabled())
+            log.debug ("Redirecting request to mirror "+mirror);
+        return mirror;
     }
     
-    private String[] noProxy = new String[0];
-    
     private String[] getNoProxy (Element root)
     {
         String s = getStringProperty(root, "proxy", "no-proxy", null);
@@ -408,91 +1053,240 @@ public class Config
         return result;
     }
     
+    private RuleTrie getNoProxyTrie (Element root, String[] noProxy)
+    {
+        if (!hasProxy (root))
+            return null;
+        
+        RuleTrie.Builder builder = new RuleTrie.Builder (true);
+        for (int i=0; i<noProxy.length; i++)
+            builder.add(noProxy[i], i);
+        return builder.build();
+    }
+    
     public String[] getNoProxy ()
     {
-        return noProxy;
+        return settings ().noProxy;
     }
     
     public boolean useProxy (URL url)
     {
-        if (!hasProxy (config.getRootElement ()))
+        RuleTrie trie = settings ().noProxyTrie;
+        if (trie == null)
             return false;
         
-        String host = url.getHost();
-        for (String postfix: getNoProxy())
+        return trie.find(url.getHost()) == RuleTrie.NO_MATCH;
+    }
+
+    /**
+     * Compile the <code>allow</code> and <code>deny</code> elements. Each
+     * one has either a <code>url</code> prefix, a <code>glob</code> or a
+     * <code>regex</code>.
+     */
+    private RuleSet<Boolean> getAllowDeny (Element root)
+    {
+        RuleSet.Builder<Boolean> builder = new RuleSet.Builder<Boolean> ();
+        
+        for (Iterator iter = root.getChildren().iterator(); iter.hasNext();)
         {
-            if (host.endsWith(postfix))
-                return false;
+            Element element = (Element)iter.next();
+            if ("allow".equals (element.getName()) || "deny".equals(element.getName()))
+            {
+                Boolean allow = Boolean.valueOf ("allow".equals (element.getName()));
+                addRule (builder, element, allow);
+            }
         }
-        return true;
-    }
 
-    private class AllowDeny
+        return builder.build();
+    }
+    
+    /**
+     * Add a rule with either a <code>url</code> prefix, a <code>glob</code>
+     * or a <code>regex</code>.
+     */
+    private <T> void addRule (RuleSet.Builder<T> builder, Element element, T value)
+    {
+        String url = element.getAttributeValue("url");
+        String glob = element.getAttributeValue("glob");
+        String regex = element.getAttributeValue("regex");
+        if (url != null)
+            builder.add (RuleSet.Kind.PREFIX, url, value);
+        else if (!StringUtils.isBlank(glob))
+            builder.add (RuleSet.Kind.GLOB, glob.trim(), value);
+        else if (!StringUtils.isBlank(regex))
+            builder.add (RuleSet.Kind.REGEX, regex.trim(), value);
+        else
+            throw new RuntimeException ("Missing or empty url attribute in "+element.getName()+" element");
+    }
+    
+    /** The compiled <code>allow</code> and <code>deny</code> rules. */
+    public RuleSet<Boolean> getAllowDeny ()
     {
-        private final String url;
-        private boolean allow;
+        return settings ().allowDeny;
+    }
+    
+    public boolean isAllowed (URL url)
+    {
+        return isAllowed (url.toString());
+    }
+    
+    public boolean isAllowed (String url)
+    {
+        RuleSet.Rule<Boolean> rule = settings ().allowDeny.find(url);
+        if (rule == null)
+            return true;
         
-        public AllowDeny (String url, boolean allow)
+        boolean allow = rule.getValue().booleanValue();
+        if (log.isDebugEnabled())
+            log.debug ((allow ? "Allowing" : "Denying")+" access to "+url+" because of config rule "+rule);
+        return allow;
+    }
+
+    /**
+     * Compile the <code>cache-control</code> elements. Like allow and deny,
+     * each one has a <code>url</code>, <code>glob</code> or <code>regex</code>;
+     * <code>value</code> is sent as the <code>Cache-Control</code> header.
+     */
+    private RuleSet<String> getCacheControl (Element root)
+    {
+        RuleSet.Builder<String> builder = new RuleSet.Builder<String> ();
+        for (Iterator iter = root.getChildren("cache-control").iterator(); iter.hasNext();)
         {
-            this.url = url;
-            this.allow = allow;
+            Element element = (Element)iter.next();
+            String value = element.getAttributeValue("value");
+            if (StringUtils.isBlank(value))
+                throw new RuntimeException ("value attribute is missing or empty in cache-control element");
+            addRule (builder, element, value.trim());
         }
+        return builder.build();
+    }
+    
+    /** The compiled <code>cache-control</code> rules. */
+    public RuleSet<String> getCacheControl ()
+    {
+        return settings ().cacheControl;
+    }
+    
+    /**
+     * The <code>Cache-Control</code> header for <code>url</code>.
+     * 
+     * @return <code>null</code> if no rule matches.
+     */
+    public String getCacheControl (String url)
+    {
+        RuleSet<String> rules = settings ().cacheControl;
+        if (rules.size() == 0)
+            return null;
         
-        public boolean matches (String url)
+        RuleSet.Rule<String> rule = rules.find(url);
+        return rule == null ? null : rule.getValue();
+    }
+
+    /**
+     * Compile the <code>policy</code> elements which say how long a file
+     * in the cache is fresh. Each one has a <code>url</code>, <code>glob</code>
+     * or <code>regex</code> and a <code>ttl</code>.
+     */
+    private RuleSet<Long> getPolicies (Element root)
+    {
+        RuleSet.Builder<Long> builder = new RuleSet.Builder<Long> ();
+        for (Iterator iter = root.getChildren("policy").iterator(); iter.hasNext();)
         {
-            return url.startsWith(this.url);
+            Element element = (Element)iter.next();
+            String ttl = element.getAttributeValue("ttl");
+            if (StringUtils.isBlank(ttl))
+                throw new RuntimeException ("ttl attribute is missing or empty in policy element");
+            addRule (builder, element, Long.valueOf (parseTTL (ttl)));
         }
+        return builder.build();
+    }
+    
+    /**
+     * Parse a time to live. The value is in seconds unless it has a suffix
+     * <code>s</code>, <code>m</code>, <code>h</code> or <code>d</code>.
+     * <code>immutable</code> means that the file never expires.
+     * 
+     * @return the TTL in milliseconds or -1 for <code>immutable</code>.
+     */
+    private long parseTTL (String value)
+    {
+        String s = value.trim ().toLowerCase ();
+        if ("immutable".equals (s))
+            return -1;
         
-        public boolean isAllowed ()
+        long factor;
+        switch (s.charAt(s.length()-1))
         {
-            return allow;
+        case 'd':
+            factor = 24*60*60*1000L;
+            break;
+        case 'h':
+            factor = 60*60*1000L;
+            break;
+        case 'm':
+            factor = 60*1000L;
+            break;
+        case 's':
+            factor = 1000L;
+            break;
+        default:
+            factor = 0;
+            break;
         }
+        if (factor == 0)
+            factor = 1000L;
+        else
+            s = s.substring (0, s.length()-1).trim ();
         
-        public String getURL ()
+        try
         {
-            return url;
+            long result = Long.parseLong(s);
+            if (result < 0)
+                throw new RuntimeException ("ttl '"+value+"' in policy element must not be negative");
+            return result * factor;
+        }
+        catch (NumberFormatException e)
+        {
+            throw new RuntimeException ("Illegal ttl '"+value+"' in policy element", e);
         }
     }
     
-    private List<AllowDeny> allowDeny = Collections.emptyList ();
-    
-    public List<AllowDeny> getAllowDeny (Element root)
+    /** The compiled <code>policy</code> rules. */
+    public RuleSet<Long> getPolicies ()
     {
-        ArrayList<AllowDeny> l = new ArrayList<AllowDeny> ();
-        
-        for (Iterator iter = root.getChildren().iterator(); iter.hasNext();)
-        {
-            Element element = (Element)iter.next();
-            if ("allow".equals (element.getName()) || "deny".equals(element.getName()))
-            {
-                boolean allow = "allow".equals (element.getName());
-                String url = element.getAttributeValue("url");
-                if (url == null)
-                    throw new RuntimeException ("Missing or empty url attribute in "+element.getName()+" element");
-                l.add (new AllowDeny (url, allow));
-            }
-        }
-
-        return l;
+        return settings ().policies;
     }
     
-    public List<AllowDeny> getAllowDeny ()
+    /**
+     * How long a file from <code>url</code> stays fresh after it was downloaded
+     * or revalidated.
+     * 
+     * @return the time in milliseconds or -1 if it never expires.
+     */
+    public long getTTL (String url)
     {
-        return allowDeny;
+        RuleSet<Long> rules = settings ().policies;
+        if (rules.size() == 0)
+            return -1;
+        
+        RuleSet.Rule<Long> rule = rules.find(url);
+        return rule == null ? -1 : rule.getValue().longValue();
     }
     
-    public boolean isAllowed (URL url)
+    /**
+     * Must the file for <code>url</code> be checked with the remote repository
+     * again? <code>lastChecked</code> is when it was downloaded or revalidated
+     * (see <code>ProxyDownload.getLastValidated()</code>).
+     */
+    public boolean isExpired (String url, long lastChecked)
     {
-        String s = url.toString();
-        for (AllowDeny rule: getAllowDeny())
-        {
-            if (rule.matches(s))
-            {
-                log.info((rule.isAllowed() ? "Allowing" : "Denying")+" access to "+url+" because of config rule");
-                return rule.isAllowed();
-            }
-        }
+        long ttl = getTTL (url);
+        if (ttl < 0)
+            return false;
         
-        return true;
+        boolean expired = System.currentTimeMillis() - lastChecked >= ttl;
+        if (expired && log.isDebugEnabled())
+            log.debug (url+" has expired");
+        return expired;
     }
 }
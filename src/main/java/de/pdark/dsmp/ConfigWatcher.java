@@ -0,0 +1,141 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * Reload the config in the background when the config file changes.
+ * 
+ * <p>Requests never look at the config file; they just take a
+ * snapshot of the config which was loaded last.
+ * 
+ * @author digulla
+ * 
+ */
+public class ConfigWatcher
+{
+    public static final Logger log = Logger.getLogger(ConfigWatcher.class);
+
+    /** Wait this long after a change, so editors can finish writing the file */
+    private static final long SETTLE_MILLIS = 200;
+
+    private final Config config;
+    private final File configFile;
+    private final WatchService watcher;
+    private final Thread thread;
+    private volatile boolean closed;
+
+    public ConfigWatcher (Config config) throws IOException
+    {
+        this.config = config;
+        this.configFile = config.getConfigFile().getAbsoluteFile();
+
+        watcher = FileSystems.getDefault().newWatchService();
+        Path dir = configFile.getParentFile().toPath();
+        dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        thread = new Thread ("dsmp-config") {
+            @Override
+            public void run ()
+            {
+                watch ();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        log.debug ("Watching "+configFile.getAbsolutePath()+" for changes");
+    }
+
+    private void watch ()
+    {
+        String name = configFile.getName();
+        while (!closed)
+        {
+            WatchKey key;
+            try
+            {
+                key = watcher.take();
+                // Collect all events of one save
+                Thread.sleep (SETTLE_MILLIS);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            catch (ClosedWatchServiceException e)
+            {
+                return;
+            }
+
+            boolean changed = false;
+            for (WatchEvent<?> event: key.pollEvents())
+            {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                        || name.equals(event.context().toString()))
+                    changed = true;
+            }
+
+            if (changed)
+                reload ();
+
+            if (!key.reset())
+            {
+                log.warn ("Can't watch "+configFile.getParent()+" anymore; config changes will be ignored");
+                return;
+            }
+        }
+    }
+
+    private void reload ()
+    {
+        try
+        {
+            config.reload();
+        }
+        catch (RuntimeException e)
+        {
+            log.error ("Error in "+configFile.getAbsolutePath()+"; keeping the old config", e);
+        }
+        catch (Error e)
+        {
+            log.error ("Error loading "+configFile.getAbsolutePath()+"; keeping the old config", e);
+        }
+    }
+
+    public void close ()
+    {
+        closed = true;
+        try
+        {
+            watcher.close();
+        }
+        catch (IOException e)
+        {
+            log.warn ("Error closing watch service", e);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Store downloads with the same content only once.
+ * 
+ * <p>Each cache directory has a directory <code>.blobs</code> with one
+ * hard link per content, named after its SHA-256. When a download is
+ * complete, it's replaced by a link to the blob with the same content if
+ * there is one; otherwise it becomes the blob. The files in the usual
+ * layout (host and path) are just references, so the same JAR from
+ * several repositories or mirrors takes space on the disk and in the
+ * page cache only once.
+ * 
+ * <p>Links are safe since files in the cache are never changed in place;
+ * downloads and checksums are written to temporary files which are
+ * renamed, and revalidations are noted next to the file (see
+ * <code>ProxyDownload.getValidatedFile()</code>). The links share the date
+ * of the content, so they have the same ETag.
+ * 
+ * <p>When the last file of a blob is deleted, the janitor deletes the blob.
+ * 
+ * @author digulla
+ * 
+ */
+public class ContentStore
+{
+    public static final Logger log = Logger.getLogger(ContentStore.class);
+    
+    /** The directory of the blobs in each cache directory. Host names can't start with a dot. */
+    public static final String BLOBS = ".blobs";
+    
+    private static final AtomicLong DEDUPLICATED_FILES = new AtomicLong ();
+    private static final AtomicLong DEDUPLICATED_BYTES = new AtomicLong ();
+    /** The file system can't link files or count the links */
+    private static volatile boolean unsupported;
+    
+    /** The number of downloads which were replaced by a link to a blob. */
+    public static long getDeduplicatedFiles ()
+    {
+        return DEDUPLICATED_FILES.get();
+    }
+    
+    /** The bytes which these downloads would need. */
+    public static long getDeduplicatedBytes ()
+    {
+        return DEDUPLICATED_BYTES.get();
+    }
+    
+    /** The directory of the blobs in the cache directory <code>root</code>. */
+    public static File getBlobsDirectory (File root)
+    {
+        return new File (root, BLOBS);
+    }
+    
+    static File getBlob (File root, String sha256)
+    {
+        return new File (getBlobsDirectory (root), sha256.substring(0, 2)+"/"+sha256);
+    }
+    
+    /**
+     * Share the content of a complete download with the files which have the
+     * same content. <code>f</code> is replaced in one step, so clients which
+     * read it see either the old or the new file.
+     * 
+     * @param f The download in the cache
+     * @param sha256 The SHA-256 of <code>f</code>
+     * @return <code>true</code> if <code>f</code> is now a link to an existing blob.
+     */
+    public static boolean store (File f, String sha256, Config config)
+    {
+        if (!config.isDedupEnabled() || unsupported)
+            return false;
+        
+        long length = f.length();
+        if (length < config.getDedupMinSize())
+            return false;
+        
+        File root = config.getCacheRoots().getRoot(f);
+        if (root == null)
+            return false;
+        
+        File blob = getBlob (root, sha256);
+        try
+        {
+            if (getLinks (f) != 1)
+                return false;
+            
+            if (blob.length() == length)
+            {
+                // Ends with .new, so it's ignored by the index and the janitor
+                File tmp = new File (f.getAbsolutePath()+".link.new");
+                Files.deleteIfExists(tmp.toPath());
+                Files.createLink(tmp.toPath(), blob.toPath());
+                Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                // The date belongs to all links; the freshness of this one is its own
+                ProxyDownload.validated(f);
+                
+                DEDUPLICATED_FILES.incrementAndGet();
+                DEDUPLICATED_BYTES.addAndGet(length);
+                log.debug (f.getAbsolutePath()+" has the same content as "+blob.getAbsolutePath());
+                return true;
+            }
+            
+            // Broken or no blob
+            IOUtils.mkdirs (blob.getParentFile());
+            Files.deleteIfExists(blob.toPath());
+            Files.createLink(blob.toPath(), f.toPath());
+        }
+        catch (UnsupportedOperationException e)
+        {
+            unsupported = true;
+            log.warn ("The file system of "+root.getAbsolutePath()+" doesn't support hard links; all files are stored on their own: "+e);
+        }
+        catch (FileAlreadyExistsException e)
+        {
+            // Another download with the same content was faster
+        }
+        catch (NoSuchFileException e)
+        {
+            // The blob was collected in the meantime
+        }
+        catch (IOException e)
+        {
+            log.warn ("Can't share the content of "+f.getAbsolutePath()+" with "+blob.getAbsolutePath(), e);
+        }
+        return false;
+    }
+    
+    /**
+     * The number of links to the content of <code>f</code>: The file itself,
+     * the blob and other files with the same content. 1 if the file system
+     * can't count them.
+     */
+    public static int getLinks (File f) throws IOException
+    {
+        if (unsupported)
+            return 1;
+        
+        try
+        {
+            return ((Number)Files.getAttribute(f.toPath(), "unix:nlink")).intValue();
+        }
+        catch (UnsupportedOperationException e)
+        {
+            unsupported = true;
+            log.warn ("The file system of "+f.getAbsolutePath()+" can't count hard links; all files are stored on their own: "+e);
+            return 1;
+        }
+    }
+    
+    /**
+     * Delete the blobs which are no longer used by any file in the cache.
+     * 
+     * @return The number of deleted blobs.
+     */
+    public static int collect (Config config) throws IOException
+    {
+        final int[] deleted = new int[1];
+        for (File root: config.getCacheRoots().getRoots())
+        {
+            File dir = getBlobsDirectory (root);
+            if (!dir.isDirectory())
+                continue;
+            
+            Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path> () {
+                @Override
+                public FileVisitResult visitFile (Path file, BasicFileAttributes attrs) throws IOException
+                {
+                    File f = file.toFile();
+                    if (attrs.isRegularFile() && getLinks (f) == 1 && f.delete())
+                        deleted[0] ++;
+                    return FileVisitResult.CONTINUE;
+                }
+                
+                @Override
+                public FileVisitResult visitFileFailed (Path file, IOException e)
+                {
+                    log.warn ("Can't read "+file, e);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        if (deleted[0] > 0)
+            log.info ("Deleted "+deleted[0]+" unused blobs");
+        return deleted[0];
+    }
+}
@@ -27,6 +27,7 @@ import org.apache.commons.httpclient.methods.GetMethod;
 public class DownloadFailed extends Exception
 {
     private String statusLine;
+    private boolean cached;
     
     public DownloadFailed (GetMethod get)
     {
@@ -40,8 +41,44 @@ public class DownloadFailed extends Exception
         statusLine = message;
     }
 
+    /**
+     * @param cached <code>true</code> if the remote repository wasn't asked
+     * because it didn't have the file a moment ago
+     */
+    public DownloadFailed (String message, boolean cached)
+    {
+        this (message);
+        this.cached = cached;
+    }
+
     public String getStatusLine ()
     {
         return statusLine;
     }
+
+    /** Was this failure remembered from an earlier download? */
+    public boolean isCached ()
+    {
+        return cached;
+    }
+
+    /**
+     * The HTTP status code in the status line.
+     * 
+     * @return -1 if there is none.
+     */
+    public int getStatus ()
+    {
+        String[] parts = statusLine.split(" ");
+        if (parts.length < 2)
+            return -1;
+        try
+        {
+            return Integer.parseInt(parts[1]);
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
 }
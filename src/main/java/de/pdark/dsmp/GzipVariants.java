@@ -0,0 +1,179 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compressed copies of text files (POMs, metadata) in the cache.
+ * 
+ * <p>The variant of <code>x.pom</code> is <code>x.pom.dsmp.gz</code> in the
+ * same directory. It has the same date as the original, so a variant whose
+ * date differs belongs to an older version of the file and isn't used.
+ * 
+ * <p>Variants are written when a file is downloaded. For files which are
+ * already in the cache, the first client which accepts gzip gets the
+ * uncompressed file and the variant is written in the background.
+ * 
+ * @author digulla
+ * 
+ */
+public class GzipVariants
+{
+    public static final Logger log = Logger.getLogger(GzipVariants.class);
+    
+    public static final String SUFFIX = ".dsmp.gz";
+    
+    /** The files for which a variant is being written right now */
+    private final static ConcurrentHashMap<String, Boolean> PENDING = new ConcurrentHashMap<String, Boolean> ();
+    
+    /** The file with the compressed variant of <code>f</code>. */
+    public static File getVariant (File f)
+    {
+        return new File (f.getAbsolutePath()+SUFFIX);
+    }
+    
+    /** Should files with this name and size be compressed? */
+    public static boolean isCompressible (String name, long length, Config config)
+    {
+        if (!config.isGzipEnabled() || length < config.getGzipMinSize())
+            return false;
+        
+        String ext = StringUtils.substringAfterLast(name, ".").toLowerCase();
+        return config.getGzipExtensions().contains(ext);
+    }
+    
+    /**
+     * Find the compressed variant of <code>entry</code> for a request. If it
+     * doesn't exist yet, it's written in <code>executor</code>.
+     * 
+     * @return <code>null</code> if the client should get the file itself.
+     */
+    public static CacheIndex.Entry find (CacheIndex.Entry entry, URL url, HttpRequest request, Config config, Executor executor) throws MalformedURLException
+    {
+        // Ranges always refer to the uncompressed file
+        if (entry == null || entry.isPatch() || request.getRange() != null)
+            return null;
+        if (!isCompressible (entry.getFile().getName(), entry.getLength(), config) || !request.acceptsGzip())
+            return null;
+        
+        CacheIndex.Entry variant = CacheIndex.get(config).lookup(new URL (url.toString()+SUFFIX));
+        if (variant != null && !variant.isPatch() && variant.getLastModified() == entry.getLastModified())
+            return variant;
+        
+        createLater (entry.getFile(), config, executor);
+        return null;
+    }
+    
+    private static void createLater (final File f, final Config config, Executor executor)
+    {
+        final String key = f.getAbsolutePath();
+        if (PENDING.putIfAbsent(key, Boolean.TRUE) != null)
+            return;
+        
+        try
+        {
+            executor.execute(new Runnable () {
+                public void run ()
+                {
+                    try
+                    {
+                        update (f, config);
+                    }
+                    finally
+                    {
+                        PENDING.remove(key);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            // Too busy; try again with the next request
+            PENDING.remove(key);
+        }
+    }
+    
+    /**
+     * Write the variant of <code>f</code> if it should have one and it's
+     * missing or outdated. Errors are logged.
+     */
+    public static void update (File f, Config config)
+    {
+        File variant = getVariant (f);
+        long lastModified = f.lastModified();
+        if (!isCompressible (f.getName(), f.length(), config))
+            return;
+        if (variant.lastModified() == lastModified && variant.exists())
+            return;
+        
+        File tmp = new File (variant.getAbsolutePath()+".new");
+        try
+        {
+            InputStream in = new FileInputStream (f);
+            try
+            {
+                OutputStream out = new GZIPOutputStream (new FileOutputStream (tmp), 8192);
+                try
+                {
+                    IOUtils.copy (in, out);
+                }
+                finally
+                {
+                    out.close();
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+            
+            // Don't keep a variant of a file that was replaced in the meantime
+            if (f.lastModified() != lastModified)
+            {
+                tmp.delete();
+                return;
+            }
+            tmp.setLastModified(lastModified);
+            if (variant.exists())
+                variant.delete();
+            if (!tmp.renameTo(variant))
+                throw new IOException ("Can't rename "+tmp.getAbsolutePath()+" to "+variant.getAbsolutePath());
+            
+            CacheIndex.get(config).update(variant);
+            log.debug ("Compressed "+f.getAbsolutePath()+" from "+f.length()+" to "+variant.length()+" bytes");
+        }
+        catch (IOException e)
+        {
+            log.warn ("Can't compress "+f.getAbsolutePath(), e);
+            tmp.delete();
+        }
+    }
+}
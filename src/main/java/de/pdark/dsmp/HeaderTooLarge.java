@@ -0,0 +1,34 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import java.io.IOException;
+
+/**
+ * The client sent a request header which is bigger than the limit.
+ * 
+ * @author digulla
+ * 
+ */
+public class HeaderTooLarge extends IOException
+{
+    public static final String STATUS_LINE = "HTTP/1.1 431 Request Header Fields Too Large";
+
+    public HeaderTooLarge (int limit)
+    {
+        super ("Request header is bigger than "+limit+" bytes");
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations with exponential buckets: Each bucket is twice
+ * as wide as the one before it, from 64&micro;s to about 67s.
+ * 
+ * <p>Recording a value finds the bucket with a bit operation and increments
+ * a striped counter, so many threads can record at the same time without
+ * locks. The counts of a snapshot can be a little inconsistent while
+ * values are being recorded; that's good enough for monitoring.
+ * 
+ * @author digulla
+ * 
+ */
+public class Histogram
+{
+    /** The first bucket holds values up to 2^MIN_SHIFT microseconds */
+    static final int MIN_SHIFT = 6;
+    /** The last bucket with an upper bound holds values up to 2^MAX_SHIFT microseconds */
+    static final int MAX_SHIFT = 26;
+    
+    /** One bucket per power of two plus one for bigger values */
+    private final LongAdder[] buckets = new LongAdder[MAX_SHIFT - MIN_SHIFT + 2];
+    private final LongAdder sum = new LongAdder ();
+    
+    public Histogram ()
+    {
+        for (int i=0; i<buckets.length; i++)
+            buckets[i] = new LongAdder ();
+    }
+    
+    /** Record a duration in nanoseconds. */
+    public void record (long nanos)
+    {
+        long micros = Math.max (0, nanos / 1000);
+        buckets[bucketOf (micros)].increment();
+        sum.add(micros);
+    }
+    
+    /** The index of the smallest bucket whose upper bound is at least <code>micros</code>. */
+    static int bucketOf (long micros)
+    {
+        // The smallest shift with micros <= 2^shift
+        int shift = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+        if (shift <= MIN_SHIFT)
+            return 0;
+        if (shift > MAX_SHIFT)
+            return MAX_SHIFT - MIN_SHIFT + 1;
+        return shift - MIN_SHIFT;
+    }
+    
+    /** The upper bound of bucket <code>i</code> in seconds. */
+    static double upperBound (int i)
+    {
+        return (1L << (i + MIN_SHIFT)) / 1000000.0;
+    }
+    
+    public long getCount ()
+    {
+        long result = 0;
+        for (LongAdder bucket: buckets)
+            result += bucket.sum();
+        return result;
+    }
+    
+    /** The sum of all recorded durations in microseconds. */
+    public long getSum ()
+    {
+        return sum.sum();
+    }
+    
+    /**
+     * Append the histogram in the Prometheus text format.
+     * 
+     * @param labels Labels like <code>path="hit"</code> or an empty string.
+     */
+    public void appendTo (StringBuilder buffer, String name, String labels)
+    {
+        String prefix = labels.length() == 0 ? "" : labels + ",";
+        long count = 0;
+        for (int i=0; i<buckets.length; i++)
+        {
+            count += buckets[i].sum();
+            String le = i == buckets.length - 1 ? "+Inf" : Double.toString(upperBound (i));
+            buffer.append (name).append ("_bucket{").append (prefix).append ("le=\"").append (le).append ("\"} ")
+                .append (count).append ('\n');
+        }
+        String suffix = labels.length() == 0 ? " " : "{" + labels + "} ";
+        buffer.append (name).append ("_sum").append (suffix).append (getSum() / 1000000.0).append ('\n');
+        buffer.append (name).append ("_count").append (suffix).append (count).append ('\n');
+    }
+}
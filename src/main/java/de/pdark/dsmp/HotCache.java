@@ -0,0 +1,399 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keep complete responses (headers and body) for small files which are
+ * requested often in memory outside of the Java heap.
+ * 
+ * <p>New files go into a small window (1% of the budget). When they drop
+ * out of it, they only replace the least recently used file of the main
+ * area if they were requested more often (W-TinyLFU). The frequencies are
+ * estimated with a count-min sketch which is halved from time to time,
+ * so old popularity fades away.
+ * 
+ * <p>Lookups don't lock: They note the key in a small buffer, and the
+ * thread which gets the lock next applies the notes to the sketch and the
+ * order of the entries. When the buffer is full, notes are overwritten;
+ * that only makes the estimates a little less exact.
+ * 
+ * @author digulla
+ * 
+ */
+public class HotCache
+{
+    private static class Entry
+    {
+        private final String key;
+        private final ByteBuffer data;
+        private final int headerLength;
+        private final long length;
+        private final long lastModified;
+
+        public Entry (String key, ByteBuffer data, int headerLength, long length, long lastModified)
+        {
+            this.key = key;
+            this.data = data;
+            this.headerLength = headerLength;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        public int size ()
+        {
+            return data.capacity();
+        }
+    }
+
+    /** The number of slots for lookups which weren't applied yet (a power of two) */
+    private static final int READ_BUFFER_SIZE = 256;
+    /** Apply the lookups after about this many (a power of two) */
+    private static final int DRAIN_INTERVAL = 32;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry> ();
+    private final AtomicReferenceArray<String> reads = new AtomicReferenceArray<String> (READ_BUFFER_SIZE);
+
+    // Guarded by lock
+    private final ReentrantLock lock = new ReentrantLock ();
+    private final LinkedHashMap<String, Entry> window = new LinkedHashMap<String, Entry> (16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> main = new LinkedHashMap<String, Entry> (16, 0.75f, true);
+    private long windowSize;
+    private long mainSize;
+    private final FrequencySketch sketch = new FrequencySketch (1 << 16);
+
+    private final LongAdder hits = new LongAdder ();
+    private final LongAdder misses = new LongAdder ();
+    private final LongAdder evictions = new LongAdder ();
+
+    /**
+     * Get the response for <code>f</code>.
+     *
+     * @param headOnly Return only the headers.
+     * @return <code>null</code> if the file isn't in the cache or has changed.
+     * The buffer is a private view on the cached data.
+     */
+    public ByteBuffer get (File f, long length, long lastModified, boolean headOnly)
+    {
+        String key = f.getAbsolutePath();
+        recordRead (key);
+
+        Entry e = entries.get(key);
+        if (e != null && (e.length != length || e.lastModified != lastModified))
+        {
+            lock.lock();
+            try
+            {
+                // Unless someone else has replaced it already
+                if (entries.get(key) == e)
+                    remove (key);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+            e = null;
+        }
+
+        if (e == null)
+        {
+            misses.increment();
+            return null;
+        }
+
+        hits.increment();
+        ByteBuffer result = e.data.duplicate();
+        result.clear();
+        if (headOnly)
+            result.limit(e.headerLength);
+        return result;
+    }
+
+    /** Note a lookup; apply the notes from time to time if nobody else is busy with the cache. */
+    private void recordRead (String key)
+    {
+        int random = ThreadLocalRandom.current().nextInt();
+        reads.lazySet(random & (READ_BUFFER_SIZE - 1), key);
+        if ((random >>> 16 & (DRAIN_INTERVAL - 1)) == 0 && lock.tryLock())
+        {
+            try
+            {
+                drainReads ();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** Count the noted lookups and move the files to the end of the LRU order. Needs the lock. */
+    private void drainReads ()
+    {
+        for (int i=0; i<READ_BUFFER_SIZE; i++)
+        {
+            String key = reads.getAndSet(i, null);
+            if (key == null)
+                continue;
+            sketch.increment(key);
+            if (window.get(key) == null)
+                main.get(key);
+        }
+    }
+
+    /**
+     * Add the response for <code>f</code>.
+     *
+     * @param data The headers and the body; it should be a direct buffer.
+     * @param budget How many bytes all responses may use.
+     */
+    public void put (File f, long length, long lastModified, ByteBuffer data, int headerLength, long budget)
+    {
+        lock.lock();
+        try
+        {
+            drainReads ();
+            add (new Entry (f.getAbsolutePath(), data, headerLength, length, lastModified), budget);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void add (Entry e, long budget)
+    {
+        remove (e.key);
+
+        long windowBudget = Math.max (1, budget / 100);
+        long mainBudget = budget - windowBudget;
+        if (e.size() > mainBudget)
+            return;
+
+        window.put(e.key, e);
+        entries.put(e.key, e);
+        windowSize += e.size();
+
+        Iterator<Entry> iter = window.values().iterator();
+        while (windowSize > windowBudget && iter.hasNext())
+        {
+            Entry candidate = iter.next();
+            iter.remove();
+            windowSize -= candidate.size();
+            admit (candidate, mainBudget);
+        }
+
+        // The budget might have shrunk
+        iter = main.values().iterator();
+        while (mainSize > mainBudget && iter.hasNext())
+        {
+            Entry victim = iter.next();
+            iter.remove();
+            entries.remove(victim.key);
+            mainSize -= victim.size();
+            evictions.increment();
+        }
+    }
+
+    /** Move an entry from the window to the main area if it's more popular than what it replaces. */
+    private void admit (Entry candidate, long mainBudget)
+    {
+        int frequency = sketch.frequency(candidate.key);
+        Iterator<Entry> iter = main.values().iterator();
+        while (mainSize + candidate.size() > mainBudget)
+        {
+            if (!iter.hasNext())
+            {
+                entries.remove(candidate.key);
+                evictions.increment();
+                return;
+            }
+
+            Entry victim = iter.next();
+            if (frequency <= sketch.frequency(victim.key))
+            {
+                entries.remove(candidate.key);
+                evictions.increment();
+                return;
+            }
+
+            iter.remove();
+            entries.remove(victim.key);
+            mainSize -= victim.size();
+            evictions.increment();
+        }
+
+        main.put(candidate.key, candidate);
+        mainSize += candidate.size();
+    }
+
+    /** Forget the response for <code>f</code>, for example because the file was replaced. */
+    public void remove (File f)
+    {
+        String key = f.getAbsolutePath();
+        if (!entries.containsKey(key))
+            return;
+        
+        lock.lock();
+        try
+        {
+            remove (key);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void remove (String key)
+    {
+        entries.remove(key);
+        Entry e = window.remove(key);
+        if (e != null)
+            windowSize -= e.size();
+        e = main.remove(key);
+        if (e != null)
+            mainSize -= e.size();
+    }
+
+    public void clear ()
+    {
+        lock.lock();
+        try
+        {
+            entries.clear();
+            window.clear();
+            main.clear();
+            windowSize = 0;
+            mainSize = 0;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /** The number of bytes used by the cached responses. */
+    public long getSize ()
+    {
+        lock.lock();
+        try
+        {
+            return windowSize + mainSize;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /** The number of cached responses. */
+    public int getCount ()
+    {
+        return entries.size();
+    }
+
+    public long getHits ()
+    {
+        return hits.sum();
+    }
+
+    public long getMisses ()
+    {
+        return misses.sum();
+    }
+
+    /** How many responses were dropped or not admitted because of the budget. */
+    public long getEvictions ()
+    {
+        return evictions.sum();
+    }
+
+    /**
+     * Estimate how often a key was seen. Four rows of counters; the
+     * estimate is the minimum of the four. All counters are halved
+     * after <code>10 * width</code> increments.
+     */
+    private static class FrequencySketch
+    {
+        private static final int MAX = 15;
+        private final int[][] rows = new int[4][];
+        private final int mask;
+        private int additions;
+        private final int sampleSize;
+
+        public FrequencySketch (int width)
+        {
+            for (int i=0; i<rows.length; i++)
+                rows[i] = new int[width];
+            mask = width - 1;
+            sampleSize = 10 * width;
+        }
+
+        public void increment (String key)
+        {
+            int h = key.hashCode();
+            boolean added = false;
+            for (int i=0; i<rows.length; i++)
+            {
+                int index = index (h, i);
+                if (rows[i][index] < MAX)
+                {
+                    rows[i][index] ++;
+                    added = true;
+                }
+            }
+
+            if (added && ++additions >= sampleSize)
+                reset ();
+        }
+
+        public int frequency (String key)
+        {
+            int h = key.hashCode();
+            int result = MAX;
+            for (int i=0; i<rows.length; i++)
+                result = Math.min (result, rows[i][index (h, i)]);
+            return result;
+        }
+
+        private int index (int h, int row)
+        {
+            h = (h + row) * (0x9E3779B9 + 2 * row);
+            h ^= h >>> 16;
+            return h & mask;
+        }
+
+        private void reset ()
+        {
+            for (int[] row: rows)
+            {
+                for (int i=0; i<row.length; i++)
+                    row[i] >>>= 1;
+            }
+            additions /= 2;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * The parts of a request from Maven which DSMP cares about.
+ * 
+ * <p>The values are filled in by <code>HttpRequestParser</code>. One
+ * object is reused for all requests of a connection.
+ * 
+ * @author digulla
+ * 
+ */
+public class HttpRequest
+{
+    public static final String GET = "GET";
+    public static final String HEAD = "HEAD";
+
+    private String method;
+    private String downloadURL;
+    private boolean http11;
+    private boolean keepAlive;
+    private boolean close;
+    private String ifModifiedSince;
+    private String ifNoneMatch;
+    private String range;
+    private String ifRange;
+    private String acceptEncoding;
+
+    /** Forget the last request. */
+    void reset ()
+    {
+        method = null;
+        downloadURL = null;
+        http11 = false;
+        keepAlive = false;
+        close = false;
+        ifModifiedSince = null;
+        ifNoneMatch = null;
+        range = null;
+        ifRange = null;
+        acceptEncoding = null;
+    }
+
+    /** <code>GET</code>, <code>HEAD</code> or whatever the client sent. */
+    public String getMethod ()
+    {
+        return method;
+    }
+
+    void setMethod (String method)
+    {
+        this.method = method;
+    }
+
+    /** The URL which Maven wants or <code>null</code> if the request contained no GET or HEAD. */
+    public String getDownloadURL ()
+    {
+        return downloadURL;
+    }
+
+    void setDownloadURL (String downloadURL)
+    {
+        this.downloadURL = downloadURL;
+    }
+
+    /** <code>true</code> if the client speaks HTTP/1.1 (and understands chunked encoding, for example). */
+    public boolean isHttp11 ()
+    {
+        return http11;
+    }
+
+    void setHttp11 (boolean http11)
+    {
+        this.http11 = http11;
+    }
+
+    public boolean isHeadOnly ()
+    {
+        return HEAD.equals (method);
+    }
+
+    /** The client sent <code>keep-alive</code> in <code>Connection</code> or <code>Proxy-Connection</code>. */
+    public boolean isKeepAlive ()
+    {
+        return keepAlive;
+    }
+
+    void setKeepAlive (boolean keepAlive)
+    {
+        this.keepAlive = keepAlive;
+    }
+
+    /** The client sent <code>close</code> in <code>Connection</code> or <code>Proxy-Connection</code>. */
+    public boolean isClose ()
+    {
+        return close;
+    }
+
+    void setClose (boolean close)
+    {
+        this.close = close;
+    }
+
+    /**
+     * Does the client want to send more requests over this connection?
+     * HTTP/1.1 connections stay open unless the client sends <code>close</code>;
+     * HTTP/1.0 clients must ask for <code>keep-alive</code>.
+     */
+    public boolean isPersistent ()
+    {
+        if (close)
+            return false;
+        return http11 || keepAlive;
+    }
+
+    /** The <code>If-Modified-Since</code> header or <code>null</code>. */
+    public String getIfModifiedSince ()
+    {
+        return ifModifiedSince;
+    }
+
+    void setIfModifiedSince (String ifModifiedSince)
+    {
+        this.ifModifiedSince = ifModifiedSince;
+    }
+
+    /** The <code>If-None-Match</code> header or <code>null</code>. */
+    public String getIfNoneMatch ()
+    {
+        return ifNoneMatch;
+    }
+
+    void setIfNoneMatch (String ifNoneMatch)
+    {
+        this.ifNoneMatch = ifNoneMatch;
+    }
+
+    /** The <code>Range</code> header or <code>null</code>. */
+    public String getRange ()
+    {
+        return range;
+    }
+
+    void setRange (String range)
+    {
+        this.range = range;
+    }
+
+    /** The <code>If-Range</code> header (an entity tag or a date) or <code>null</code>. */
+    public String getIfRange ()
+    {
+        return ifRange;
+    }
+
+    void setIfRange (String ifRange)
+    {
+        this.ifRange = ifRange;
+    }
+
+    /** The <code>Accept-Encoding</code> header or <code>null</code>. */
+    public String getAcceptEncoding ()
+    {
+        return acceptEncoding;
+    }
+
+    void setAcceptEncoding (String acceptEncoding)
+    {
+        this.acceptEncoding = acceptEncoding;
+    }
+
+    /** Does the client understand <code>Content-Encoding: gzip</code>? */
+    public boolean acceptsGzip ()
+    {
+        if (acceptEncoding == null)
+            return false;
+        
+        for (String coding: StringUtils.split(acceptEncoding, ","))
+        {
+            String name = StringUtils.substringBefore(coding, ";").trim();
+            if (!"gzip".equalsIgnoreCase(name) && !"x-gzip".equalsIgnoreCase(name) && !"*".equals(name))
+                continue;
+            
+            // "gzip;q=0" means "no gzip"
+            String q = StringUtils.substringAfter(coding, ";").replace(" ", "").toLowerCase();
+            return !q.startsWith("q=") || !StringUtils.containsOnly(q.substring(2), "0.");
+        }
+        return false;
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import java.nio.charset.Charset;
+
+/**
+ * Parse HTTP request headers directly from the bytes which were read
+ * from the client.
+ * 
+ * <p>Only the request line and the few headers which DSMP needs are
+ * looked at. Header names are compared as bytes, so the other headers
+ * cost nothing but the scan for the end of the line. Strings are only
+ * created for the URL and the values of the headers which DSMP keeps.
+ * 
+ * <p>The parser remembers how far it has looked for the end of the
+ * header, so feeding it a header in small pieces doesn't scan the
+ * same bytes again and again.
+ * 
+ * @author digulla
+ * 
+ */
+public class HttpRequestParser
+{
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final byte[] GET = bytes (HttpRequest.GET);
+    private static final byte[] HEAD = bytes (HttpRequest.HEAD);
+    private static final byte[] HTTP_11 = bytes ("HTTP/1.1");
+
+    // Header names in lower case
+    private static final byte[] CONNECTION = bytes ("connection");
+    private static final byte[] PROXY_CONNECTION = bytes ("proxy-connection");
+    private static final byte[] IF_MODIFIED_SINCE = bytes ("if-modified-since");
+    private static final byte[] IF_NONE_MATCH = bytes ("if-none-match");
+    private static final byte[] IF_RANGE = bytes ("if-range");
+    private static final byte[] ACCEPT_ENCODING = bytes ("accept-encoding");
+    private static final byte[] RANGE = bytes ("range");
+
+    private static final byte[] KEEP_ALIVE = bytes ("keep-alive");
+    private static final byte[] CLOSE = bytes ("close");
+
+    /** The default limit for the size of request headers */
+    public static final int MAX_HEADER_SIZE = 64*1024;
+
+    private final int maxHeaderSize;
+    /** How many bytes of the current header have been searched for its end */
+    private int scanned;
+
+    public HttpRequestParser (int maxHeaderSize)
+    {
+        this.maxHeaderSize = maxHeaderSize;
+    }
+
+    private static byte[] bytes (String s)
+    {
+        return s.getBytes(ISO_8859_1);
+    }
+
+    /**
+     * Parse the request header at the start of <code>data[offset..offset+length)</code>
+     * into <code>request</code>.
+     * 
+     * <p>When this returns -1, call it again with the same start of the
+     * data and more bytes at the end.
+     * 
+     * @return The number of bytes which belong to the header or -1 if the
+     * header isn't complete, yet.
+     * @throws HeaderTooLarge if the header is bigger than the limit.
+     */
+    public int parse (byte[] data, int offset, int length, HttpRequest request) throws HeaderTooLarge
+    {
+        int end = offset + length;
+
+        // Ignore empty lines before the request line (RFC 7230, 3.5)
+        int start = offset;
+        while (start < end && (data[start] == '\r' || data[start] == '\n'))
+            start ++;
+
+        int headerEnd = findEnd (data, Math.max (start, offset + scanned - 2), end);
+        if (headerEnd == -1)
+        {
+            scanned = length;
+            if (end - start > maxHeaderSize)
+                throw new HeaderTooLarge (maxHeaderSize);
+            return -1;
+        }
+
+        scanned = 0;
+        if (headerEnd - start > maxHeaderSize)
+            throw new HeaderTooLarge (maxHeaderSize);
+
+        request.reset();
+        parseHeader (data, start, headerEnd, request);
+        return headerEnd - offset;
+    }
+
+    /** Forget what was scanned so far, for example when the client has closed the connection. */
+    public void reset ()
+    {
+        scanned = 0;
+    }
+
+    /**
+     * Find the empty line which ends the header.
+     * 
+     * @return The position after the empty line or -1.
+     */
+    private static int findEnd (byte[] data, int pos, int end)
+    {
+        for (int i=pos; i<end; i++)
+        {
+            if (data[i] != '\n')
+                continue;
+
+            if (i+1 < end && data[i+1] == '\n')
+                return i+2;
+            if (i+2 < end && data[i+1] == '\r' && data[i+2] == '\n')
+                return i+3;
+        }
+        return -1;
+    }
+
+    private static int indexOf (byte[] data, byte b, int pos, int end)
+    {
+        for (int i=pos; i<end; i++)
+        {
+            if (data[i] == b)
+                return i;
+        }
+        return -1;
+    }
+
+    /** The end of the line without the line end */
+    private static int trimLineEnd (byte[] data, int start, int nl)
+    {
+        return nl > start && data[nl-1] == '\r' ? nl - 1 : nl;
+    }
+
+    private void parseHeader (byte[] data, int start, int end, HttpRequest request)
+    {
+        int nl = indexOf (data, (byte)'\n', start, end);
+        parseRequestLine (data, start, trimLineEnd (data, start, nl), request);
+
+        int pos = nl + 1;
+        while (pos < end)
+        {
+            nl = indexOf (data, (byte)'\n', pos, end);
+            int lineEnd = trimLineEnd (data, pos, nl);
+            if (lineEnd == pos)
+                break;
+
+            // Lines which start with white space continue the last header; DSMP doesn't need them
+            if (data[pos] != ' ' && data[pos] != '\t')
+                parseHeaderLine (data, pos, lineEnd, request);
+
+            pos = nl + 1;
+        }
+    }
+
+    private void parseRequestLine (byte[] data, int start, int end, HttpRequest request)
+    {
+        int sp1 = indexOf (data, (byte)' ', start, end);
+        if (sp1 == -1)
+            return;
+
+        int sp2 = end;
+        for (int i=end-1; i>sp1; i--)
+        {
+            if (data[i] == ' ')
+            {
+                sp2 = i;
+                break;
+            }
+        }
+
+        String method;
+        if (equals (data, start, sp1, GET))
+            method = HttpRequest.GET;
+        else if (equals (data, start, sp1, HEAD))
+            method = HttpRequest.HEAD;
+        else
+        {
+            // DSMP doesn't serve other methods
+            request.setMethod(new String (data, start, sp1 - start, ISO_8859_1));
+            return;
+        }
+
+        if (sp2 == sp1 + 1)
+            return;
+
+        request.setMethod(method);
+        request.setDownloadURL(new String (data, sp1 + 1, sp2 - sp1 - 1, ISO_8859_1));
+        request.setHttp11(sp2 < end && equals (data, sp2 + 1, end, HTTP_11));
+    }
+
+    private void parseHeaderLine (byte[] data, int start, int end, HttpRequest request)
+    {
+        int colon = indexOf (data, (byte)':', start, end);
+        if (colon == -1)
+            return;
+
+        int valueStart = colon + 1;
+        while (valueStart < end && (data[valueStart] == ' ' || data[valueStart] == '\t'))
+            valueStart ++;
+        int valueEnd = end;
+        while (valueEnd > valueStart && (data[valueEnd-1] == ' ' || data[valueEnd-1] == '\t'))
+            valueEnd --;
+
+        // Check the length first; it's the cheapest way to skip unknown headers
+        switch (colon - start)
+        {
+        case 5:
+            if (equalsIgnoreCase (data, start, colon, RANGE))
+                request.setRange(new String (data, valueStart, valueEnd - valueStart, ISO_8859_1));
+            break;
+        case 8:
+            if (equalsIgnoreCase (data, start, colon, IF_RANGE))
+                request.setIfRange(new String (data, valueStart, valueEnd - valueStart, ISO_8859_1));
+            break;
+        case 10:
+            if (equalsIgnoreCase (data, start, colon, CONNECTION))
+                parseConnection (data, valueStart, valueEnd, request);
+            break;
+        case 13:
+            if (equalsIgnoreCase (data, start, colon, IF_NONE_MATCH))
+                request.setIfNoneMatch(new String (data, valueStart, valueEnd - valueStart, ISO_8859_1));
+            break;
+        case 15:
+            if (equalsIgnoreCase (data, start, colon, ACCEPT_ENCODING))
+                request.setAcceptEncoding(new String (data, valueStart, valueEnd - valueStart, ISO_8859_1));
+            break;
+        case 16:
+            if (equalsIgnoreCase (data, start, colon, PROXY_CONNECTION))
+                parseConnection (data, valueStart, valueEnd, request);
+            break;
+        case 17:
+            if (equalsIgnoreCase (data, start, colon, IF_MODIFIED_SINCE))
+                request.setIfModifiedSince(new String (data, valueStart, valueEnd - valueStart, ISO_8859_1));
+            break;
+        default:
+            break;
+        }
+    }
+
+    /** Look for the tokens <code>keep-alive</code> and <code>close</code> in a comma separated list. */
+    private void parseConnection (byte[] data, int start, int end, HttpRequest request)
+    {
+        int pos = start;
+        while (pos < end)
+        {
+            int comma = indexOf (data, (byte)',', pos, end);
+            if (comma == -1)
+                comma = end;
+
+            int tokenStart = pos;
+            int tokenEnd = comma;
+            while (tokenStart < tokenEnd && data[tokenStart] == ' ')
+                tokenStart ++;
+            while (tokenEnd > tokenStart && data[tokenEnd-1] == ' ')
+                tokenEnd --;
+
+            if (equalsIgnoreCase (data, tokenStart, tokenEnd, KEEP_ALIVE))
+                request.setKeepAlive(true);
+            else if (equalsIgnoreCase (data, tokenStart, tokenEnd, CLOSE))
+                request.setClose(true);
+
+            pos = comma + 1;
+        }
+    }
+
+    private static boolean equals (byte[] data, int start, int end, byte[] expected)
+    {
+        if (end - start != expected.length)
+            return false;
+
+        for (int i=0; i<expected.length; i++)
+        {
+            if (data[start + i] != expected[i])
+                return false;
+        }
+        return true;
+    }
+
+    /** <code>expected</code> must be in lower case */
+    private static boolean equalsIgnoreCase (byte[] data, int start, int end, byte[] expected)
+    {
+        if (end - start != expected.length)
+            return false;
+
+        for (int i=0; i<expected.length; i++)
+        {
+            int b = data[start + i];
+            if (b >= 'A' && b <= 'Z')
+                b += 'a' - 'A';
+            if (b != expected[i])
+                return false;
+        }
+        return true;
+    }
+}
@@ -38,7 +38,14 @@ public class Main
             Config config = new Config(args[0]);
             config.reload();
             
-            Server server = new Server (config);
+            final Server server = new Server (config);
+            Runtime.getRuntime().addShutdownHook(new Thread ("dsmp-shutdown") {
+                @Override
+                public void run ()
+                {
+                    server.saveNegativeCache();
+                }
+            });
             log.info("Dead Stupid Maven Proxy "+VERSION+" is ready.");
             log.debug ("Debugging is enabled.");
             server.handleRequests ();
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keep the most recently used big files memory-mapped.
+ * 
+ * <p>The total size of all mappings is limited; the least recently used
+ * ones are dropped first. The JVM unmaps a file when the garbage collector
+ * finds that no response is using it anymore.
+ * 
+ * @author digulla
+ * 
+ */
+public class MappedFiles
+{
+    private static class Entry
+    {
+        private final MappedByteBuffer buffer;
+        private final long lastModified;
+
+        public Entry (MappedByteBuffer buffer, long lastModified)
+        {
+            this.buffer = buffer;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry> (16, 0.75f, true);
+    private long size;
+
+    /**
+     * Get a private view on the contents of <code>f</code>. The file is mapped
+     * if it isn't, yet, or if it has changed since it was mapped.
+     *
+     * @param budget The maximum number of bytes to keep mapped.
+     * @return <code>null</code> if the file is bigger than the budget.
+     */
+    public synchronized ByteBuffer get (File f, long length, long lastModified, long budget) throws IOException
+    {
+        if (length > budget || length > Integer.MAX_VALUE)
+            return null;
+
+        String key = f.getAbsolutePath();
+        Entry e = entries.get(key);
+        if (e != null && (e.lastModified != lastModified || e.buffer.capacity() != length))
+        {
+            entries.remove(key);
+            size -= e.buffer.capacity();
+            e = null;
+        }
+
+        if (e == null)
+        {
+            RandomAccessFile file = new RandomAccessFile (f, "r");
+            try
+            {
+                MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+                e = new Entry (buffer, lastModified);
+            }
+            finally
+            {
+                file.close();
+            }
+            entries.put(key, e);
+            size += length;
+        }
+
+        shrink (budget);
+
+        return e.buffer.duplicate();
+    }
+
+    /** Forget a file, for example because it was replaced. */
+    public synchronized void remove (File f)
+    {
+        Entry e = entries.remove(f.getAbsolutePath());
+        if (e != null)
+            size -= e.buffer.capacity();
+    }
+
+    private void shrink (long budget)
+    {
+        Iterator<Map.Entry<String, Entry>> iter = entries.entrySet().iterator();
+        while (size > budget && iter.hasNext())
+        {
+            Entry e = iter.next().getValue();
+            iter.remove();
+            size -= e.buffer.capacity();
+        }
+    }
+
+    public synchronized long getSize ()
+    {
+        return size;
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms about the work of the proxy, rendered in the
+ * Prometheus text format by <code>AdminServer</code>.
+ * 
+ * <p>All values are recorded with striped counters (<code>LongAdder</code>),
+ * so the request threads and event loops never wait for each other.
+ * Values which other classes already count (transfers, coalesced downloads,
+ * the caches) are read when the metrics are rendered.
+ * 
+ * @author digulla
+ * 
+ */
+public class Metrics
+{
+    /** What happened to a request. */
+    public enum Outcome
+    {
+        /** Sent from the cache */
+        HIT,
+        /** Sent from the patches */
+        PATCH,
+        /** The client's copy was still valid (304) */
+        NOT_MODIFIED,
+        /** Downloaded from the remote repository */
+        MISS,
+        /** A rule in the config denied the download */
+        DENIED,
+        /** The remote repository didn't have the file a moment ago (negative cache) */
+        NEGATIVE,
+        /** The remote repository doesn't have the file */
+        NOT_FOUND,
+        /** Too many downloads */
+        BUSY,
+        /** The request couldn't be parsed or isn't supported */
+        INVALID,
+        /** Anything else that went wrong */
+        ERROR;
+        
+        private final String label = name().toLowerCase();
+        
+        /** Was the file sent to the client? */
+        public boolean isServed ()
+        {
+            return this == HIT || this == PATCH || this == MISS;
+        }
+        
+        /** Classify a failed download. */
+        public static Outcome of (DownloadFailed e)
+        {
+            if (e.isCached())
+                return NEGATIVE;
+            switch (e.getStatus())
+            {
+            case 403:
+                return DENIED;
+            case 404:
+            case 410:
+                return NOT_FOUND;
+            default:
+                return ERROR;
+            }
+        }
+    }
+    
+    private static final String[] METHODS = { HttpRequest.GET, HttpRequest.HEAD, "other" };
+    
+    private static final LongAdder[][] REQUESTS = new LongAdder[METHODS.length][Outcome.values().length];
+    static {
+        for (LongAdder[] row: REQUESTS)
+            for (int i=0; i<row.length; i++)
+                row[i] = new LongAdder ();
+    }
+    
+    private static final Histogram HIT_LATENCY = new Histogram ();
+    private static final Histogram MISS_LATENCY = new Histogram ();
+    private static final ConcurrentHashMap<String, Histogram> UPSTREAM_LATENCY = new ConcurrentHashMap<String, Histogram> ();
+    private static final LongAdder UPSTREAM_BYTES = new LongAdder ();
+    private static final LongAdder CONNECTIONS = new LongAdder ();
+    private static final LongAdder CONFIG_RELOADS = new LongAdder ();
+    private static final LongAdder CONFIG_ERRORS = new LongAdder ();
+    
+    /**
+     * Count a request which is complete.
+     * 
+     * @param method The method of the request (<code>null</code> if it couldn't be parsed)
+     * @param nanos How long it took to answer the request
+     */
+    public static void request (String method, Outcome outcome, long nanos)
+    {
+        int m = HttpRequest.GET.equals (method) ? 0 : HttpRequest.HEAD.equals (method) ? 1 : 2;
+        REQUESTS[m][outcome.ordinal()].increment();
+        
+        if (outcome == Outcome.HIT || outcome == Outcome.PATCH || outcome == Outcome.NOT_MODIFIED)
+            HIT_LATENCY.record(nanos);
+        else if (outcome == Outcome.MISS)
+            MISS_LATENCY.record(nanos);
+    }
+    
+    /** The number of requests with this method and outcome. */
+    public static long getRequests (String method, Outcome outcome)
+    {
+        for (int m=0; m<METHODS.length; m++)
+        {
+            if (METHODS[m].equals (method))
+                return REQUESTS[m][outcome.ordinal()].sum();
+        }
+        return REQUESTS[METHODS.length-1][outcome.ordinal()].sum();
+    }
+    
+    /** The remote repository on <code>host</code> answered after <code>nanos</code>. */
+    public static void upstream (String host, long nanos)
+    {
+        Histogram h = UPSTREAM_LATENCY.get(host);
+        if (h == null)
+        {
+            Histogram created = new Histogram ();
+            h = UPSTREAM_LATENCY.putIfAbsent(host, created);
+            if (h == null)
+                h = created;
+        }
+        h.record(nanos);
+    }
+    
+    /** <code>len</code> bytes were read from a remote repository. */
+    public static void upstreamBytes (long len)
+    {
+        UPSTREAM_BYTES.add(len);
+    }
+    
+    public static void connectionOpened ()
+    {
+        CONNECTIONS.increment();
+    }
+    
+    public static void connectionClosed ()
+    {
+        CONNECTIONS.decrement();
+    }
+    
+    /** The config was (re)loaded. */
+    public static void configReloaded (boolean ok)
+    {
+        (ok ? CONFIG_RELOADS : CONFIG_ERRORS).increment();
+    }
+    
+    /** Render all metrics in the Prometheus text format (version 0.0.4). */
+    public static String render (Config config)
+    {
+        StringBuilder buffer = new StringBuilder (8*1024);
+        
+        header (buffer, "dsmp_requests_total", "counter", "Requests by method and outcome");
+        for (int m=0; m<METHODS.length; m++)
+        {
+            for (Outcome outcome: Outcome.values())
+            {
+                buffer.append ("dsmp_requests_total{method=\"").append (METHODS[m]).append ("\",outcome=\"")
+                    .append (outcome.label).append ("\"} ").append (REQUESTS[m][outcome.ordinal()].sum()).append ('\n');
+            }
+        }
+        
+        header (buffer, "dsmp_request_duration_seconds", "histogram", "Time to answer requests from the cache (hit) and from remote repositories (miss)");
+        HIT_LATENCY.appendTo(buffer, "dsmp_request_duration_seconds", "path=\"hit\"");
+        MISS_LATENCY.appendTo(buffer, "dsmp_request_duration_seconds", "path=\"miss\"");
+        
+        header (buffer, "dsmp_served_responses_total", "counter", "Responses with a body by the way the body was sent");
+        for (Response.Transfer t: Response.Transfer.values())
+            gauge (buffer, "dsmp_served_responses_total{transfer=\""+t.name().toLowerCase()+"\"}", t.getResponses());
+        header (buffer, "dsmp_served_bytes_total", "counter", "Bytes of bodies sent to clients by the way they were sent");
+        for (Response.Transfer t: Response.Transfer.values())
+            gauge (buffer, "dsmp_served_bytes_total{transfer=\""+t.name().toLowerCase()+"\"}", t.getBytes());
+        
+        header (buffer, "dsmp_upstream_bytes_total", "counter", "Bytes downloaded from remote repositories");
+        gauge (buffer, "dsmp_upstream_bytes_total", UPSTREAM_BYTES.sum());
+        header (buffer, "dsmp_upstream_duration_seconds", "histogram", "Time until a remote repository answered, by host");
+        Map<String, Histogram> hosts = new TreeMap<String, Histogram> (UPSTREAM_LATENCY);
+        for (Map.Entry<String, Histogram> entry: hosts.entrySet())
+            entry.getValue().appendTo(buffer, "dsmp_upstream_duration_seconds", "host=\""+escape (entry.getKey())+"\"");
+        
+        header (buffer, "dsmp_downloads_in_flight", "gauge", "Downloads which are running right now");
+        gauge (buffer, "dsmp_downloads_in_flight", ProxyDownload.getInFlightCount());
+        header (buffer, "dsmp_downloads_coalesced_total", "counter", "Requests which joined the running download of the same file");
+        gauge (buffer, "dsmp_downloads_coalesced_total", ProxyDownload.getCoalescedCount());
+        header (buffer, "dsmp_revalidations_total", "counter", "Expired files which the remote repository confirmed as not modified");
+        gauge (buffer, "dsmp_revalidations_total", ProxyDownload.getRevalidatedCount());
+        
+        NegativeCache negative = ProxyDownload.getNegativeCache();
+        header (buffer, "dsmp_negative_cache_entries", "gauge", "Failed downloads which are remembered");
+        gauge (buffer, "dsmp_negative_cache_entries", negative.size());
+        header (buffer, "dsmp_negative_cache_hits_total", "counter", "Requests answered from the negative cache");
+        gauge (buffer, "dsmp_negative_cache_hits_total", negative.getHits());
+        
+        HotCache hot = Response.getHotCache();
+        header (buffer, "dsmp_hot_cache_bytes", "gauge", "Bytes in the hot-object cache");
+        gauge (buffer, "dsmp_hot_cache_bytes", hot.getSize());
+        header (buffer, "dsmp_hot_cache_hits_total", "counter", "Responses from the hot-object cache");
+        gauge (buffer, "dsmp_hot_cache_hits_total", hot.getHits());
+        header (buffer, "dsmp_hot_cache_misses_total", "counter", "Small files which weren't in the hot-object cache");
+        gauge (buffer, "dsmp_hot_cache_misses_total", hot.getMisses());
+        
+        header (buffer, "dsmp_rule_hits_total", "counter", "URLs for which a rule of the config was the first to match");
+        ruleHits (buffer, "mirror", config.getMirrors());
+        ruleHits (buffer, "allow-deny", config.getAllowDeny());
+        ruleHits (buffer, "cache-control", config.getCacheControl());
+        ruleHits (buffer, "policy", config.getPolicies());
+        
+        header (buffer, "dsmp_index_entries", "gauge", "Files in the index of the cache and the patches");
+        gauge (buffer, "dsmp_index_entries", CacheIndex.get(config).size());
+        
+        header (buffer, "dsmp_cache_bytes", "gauge", "Bytes in the cache when it was measured last (only with cache-limit)");
+        gauge (buffer, "dsmp_cache_bytes", CacheJanitor.getCacheSize());
+        header (buffer, "dsmp_cache_files", "gauge", "Files in the cache when it was measured last (only with cache-limit)");
+        gauge (buffer, "dsmp_cache_files", CacheJanitor.getCacheFiles());
+        header (buffer, "dsmp_cache_evicted_files_total", "counter", "Files deleted to keep the cache below its limits");
+        gauge (buffer, "dsmp_cache_evicted_files_total", CacheJanitor.getEvictedFiles());
+        header (buffer, "dsmp_cache_evicted_bytes_total", "counter", "Bytes freed to keep the cache below its limits");
+        gauge (buffer, "dsmp_cache_evicted_bytes_total", CacheJanitor.getEvictedBytes());
+        header (buffer, "dsmp_dedup_files_total", "counter", "Downloads which were stored as a link to a file with the same content");
+        gauge (buffer, "dsmp_dedup_files_total", ContentStore.getDeduplicatedFiles());
+        header (buffer, "dsmp_dedup_bytes_total", "counter", "Bytes which were saved by storing the same content only once");
+        gauge (buffer, "dsmp_dedup_bytes_total", ContentStore.getDeduplicatedBytes());
+        
+        header (buffer, "dsmp_prefetch_queued_total", "counter", "Dependencies of POMs which were queued for prefetching");
+        gauge (buffer, "dsmp_prefetch_queued_total", Prefetcher.getQueued());
+        header (buffer, "dsmp_prefetch_dropped_total", "counter", "Dependencies which weren't prefetched because the queue was full");
+        gauge (buffer, "dsmp_prefetch_dropped_total", Prefetcher.getDropped());
+        header (buffer, "dsmp_prefetch_downloads_total", "counter", "Prefetched downloads by result");
+        gauge (buffer, "dsmp_prefetch_downloads_total{result=\"ok\"}", Prefetcher.getDownloaded());
+        gauge (buffer, "dsmp_prefetch_downloads_total{result=\"failed\"}", Prefetcher.getFailed());
+        header (buffer, "dsmp_prefetch_used_total", "counter", "Prefetched files which a client asked for later");
+        gauge (buffer, "dsmp_prefetch_used_total", Prefetcher.getUsed());
+        
+        header (buffer, "dsmp_connections_active", "gauge", "Open connections from clients");
+        gauge (buffer, "dsmp_connections_active", CONNECTIONS.sum());
+        
+        header (buffer, "dsmp_config_reloads_total", "counter", "Loads of the config by result");
+        gauge (buffer, "dsmp_config_reloads_total{result=\"ok\"}", CONFIG_RELOADS.sum());
+        gauge (buffer, "dsmp_config_reloads_total{result=\"error\"}", CONFIG_ERRORS.sum());
+        
+        return buffer.toString();
+    }
+    
+    private static void header (StringBuilder buffer, String name, String type, String help)
+    {
+        buffer.append ("# HELP ").append (name).append (' ').append (help).append ('\n');
+        buffer.append ("# TYPE ").append (name).append (' ').append (type).append ('\n');
+    }
+    
+    private static void gauge (StringBuilder buffer, String name, long value)
+    {
+        buffer.append (name).append (' ').append (value).append ('\n');
+    }
+    
+    private static void ruleHits (StringBuilder buffer, String set, RuleSet<?> rules)
+    {
+        // A rule which repeats an earlier one never matches first; skip it to keep the labels unique
+        Set<String> seen = new HashSet<String> ();
+        for (RuleSet.Rule<?> rule: rules.getRules())
+        {
+            String label = rule.toString();
+            if (seen.add(label))
+                gauge (buffer, "dsmp_rule_hits_total{set=\""+set+"\",rule=\""+escape (label)+"\"}", rule.getHits());
+        }
+    }
+    
+    private static String escape (String label)
+    {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
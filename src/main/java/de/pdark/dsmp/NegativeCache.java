@@ -0,0 +1,276 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remember which URLs the remote repositories don't have.
+ * 
+ * <p>Maven asks every repository for every artifact, so most downloads
+ * fail. The answers are kept in memory for a while, so the next request
+ * for the same URL fails right away. A Bloom filter in front of the
+ * map answers most lookups for URLs which never failed.
+ * 
+ * <p>The cache can be saved to a file when the proxy stops and be
+ * loaded again when it starts.
+ * 
+ * @author digulla
+ * 
+ */
+public class NegativeCache
+{
+    public static final Logger log = Logger.getLogger(NegativeCache.class);
+
+    private static class Entry
+    {
+        private final String statusLine;
+        private final long expires;
+
+        public Entry (String statusLine, long expires)
+        {
+            this.statusLine = statusLine;
+            this.expires = expires;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry> ();
+    private volatile BloomFilter filter;
+    private volatile int maxEntries;
+    private final AtomicLong hits = new AtomicLong ();
+
+    public NegativeCache (int maxEntries)
+    {
+        this.maxEntries = maxEntries;
+        filter = new BloomFilter (maxEntries);
+    }
+
+    /**
+     * Get the status line of the last failed download of <code>url</code>.
+     *
+     * @return <code>null</code> if the download didn't fail or the failure has expired.
+     */
+    public String get (String url)
+    {
+        if (!filter.mightContain(url))
+            return null;
+
+        Entry e = entries.get(url);
+        if (e == null)
+            return null;
+
+        if (e.expires <= System.currentTimeMillis())
+        {
+            entries.remove(url, e);
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return e.statusLine;
+    }
+
+    /**
+     * Did the download of <code>url</code> fail recently? Unlike
+     * <code>get()</code>, this doesn't count as a hit.
+     */
+    public boolean contains (String url)
+    {
+        if (!filter.mightContain(url))
+            return false;
+
+        Entry e = entries.get(url);
+        return e != null && e.expires > System.currentTimeMillis();
+    }
+
+    /**
+     * Remember that the download of <code>url</code> failed.
+     *
+     * @param ttl How many milliseconds to remember the failure.
+     */
+    public synchronized void put (String url, String statusLine, long ttl)
+    {
+        put (url, statusLine, ttl, System.currentTimeMillis() + ttl);
+    }
+
+    private void put (String url, String statusLine, long ttl, long expires)
+    {
+        if (ttl <= 0 || expires <= System.currentTimeMillis())
+            return;
+
+        if (entries.size() >= maxEntries && !entries.containsKey(url))
+            purge (false);
+
+        entries.put(url, new Entry (statusLine, expires));
+        filter.add(url);
+    }
+
+    /** Forget the failure of <code>url</code>, for example because the file was downloaded. */
+    public void remove (String url)
+    {
+        entries.remove(url);
+    }
+
+    /** Forget all failures. */
+    public synchronized void clear ()
+    {
+        entries.clear();
+        filter = new BloomFilter (maxEntries);
+    }
+
+    /**
+     * Change the maximum number of entries. The next <code>put()</code>
+     * makes room if necessary.
+     */
+    public synchronized void setMaxEntries (int maxEntries)
+    {
+        if (this.maxEntries == maxEntries)
+            return;
+
+        this.maxEntries = maxEntries;
+        purge (false);
+    }
+
+    /**
+     * Drop the expired entries. If the cache is still full, drop
+     * some of the others, too. Then rebuild the filter, so it forgets
+     * the removed URLs.
+     */
+    private void purge (boolean expiredOnly)
+    {
+        long now = System.currentTimeMillis();
+        int keep = expiredOnly ? Integer.MAX_VALUE : maxEntries - maxEntries / 4 - 1;
+        for (Iterator<Entry> iter = entries.values().iterator(); iter.hasNext(); )
+        {
+            if (iter.next().expires <= now)
+                iter.remove();
+        }
+        for (Iterator<String> iter = entries.keySet().iterator(); entries.size() > keep && iter.hasNext(); )
+        {
+            iter.next();
+            iter.remove();
+        }
+
+        BloomFilter newFilter = new BloomFilter (maxEntries);
+        for (String url: entries.keySet())
+            newFilter.add(url);
+        filter = newFilter;
+    }
+
+    /** Drop the expired entries. */
+    public synchronized void purge ()
+    {
+        purge (true);
+    }
+
+    public int size ()
+    {
+        return entries.size();
+    }
+
+    /** How many requests were answered from this cache. */
+    public long getHits ()
+    {
+        return hits.get();
+    }
+
+    /**
+     * Load the entries from <code>file</code> (if it exists). Expired
+     * entries are skipped.
+     */
+    public synchronized void load (File file) throws IOException
+    {
+        if (!file.exists())
+            return;
+
+        BufferedReader in = new BufferedReader (new InputStreamReader (new FileInputStream (file), "UTF-8"));
+        try
+        {
+            long now = System.currentTimeMillis();
+            String line;
+            int count = 0;
+            while ((line = in.readLine()) != null)
+            {
+                // expires <TAB> url <TAB> status line
+                int pos1 = line.indexOf('\t');
+                int pos2 = pos1 < 0 ? -1 : line.indexOf('\t', pos1 + 1);
+                if (pos2 < 0)
+                    continue;
+
+                long expires;
+                try
+                {
+                    expires = Long.parseLong(line.substring(0, pos1));
+                }
+                catch (NumberFormatException e)
+                {
+                    continue;
+                }
+                put (line.substring(pos1 + 1, pos2), line.substring(pos2 + 1), expires - now, expires);
+                count ++;
+            }
+            log.info ("Loaded "+entries.size()+" of "+count+" failed downloads from "+file.getAbsolutePath());
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /** Save the entries which haven't expired, yet, to <code>file</code>. */
+    public synchronized void save (File file) throws IOException
+    {
+        File tmp = new File (file.getAbsolutePath()+".new");
+        BufferedWriter out = new BufferedWriter (new OutputStreamWriter (new FileOutputStream (tmp), "UTF-8"));
+        try
+        {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, Entry> e: entries.entrySet())
+            {
+                Entry value = e.getValue();
+                if (value.expires <= now)
+                    continue;
+
+                out.write(Long.toString(value.expires));
+                out.write('\t');
+                out.write(e.getKey());
+                out.write('\t');
+                out.write(value.statusLine);
+                out.newLine();
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+
+        file.delete();
+        if (!tmp.renameTo(file))
+            throw new IOException ("Can't rename "+tmp.getAbsolutePath()+" to "+file.getAbsolutePath());
+    }
+}
@@ -0,0 +1,669 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A non-blocking front end for the proxy.
+ * 
+ * <p>A few event loops accept connections, parse the requests and
+ * send files which are already in the cache. Only when a file has to
+ * be downloaded, the work is passed on to a worker thread. The answer
+ * is then sent by the event loop again.
+ * 
+ * <p>Idle connections cost a selection key and a small object, so
+ * this front end can keep a lot of keep-alive connections open.
+ * 
+ * @author digulla
+ * 
+ */
+public class NioServer
+{
+    public static final Logger log = Logger.getLogger(NioServer.class);
+
+    /** How often to look for idle connections */
+    private static final long IDLE_CHECK_MILLIS = 1000;
+
+    private final Config config;
+    private final ExecutorService workers;
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private volatile boolean run = true;
+    private int nextLoop;
+
+    public NioServer (Config config, ExecutorService workers) throws IOException
+    {
+        this.config = config;
+        this.workers = workers;
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress (config.getPort()));
+        serverChannel.configureBlocking(false);
+
+        loops = new EventLoop[config.getEventLoops()];
+        for (int i=0; i<loops.length; i++)
+            loops[i] = new EventLoop ();
+
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Run the event loops. The first one runs in the calling thread, so
+     * this method only returns after <code>terminateAll()</code>.
+     */
+    public void handleRequests ()
+    {
+        log.info("Serving connections with "+loops.length+" event loop(s)");
+        for (int i=1; i<loops.length; i++)
+        {
+            Thread t = new Thread (loops[i], "dsmp-loop-"+i);
+            t.start();
+        }
+
+        loops[0].run();
+
+        try
+        {
+            serverChannel.close();
+        }
+        catch (IOException e)
+        {
+            log.error("Error closing server socket", e);
+        }
+    }
+
+    public void terminateAll ()
+    {
+        run = false;
+        for (EventLoop loop: loops)
+            loop.selector.wakeup();
+    }
+
+    private void accept () throws IOException
+    {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null)
+        {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+
+            EventLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            loop.add (channel);
+        }
+    }
+
+    private class EventLoop implements Runnable
+    {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable> ();
+        /** Shared by all connections of this loop; connections only keep what they couldn't parse, yet */
+        private final ByteBuffer readBuffer = ByteBuffer.allocate (16*1024);
+        private volatile Thread thread;
+
+        public EventLoop () throws IOException
+        {
+            selector = Selector.open();
+        }
+
+        /** Run <code>task</code> in the thread of this loop. */
+        public void execute (Runnable task)
+        {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        public void add (final SocketChannel channel)
+        {
+            if (Thread.currentThread() == thread)
+            {
+                register (channel);
+                return;
+            }
+
+            execute (new Runnable () {
+                public void run ()
+                {
+                    register (channel);
+                }
+            });
+        }
+
+        private void register (SocketChannel channel)
+        {
+            Connection c = new Connection (this, channel);
+            try
+            {
+                c.key = channel.register(selector, SelectionKey.OP_READ, c);
+                log.debug ("Got connection from "+channel.socket().getInetAddress());
+            }
+            catch (IOException e)
+            {
+                log.error ("Error registering connection", e);
+                c.close();
+            }
+        }
+
+        /** Close the connections which waited too long for the next request. */
+        private void closeIdleConnections (long now)
+        {
+            long timeout = config.getKeepAliveTimeout() * 1000L;
+            for (SelectionKey key: selector.keys())
+            {
+                if (!(key.attachment() instanceof Connection))
+                    continue;
+
+                Connection c = (Connection)key.attachment();
+                if (!c.busy && now - c.idleSince > timeout)
+                {
+                    log.debug ("Connection from "+c.channel.socket().getInetAddress()+" was idle for too long");
+                    c.close();
+                }
+            }
+        }
+
+        public void run ()
+        {
+            thread = Thread.currentThread();
+
+            long lastCheck = System.currentTimeMillis();
+            while (run)
+            {
+                try
+                {
+                    selector.select(IDLE_CHECK_MILLIS);
+                }
+                catch (IOException e)
+                {
+                    log.error ("Error waiting for connections", e);
+                    continue;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+
+                Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                while (iter.hasNext())
+                {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+
+                    if (!key.isValid())
+                        continue;
+
+                    if (key.isAcceptable())
+                    {
+                        try
+                        {
+                            accept();
+                        }
+                        catch (IOException e)
+                        {
+                            log.error("Error acception connection from client", e);
+                        }
+                        continue;
+                    }
+
+                    Connection c = (Connection)key.attachment();
+                    try
+                    {
+                        if (key.isReadable())
+                            c.read();
+                        if (key.isValid() && key.isWritable())
+                            c.write();
+                    }
+                    catch (IOException e)
+                    {
+                        // Usually the client went away
+                        log.debug ("Conversation with client aborted", e);
+                        c.close();
+                    }
+                    catch (Exception e)
+                    {
+                        log.error ("Conversation with client aborted", e);
+                        c.close();
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastCheck >= IDLE_CHECK_MILLIS)
+                {
+                    closeIdleConnections (now);
+                    lastCheck = now;
+                }
+            }
+
+            for (SelectionKey key: selector.keys())
+            {
+                if (key.attachment() instanceof Connection)
+                    ((Connection)key.attachment()).close();
+            }
+            try
+            {
+                selector.close();
+            }
+            catch (IOException e)
+            {
+                log.error("Error closing selector", e);
+            }
+        }
+    }
+
+    private class Connection
+    {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private SelectionKey key;
+
+        /** Bytes which were read but not parsed, yet. <code>null</code> while the connection is idle. */
+        private byte[] pending;
+        private int pendingLength;
+
+        /** A request is being processed; don't parse the next one, yet. */
+        private boolean busy;
+        private final HttpRequestParser parser = new HttpRequestParser (HttpRequestParser.MAX_HEADER_SIZE);
+        /** The parsed request header; reused for all requests of the connection */
+        private final HttpRequest parsed = new HttpRequest ();
+        private HttpRequest request;
+        /** The snapshot of the config for the current request */
+        private Config config;
+        /** The number of requests on this connection */
+        private int requests;
+        /** Keep the connection open after the current response */
+        private boolean persistent;
+        /** When the last request was completed */
+        private long idleSince = System.currentTimeMillis();
+        private URL url;
+        /** The Cache-Control value for the current request or null */
+        private String cacheControl;
+        private Response response;
+        /** What happened to the current request, for the metrics */
+        private Metrics.Outcome outcome;
+        /** The method of the current request, for the metrics */
+        private String method;
+        /** When the current request was parsed (nanoseconds) */
+        private long started;
+        private boolean closed;
+
+        public Connection (EventLoop loop, SocketChannel channel)
+        {
+            this.loop = loop;
+            this.channel = channel;
+            Metrics.connectionOpened();
+        }
+
+        public void read () throws IOException
+        {
+            ByteBuffer buffer = loop.readBuffer;
+            buffer.clear();
+            int len = channel.read(buffer);
+            if (len == -1)
+            {
+                log.debug ("Terminating connection with "+channel.socket().getInetAddress());
+                close ();
+                return;
+            }
+
+            idleSince = System.currentTimeMillis();
+            append (buffer.array(), len);
+            processPending ();
+        }
+
+        private void append (byte[] data, int len)
+        {
+            if (len == 0)
+                return;
+
+            if (pending == null)
+                pending = BufferPool.REQUESTS.acquire();
+            if (pendingLength + len > pending.length)
+            {
+                byte[] tmp = new byte[Math.max (pendingLength + len, pending.length * 2)];
+                System.arraycopy(pending, 0, tmp, 0, pendingLength);
+                pending = tmp;
+            }
+
+            System.arraycopy(data, 0, pending, pendingLength, len);
+            pendingLength += len;
+        }
+
+        private void processPending () throws IOException
+        {
+            while (!busy && pending != null)
+            {
+                int end;
+                try
+                {
+                    end = parser.parse(pending, 0, pendingLength, parsed);
+                }
+                catch (HeaderTooLarge e)
+                {
+                    log.error ("Request header from "+channel.socket().getInetAddress()+" is too big");
+                    consume (pendingLength);
+                    started = System.nanoTime();
+                    method = null;
+                    busy = true;
+                    persistent = false;
+                    key.interestOps(0);
+                    startResponse (Response.forStatus(HeaderTooLarge.STATUS_LINE), Metrics.Outcome.INVALID);
+                    return;
+                }
+                if (end == -1)
+                    return;
+
+                consume (end);
+                handle (parsed);
+            }
+        }
+
+        private void consume (int len)
+        {
+            pendingLength -= len;
+            if (pendingLength == 0)
+            {
+                BufferPool.REQUESTS.release(pending);
+                pending = null;
+            }
+            else
+                System.arraycopy(pending, len, pending, 0, pendingLength);
+        }
+
+        private void handle (HttpRequest request) throws IOException
+        {
+            started = System.nanoTime();
+            method = request.getMethod();
+            config = NioServer.this.config.snapshot();
+            requests ++;
+            int maxRequests = config.getMaxRequests();
+            persistent = request.isPersistent() && (maxRequests == 0 || requests < maxRequests);
+            busy = true;
+            key.interestOps(0);
+
+            if (request.getDownloadURL() == null)
+            {
+                log.error ("Found no URL to download in request");
+                startResponse (Response.forStatus(request.getMethod() == null
+                        ? RequestHandler.BAD_REQUEST : RequestHandler.NOT_IMPLEMENTED), Metrics.Outcome.INVALID);
+                return;
+            }
+
+            log.info ("Got request for "+request.getDownloadURL());
+            this.request = request;
+            url = RequestHandler.resolveURL(request.getDownloadURL(), config);
+            cacheControl = config.getCacheControl(url.toExternalForm());
+
+            CacheIndex.Entry entry = CacheIndex.get(config).lookup(url);
+            if (RequestHandler.isExpired(entry, url, config))
+                entry = null;
+            CacheIndex.Entry variant = GzipVariants.find(entry, url, request, config, workers);
+            CacheIndex.Entry selected = variant == null ? entry : variant;
+            if (entry != null && Response.isNotModified(request, selected.getLength(), selected.getLastModified()))
+            {
+                log.debug ("Not modified: "+url);
+                this.request = null;
+                startResponse (Response.forNotModified(selected.getLength(), selected.getLastModified(), cacheControl,
+                        Response.hasVariants(entry.getFile(), entry.getLength(), config)), Metrics.Outcome.NOT_MODIFIED);
+                return;
+            }
+            if (entry != null)
+            {
+                try
+                {
+                    Response response = variant != null
+                            ? Response.forVariant(entry, variant, request.isHeadOnly(), cacheControl)
+                            : Response.forRange(entry, request, cacheControl, config);
+                    if (response == null)
+                        response = Response.forFile(entry, request.isHeadOnly(), cacheControl, config);
+                    response.open(config);
+                    log.debug ("Serving from local cache "+entry.getFile().getAbsolutePath());
+                    startResponse (response, entry.isPatch() ? Metrics.Outcome.PATCH : Metrics.Outcome.HIT);
+                    return;
+                }
+                catch (FileNotFoundException e)
+                {
+                    // The index has forgotten the file now; download it again
+                    log.debug ("File was deleted from the cache: "+entry.getFile().getAbsolutePath());
+                }
+            }
+
+            File f = RequestHandler.getCacheFile(url, config);
+
+            final RunningDownload download;
+            try
+            {
+                download = new ProxyDownload (url, f, config).start(workers);
+            }
+            catch (RejectedExecutionException e)
+            {
+                log.warn ("Too many downloads; refusing "+url);
+                this.request = null;
+                startResponse (Response.forStatus("HTTP/1.1 503 Service Unavailable"), Metrics.Outcome.BUSY);
+                return;
+            }
+
+            if (!download.whenStarted(new LoopTask (this) {
+                @Override
+                protected void runInLoop () throws IOException
+                {
+                    downloadStarted (download);
+                }
+            }))
+            {
+                downloadStarted (download);
+            }
+        }
+
+        /**
+         * The download has started or failed. Send the error or start to send
+         * the file while it's downloaded.
+         */
+        private void downloadStarted (final RunningDownload download) throws IOException
+        {
+            try
+            {
+                download.checkError();
+            }
+            catch (DownloadFailed e)
+            {
+                log.error(e.getMessage());
+                startResponse (Response.forStatus(e.getStatusLine()), Metrics.Outcome.of(e));
+                return;
+            }
+
+            if (download.isDone())
+            {
+                File f = download.getFile();
+                if (Response.isNotModified(request, f.length(), f.lastModified()))
+                {
+                    startResponse (Response.forNotModified(f.length(), f.lastModified(), cacheControl,
+                            Response.hasVariants(f, f.length(), config)), Metrics.Outcome.NOT_MODIFIED);
+                    return;
+                }
+                startResponse (Response.forFile(download.getFile(), request.getDownloadURL(), request.isHeadOnly(), cacheControl, config), Metrics.Outcome.MISS);
+                return;
+            }
+
+            boolean chunked = download.getContentLength() < 0;
+            if (request.isHeadOnly() || chunked && !request.isHttp11())
+            {
+                // Can't send the file while it's downloaded
+                if (!download.whenDone(new LoopTask (this) {
+                    @Override
+                    protected void runInLoop () throws IOException
+                    {
+                        downloadStarted (download);
+                    }
+                }))
+                {
+                    downloadStarted (download);
+                }
+                return;
+            }
+
+            log.debug ("Sending "+url+" while it is downloaded");
+            startResponse (Response.forDownload(download, request.getDownloadURL(), chunked, cacheControl), Metrics.Outcome.MISS);
+        }
+
+        public void startResponse (Response response, Metrics.Outcome outcome) throws IOException
+        {
+            this.response = response;
+            this.outcome = outcome;
+            if (!persistent)
+                response.setConnection("close");
+            else if (!parsed.isHttp11())
+                response.setConnection("keep-alive");
+            response.open(config);
+            write ();
+        }
+
+        public void write () throws IOException
+        {
+            if (!response.writeTo(channel))
+            {
+                if (!response.isWaitingForData())
+                {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+
+                // Continue when the download has written more data
+                key.interestOps(0);
+                LoopTask task = new LoopTask (this) {
+                    @Override
+                    protected void runInLoop () throws IOException
+                    {
+                        write ();
+                    }
+                };
+                if (!response.getDownload().whenAvailable(response.getPosition(), task))
+                    task.run();
+                return;
+            }
+
+            response.close();
+            Metrics.request(method, outcome, System.nanoTime() - started);
+            if (outcome.isServed())
+            {
+                if (request.isHeadOnly())
+                    log.info("HEAD for : " + url.toExternalForm());
+                RequestHandler.downloadLog.info("Downloaded: " + url.toExternalForm());
+            }
+
+            response = null;
+            outcome = null;
+            request = null;
+            url = null;
+            busy = false;
+            idleSince = System.currentTimeMillis();
+
+            if (!persistent)
+            {
+                close ();
+                return;
+            }
+
+            key.interestOps(SelectionKey.OP_READ);
+            processPending ();
+        }
+
+        public void close ()
+        {
+            if (closed)
+                return;
+            closed = true;
+            Metrics.connectionClosed();
+            
+            if (response != null)
+            {
+                response.close();
+                Metrics.request(method, Metrics.Outcome.ERROR, System.nanoTime() - started);
+            }
+            BufferPool.REQUESTS.release(pending);
+            pending = null;
+
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                log.error ("Exception while closing the socket", e);
+            }
+        }
+    }
+
+    /**
+     * Something to do for a connection in the thread of its event loop.
+     * When called from another thread, the task is passed to the loop.
+     */
+    private abstract class LoopTask implements Runnable
+    {
+        private final Connection connection;
+
+        public LoopTask (Connection connection)
+        {
+            this.connection = connection;
+        }
+
+        public void run ()
+        {
+            if (Thread.currentThread() != connection.loop.thread)
+            {
+                connection.loop.execute(this);
+                return;
+            }
+            // The client went away while a download was running
+            if (connection.closed)
+                return;
+
+            try
+            {
+                runInLoop ();
+            }
+            catch (IOException e)
+            {
+                log.debug ("Conversation with client aborted", e);
+                connection.close();
+            }
+            catch (Exception e)
+            {
+                log.error ("Conversation with client aborted", e);
+                connection.close();
+            }
+        }
+
+        protected abstract void runInLoop () throws IOException;
+    }
+}
@@ -0,0 +1,540 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.JDOMException;
+import org.jdom.Namespace;
+import org.jdom.input.SAXBuilder;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Download what Maven will ask for next.
+ * 
+ * <p>When a client downloads a POM, Maven will soon ask for its parent and
+ * its dependencies. The prefetcher reads the POM and downloads their POMs
+ * and JARs in the background, so the requests are hits. Properties and
+ * versions from the <code>dependencyManagement</code> are taken from the POM
+ * and its parents (if they are in the cache). For version ranges, the
+ * <code>maven-metadata.xml</code> of the artifact is prefetched.
+ * Dependencies with the scopes <code>test</code>, <code>provided</code>
+ * and <code>system</code> and optional ones are skipped since Maven
+ * doesn't need them either.
+ * 
+ * <p>All prefetching happens in one thread with a low priority and at most
+ * <code>rate</code> downloads per second. Dependencies of prefetched POMs
+ * are followed up to <code>depth</code> levels. Files which are already in
+ * the cache aren't downloaded again.
+ * 
+ * @author digulla
+ * 
+ */
+public class Prefetcher
+{
+    public static final Logger log = Logger.getLogger(Prefetcher.class);
+    
+    /** At most this many files wait to be prefetched; more are dropped */
+    static final int QUEUE_SIZE = 1000;
+    /** Remember at most this many prefetched files to count the used ones */
+    static final int MAX_TRACKED = 100000;
+    /** Bigger POMs aren't read */
+    static final long MAX_POM_SIZE = 1024*1024;
+    /** How many parents are read to resolve properties and managed versions */
+    static final int MAX_PARENTS = 10;
+    
+    private static final AtomicLong QUEUED = new AtomicLong ();
+    private static final AtomicLong DOWNLOADED = new AtomicLong ();
+    private static final AtomicLong FAILED = new AtomicLong ();
+    private static final AtomicLong DROPPED = new AtomicLong ();
+    private static final AtomicLong USED = new AtomicLong ();
+    
+    /** The URLs which are queued or being prefetched */
+    private static final ConcurrentHashMap<String, Boolean> PENDING = new ConcurrentHashMap<String, Boolean> ();
+    /** The prefetched files which no client asked for yet, by their key in the index */
+    private static final ConcurrentHashMap<String, Boolean> UNUSED = new ConcurrentHashMap<String, Boolean> ();
+    
+    private static ThreadPoolExecutor executor;
+    /** When the next download may start; only used by the prefetch thread */
+    private static long nextSlot;
+    
+    private static final Pattern PROPERTY = Pattern.compile("\\$\\{([^}]+)\\}");
+    
+    /** The number of files which were queued for prefetching. */
+    public static long getQueued ()
+    {
+        return QUEUED.get();
+    }
+    
+    /** The number of files which were prefetched. */
+    public static long getDownloaded ()
+    {
+        return DOWNLOADED.get();
+    }
+    
+    /** The number of prefetches which failed (usually because the file doesn't exist). */
+    public static long getFailed ()
+    {
+        return FAILED.get();
+    }
+    
+    /** The number of files which weren't prefetched because the queue was full. */
+    public static long getDropped ()
+    {
+        return DROPPED.get();
+    }
+    
+    /** The number of prefetched files which a client asked for later. */
+    public static long getUsed ()
+    {
+        return USED.get();
+    }
+    
+    /**
+     * A client downloaded <code>url</code> into <code>f</code>. If it's a POM,
+     * prefetch its parent and dependencies.
+     */
+    public static void downloaded (URL url, File f, Config config)
+    {
+        if (!config.isPrefetchEnabled() || !url.getPath().endsWith(".pom"))
+            return;
+        // The prefetch thread follows its own downloads
+        if (PENDING.containsKey(url.toString()))
+            return;
+        
+        queueDependencies (url, f, 0, config);
+    }
+    
+    /**
+     * A client asked for the file with <code>key</code> (see
+     * <code>CacheIndex.getKey()</code>) and it was in the cache.
+     */
+    public static void used (String key)
+    {
+        if (!UNUSED.isEmpty() && UNUSED.remove(key) != null)
+            USED.incrementAndGet();
+    }
+    
+    /** Stop prefetching, for example when the proxy stops. */
+    public static synchronized void shutdownAll ()
+    {
+        if (executor != null)
+            executor.shutdownNow();
+        executor = null;
+        PENDING.clear();
+    }
+    
+    private static synchronized ThreadPoolExecutor getExecutor ()
+    {
+        if (executor == null)
+        {
+            executor = new ThreadPoolExecutor (1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable> (QUEUE_SIZE), new ThreadFactory () {
+                public Thread newThread (Runnable r)
+                {
+                    Thread t = new Thread (r, "dsmp-prefetch");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+    
+    /**
+     * @param depth The level of the POM: 0 for the ones which clients download
+     */
+    private static void queueDependencies (URL url, File pom, int depth, Config config)
+    {
+        List<URL> parent = new ArrayList<URL> ();
+        List<URL> dependencies = new ArrayList<URL> ();
+        try
+        {
+            parse (url, pom, config, parent, dependencies);
+        }
+        catch (IOException e)
+        {
+            log.debug ("Can't read "+pom.getAbsolutePath()+": "+e);
+            return;
+        }
+        
+        // The parent is needed to read the POM, so it counts as the same level
+        for (URL u: parent)
+            queue (u, depth, config);
+        if (depth < config.getPrefetchDepth())
+        {
+            for (URL u: dependencies)
+                queue (u, depth + 1, config);
+        }
+    }
+    
+    private static void queue (final URL url, final int depth, final Config config)
+    {
+        if (!config.isAllowed(url) || PENDING.putIfAbsent(url.toString(), Boolean.TRUE) != null)
+            return;
+        
+        final File f = RequestHandler.getCacheFile(url, config);
+        if (findLocal (url, config) != null || ProxyDownload.isDownloading(f))
+        {
+            PENDING.remove(url.toString());
+            return;
+        }
+        
+        try
+        {
+            getExecutor ().execute(new Runnable () {
+                public void run ()
+                {
+                    prefetch (url, f, depth, config);
+                }
+            });
+            QUEUED.incrementAndGet();
+        }
+        catch (RejectedExecutionException e)
+        {
+            PENDING.remove(url.toString());
+            DROPPED.incrementAndGet();
+        }
+    }
+    
+    private static void prefetch (URL url, File f, int depth, Config config)
+    {
+        try
+        {
+            waitForSlot (config.getPrefetchRate());
+            
+            // A client might have been faster
+            if (f.exists())
+                return;
+            
+            log.debug ("Prefetching "+url);
+            new ProxyDownload (url, f, config).download();
+            DOWNLOADED.incrementAndGet();
+            if (UNUSED.size() < MAX_TRACKED)
+                UNUSED.put(CacheIndex.getKey(url), Boolean.TRUE);
+            
+            if (url.getPath().endsWith(".pom"))
+                queueDependencies (url, f, depth, config);
+        }
+        catch (DownloadFailed e)
+        {
+            FAILED.incrementAndGet();
+            log.debug ("Can't prefetch "+url+": "+e.getMessage());
+        }
+        catch (IOException e)
+        {
+            FAILED.incrementAndGet();
+            log.debug ("Can't prefetch "+url+": "+e);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            PENDING.remove(url.toString());
+        }
+    }
+    
+    private static void waitForSlot (int rate) throws InterruptedException
+    {
+        if (rate <= 0)
+            return;
+        
+        long now = System.currentTimeMillis();
+        if (nextSlot > now)
+            Thread.sleep(nextSlot - now);
+        nextSlot = Math.max (now, nextSlot) + 1000 / rate;
+    }
+    
+    /** The parts of a POM which are needed to find the dependencies */
+    static class Pom
+    {
+        private final Namespace ns;
+        private final Element root;
+        private final Element parent;
+        
+        public Pom (File f) throws IOException
+        {
+            if (f.length() > MAX_POM_SIZE)
+                throw new IOException ("POM is too big");
+            
+            SAXBuilder builder = new SAXBuilder ();
+            // Don't load DTDs or external entities from anywhere
+            builder.setEntityResolver(new EntityResolver () {
+                public InputSource resolveEntity (String publicId, String systemId)
+                {
+                    return new InputSource (new StringReader (""));
+                }
+            });
+            try
+            {
+                Document doc = builder.build(f);
+                root = doc.getRootElement();
+            }
+            catch (JDOMException e)
+            {
+                throw new IOException ("Not a valid POM: "+e.getMessage(), e);
+            }
+            ns = root.getNamespace();
+            parent = root.getChild("parent", ns);
+        }
+        
+        public String get (Element e, String name)
+        {
+            return e == null ? null : StringUtils.trimToNull(e.getChildTextTrim(name, ns));
+        }
+        
+        public String getGroupId ()
+        {
+            String result = get (root, "groupId");
+            return result == null ? get (parent, "groupId") : result;
+        }
+        
+        public String getArtifactId ()
+        {
+            return get (root, "artifactId");
+        }
+        
+        public String getVersion ()
+        {
+            String result = get (root, "version");
+            return result == null ? get (parent, "version") : result;
+        }
+        
+        public List<Element> getChildren (Element e, String path)
+        {
+            for (String name: StringUtils.split(path, '/'))
+            {
+                if (e == null)
+                    break;
+                e = e.getChild(name, ns);
+            }
+            List<Element> result = new ArrayList<Element> ();
+            if (e != null)
+            {
+                for (Iterator iter = e.getChildren().iterator(); iter.hasNext();)
+                    result.add((Element)iter.next());
+            }
+            return result;
+        }
+    }
+    
+    /**
+     * Find the parent and the dependencies of the POM <code>f</code> which was
+     * downloaded from <code>url</code>.
+     */
+    static void parse (URL url, File f, Config config, List<URL> parentURLs, List<URL> dependencyURLs) throws IOException
+    {
+        Pom pom = new Pom (f);
+        String groupId = pom.getGroupId();
+        String artifactId = pom.getArtifactId();
+        String version = pom.getVersion();
+        if (groupId == null || artifactId == null || version == null)
+            throw new IOException ("POM has no coordinates");
+        
+        // The URL of the repository is what's left of the URL of the POM without the coordinates
+        String path = getPath (groupId, artifactId, version, "pom");
+        String s = url.toString();
+        if (!s.endsWith("/"+path))
+            throw new IOException ("POM isn't in "+path);
+        String base = s.substring(0, s.length() - path.length());
+        
+        // Collect properties and managed versions; the ones of the child win
+        Map<String, String> properties = new HashMap<String, String> ();
+        // The child comes first
+        Map<String, String> managed = new LinkedHashMap<String, String> ();
+        Pom current = pom;
+        for (int i=0; current != null; i++)
+        {
+            Map<String, String> p = new HashMap<String, String> ();
+            for (Element e: current.getChildren(current.root, "properties"))
+                p.put(e.getName(), e.getTextTrim());
+            p.putAll(properties);
+            properties = p;
+            
+            for (Element dependency: current.getChildren(current.root, "dependencyManagement/dependencies"))
+            {
+                String key = current.get (dependency, "groupId")+":"+current.get (dependency, "artifactId");
+                String managedVersion = current.get (dependency, "version");
+                if (managedVersion != null && !managed.containsKey(key))
+                    managed.put(key, managedVersion);
+            }
+            
+            if (current.parent == null || i >= MAX_PARENTS)
+                break;
+            String parentGroupId = current.get (current.parent, "groupId");
+            String parentArtifactId = current.get (current.parent, "artifactId");
+            String parentVersion = current.get (current.parent, "version");
+            if (parentGroupId == null || parentArtifactId == null || parentVersion == null)
+                break;
+            URL parentURL = new URL (base + getPath (parentGroupId, parentArtifactId, parentVersion, "pom"));
+            if (current == pom)
+                parentURLs.add(parentURL);
+            
+            File parentFile = findLocal (parentURL, config);
+            current = null;
+            if (parentFile != null)
+            {
+                try
+                {
+                    current = new Pom (parentFile);
+                }
+                catch (IOException e)
+                {
+                    log.debug ("Can't read parent "+parentFile.getAbsolutePath()+": "+e);
+                }
+            }
+        }
+        
+        properties.put ("project.groupId", groupId);
+        properties.put ("project.artifactId", artifactId);
+        properties.put ("project.version", version);
+        properties.put ("pom.groupId", groupId);
+        properties.put ("pom.version", version);
+        properties.put ("groupId", groupId);
+        properties.put ("version", version);
+        if (pom.parent != null)
+        {
+            properties.put ("project.parent.groupId", StringUtils.defaultString(pom.get (pom.parent, "groupId")));
+            properties.put ("project.parent.version", StringUtils.defaultString(pom.get (pom.parent, "version")));
+        }
+        
+        boolean jars = config.isPrefetchJars();
+        for (Element dependency: pom.getChildren(pom.root, "dependencies"))
+        {
+            String scope = pom.get (dependency, "scope");
+            if (scope != null && !"compile".equals(scope) && !"runtime".equals(scope))
+                continue;
+            if ("true".equals(pom.get (dependency, "optional")))
+                continue;
+            
+            String g = resolve (pom.get (dependency, "groupId"), properties);
+            String a = resolve (pom.get (dependency, "artifactId"), properties);
+            if (g == null || a == null)
+                continue;
+            String v = pom.get (dependency, "version");
+            if (v == null)
+            {
+                for (Map.Entry<String, String> entry: managed.entrySet())
+                {
+                    if ((g+":"+a).equals(resolve (entry.getKey(), properties)))
+                    {
+                        v = entry.getValue();
+                        break;
+                    }
+                }
+            }
+            v = resolve (v, properties);
+            if (v == null || v.endsWith("-SNAPSHOT"))
+                continue;
+            
+            if (v.startsWith("[") || v.startsWith("("))
+            {
+                // [1.2] is a fixed version; other ranges are resolved with the metadata
+                if (v.startsWith("[") && v.endsWith("]") && v.indexOf(',') < 0)
+                    v = v.substring(1, v.length() - 1).trim();
+                else
+                {
+                    dependencyURLs.add(new URL (base + g.replace('.', '/') + "/" + a + "/maven-metadata.xml"));
+                    continue;
+                }
+            }
+            
+            dependencyURLs.add(new URL (base + getPath (g, a, v, "pom")));
+            
+            String type = pom.get (dependency, "type");
+            if (jars && (type == null || "jar".equals(type) || "bundle".equals(type) || "maven-plugin".equals(type)))
+            {
+                String classifier = resolve (pom.get (dependency, "classifier"), properties);
+                String name = a + "-" + v + (classifier == null ? "" : "-" + classifier) + ".jar";
+                dependencyURLs.add(new URL (base + g.replace('.', '/') + "/" + a + "/" + v + "/" + name));
+            }
+        }
+    }
+    
+    /**
+     * Find the patch or the file in the cache for <code>url</code>. Unlike
+     * the index, this doesn't count as a use of the file.
+     * 
+     * @return <code>null</code> if there is none.
+     */
+    private static File findLocal (URL url, Config config)
+    {
+        File f = RequestHandler.getCacheFile(url, config.getPatchesDirectory());
+        if (f.exists())
+            return f;
+        f = config.getCacheRoots().find(CacheIndex.getKey(url));
+        return f.exists() ? f : null;
+    }
+    
+    /** The path of an artifact in a Maven 2 repository */
+    static String getPath (String groupId, String artifactId, String version, String extension)
+    {
+        return groupId.replace('.', '/') + "/" + artifactId + "/" + version + "/" + artifactId + "-" + version + "." + extension;
+    }
+    
+    /**
+     * Replace the properties in <code>value</code>.
+     * 
+     * @return <code>null</code> if a property is unknown.
+     */
+    static String resolve (String value, Map<String, String> properties)
+    {
+        if (value == null)
+            return null;
+        
+        // Properties can contain properties
+        for (int i=0; i<10 && value.indexOf("${") >= 0; i++)
+        {
+            Matcher m = PROPERTY.matcher(value);
+            StringBuffer buffer = new StringBuffer ();
+            while (m.find())
+            {
+                String replacement = properties.get(m.group(1));
+                if (replacement == null)
+                    return null;
+                m.appendReplacement(buffer, Matcher.quoteReplacement(replacement));
+            }
+            m.appendTail(buffer);
+            value = buffer.toString();
+        }
+        return value.indexOf("${") >= 0 || value.length() == 0 ? null : value;
+    }
+}
@@ -15,28 +15,41 @@
  */
 package de.pdark.dsmp;
 
-import org.apache.commons.httpclient.Credentials;
 import org.apache.commons.httpclient.Header;
-import org.apache.commons.httpclient.HostConfiguration;
-import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpStatus;
-import org.apache.commons.httpclient.UsernamePasswordCredentials;
-import org.apache.commons.httpclient.auth.AuthScope;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.log4j.Logger;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Download a file via a proxy server and store it somewhere.
  * 
+ * <p>Only one download per destination file runs at any time. When
+ * several clients ask for the same missing file, the first one starts
+ * the download and all of them follow the same <code>RunningDownload</code>.
+ * 
+ * <p>Files in the cache which have expired (see <code>&lt;policy&gt;</code>
+ * in the config) are revalidated with a conditional GET. If the remote
+ * repository answers "304 Not Modified", the date of the file is set to
+ * the current time, so it's fresh again. Revalidations are coalesced like
+ * downloads.
+ * 
  * @author digulla
  *
  */
@@ -46,6 +59,26 @@ public class ProxyDownload
     private final URL url;
     private final File dest;
     private final Config config;
+    /** The checksums of the new file; written after it was committed */
+    private Checksums generated;
+    /** The checksum file of the remote repository which matched the new file; written after it was committed */
+    private RemoteChecksum verified;
+    
+    /** A checksum file of the remote repository */
+    private static class RemoteChecksum
+    {
+        private final String ext;
+        private final String value;
+        /** The file as it was downloaded or <code>null</code> if it was too big */
+        private final byte[] content;
+        
+        public RemoteChecksum (String ext, String value, byte[] content)
+        {
+            this.ext = ext;
+            this.value = value;
+            this.content = content;
+        }
+    }
 
     /**
      * Download <code>url</code> to <code>dest</code>.
@@ -74,64 +107,248 @@ public class ProxyDownload
         IOUtils.mkdirs (parent);
     }
     
+    private final static ConcurrentHashMap<String, RunningDownload> IN_FLIGHT = new ConcurrentHashMap<String, RunningDownload> ();
+    private final static AtomicLong COALESCED = new AtomicLong ();
+    private final static AtomicLong REVALIDATED = new AtomicLong ();
+    /** The suffix of the files which remember when a file was revalidated */
+    public final static String VALIDATED_SUFFIX = ".dsmp.validated";
+    private final static NegativeCache NOT_FOUND = new NegativeCache (100000);
+    /** Downloads the checksums of files while the files are downloaded */
+    private final static ExecutorService CHECKSUMS = Executors.newCachedThreadPool(new ThreadFactory () {
+        public Thread newThread (Runnable r)
+        {
+            Thread t = new Thread (r, "dsmp-checksum");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    
+    /** Runs the download in the thread which calls <code>start()</code> */
+    public final static Executor SAME_THREAD = new Executor () {
+        public void execute (Runnable command)
+        {
+            command.run();
+        }
+    };
+    
+    /**
+     * The number of requests which didn't start a download of their own
+     * because the same file was already being downloaded.
+     */
+    public static long getCoalescedCount ()
+    {
+        return COALESCED.get();
+    }
+    
     /**
-     * Do the download.
+     * The number of expired files which the remote repository confirmed
+     * with "304 Not Modified".
+     */
+    public static long getRevalidatedCount ()
+    {
+        return REVALIDATED.get();
+    }
+    
+    /**
+     * The file whose date says when <code>f</code> was revalidated last. The
+     * date of <code>f</code> itself stays the date of the content, since
+     * clients use it to validate their copies.
+     */
+    public static File getValidatedFile (File f)
+    {
+        return new File (f.getAbsolutePath()+VALIDATED_SUFFIX);
+    }
+    
+    /**
+     * When the content of <code>f</code> was last known to be current: When it
+     * was downloaded or revalidated.
+     */
+    public static long getLastValidated (File f)
+    {
+        return Math.max (f.lastModified(), getValidatedFile (f).lastModified());
+    }
+    
+    /** The downloads which failed recently. */
+    public static NegativeCache getNegativeCache ()
+    {
+        return NOT_FOUND;
+    }
+    
+    /** Is <code>dest</code> being downloaded (or revalidated) right now? */
+    public static boolean isDownloading (File dest)
+    {
+        return IN_FLIGHT.containsKey(dest.getAbsolutePath());
+    }
+    
+    /** The number of downloads which are running right now. */
+    public static int getInFlightCount ()
+    {
+        return IN_FLIGHT.size();
+    }
+    
+    /**
+     * Do the download or wait for the download of the same file
+     * which was started by someone else.
      * 
      * @throws IOException
      * @throws DownloadFailed
      */
     public void download () throws IOException, DownloadFailed
     {
-        if (!config.isAllowed(url))
+        start (SAME_THREAD).await();
+    }
+    
+    /**
+     * Start the download in <code>executor</code> or join the download of
+     * the same file which was started by someone else.
+     * 
+     * @return The download; use it to wait for the result or to follow the
+     * file while it is written.
+     * @throws RejectedExecutionException if the executor is too busy.
+     */
+    public RunningDownload start (Executor executor)
+    {
+        String key = dest.getAbsolutePath();
+        final RunningDownload download = new RunningDownload (url, dest);
+        
+        // Don't ask again for files which the remote repository didn't have a moment ago
+        String statusLine = NOT_FOUND.get(url.toString());
+        if (statusLine != null && config.isAllowed(url) && !isCached ())
         {
-            throw new DownloadFailed ("HTTP/1.1 "+HttpStatus.SC_FORBIDDEN+" Download denied by rule in DSMP config");
+            log.debug ("Download of "+url+" failed recently: "+statusLine);
+            download.finish(new DownloadFailed (statusLine, true));
+            return download;
         }
         
-        // If there is a status file in the cache, return it instead of trying it again
-        // As usual with caches, this one is a key area which will always cause
-        // trouble.
-        // TODO There should be a simple way to get rid of the cached statuses
-        // TODO Maybe retry a download after a certain time?
-        File statusFile = new File (dest.getAbsolutePath()+".status");
-        if (statusFile.exists())
+        RunningDownload running = IN_FLIGHT.putIfAbsent(key, download);
+        if (running != null)
         {
-            try
-            {
-                FileReader r = new FileReader (statusFile);
-                char[] buffer = new char[(int)statusFile.length()];
-                int len = r.read (buffer);
-                r.close ();
-                String status = new String (buffer, 0, len);
-                throw new DownloadFailed (status);
-            }
-            catch (IOException e)
+            COALESCED.incrementAndGet();
+            log.debug ("Joining running download of "+url);
+            return running;
+        }
+        
+        try
+        {
+            executor.execute(new Runnable () {
+                public void run ()
+                {
+                    runDownload (download);
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            IN_FLIGHT.remove(key, download);
+            download.finish(e);
+            throw e;
+        }
+        return download;
+    }
+    
+    /** Is <code>dest</code> in the cache? Asks the index instead of the disk when it can. */
+    private boolean isCached ()
+    {
+        CacheIndex index = CacheIndex.get(config);
+        return index.isComplete() ? index.contains(dest) : dest.exists();
+    }
+    
+    private void runDownload (RunningDownload download)
+    {
+        Throwable error = null;
+        boolean downloaded = false;
+        try
+        {
+            // Someone else might have finished the download between the
+            // check for the file and the registration
+            if (!dest.exists())
             {
-                log.warn ("Error writing 'File not found'-Status to "+statusFile.getAbsolutePath(), e);
+                doDownload (download, false);
+                downloaded = true;
             }
+            else if (config.isExpired(url.toString(), getLastValidated (dest)))
+                revalidate (download);
+            download.commit();
+            CacheIndex.get(config).update(dest);
+            Response.getHotCache().remove(dest);
+            if (generated != null)
+                writeChecksums (generated);
+            else if (verified != null)
+                writeChecksum (verified);
+        }
+        catch (Throwable t)
+        {
+            error = t;
+            if (t instanceof DownloadFailed)
+                log.debug (t.getMessage());
+            else
+                log.error ("Error downloading "+url, t);
+            download.getPartFile().delete();
+        }
+        finally
+        {
+            IN_FLIGHT.remove(dest.getAbsolutePath(), download);
+            download.finish(error);
+        }
+        
+        // The clients don't have to wait for this
+        if (error == null)
+        {
+            GzipVariants.update(dest, config);
+            if (downloaded)
+                Prefetcher.downloaded(url, dest, config);
+        }
+    }
+    
+    /**
+     * Check an expired file with the remote repository. If that fails before
+     * the new file arrives, the old one is served.
+     */
+    private void revalidate (RunningDownload download) throws IOException, DownloadFailed
+    {
+        try
+        {
+            doDownload (download, true);
+        }
+        catch (IOException e)
+        {
+            if (download.isStarted())
+                throw e;
+            log.warn ("Can't revalidate "+url+"; using the cached file: "+e);
+        }
+        catch (DownloadFailed e)
+        {
+            log.warn ("Can't revalidate "+url+"; using the cached file: "+e.getMessage());
+        }
+    }
+    
+    /**
+     * @param revalidate Send a conditional GET for the file in the cache
+     */
+    private void doDownload (RunningDownload download, boolean revalidate) throws IOException, DownloadFailed
+    {
+        if (!config.isAllowed(url))
+        {
+            throw new DownloadFailed ("HTTP/1.1 "+HttpStatus.SC_FORBIDDEN+" Download denied by rule in DSMP config");
         }
         
         mkdirs();
         
-        HttpClient client = new HttpClient();
-
         String msg = "";
-        if (config.useProxy(url))
-        {
-            Credentials defaultcreds = new UsernamePasswordCredentials(config.getProxyUsername(), config.getProxyPassword());
-            AuthScope scope = new AuthScope(config.getProxyHost(), config.getProxyPort(), AuthScope.ANY_REALM);
-            HostConfiguration hc = new HostConfiguration ();
-            hc.setProxy(config.getProxyHost(), config.getProxyPort());
-            client.setHostConfiguration(hc);
-            client.getState().setProxyCredentials(scope, defaultcreds);
+        boolean useProxy = config.useProxy(url);
+        if (useProxy)
             msg = "via proxy ";
-        }
-        log.info("Downloading "+msg+"to "+dest.getAbsolutePath());
+        log.info((revalidate ? "Revalidating " : "Downloading ")+msg+"to "+dest.getAbsolutePath());
         
         GetMethod get = new GetMethod(url.toString());
         get.setFollowRedirects(true);
+        if (revalidate)
+            get.setRequestHeader("If-Modified-Since", Response.formatDate(dest.lastModified()));
+        UpstreamClient client = UpstreamClient.get(config);
+        int status = client.execute(get, useProxy);
+        Future<RemoteChecksum> remote = null;
         try
         {
-            int status = client.executeMethod( get );
 
             log.info ("Download status: "+status);
             if (0 == 1 && log.isDebugEnabled())
@@ -143,40 +360,250 @@ public class ProxyDownload
             log.info ("Content: "+valueOf (get.getResponseHeader("Content-Length"))+" bytes; "
                     +valueOf (get.getResponseHeader("Content-Type")));
             
+            if (revalidate && status == HttpStatus.SC_NOT_MODIFIED)
+            {
+                log.info (url+" has not been modified");
+                validated (dest);
+                REVALIDATED.incrementAndGet();
+                return;
+            }
+            
             if (status != HttpStatus.SC_OK)
             {
-                // Remember "File not found"
-                if (status == HttpStatus.SC_NOT_FOUND)
+                // Remember "File not found" (but keep serving files which we already have)
+                if (!revalidate && (status == HttpStatus.SC_NOT_FOUND || status == HttpStatus.SC_GONE))
                 {
-                    try
+                    NOT_FOUND.setMaxEntries(config.getNegativeCacheMaxEntries());
+                    NOT_FOUND.put(url.toString(), get.getStatusLine().toString(), config.getNegativeCacheTTL() * 1000L);
+                }
+                throw new DownloadFailed (get);
+            }
+            
+            // Don't wait for another round trip after the file
+            if (config.isVerifyChecksums() && !Checksums.isSidecar(url.getPath()))
+            {
+                remote = CHECKSUMS.submit(new Callable<RemoteChecksum> () {
+                    public RemoteChecksum call () throws IOException
                     {
-                        FileWriter w = new FileWriter (statusFile);
-                        w.write (get.getStatusLine().toString());
-                        w.close ();
+                        return fetchChecksum ();
                     }
-                    catch (IOException e)
+                });
+            }
+            
+            // No buffering: Clients follow the file while it's written
+            long contentLength = get.getResponseContentLength();
+            Checksums checksums = new Checksums ();
+            OutputStream out = new FileOutputStream (download.getPartFile());
+            try
+            {
+                download.start (contentLength);
+                
+                InputStream in = get.getResponseBodyAsStream();
+                if (in != null)
+                {
+                    byte[] buffer = new byte[64*1024];
+                    int len;
+                    while ((len = in.read(buffer)) != -1)
                     {
-                        log.warn ("Error writing 'File not found'-Status to "+statusFile.getAbsolutePath(), e);
+                        out.write(buffer, 0, len);
+                        checksums.update(buffer, 0, len);
+                        download.advance(len);
+                        Metrics.upstreamBytes(len);
                     }
                 }
-                throw new DownloadFailed (get);
+            }
+            finally
+            {
+                out.close ();
+            }
+            
+            if (contentLength >= 0 && download.getAvailable() != contentLength)
+                throw new IOException ("Download of "+url+" is incomplete: Expected "+contentLength+" bytes but got "+download.getAvailable());
+            
+            if (!Checksums.isSidecar(url.getPath()))
+            {
+                if (remote != null)
+                    verify (checksums, remote);
+                if (config.isGenerateChecksums())
+                    generated = checksums;
+                ContentStore.store (download.getPartFile(), checksums.get("sha256"), config);
+            }
+        }
+        finally
+        {
+            // The checksum isn't needed when the download failed
+            if (remote != null)
+                remote.cancel(true);
+            client.release(get);
+        }
+    }
+
+    /**
+     * Compare the checksum of the download with the one of the remote
+     * repository. There is no retry: When they don't match, the download
+     * fails and the next request downloads the file again.
+     *
+     * @throws IOException if they don't match.
+     */
+    private void verify (Checksums checksums, Future<RemoteChecksum> remote) throws IOException
+    {
+        RemoteChecksum expected;
+        try
+        {
+            expected = remote.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException ("Interrupted while waiting for the checksum of "+url);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException ("Can't download the checksum of "+url, e.getCause());
+        }
+        
+        if (expected == null)
+        {
+            log.debug ("The remote repository has no checksum for "+url);
+            return;
+        }
+        
+        String actual = checksums.get(expected.ext);
+        if (!actual.equals (expected.value))
+            throw new IOException ("Download of "+url+" is corrupt: "+expected.ext.toUpperCase()+" is "+actual
+                    +" but the remote repository says "+expected.value);
+        
+        log.debug (expected.ext.toUpperCase()+" of "+url+" is OK");
+        verified = expected;
+    }
+    
+    /**
+     * Get the checksum of the file from the remote repository: SHA-1 or, if
+     * there is none, MD5.
+     * 
+     * @return <code>null</code> if there is none.
+     */
+    private RemoteChecksum fetchChecksum () throws IOException
+    {
+        for (String ext: new String[] { "sha1", "md5" })
+        {
+            RemoteChecksum result = fetchChecksum (ext);
+            if (result != null)
+                return result;
+        }
+        return null;
+    }
+    
+    private RemoteChecksum fetchChecksum (String ext) throws IOException
+    {
+        URL checksumURL = new URL (url.toString()+"."+ext);
+        if (NOT_FOUND.get(checksumURL.toString()) != null)
+            return null;
+        
+        GetMethod get = new GetMethod(checksumURL.toString());
+        get.setFollowRedirects(true);
+        boolean useProxy = config.useProxy(checksumURL);
+        UpstreamClient client = UpstreamClient.get(config);
+        int status = client.execute(get, useProxy);
+        try
+        {
+            if (status != HttpStatus.SC_OK)
+            {
+                if (status == HttpStatus.SC_NOT_FOUND || status == HttpStatus.SC_GONE)
+                    NOT_FOUND.put(checksumURL.toString(), get.getStatusLine().toString(), config.getNegativeCacheTTL() * 1000L);
+                return null;
             }
             
-            File dl = new File (dest.getAbsolutePath()+".new");
-            OutputStream out = new BufferedOutputStream (new FileOutputStream (dl));
-            IOUtils.copy (get.getResponseBodyAsStream(), out);
-            out.close ();
+            // Checksum files are tiny; don't read more than that
+            InputStream in = get.getResponseBodyAsStream();
+            if (in == null)
+                return null;
+            byte[] buffer = new byte[1024];
+            int len = 0;
+            int n;
+            while (len < buffer.length && (n = in.read(buffer, len, buffer.length - len)) != -1)
+                len += n;
+            String value = Checksums.parse(new String (buffer, 0, len, "ISO-8859-1"));
+            if (value == null)
+                return null;
             
-            File bak = new File (dest.getAbsolutePath()+".bak");
-            if (bak.exists())
-                bak.delete();
-            if (dest.exists())
-                dest.renameTo(bak);
-            dl.renameTo(dest);
+            byte[] content = null;
+            if (len < buffer.length)
+            {
+                content = new byte[len];
+                System.arraycopy(buffer, 0, content, 0, len);
+            }
+            return new RemoteChecksum (ext, value, content);
         }
         finally
         {
-            get.releaseConnection();
+            client.release(get);
+        }
+    }
+    
+    /**
+     * Write the checksum files for the download, so they don't have to be downloaded.
+     * 
+     * <p>This must happen after the download was committed, or a failed
+     * download would leave the checksums of discarded content behind. If
+     * it fails, the checksums are downloaded like any other file.
+     */
+    private void writeChecksums (Checksums checksums)
+    {
+        CacheIndex index = CacheIndex.get(config);
+        try
+        {
+            for (File f: checksums.writeFiles(dest))
+            {
+                index.update(f);
+                Response.getHotCache().remove(f);
+            }
+        }
+        catch (IOException e)
+        {
+            log.error ("Can't write the checksums of "+dest.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Keep the checksum file of the remote repository, so it doesn't have to
+     * be downloaded again. Like <code>writeChecksums()</code>, this must
+     * happen after the download was committed.
+     */
+    private void writeChecksum (RemoteChecksum checksum)
+    {
+        if (checksum.content == null)
+            return;
+        
+        File f = new File (dest.getAbsolutePath()+"."+checksum.ext);
+        try
+        {
+            Checksums.write(f, checksum.content);
+            CacheIndex.get(config).update(f);
+            Response.getHotCache().remove(f);
+        }
+        catch (IOException e)
+        {
+            log.error ("Can't write "+f.getAbsolutePath(), e);
+        }
+    }
+
+    /** Remember that a remote repository has just confirmed the content of <code>dest</code>. */
+    public static void validated (File dest)
+    {
+        File f = getValidatedFile (dest);
+        try
+        {
+            if (!f.exists())
+                new FileOutputStream (f).close();
+            if (!f.setLastModified(System.currentTimeMillis()))
+                log.warn ("Can't change the date of "+f.getAbsolutePath());
+        }
+        catch (IOException e)
+        {
+            log.warn ("Can't write "+f.getAbsolutePath(), e);
         }
     }
 
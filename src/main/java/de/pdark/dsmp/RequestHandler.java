@@ -16,26 +16,22 @@
 package de.pdark.dsmp;
 
 import org.apache.commons.lang.StringUtils;
-import org.apache.commons.lang.SystemUtils;
 import org.apache.log4j.Logger;
-import org.codehaus.plexus.digest.DigesterException;
-import org.codehaus.plexus.digest.Md5Digester;
-import org.codehaus.plexus.digest.Sha1Digester;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileWriter;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.channels.SocketChannel;
 import java.util.HashMap;
+import java.util.Queue;
+import java.util.concurrent.Executor;
 
 /**
  * Handle a connection from a maven.
@@ -43,90 +39,151 @@ import java.util.HashMap;
  * @author digulla
  *
  */
-public class RequestHandler extends Thread
+public class RequestHandler implements Runnable
 {
     public static final Logger log = Logger.getLogger(RequestHandler.class);
 
     public static final Logger downloadLog = Logger.getLogger("downloadLog");
-    public static final String KEEP_ALIVE_HEADER = "Proxy-Connection: Keep-Alive".toLowerCase();
+
+    public static final String BAD_REQUEST = "HTTP/1.1 400 Bad Request";
+    public static final String NOT_IMPLEMENTED = "HTTP/1.1 501 Not Implemented";
+    /** How often an idle connection checks whether other connections wait for its thread */
+    static final int IDLE_POLL_MILLIS = 500;
 
     private final Socket clientSocket;
     private final Config config;
+    private final Executor downloads;
+    /** The connections which wait for a thread or <code>null</code> */
+    private final Queue<Runnable> waiting;
+    /** The value of the <code>Connection</code> header of the current response or <code>null</code> */
+    private String connection;
 
+    /**
+     * Create a handler which downloads missing files itself and sends
+     * them to the client when they are complete.
+     */
     public RequestHandler (Socket clientSocket, Config config)
+    {
+        this (clientSocket, config, ProxyDownload.SAME_THREAD);
+    }
+
+    /**
+     * Create a handler which runs downloads in <code>downloads</code>.
+     * Meanwhile, it sends the data to the client as it arrives.
+     */
+    public RequestHandler (Socket clientSocket, Config config, Executor downloads)
+    {
+        this (clientSocket, config, downloads, null);
+    }
+
+    /**
+     * Like <code>RequestHandler(clientSocket, config, downloads)</code>, but
+     * the handler runs in a pool of threads with the queue <code>waiting</code>.
+     * While connections wait there, persistent connections are closed after
+     * the current request, so they don't keep the thread when they are idle.
+     */
+    public RequestHandler (Socket clientSocket, Config config, Executor downloads, Queue<Runnable> waiting)
     {
         this.clientSocket = clientSocket;
         this.config = config;
+        this.downloads = downloads;
+        this.waiting = waiting;
     }
 
-    @Override
     public void run ()
     {
         if (clientSocket == null)
             throw new RuntimeException ("Connection is already closed");
         
+        Metrics.connectionOpened();
         try
         {
             log.debug ("Got connection from "+clientSocket.getInetAddress());
             
-            String line;
-            boolean keepAlive = false;
-            boolean headOnly = false;
+            Config settings = config.snapshot();
+            int maxRequests = settings.getMaxRequests();
+            int keepAliveMillis = settings.getKeepAliveTimeout() * 1000;
+            clientSocket.setSoTimeout(waiting == null ? keepAliveMillis : Math.min (IDLE_POLL_MILLIS, keepAliveMillis));
+            int requests = 0;
+            boolean persistent;
             do
             {
-                String downloadURL = null;
-                StringBuffer fullRequest = new StringBuffer (1024);
-                while ((line = readLine ()) != null)
+                int headerLength = waitForHeader (keepAliveMillis, requests > 0);
+                if (headerLength == -1)
+                    break;
+                
+                long started = System.nanoTime();
+                requests ++;
+                persistent = request.isPersistent() && (maxRequests == 0 || requests < maxRequests)
+                        && !othersWaiting ();
+                connection = persistent ? (request.isHttp11() ? null : "keep-alive") : "close";
+                
+                String downloadURL = request.getDownloadURL();
+                if (downloadURL == null)
                 {
-                    if (line.length() == 0)
-                        break;
-                    
-                    log.debug ("Got: "+line);
-                    fullRequest.append (line);
-                    fullRequest.append ('\n');
-                    
-                    if (KEEP_ALIVE_HEADER.equals (line.toLowerCase())) {
-                        keepAlive = true;
-                    }
-                    
-                    if (line.startsWith("GET "))
-                    {
-                        int pos = line.lastIndexOf(' ');
-                        line = line.substring(4, pos);
-                        downloadURL = line;
-                    }
-
-                    if (line.startsWith("HEAD "))
-                    {
-                        int pos = line.lastIndexOf(' ');
-                        line = line.substring(4, pos);
-                        downloadURL = line;
-                        headOnly = true;
-                    }
+                    log.error ("Found no URL to download in request:\n"+new String (buffer, 0, headerLength, "ISO-8859-1"));
+                    consume (headerLength);
+                    send (Response.forStatus (request.getMethod() == null ? BAD_REQUEST : NOT_IMPLEMENTED), settings);
+                    Metrics.request(request.getMethod(), Metrics.Outcome.INVALID, System.nanoTime() - started);
+                    continue;
                 }
+                consume (headerLength);
                 
-                if (downloadURL == null)
+                log.info ("Got request for "+downloadURL);
+                Metrics.Outcome outcome = Metrics.Outcome.ERROR;
+                try
                 {
-                    if (line == null)
-                        break;
-                    
-                    log.error ("Found no URL to download in request:\n"+fullRequest.toString());
+                    outcome = serveURL (request, config.snapshot());
                 }
-                else
+                finally
                 {
-                    log.info ("Got request for "+downloadURL);
-                    serveURL (downloadURL, headOnly);
+                    Metrics.request(request.getMethod(), outcome, System.nanoTime() - started);
                 }
             }
-            while (line != null && keepAlive);
+            while (persistent);
             
             log.debug ("Terminating connection with "+clientSocket.getInetAddress());
         }
+        catch (HeaderTooLarge e)
+        {
+            log.error ("Request header from "+clientSocket.getInetAddress()+" is too big");
+            try
+            {
+                connection = "close";
+                send (Response.forStatus (HeaderTooLarge.STATUS_LINE), config);
+            }
+            catch (IOException e2)
+            {
+                log.debug ("Error sending "+HeaderTooLarge.STATUS_LINE, e2);
+            }
+        }
         catch (Exception e)
         {
             log.error ("Conversation with client aborted", e);
         }
         finally
+        {
+            close();
+            Metrics.connectionClosed();
+        }
+    }
+
+    /**
+     * Tell the client that the proxy is too busy and close the connection.
+     */
+    public void refuse ()
+    {
+        try
+        {
+            println ("HTTP/1.1 503 Service Unavailable");
+            println ();
+            getOut().flush();
+        }
+        catch (IOException e)
+        {
+            log.debug ("Error refusing connection", e);
+        }
+        finally
         {
             close();
         }
@@ -155,6 +212,8 @@ public class RequestHandler extends Thread
             log.error ("Exception while closing the inputstream", e);
         }
         in = null;
+        BufferPool.REQUESTS.release(buffer);
+        buffer = null;
 
         try
         {
@@ -167,68 +226,185 @@ public class RequestHandler extends Thread
         }
     }
 
-    private void serveURL (String downloadURL, boolean headOnly) throws IOException
+    /**
+     * Serve one request. <code>config</code> is the snapshot of the config
+     * which is used for the whole request.
+     * 
+     * @return What happened, for the metrics.
+     */
+    private Metrics.Outcome serveURL (HttpRequest request, Config config) throws IOException
     {
-        URL url = new URL (downloadURL);
-        url = config.getMirror (url);
+        String downloadURL = request.getDownloadURL();
+        boolean headOnly = request.isHeadOnly();
+        URL url = resolveURL (downloadURL, config);
+        String cacheControl = config.getCacheControl (url.toExternalForm());
         
-        if (!"http".equals(url.getProtocol()))
-            throw new IOException ("Can only handle HTTP requests, got "+downloadURL);
-        
-        File f = getPatchFile(url);
-        if (!f.exists())
-            f = getCacheFile(url, config.getCacheDirectory());
+        Response response = null;
+        Metrics.Outcome outcome = Metrics.Outcome.HIT;
+        CacheIndex.Entry entry = CacheIndex.get(config).lookup(url);
+        if (isExpired (entry, url, config))
+            entry = null;
+        CacheIndex.Entry variant = GzipVariants.find (entry, url, request, config, downloads);
+        CacheIndex.Entry selected = variant == null ? entry : variant;
+        if (entry != null && Response.isNotModified (request, selected.getLength(), selected.getLastModified()))
+        {
+            log.debug ("Not modified: "+url);
+            send (Response.forNotModified (selected.getLength(), selected.getLastModified(), cacheControl,
+                    Response.hasVariants (entry.getFile(), entry.getLength(), config)), config);
+            return Metrics.Outcome.NOT_MODIFIED;
+        }
+        if (entry != null)
+        {
+            try
+            {
+                if (variant != null)
+                    response = Response.forVariant (entry, variant, headOnly, cacheControl);
+                else
+                    response = Response.forRange (entry, request, cacheControl, config);
+                if (response == null)
+                    response = Response.forFile (entry, headOnly, cacheControl, config);
+                response.open (config);
+                if (entry.isPatch())
+                    outcome = Metrics.Outcome.PATCH;
+                log.debug ("Serving from local cache "+entry.getFile().getAbsolutePath());
+            }
+            catch (FileNotFoundException e)
+            {
+                // The index has forgotten the file now; download it again
+                log.debug ("File was deleted from the cache: "+entry.getFile().getAbsolutePath());
+                response = null;
+            }
+        }
         
-        if (!f.exists())
+        if (response == null)
         {
-            ProxyDownload d = new ProxyDownload (url, f, config);
+            File f = getCacheFile(url, config);
+            RunningDownload download = new ProxyDownload (url, f, config).start(downloads);
             try
             {
-                d.download();
+                download.awaitStart();
+                if (canFollow (request, download))
+                {
+                    log.debug ("Sending "+url+" while it is downloaded");
+                    send (Response.forDownload (download, downloadURL, download.getContentLength() < 0, cacheControl), config);
+                    downloadLog.info("Downloaded: " + url.toExternalForm());
+                    return Metrics.Outcome.MISS;
+                }
+                
+                download.await();
             }
             catch (DownloadFailed e)
             {
                 log.error(e.getMessage());
                 
-                println (e.getStatusLine());
-                println ();
-                getOut().flush();
-                return;
+                send (Response.forStatus (e.getStatusLine()), config);
+                return Metrics.Outcome.of (e);
             }
-        }
-        else
-        {
-            log.debug ("Serving from local cache "+f.getAbsolutePath());
+            if (Response.isNotModified (request, f.length(), f.lastModified()))
+            {
+                send (Response.forNotModified (f.length(), f.lastModified(), cacheControl,
+                        Response.hasVariants (f, f.length(), config)), config);
+                return Metrics.Outcome.NOT_MODIFIED;
+            }
+            response = Response.forFile (f, downloadURL, headOnly, cacheControl, config);
+            outcome = Metrics.Outcome.MISS;
         }
         
-        println ("HTTP/1.1 200 OK");
-        print ("Date: ");
-        Date d = new Date (f.lastModified());
-        println (INTERNET_FORMAT.format(d));
-        print ("Content-length: ");
-        println (String.valueOf(f.length()));
-        print ("Content-type: ");
-        String ext = StringUtils.substringAfterLast(downloadURL, ".").toLowerCase();
-        String type = CONTENT_TYPES.get (ext);
-        if (type == null)
-        {
-            log.warn("Unknown extension "+ext+". Using content type text/plain.");
-            type = "text/plain";
-        }
-        println (type);
-        println ();
+        send (response, config);
         if (headOnly) {
             log.info("HEAD for : " + url.toExternalForm());
-            downloadLog.info("Downloaded: " + url.toExternalForm());
-            return;
         }
-        InputStream data = new BufferedInputStream (new FileInputStream (f));
-        IOUtils.copy (data, out);
-        data.close();
         downloadLog.info("Downloaded: " + url.toExternalForm());
+        return outcome;
+    }
+
+    /**
+     * Must <code>entry</code> be checked with the remote repository before
+     * it's served? Patches never expire.
+     */
+    static boolean isExpired (CacheIndex.Entry entry, URL url, Config config)
+    {
+        if (entry == null || entry.isPatch())
+            return false;
+        
+        // The date of the file is the date of the content; it might have been revalidated since
+        String s = url.toString();
+        return config.isExpired(s, entry.getLastModified())
+            && config.isExpired(s, ProxyDownload.getLastValidated(entry.getFile()));
+    }
+
+    /**
+     * Can we send the file while it is downloaded? That needs a channel.
+     * Unless we know the length of the file, the client must also understand
+     * chunked encoding.
+     */
+    private boolean canFollow (HttpRequest request, RunningDownload download)
+    {
+        if (request.isHeadOnly() || download.isDone() || clientSocket.getChannel() == null)
+            return false;
+        
+        return download.getContentLength() >= 0 || request.isHttp11();
+    }
+    
+    /**
+     * Send a response. If the socket has a channel, the body is sent
+     * without copying it through a stream.
+     */
+    private void send (Response response, Config config) throws IOException
+    {
+        if (connection != null)
+            response.setConnection(connection);
+        
+        SocketChannel channel = clientSocket.getChannel();
+        if (channel == null)
+        {
+            try
+            {
+                response.writeTo (getOut());
+            }
+            finally
+            {
+                response.close ();
+            }
+            return;
+        }
+        
+        if (out != null)
+            out.flush();
+        response.send (channel, config);
+    }
+    
+    /**
+     * Apply the redirects from the config to the URL which Maven asked for.
+     */
+    public static URL resolveURL (String downloadURL, Config config) throws IOException
+    {
+        URL url = new URL (config.getMirror (downloadURL));
+        
+        if (!"http".equals(url.getProtocol()))
+            throw new IOException ("Can only handle HTTP requests, got "+downloadURL);
+        
+        return url;
+    }
+    
+    /**
+     * Find the file to serve for <code>url</code>: The patch if there is one,
+     * the file in the cache otherwise. The file doesn't need to exist.
+     */
+    public static File getLocalFile (URL url, Config config)
+    {
+        CacheIndex.Entry entry = CacheIndex.get(config).lookup(url);
+        if (entry != null)
+            return entry.getFile();
+        return getCacheFile(url, config);
     }
 
     public File getPatchFile (URL url)
+    {
+        return getPatchFile (url, config);
+    }
+    
+    public static File getPatchFile (URL url, Config config)
     {
         File dir = config.getPatchesDirectory();
         File f = getCacheFile(url, dir);
@@ -236,7 +412,7 @@ public class RequestHandler extends Thread
         if (!f.exists())
         {
             String ext = StringUtils.substringAfterLast(url.getPath(), ".").toLowerCase();
-            if ("md5".equals (ext) || "sha1".equals (ext))
+            if (Checksums.isChecksum (ext))
             {
                 File source = new File (StringUtils.substringBeforeLast(f.getAbsolutePath(), "."));
                 if (source.exists())
@@ -249,39 +425,35 @@ public class RequestHandler extends Thread
         return f;
     }
     
+    /**
+     * Write the checksum file <code>f</code> for <code>source</code>. The
+     * other checksum files of <code>source</code> are written, too (unless
+     * they exist), so the file is read only once.
+     */
     public static void generateChecksum (File source, File f, String ext)
     {
         try
         {
-            String checksum = null;
-            if ("md5".equals (ext))
-            {
-                Md5Digester digester = new Md5Digester ();
-                checksum = digester.calc(source);
-            }
-            else if ("sha1".equals (ext))
-            {
-                Sha1Digester digester = new Sha1Digester ();
-                checksum = digester.calc(source);
-            }
-            
-            if (checksum != null)
+            Checksums checksums = Checksums.calc (source);
+            for (String e: Checksums.EXTENSIONS)
             {
-                FileWriter w = new FileWriter (f);
-                w.write(checksum);
-                w.write(SystemUtils.LINE_SEPARATOR);
-                w.close ();
+                File sidecar = new File (source.getAbsolutePath()+"."+e);
+                if (sidecar.equals (f) || !sidecar.exists())
+                    Checksums.write (sidecar, checksums.get(e));
             }
         }
-        catch (DigesterException e)
-        {
-            log.warn ("Error creating "+ext.toUpperCase()+" checksum for "+source.getAbsolutePath(), e);
-        }
         catch (IOException e)
         {
             log.warn ("Error writing "+ext.toUpperCase()+" checksum for "+source.getAbsolutePath()+" to "+f.getAbsolutePath(), e);
         }
-        
+    }
+
+    /**
+     * The file in the cache for <code>url</code>. Downloads are written here.
+     */
+    public static File getCacheFile (URL url, Config config)
+    {
+        return config.getCacheRoots().getFile(CacheIndex.getKey(url));
     }
 
     public static File getCacheFile (URL url, File root)
@@ -320,7 +492,6 @@ public class RequestHandler extends Thread
         CONTENT_TYPES.put ("", "");
     }
     
-    private final static SimpleDateFormat INTERNET_FORMAT = new SimpleDateFormat ("EEE, d MMM yyyy HH:mm:ss zzz");
     private byte[] NEW_LINE = new byte[] { '\r', '\n' };
     
     private void println (String string) throws IOException
@@ -349,43 +520,99 @@ public class RequestHandler extends Thread
         return out;
     }
 
-    private BufferedInputStream in;
+    private InputStream in;
+    /** The bytes which were read from the client; the next request header starts at 0 */
+    private byte[] buffer;
+    private int length;
+    private final HttpRequestParser parser = new HttpRequestParser (HttpRequestParser.MAX_HEADER_SIZE);
+    private final HttpRequest request = new HttpRequest ();
     
-    private String readLine () throws IOException
+    /**
+     * Read the next request header into <code>request</code>.
+     * 
+     * @return The length of the header or -1 if the client closed the connection.
+     */
+    /**
+     * Wait for the next request on this connection.
+     * 
+     * @param idle Has the connection already sent a request? Then it's
+     * closed when other connections wait for a thread.
+     * @return The length of the header or -1 if the connection should be closed.
+     */
+    private int waitForHeader (int keepAliveMillis, boolean idle) throws IOException
+    {
+        long start = System.currentTimeMillis();
+        while (true)
+        {
+            try
+            {
+                return readHeader ();
+            }
+            catch (SocketTimeoutException e)
+            {
+                if (System.currentTimeMillis() - start >= keepAliveMillis)
+                {
+                    log.debug ("Connection from "+clientSocket.getInetAddress()+" was idle for too long");
+                    return -1;
+                }
+                if (idle && length == 0 && othersWaiting ())
+                {
+                    log.debug ("Closing idle connection from "+clientSocket.getInetAddress()+"; other connections need the thread");
+                    return -1;
+                }
+            }
+        }
+    }
+
+    private boolean othersWaiting ()
+    {
+        return waiting != null && !waiting.isEmpty();
+    }
+
+    private int readHeader () throws IOException
     {
         if (in == null)
-            in = new BufferedInputStream (clientSocket.getInputStream());
-        
-        StringBuffer buffer = new StringBuffer (256);
-        int c;
+        {
+            in = clientSocket.getInputStream();
+            buffer = BufferPool.REQUESTS.acquire();
+        }
         
-        try
+        while (true)
         {
-            while ((c = in.read()) != -1)
+            int headerLength = parser.parse(buffer, 0, length, request);
+            if (headerLength != -1)
+                return headerLength;
+            
+            if (length == buffer.length)
             {
-                if (c == '\r')
-                    continue;
-                
-                if (c == '\n')
-                    break;
+                byte[] tmp = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, tmp, 0, length);
+                buffer = tmp;
+            }
+            
+            int len;
+            try
+            {
+                len = in.read(buffer, length, buffer.length - length);
+            }
+            catch (SocketException e)
+            {
+                if ("Connection reset".equals (e.getMessage()))
+                    return -1;
                 
-                buffer.append((char)c);
+                throw e;
             }
-        }
-        catch (SocketException e)
-        {
-            if ("Connection reset".equals (e.getMessage()))
-                return null;
             
-            throw e;
+            if (len == -1)
+                return -1;
+            length += len;
         }
-
-        if (c == -1)
-            return null;
-        
-        if (buffer.length() == 0)
-            return "";
-        
-        return buffer.toString();
+    }
+    
+    /** Drop the header which was just parsed; keep the bytes after it. */
+    private void consume (int len)
+    {
+        length -= len;
+        System.arraycopy(buffer, len, buffer, 0, length);
     }
 }
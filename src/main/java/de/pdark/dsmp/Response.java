@@ -0,0 +1,1114 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A response which is ready to be sent to the client: The status line
+ * and the headers plus an optional file with the body.
+ * 
+ * <p>The response can either be written in one go to a stream or in
+ * pieces to a non-blocking channel.
+ * 
+ * <p>When writing to a channel, the body is sent in one of three ways,
+ * depending on its size (see <code>&lt;serving&gt;</code> in the config):
+ * Small files are read into memory and sent together with the headers,
+ * very big files are memory-mapped and everything else is sent with
+ * <code>FileChannel.transferTo()</code> which doesn't copy the data
+ * through the JVM at all.
+ * 
+ * <p>A response can also follow a <code>RunningDownload</code>: It sends
+ * what has been downloaded so far and then waits for more. If the length
+ * of the file is unknown, the body is sent with chunked encoding.
+ * 
+ * @author digulla
+ * 
+ */
+public class Response
+{
+    public static final Logger log = Logger.getLogger(Response.class);
+
+    /** How the body of a response was sent. */
+    public enum Transfer
+    {
+        /** Copied through a stream */
+        STREAM,
+        /** Read into memory and sent with the headers */
+        COPY,
+        /** <code>FileChannel.transferTo()</code> */
+        SENDFILE,
+        /** From a memory-mapped file */
+        MMAP,
+        /** Following a running download */
+        FOLLOW,
+        /** From the hot-object cache */
+        HOT;
+        
+        private final AtomicLong responses = new AtomicLong ();
+        private final AtomicLong bytes = new AtomicLong ();
+        
+        void count (long len)
+        {
+            responses.incrementAndGet();
+            bytes.addAndGet(len);
+        }
+        
+        /** The number of responses sent this way. */
+        public long getResponses ()
+        {
+            return responses.get();
+        }
+        
+        /** The number of body bytes sent this way. */
+        public long getBytes ()
+        {
+            return bytes.get();
+        }
+    }
+    
+    private final static MappedFiles MAPPED_FILES = new MappedFiles ();
+    private final static HotCache HOT_CACHE = new HotCache ();
+    /** The Cache-Control rules which were used for the headers in the hot-object cache */
+    private static volatile RuleSet<String> hotCacheRules;
+    /** The generation of the config with these rules */
+    private static long hotCacheGeneration;
+    /** The <code>Date</code> header of the current second */
+    private static volatile DateLine dateLine;
+    
+    private static class DateLine
+    {
+        private final long second;
+        private final String text;
+        private final byte[] bytes;
+        
+        public DateLine (long second)
+        {
+            this.second = second;
+            this.text = "Date: "+formatDate (second * 1000)+"\r\n";
+            this.bytes = ascii (text).array();
+        }
+    }
+    
+    /** The small files which are kept in memory with their headers. */
+    public static HotCache getHotCache ()
+    {
+        return HOT_CACHE;
+    }
+    
+    /** The big files which are kept memory-mapped. */
+    public static MappedFiles getMappedFiles ()
+    {
+        return MAPPED_FILES;
+    }
+    
+    private ByteBuffer header;
+    private final File file;
+    private Transfer transfer;
+    /** The body in memory (for COPY and MMAP) */
+    private ByteBuffer data;
+    /** The body on disk (for SENDFILE) */
+    private FileChannel body;
+    private long position;
+    private long remaining;
+    private long length = -1;
+    private long lastModified;
+    /** For 206 responses: Start and length of the ranges of the file to send */
+    private long[] ranges;
+    /** For <code>multipart/byteranges</code>: The header of each part and the final boundary */
+    private ByteBuffer[] parts;
+    private int part;
+    
+    /** The download to follow (for FOLLOW) */
+    private RunningDownload download;
+    private boolean chunked;
+    private ByteBuffer chunkHeader;
+    private ByteBuffer chunkTrailer;
+    private boolean lastChunk;
+    private boolean waiting;
+
+    public Response (String header, File file)
+    {
+        this (ascii (header), file);
+    }
+
+    private Response (ByteBuffer header, File file)
+    {
+        this.header = header;
+        this.file = file;
+    }
+
+    /**
+     * A response without a body, for example an error from the
+     * remote repository.
+     */
+    public static Response forStatus (String statusLine)
+    {
+        return new Response (statusLine+"\r\nContent-length: 0\r\n\r\n", null);
+    }
+
+    /**
+     * A response which sends the file <code>f</code>. For HEAD requests,
+     * only the headers are sent.
+     */
+    public static Response forFile (File f, String downloadURL, boolean headOnly, String cacheControl, Config config)
+    {
+        long length = f.length();
+        return forFile (f, length, f.lastModified(), getContentType (downloadURL), headOnly, cacheControl, hasVariants (f, length, config));
+    }
+
+    /**
+     * A response which sends a file from the index. The file system isn't
+     * asked for its size or date. Small files are sent from the hot-object
+     * cache (if it's enabled in the config).
+     */
+    public static Response forFile (CacheIndex.Entry entry, boolean headOnly, String cacheControl, Config config) throws IOException
+    {
+        boolean vary = hasVariants (entry.getFile(), entry.getLength(), config);
+        long budget = config.getHotCacheSize();
+        if (budget <= 0 || entry.getLength() > config.getHotCacheMaxObject())
+            return forFile (entry.getFile(), entry.getLength(), entry.getLastModified(), entry.getContentType(), headOnly, cacheControl, vary);
+        
+        // The cached headers contain the Cache-Control and gzip settings of the old config
+        RuleSet<String> rules = config.getCacheControl();
+        if (rules != hotCacheRules && !useHotCacheFor (rules, config.getGeneration()))
+            return forFile (entry.getFile(), entry.getLength(), entry.getLastModified(), entry.getContentType(), headOnly, cacheControl, vary);
+
+        File f = entry.getFile();
+        ByteBuffer data = HOT_CACHE.get(f, entry.getLength(), entry.getLastModified(), headOnly);
+        if (data == null)
+        {
+            // No Date: The header is reused; the current date is added when it's sent
+            ByteBuffer header = ascii (renderHeader (entry.getLength(), entry.getLastModified(), entry.getContentType(), cacheControl, false, vary));
+            int headerLength = header.remaining();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(headerLength + (int)entry.getLength());
+            buffer.put(header);
+            readFully (f, buffer);
+            buffer.flip();
+            HOT_CACHE.put(f, entry.getLength(), entry.getLastModified(), buffer, headerLength, budget);
+
+            data = buffer.duplicate();
+            if (headOnly)
+                data.limit(headerLength);
+        }
+
+        int headerLength = data.remaining() - (headOnly ? 0 : (int)entry.getLength());
+        Response response = new Response (addDate (data, headerLength), null);
+        if (!headOnly)
+        {
+            data.position(data.position() + headerLength);
+            response.data = data;
+        }
+        response.transfer = Transfer.HOT;
+        response.length = headOnly ? 0 : entry.getLength();
+        return response;
+    }
+
+    /**
+     * Can the hot-object cache be used with these Cache-Control rules? The
+     * cache is cleared for the rules of a newer config; requests with an
+     * older snapshot of the config don't use it.
+     */
+    private static synchronized boolean useHotCacheFor (RuleSet<String> rules, long generation)
+    {
+        if (rules == hotCacheRules)
+            return true;
+        if (generation < hotCacheGeneration)
+            return false;
+        
+        if (hotCacheRules != null)
+            HOT_CACHE.clear();
+        hotCacheRules = rules;
+        hotCacheGeneration = generation;
+        return true;
+    }
+
+    /** Copy the first <code>headerLength</code> bytes of <code>data</code> and add a <code>Date</code> after the status line. */
+    private static ByteBuffer addDate (ByteBuffer data, int headerLength)
+    {
+        byte[] date = getDateLine ().bytes;
+        int start = data.position();
+        int statusLine = 0;
+        while (statusLine < headerLength && data.get(start + statusLine) != '\n')
+            statusLine ++;
+        statusLine ++;
+        
+        ByteBuffer result = ByteBuffer.allocate(headerLength + date.length);
+        ByteBuffer header = data.duplicate();
+        header.limit(start + statusLine);
+        result.put(header);
+        result.put(date);
+        header.limit(start + headerLength);
+        result.put(header);
+        result.flip();
+        return result;
+    }
+
+    /** The <code>Date</code> header line; it's formatted only once per second. */
+    private static DateLine getDateLine ()
+    {
+        long second = System.currentTimeMillis() / 1000;
+        DateLine result = dateLine;
+        if (result == null || result.second != second)
+        {
+            result = new DateLine (second);
+            dateLine = result;
+        }
+        return result;
+    }
+
+    private static void readFully (File f, ByteBuffer buffer) throws IOException
+    {
+        FileChannel channel;
+        try
+        {
+            channel = new RandomAccessFile (f, "r").getChannel();
+        }
+        catch (FileNotFoundException e)
+        {
+            CacheIndex.forget (f);
+            throw e;
+        }
+        try
+        {
+            while (buffer.hasRemaining())
+            {
+                if (channel.read(buffer) == -1)
+                    throw new IOException ("File "+f.getAbsolutePath()+" was truncated while it was read");
+            }
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    private static Response forFile (File f, long length, long lastModified, String contentType, boolean headOnly, String cacheControl, boolean vary)
+    {
+        Response response = new Response (renderHeader (length, lastModified, contentType, cacheControl, true, vary), headOnly ? null : f);
+        response.length = length;
+        response.lastModified = lastModified;
+        return response;
+    }
+
+    /**
+     * Clients which accept gzip may get a compressed variant of the file
+     * (see <code>forVariant()</code>), so caches between us and the client
+     * must not hand this response to them.
+     */
+    public static boolean hasVariants (File f, long length, Config config)
+    {
+        return GzipVariants.isCompressible(f.getName(), length, config);
+    }
+
+    private static String renderHeader (long length, long lastModified, String contentType, String cacheControl, boolean date, boolean vary)
+    {
+        StringBuilder buffer = new StringBuilder (256);
+        buffer.append ("HTTP/1.1 200 OK\r\n");
+        if (date)
+            appendDate (buffer);
+        appendValidators (buffer, length, lastModified, cacheControl);
+        buffer.append ("Content-length: ");
+        buffer.append (length);
+        buffer.append ("\r\n");
+        buffer.append ("Content-type: ");
+        buffer.append (contentType);
+        buffer.append ("\r\n");
+        buffer.append ("Accept-ranges: bytes\r\n");
+        if (vary)
+            buffer.append ("Vary: Accept-Encoding\r\n");
+        buffer.append ("\r\n");
+        return buffer.toString();
+    }
+
+    private static void appendDate (StringBuilder buffer)
+    {
+        buffer.append (getDateLine ().text);
+    }
+
+    /** Append <code>Last-modified</code>, <code>ETag</code> and <code>Cache-control</code>. */
+    private static void appendValidators (StringBuilder buffer, long length, long lastModified, String cacheControl)
+    {
+        buffer.append ("Last-modified: ");
+        buffer.append (formatDate (lastModified));
+        buffer.append ("\r\n");
+        buffer.append ("ETag: ");
+        buffer.append (getETag (length, lastModified));
+        buffer.append ("\r\n");
+        if (cacheControl != null)
+        {
+            buffer.append ("Cache-control: ");
+            buffer.append (cacheControl);
+            buffer.append ("\r\n");
+        }
+    }
+
+    /**
+     * The entity tag of a file. Files in the cache only change when they
+     * are downloaded again, so size and date are enough.
+     */
+    public static String getETag (long length, long lastModified)
+    {
+        return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    /**
+     * Does the client already have this version of the file? <code>If-None-Match</code>
+     * wins over <code>If-Modified-Since</code> (RFC 7232, 6).
+     */
+    public static boolean isNotModified (HttpRequest request, long length, long lastModified)
+    {
+        String ifNoneMatch = request.getIfNoneMatch();
+        if (ifNoneMatch != null)
+            return matchesETag (ifNoneMatch, getETag (length, lastModified));
+
+        String ifModifiedSince = request.getIfModifiedSince();
+        if (ifModifiedSince == null)
+            return false;
+
+        long since = parseDate (ifModifiedSince);
+        // HTTP dates have no milliseconds
+        return since != -1 && lastModified / 1000 <= since / 1000;
+    }
+
+    /** Compare a list of entity tags with <code>etag</code>. Weak tags match, too. */
+    private static boolean matchesETag (String list, String etag)
+    {
+        for (String tag: StringUtils.split(list, ","))
+        {
+            tag = tag.trim ();
+            if ("*".equals (tag))
+                return true;
+            if (tag.startsWith("W/"))
+                tag = tag.substring(2);
+            if (etag.equals (tag))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * A response which sends the compressed <code>variant</code> of
+     * <code>entry</code> with <code>Content-Encoding: gzip</code>.
+     */
+    public static Response forVariant (CacheIndex.Entry entry, CacheIndex.Entry variant, boolean headOnly, String cacheControl)
+    {
+        StringBuilder buffer = new StringBuilder (256);
+        buffer.append ("HTTP/1.1 200 OK\r\n");
+        appendDate (buffer);
+        appendValidators (buffer, variant.getLength(), variant.getLastModified(), cacheControl);
+        buffer.append ("Content-length: ");
+        buffer.append (variant.getLength());
+        buffer.append ("\r\n");
+        buffer.append ("Content-type: ");
+        buffer.append (entry.getContentType());
+        buffer.append ("\r\n");
+        buffer.append ("Content-encoding: gzip\r\n");
+        buffer.append ("Vary: Accept-Encoding\r\n");
+        buffer.append ("\r\n");
+        
+        Response response = new Response (buffer.toString(), headOnly ? null : variant.getFile());
+        response.length = variant.getLength();
+        response.lastModified = variant.getLastModified();
+        return response;
+    }
+
+    /**
+     * A response with the parts of a file which the client asked for
+     * with <code>Range</code> (RFC 7233).
+     * 
+     * @return <code>null</code> if the whole file must be sent: There is no
+     * <code>Range</code>, <code>If-Range</code> doesn't match or the range
+     * can't be parsed.
+     */
+    public static Response forRange (CacheIndex.Entry entry, HttpRequest request, String cacheControl, Config config)
+    {
+        String value = request.getRange();
+        if (value == null || !HttpRequest.GET.equals (request.getMethod()))
+            return null;
+        
+        long length = entry.getLength();
+        long lastModified = entry.getLastModified();
+        if (request.getIfRange() != null && !isRangeValid (request.getIfRange(), length, lastModified))
+            return null;
+        
+        List<ByteRange> list = ByteRange.parse(value, length);
+        if (list == null)
+            return null;
+        if (list.isEmpty())
+            return new Response ("HTTP/1.1 416 Range Not Satisfiable\r\nContent-range: bytes */"+length+"\r\nContent-length: 0\r\n\r\n", null);
+        
+        StringBuilder buffer = new StringBuilder (256);
+        buffer.append ("HTTP/1.1 206 Partial Content\r\n");
+        appendDate (buffer);
+        appendValidators (buffer, length, lastModified, cacheControl);
+        
+        long[] ranges = new long[list.size() * 2];
+        for (int i=0; i<list.size(); i++)
+        {
+            ranges[i*2] = list.get(i).getStart();
+            ranges[i*2+1] = list.get(i).getLength();
+        }
+        
+        ByteBuffer[] parts = null;
+        long contentLength;
+        String contentType;
+        if (list.size() == 1)
+        {
+            buffer.append ("Content-range: ");
+            buffer.append (list.get(0).toContentRange(length));
+            buffer.append ("\r\n");
+            contentLength = ranges[1];
+            contentType = entry.getContentType();
+        }
+        else
+        {
+            String boundary = "DSMP-"+Long.toHexString(ThreadLocalRandom.current().nextLong());
+            parts = new ByteBuffer[list.size() + 1];
+            contentLength = 0;
+            for (int i=0; i<list.size(); i++)
+            {
+                parts[i] = ascii ("\r\n--"+boundary+"\r\nContent-type: "+entry.getContentType()
+                        +"\r\nContent-range: "+list.get(i).toContentRange(length)+"\r\n\r\n");
+                contentLength += parts[i].remaining() + ranges[i*2+1];
+            }
+            parts[list.size()] = ascii ("\r\n--"+boundary+"--\r\n");
+            contentLength += parts[list.size()].remaining();
+            contentType = "multipart/byteranges; boundary="+boundary;
+        }
+        
+        buffer.append ("Content-length: ");
+        buffer.append (contentLength);
+        buffer.append ("\r\n");
+        buffer.append ("Content-type: ");
+        buffer.append (contentType);
+        buffer.append ("\r\n");
+        buffer.append ("Accept-ranges: bytes\r\n");
+        if (hasVariants (entry.getFile(), length, config))
+            buffer.append ("Vary: Accept-Encoding\r\n");
+        buffer.append ("\r\n");
+        
+        Response response = new Response (buffer.toString(), entry.getFile());
+        response.length = contentLength;
+        response.lastModified = lastModified;
+        response.ranges = ranges;
+        response.parts = parts;
+        return response;
+    }
+
+    /**
+     * <code>If-Range</code> needs a strong match: The entity tag or
+     * exactly the date of the last modification.
+     */
+    private static boolean isRangeValid (String ifRange, long length, long lastModified)
+    {
+        ifRange = ifRange.trim ();
+        if (ifRange.startsWith("W/"))
+            return false;
+        if (ifRange.startsWith("\""))
+            return ifRange.equals (getETag (length, lastModified));
+        
+        long date = parseDate (ifRange);
+        return date != -1 && date / 1000 == lastModified / 1000;
+    }
+
+    /**
+     * Tell the client that its copy of the file is still valid.
+     * 
+     * @param vary The file has a compressed variant (see <code>hasVariants()</code>);
+     * a 304 must repeat the <code>Vary</code> of the 200 (RFC 7232 section 4.1).
+     */
+    public static Response forNotModified (long length, long lastModified, String cacheControl, boolean vary)
+    {
+        StringBuilder buffer = new StringBuilder (256);
+        buffer.append ("HTTP/1.1 304 Not Modified\r\n");
+        appendDate (buffer);
+        appendValidators (buffer, length, lastModified, cacheControl);
+        if (vary)
+            buffer.append ("Vary: Accept-Encoding\r\n");
+        buffer.append ("\r\n");
+        return new Response (buffer.toString(), null);
+    }
+
+    /**
+     * A response which sends the file of a running download while it is
+     * written.
+     * 
+     * @param chunked Use chunked encoding (necessary when the length of the
+     * file is unknown).
+     */
+    public static Response forDownload (RunningDownload download, String downloadURL, boolean chunked, String cacheControl)
+    {
+        StringBuilder buffer = new StringBuilder (256);
+        buffer.append ("HTTP/1.1 200 OK\r\n");
+        appendDate (buffer);
+        if (cacheControl != null)
+        {
+            buffer.append ("Cache-control: ");
+            buffer.append (cacheControl);
+            buffer.append ("\r\n");
+        }
+        if (chunked)
+            buffer.append ("Transfer-Encoding: chunked\r\n");
+        else
+        {
+            buffer.append ("Content-length: ");
+            buffer.append (download.getContentLength());
+            buffer.append ("\r\n");
+        }
+        buffer.append ("Content-type: ");
+        buffer.append (getContentType (downloadURL));
+        buffer.append ("\r\n");
+        buffer.append ("\r\n");
+        
+        Response response = new Response (buffer.toString(), download.getFile());
+        response.download = download;
+        response.chunked = chunked;
+        return response;
+    }
+
+    public static String getContentType (String downloadURL)
+    {
+        String ext = StringUtils.substringAfterLast(downloadURL, ".").toLowerCase();
+        String type = RequestHandler.CONTENT_TYPES.get (ext);
+        if (type == null)
+        {
+            log.warn("Unknown extension "+ext+". Using content type text/plain.");
+            type = "text/plain";
+        }
+        return type;
+    }
+
+    /** The format of HTTP dates (RFC 1123) */
+    private final static SimpleDateFormat INTERNET_FORMAT = httpDateFormat ("EEE, dd MMM yyyy HH:mm:ss zzz");
+    /** Old formats which clients may still send: RFC 850 and ANSI C's asctime() */
+    private final static SimpleDateFormat[] OLD_FORMATS = {
+        httpDateFormat ("EEEE, dd-MMM-yy HH:mm:ss zzz"),
+        httpDateFormat ("EEE MMM d HH:mm:ss yyyy"),
+    };
+    
+    private static SimpleDateFormat httpDateFormat (String pattern)
+    {
+        SimpleDateFormat format = new SimpleDateFormat (pattern, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+    
+    public static String formatDate (long time)
+    {
+        synchronized (INTERNET_FORMAT)
+        {
+            return INTERNET_FORMAT.format(new Date (time));
+        }
+    }
+    
+    /**
+     * Parse a date from an HTTP header.
+     * 
+     * @return The date in milliseconds or -1 if it can't be parsed.
+     */
+    public static long parseDate (String s)
+    {
+        synchronized (INTERNET_FORMAT)
+        {
+            try
+            {
+                return INTERNET_FORMAT.parse(s.trim ()).getTime();
+            }
+            catch (ParseException e)
+            {
+                // Try the old formats
+            }
+            for (SimpleDateFormat format: OLD_FORMATS)
+            {
+                try
+                {
+                    return format.parse(s.trim ()).getTime();
+                }
+                catch (ParseException e)
+                {
+                    // Try the next one
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Add a <code>Connection</code> header, for example <code>close</code>
+     * when the connection is closed after this response. Call this before
+     * the response is opened.
+     */
+    public void setConnection (String token)
+    {
+        int headerLength = header.remaining();
+        byte[] bytes = new byte[headerLength];
+        header.duplicate().get(bytes);
+        String s;
+        try
+        {
+            s = new String (bytes, "ISO-8859-1");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new RuntimeException ("ISO-8859-1 is not supported", e);
+        }
+        // Insert the header before the empty line at the end
+        header = ascii (s.substring(0, s.length() - 2) + "Connection: " + token + "\r\n\r\n");
+    }
+
+    /** The file with the body or <code>null</code> if there is no body. */
+    public File getFile ()
+    {
+        return file;
+    }
+
+    /**
+     * Write the whole response to a stream.
+     */
+    public void writeTo (OutputStream out) throws IOException
+    {
+        write (out, header);
+        if (file == null)
+        {
+            if (data != null)
+                write (out, data);
+            if (transfer != null)
+            {
+                transfer.count(length);
+                transfer = null;
+            }
+            out.flush();
+            return;
+        }
+
+        if (ranges != null)
+        {
+            writeRanges (out);
+            return;
+        }
+
+        InputStream in = new BufferedInputStream (new FileInputStream (file));
+        try
+        {
+            IOUtils.copy (in, out);
+        }
+        finally
+        {
+            in.close();
+        }
+        Transfer.STREAM.count (file.length());
+    }
+
+    private void writeRanges (OutputStream out) throws IOException
+    {
+        RandomAccessFile in = new RandomAccessFile (file, "r");
+        try
+        {
+            byte[] buffer = new byte[8192];
+            for (int i=0; i<ranges.length/2; i++)
+            {
+                if (parts != null)
+                    write (out, parts[i]);
+                
+                in.seek (ranges[i*2]);
+                long todo = ranges[i*2+1];
+                while (todo > 0)
+                {
+                    int len = in.read (buffer, 0, (int)Math.min (buffer.length, todo));
+                    if (len == -1)
+                        throw new IOException ("File "+file.getAbsolutePath()+" was truncated while it was sent");
+                    out.write (buffer, 0, len);
+                    todo -= len;
+                }
+            }
+            if (parts != null)
+                write (out, parts[parts.length-1]);
+        }
+        finally
+        {
+            in.close();
+        }
+        out.flush();
+        Transfer.STREAM.count (length);
+    }
+
+    private static void write (OutputStream out, ByteBuffer buffer) throws IOException
+    {
+        if (buffer.hasArray())
+            out.write (buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        else
+        {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            out.write (bytes);
+        }
+    }
+
+    /**
+     * Prepare to write the response to a channel.
+     */
+    public void open (Config config) throws IOException
+    {
+        if (file == null || transfer != null)
+            return;
+
+        if (download != null)
+        {
+            body = download.openContent();
+            position = 0;
+            transfer = Transfer.FOLLOW;
+            return;
+        }
+        
+        if (ranges != null)
+        {
+            // Ranges are always sent with transferTo(); the hot-object cache and mapped files only help with whole files
+            body = openFile ();
+            if (parts == null)
+            {
+                position = ranges[0];
+                remaining = ranges[1];
+            }
+            transfer = Transfer.SENDFILE;
+            return;
+        }
+
+        if (length < 0)
+        {
+            lastModified = file.lastModified();
+            length = file.length();
+        }
+        
+        try
+        {
+            if (config.getMmapThreshold() > 0 && length >= config.getMmapThreshold())
+            {
+                data = MAPPED_FILES.get(file, length, lastModified, config.getMmapCacheSize());
+                if (data != null)
+                {
+                    transfer = Transfer.MMAP;
+                    return;
+                }
+            }
+        }
+        catch (FileNotFoundException e)
+        {
+            CacheIndex.forget (file);
+            throw e;
+        }
+        
+        FileChannel channel = openFile ();
+        if (length < config.getCopyThreshold())
+        {
+            try
+            {
+                data = ByteBuffer.allocate((int)length);
+                while (data.hasRemaining())
+                {
+                    if (channel.read(data) == -1)
+                        throw new IOException ("File "+file.getAbsolutePath()+" was truncated while it was read");
+                }
+                data.flip();
+            }
+            finally
+            {
+                channel.close();
+            }
+            transfer = Transfer.COPY;
+            return;
+        }
+        
+        body = channel;
+        position = 0;
+        remaining = length;
+        transfer = Transfer.SENDFILE;
+    }
+
+    private FileChannel openFile () throws IOException
+    {
+        try
+        {
+            return new RandomAccessFile (file, "r").getChannel();
+        }
+        catch (FileNotFoundException e)
+        {
+            // Someone deleted the file from the cache
+            CacheIndex.forget (file);
+            throw e;
+        }
+    }
+
+    /**
+     * Write as much as possible of the response to a (non-blocking) channel.
+     *
+     * @return <code>true</code> if the whole response has been written.
+     */
+    public boolean writeTo (GatheringByteChannel channel) throws IOException
+    {
+        if (download != null)
+            return writeFollowing (channel);
+        
+        if (data != null)
+        {
+            channel.write (new ByteBuffer[] { header, data });
+            if (header.hasRemaining() || data.hasRemaining())
+                return false;
+        }
+        else if (header.hasRemaining())
+        {
+            channel.write (header);
+            if (header.hasRemaining())
+                return false;
+        }
+
+        while (true)
+        {
+            while (body != null && remaining > 0)
+            {
+                long n = body.transferTo(position, remaining, channel);
+                if (n <= 0)
+                {
+                    if (position >= body.size())
+                        throw new IOException ("File "+file.getAbsolutePath()+" was truncated while it was sent");
+                    return false;
+                }
+
+                position += n;
+                remaining -= n;
+            }
+            
+            // The next part of a multipart/byteranges response
+            if (parts == null || part == parts.length)
+                break;
+            
+            ByteBuffer partHeader = parts[part];
+            if (partHeader.hasRemaining())
+            {
+                channel.write (partHeader);
+                if (partHeader.hasRemaining())
+                    return false;
+            }
+            if (part < ranges.length / 2)
+            {
+                position = ranges[part*2];
+                remaining = ranges[part*2+1];
+            }
+            part ++;
+        }
+
+        if (transfer != null)
+        {
+            transfer.count(length);
+            transfer = null;
+        }
+        return true;
+    }
+
+    private boolean writeFollowing (GatheringByteChannel channel) throws IOException
+    {
+        waiting = false;
+        if (header.hasRemaining())
+        {
+            channel.write (header);
+            if (header.hasRemaining())
+                return false;
+        }
+        
+        while (true)
+        {
+            if (chunkHeader != null && chunkHeader.hasRemaining())
+            {
+                channel.write (chunkHeader);
+                if (chunkHeader.hasRemaining())
+                    return false;
+            }
+            
+            while (remaining > 0)
+            {
+                long n = body.transferTo(position, remaining, channel);
+                if (n <= 0)
+                    return false;
+                
+                position += n;
+                remaining -= n;
+            }
+            
+            if (chunkTrailer != null && chunkTrailer.hasRemaining())
+            {
+                channel.write (chunkTrailer);
+                if (chunkTrailer.hasRemaining())
+                    return false;
+            }
+            
+            if (lastChunk)
+                break;
+            
+            // Check "done" first: Once it's set, the available bytes don't change anymore
+            boolean done = download.isDone();
+            long available = download.getAvailable();
+            if (done)
+                checkDownload ();
+            
+            if (available > position)
+            {
+                remaining = available - position;
+                if (chunked)
+                {
+                    chunkHeader = ascii (Long.toHexString(remaining)+"\r\n");
+                    chunkTrailer = ascii ("\r\n");
+                }
+                continue;
+            }
+            
+            if (!done)
+            {
+                waiting = true;
+                return false;
+            }
+            
+            lastChunk = true;
+            chunkHeader = null;
+            chunkTrailer = chunked ? ascii ("0\r\n\r\n") : null;
+        }
+        
+        if (transfer != null)
+        {
+            transfer.count(position);
+            transfer = null;
+        }
+        return true;
+    }
+    
+    private void checkDownload () throws IOException
+    {
+        try
+        {
+            download.checkError();
+        }
+        catch (DownloadFailed e)
+        {
+            throw new IOException ("Download of "+download.getURL()+" failed after the response was started: "+e.getStatusLine());
+        }
+    }
+    
+    private static ByteBuffer ascii (String s)
+    {
+        try
+        {
+            return ByteBuffer.wrap(s.getBytes("ISO-8859-1"));
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new RuntimeException ("ISO-8859-1 is not supported", e);
+        }
+    }
+    
+    /**
+     * <code>true</code> if the last <code>writeTo()</code> stopped because
+     * the download has to deliver more data (not because the channel was full).
+     */
+    public boolean isWaitingForData ()
+    {
+        return waiting;
+    }
+    
+    /** The download which this response follows or <code>null</code>. */
+    public RunningDownload getDownload ()
+    {
+        return download;
+    }
+    
+    /** How many bytes of the body have been sent so far. */
+    public long getPosition ()
+    {
+        return position;
+    }
+    
+    /**
+     * Write the whole response to a channel in blocking mode.
+     */
+    public void send (GatheringByteChannel channel, Config config) throws IOException
+    {
+        if (channel instanceof SelectableChannel && !((SelectableChannel)channel).isBlocking())
+            throw new IllegalStateException ("Channel must be in blocking mode");
+        
+        open (config);
+        try
+        {
+            while (!writeTo (channel))
+            {
+                // A blocking channel only returns early if the other side is
+                // slow or if we have to wait for the download
+                if (waiting)
+                {
+                    try
+                    {
+                        download.awaitAvailable(position);
+                    }
+                    catch (DownloadFailed e)
+                    {
+                        checkDownload ();
+                    }
+                }
+            }
+        }
+        finally
+        {
+            close ();
+        }
+    }
+
+    public void close ()
+    {
+        data = null;
+        if (body == null)
+            return;
+
+        try
+        {
+            body.close();
+        }
+        catch (IOException e)
+        {
+            log.warn ("Error closing "+file.getAbsolutePath(), e);
+        }
+        body = null;
+    }
+}
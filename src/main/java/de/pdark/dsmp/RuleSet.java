@@ -0,0 +1,237 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A list of rules from the config which is compiled for fast lookups.
+ * 
+ * <p>As before, the first rule which matches a URL wins. Most rules are
+ * prefixes; they are looked up in a <code>RuleTrie</code>. Glob and
+ * regular expression rules are only tried if they come before the
+ * prefix which matched.
+ * 
+ * @author digulla
+ * 
+ */
+public class RuleSet<T>
+{
+    public enum Kind
+    {
+        /** The URL starts with the pattern */
+        PREFIX,
+        /** The whole URL matches the pattern; <code>*</code> doesn't match <code>/</code> but <code>**</code> does */
+        GLOB,
+        /** The whole URL matches the regular expression */
+        REGEX
+    }
+
+    public static class Rule<T>
+    {
+        private final Kind kind;
+        private final String pattern;
+        private final Pattern regex;
+        private final T value;
+        /** A LongAdder because every lookup of every thread counts here */
+        private final LongAdder hits = new LongAdder ();
+
+        private Rule (Kind kind, String pattern, T value)
+        {
+            this.kind = kind;
+            this.pattern = pattern;
+            this.value = value;
+
+            try
+            {
+                if (kind == Kind.GLOB)
+                    regex = Pattern.compile(globToRegex (pattern));
+                else if (kind == Kind.REGEX)
+                    regex = Pattern.compile(pattern);
+                else
+                    regex = null;
+            }
+            catch (PatternSyntaxException e)
+            {
+                throw new RuntimeException ("Error in "+kind.name().toLowerCase()+" pattern '"+pattern+"': "+e.getMessage(), e);
+            }
+        }
+
+        public Kind getKind ()
+        {
+            return kind;
+        }
+
+        public String getPattern ()
+        {
+            return pattern;
+        }
+
+        /** The compiled pattern for GLOB and REGEX rules */
+        public Pattern getRegex ()
+        {
+            return regex;
+        }
+
+        public T getValue ()
+        {
+            return value;
+        }
+
+        /** How often this rule was the first to match. */
+        public long getHits ()
+        {
+            return hits.sum();
+        }
+
+        private boolean matches (String s)
+        {
+            if (regex != null)
+                return regex.matcher(s).matches();
+            return s.startsWith(pattern);
+        }
+
+        @Override
+        public String toString ()
+        {
+            return kind.name().toLowerCase()+" "+pattern;
+        }
+    }
+
+    private final List<Rule<T>> rules;
+    private final RuleTrie prefixes;
+    /** The numbers of the GLOB and REGEX rules */
+    private final int[] patterns;
+
+    private RuleSet (List<Rule<T>> rules)
+    {
+        this.rules = Collections.unmodifiableList(rules);
+
+        RuleTrie.Builder builder = new RuleTrie.Builder (false);
+        int count = 0;
+        for (int i=0; i<rules.size(); i++)
+        {
+            if (rules.get(i).kind == Kind.PREFIX)
+                builder.add(rules.get(i).pattern, i);
+            else
+                count ++;
+        }
+        prefixes = builder.build();
+
+        patterns = new int[count];
+        count = 0;
+        for (int i=0; i<rules.size(); i++)
+        {
+            if (rules.get(i).kind != Kind.PREFIX)
+                patterns[count ++] = i;
+        }
+    }
+
+    /**
+     * Find the first rule which matches <code>s</code>.
+     *
+     * @return <code>null</code> if no rule matches.
+     */
+    public Rule<T> find (String s)
+    {
+        int best = prefixes.find(s);
+        if (best == RuleTrie.NO_MATCH)
+            best = Integer.MAX_VALUE;
+
+        for (int i: patterns)
+        {
+            if (i >= best)
+                break;
+            if (rules.get(i).matches(s))
+            {
+                best = i;
+                break;
+            }
+        }
+
+        if (best == Integer.MAX_VALUE)
+            return null;
+
+        Rule<T> rule = rules.get(best);
+        rule.hits.increment();
+        return rule;
+    }
+
+    /** All rules in the order of the config. */
+    public List<Rule<T>> getRules ()
+    {
+        return rules;
+    }
+
+    public int size ()
+    {
+        return rules.size();
+    }
+
+    /**
+     * Turn a glob into a regular expression: <code>**</code> matches
+     * anything, <code>*</code> anything but <code>/</code> and <code>?</code>
+     * one character which isn't <code>/</code>.
+     */
+    public static String globToRegex (String glob)
+    {
+        StringBuilder buffer = new StringBuilder (glob.length() * 2);
+        int start = 0;
+        for (int i=0; i<glob.length(); i++)
+        {
+            char c = glob.charAt(i);
+            if (c != '*' && c != '?')
+                continue;
+
+            if (i > start)
+                buffer.append (Pattern.quote(glob.substring(start, i)));
+            if (c == '?')
+                buffer.append ("[^/]");
+            else if (i + 1 < glob.length() && glob.charAt(i + 1) == '*')
+            {
+                buffer.append (".*");
+                i ++;
+            }
+            else
+                buffer.append ("[^/]*");
+            start = i + 1;
+        }
+        if (start < glob.length())
+            buffer.append (Pattern.quote(glob.substring(start)));
+        return buffer.toString();
+    }
+
+    public static class Builder<T>
+    {
+        private final List<Rule<T>> rules = new ArrayList<Rule<T>> ();
+
+        public Builder<T> add (Kind kind, String pattern, T value)
+        {
+            rules.add(new Rule<T> (kind, pattern, value));
+            return this;
+        }
+
+        public RuleSet<T> build ()
+        {
+            return new RuleSet<T> (new ArrayList<Rule<T>> (rules));
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import java.util.Arrays;
+
+/**
+ * Find the first rule (in the order of the config) whose prefix matches
+ * a string, with one pass over the string.
+ * 
+ * <p>Every node knows the smallest number of the rules which end there.
+ * The lookup walks down the trie along the string and remembers the
+ * smallest number it has seen. The trie can also be built from reversed
+ * strings to match suffixes (for example host names).
+ * 
+ * <p>The trie can't be changed after it has been built, so lookups
+ * need no locks.
+ * 
+ * @author digulla
+ * 
+ */
+public class RuleTrie
+{
+    public static final int NO_MATCH = -1;
+
+    private static final char[] NO_KEYS = new char[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private static class Node
+    {
+        /** Sorted, so we can use a binary search */
+        private char[] keys = NO_KEYS;
+        private Node[] children = NO_CHILDREN;
+        private int rule = Integer.MAX_VALUE;
+
+        private Node child (char c)
+        {
+            int pos = Arrays.binarySearch(keys, c);
+            return pos < 0 ? null : children[pos];
+        }
+
+        private Node getOrAdd (char c)
+        {
+            int pos = Arrays.binarySearch(keys, c);
+            if (pos >= 0)
+                return children[pos];
+
+            pos = -pos - 1;
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy (keys, 0, newKeys, 0, pos);
+            System.arraycopy (children, 0, newChildren, 0, pos);
+            newKeys[pos] = c;
+            newChildren[pos] = new Node ();
+            System.arraycopy (keys, pos, newKeys, pos + 1, keys.length - pos);
+            System.arraycopy (children, pos, newChildren, pos + 1, children.length - pos);
+            keys = newKeys;
+            children = newChildren;
+            return newChildren[pos];
+        }
+    }
+
+    private final Node root;
+    private final boolean reversed;
+
+    private RuleTrie (Node root, boolean reversed)
+    {
+        this.root = root;
+        this.reversed = reversed;
+    }
+
+    /**
+     * Find the first rule which matches <code>s</code>.
+     *
+     * @return The number of the rule or <code>NO_MATCH</code>.
+     */
+    public int find (String s)
+    {
+        Node node = root;
+        int best = node.rule;
+        int len = s.length();
+        for (int i=0; i<len; i++)
+        {
+            node = node.child(s.charAt(reversed ? len - 1 - i : i));
+            if (node == null)
+                break;
+            if (node.rule < best)
+                best = node.rule;
+        }
+        return best == Integer.MAX_VALUE ? NO_MATCH : best;
+    }
+
+    public static class Builder
+    {
+        private final Node root = new Node ();
+        private final boolean reversed;
+        private boolean built;
+
+        /**
+         * @param reversed Match suffixes instead of prefixes.
+         */
+        public Builder (boolean reversed)
+        {
+            this.reversed = reversed;
+        }
+
+        /** Add a rule. Rules with smaller numbers win. */
+        public Builder add (String s, int rule)
+        {
+            if (built)
+                throw new IllegalStateException ("The trie has already been built");
+
+            Node node = root;
+            int len = s.length();
+            for (int i=0; i<len; i++)
+                node = node.getOrAdd(s.charAt(reversed ? len - 1 - i : i));
+            node.rule = Math.min (node.rule, rule);
+            return this;
+        }
+
+        public RuleTrie build ()
+        {
+            built = true;
+            return new RuleTrie (root, reversed);
+        }
+    }
+}
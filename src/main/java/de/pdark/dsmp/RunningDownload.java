@@ -0,0 +1,340 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A download which is in progress.
+ * 
+ * <p>The download goes through these states: Waiting for the answer of the
+ * remote repository, <em>started</em> (the status was OK; the body is being
+ * written to a temporary file) and <em>done</em> (with or without an error).
+ * 
+ * <p>Clients can follow the file while it grows: They send what has
+ * been written so far and wait for more. All clients which ask for
+ * the same file share one download.
+ * 
+ * @author digulla
+ * 
+ */
+public class RunningDownload
+{
+    public static final Logger log = Logger.getLogger(RunningDownload.class);
+
+    private final URL url;
+    private final File dest;
+    private final File part;
+
+    private boolean started;
+    private boolean done;
+    private boolean committed;
+    private Throwable error;
+    private long contentLength = -1;
+    private long available;
+
+    private final List<Waiter> waiters = new ArrayList<Waiter> ();
+
+    private static class Waiter
+    {
+        /** Wait until this many bytes are available; -1 means "until started" */
+        private final long position;
+        private final Runnable callback;
+
+        public Waiter (long position, Runnable callback)
+        {
+            this.position = position;
+            this.callback = callback;
+        }
+    }
+
+    public RunningDownload (URL url, File dest)
+    {
+        this.url = url;
+        this.dest = dest;
+        this.part = new File (dest.getAbsolutePath()+".new");
+    }
+
+    public URL getURL ()
+    {
+        return url;
+    }
+
+    /** The file in the cache (once the download is complete). */
+    public File getFile ()
+    {
+        return dest;
+    }
+
+    /** The file which receives the data while the download is running. */
+    public File getPartFile ()
+    {
+        return part;
+    }
+
+    /**
+     * The remote repository sent OK. The body will now be written
+     * to the part file.
+     *
+     * @param contentLength The length of the body or -1 if it's unknown
+     */
+    void start (long contentLength)
+    {
+        synchronized (this)
+        {
+            this.contentLength = contentLength;
+            started = true;
+            notifyAll();
+        }
+        fire ();
+    }
+
+    /** <code>len</code> more bytes have been written to the part file. */
+    void advance (long len)
+    {
+        synchronized (this)
+        {
+            available += len;
+            notifyAll();
+        }
+        fire ();
+    }
+
+    /**
+     * Move the complete part file to its final place. Files are opened and
+     * renamed while holding the lock, so clients never miss the file.
+     */
+    synchronized void commit ()
+    {
+        committed = true;
+        if (!part.exists() && dest.exists())
+            return;
+        
+        File bak = new File (dest.getAbsolutePath()+".bak");
+        if (bak.exists())
+            bak.delete();
+        if (dest.exists())
+            dest.renameTo(bak);
+        if (!part.renameTo(dest))
+            log.error ("Can't rename "+part.getAbsolutePath()+" to "+dest.getAbsolutePath());
+    }
+
+    void finish (Throwable error)
+    {
+        synchronized (this)
+        {
+            this.error = error;
+            done = true;
+            notifyAll();
+        }
+        fire ();
+    }
+
+    private void fire ()
+    {
+        List<Runnable> callbacks = null;
+        synchronized (this)
+        {
+            for (Iterator<Waiter> iter = waiters.iterator(); iter.hasNext(); )
+            {
+                Waiter w = iter.next();
+                if (isReady (w.position))
+                {
+                    iter.remove();
+                    if (callbacks == null)
+                        callbacks = new ArrayList<Runnable> ();
+                    callbacks.add(w.callback);
+                }
+            }
+        }
+
+        if (callbacks == null)
+            return;
+
+        for (Runnable r: callbacks)
+        {
+            try
+            {
+                r.run();
+            }
+            catch (RuntimeException e)
+            {
+                log.error ("Error notifying client of download progress of "+url, e);
+            }
+        }
+    }
+
+    private boolean isReady (long position)
+    {
+        if (done)
+            return true;
+        if (position < 0)
+            return started;
+        return started && available > position;
+    }
+
+    public synchronized boolean isStarted ()
+    {
+        return started;
+    }
+
+    public synchronized boolean isDone ()
+    {
+        return done;
+    }
+
+    /** The length of the body or -1 if the remote repository didn't say. */
+    public synchronized long getContentLength ()
+    {
+        return contentLength;
+    }
+
+    /** How many bytes of the body can be read from the part file. */
+    public synchronized long getAvailable ()
+    {
+        return available;
+    }
+
+    /**
+     * Call <code>callback</code> once when the download has started or is done.
+     *
+     * @return <code>false</code> if that has already happened; the callback
+     * isn't called in this case.
+     */
+    public synchronized boolean whenStarted (Runnable callback)
+    {
+        if (isReady (-1))
+            return false;
+
+        waiters.add(new Waiter (-1, callback));
+        return true;
+    }
+
+    /**
+     * Call <code>callback</code> once when more than <code>position</code> bytes
+     * are available or the download is done.
+     *
+     * @return <code>false</code> if that is already the case; the callback
+     * isn't called in this case.
+     */
+    public synchronized boolean whenAvailable (long position, Runnable callback)
+    {
+        if (isReady (position))
+            return false;
+
+        waiters.add(new Waiter (position, callback));
+        return true;
+    }
+
+    /**
+     * Call <code>callback</code> once when the download is done.
+     *
+     * @return <code>false</code> if it is already done; the callback
+     * isn't called in this case.
+     */
+    public boolean whenDone (Runnable callback)
+    {
+        return whenAvailable (Long.MAX_VALUE, callback);
+    }
+
+    /**
+     * Wait until the download has started.
+     *
+     * @throws DownloadFailed if the remote repository didn't return the file.
+     */
+    public synchronized void awaitStart () throws IOException, DownloadFailed
+    {
+        while (!isReady (-1))
+            waitForChange ();
+
+        checkError ();
+    }
+
+    /**
+     * Wait until more than <code>position</code> bytes are available
+     * or the download is done.
+     *
+     * @return the number of available bytes.
+     */
+    public synchronized long awaitAvailable (long position) throws IOException, DownloadFailed
+    {
+        while (!isReady (position))
+            waitForChange ();
+
+        checkError ();
+        return available;
+    }
+
+    /**
+     * Wait until the download is complete.
+     */
+    public synchronized void await () throws IOException, DownloadFailed
+    {
+        while (!done)
+            waitForChange ();
+
+        checkError ();
+    }
+
+    private void waitForChange () throws IOException
+    {
+        try
+        {
+            wait ();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException ("Interrupted while waiting for download of "+url);
+        }
+    }
+
+    /**
+     * Throw the error of the download, if there was one. Each caller gets its
+     * own exception with its own stack trace.
+     */
+    public synchronized void checkError () throws IOException, DownloadFailed
+    {
+        if (error == null)
+            return;
+
+        if (error instanceof DownloadFailed)
+        {
+            DownloadFailed failed = (DownloadFailed)error;
+            throw new DownloadFailed (failed.getStatusLine(), failed.isCached());
+        }
+        throw new IOException ("Download of "+url+" failed", error);
+    }
+
+    /**
+     * Open the data of the download for reading: The part file while the
+     * download is running and the file in the cache after it is complete.
+     */
+    public synchronized FileChannel openContent () throws IOException
+    {
+        File f = committed ? dest : part;
+        return new RandomAccessFile (f, "r").getChannel();
+    }
+}
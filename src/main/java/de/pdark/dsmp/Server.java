@@ -17,14 +17,33 @@ package de.pdark.dsmp;
 
 import org.apache.log4j.Logger;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Wait for connections from somewhere and pass them on to <code>RequestHandler</code>
  * for processing.
  * 
+ * <p>The handlers run in an executor which is selected with
+ * <code>&lt;server executor="pool|virtual"&gt;</code> in the config.
+ * With <code>&lt;server frontend="nio"&gt;</code>, the connections are
+ * handled by <code>NioServer</code> instead and the executor only
+ * runs downloads.
+ * 
  * @author digulla
  *
  */
@@ -34,44 +53,186 @@ public class Server
     
     private final int port;
     private final Config config;
-    private final ServerSocket socket;
+    private final ServerSocketChannel socket;
+    private final NioServer nio;
+    private final ExecutorService executor;
+    /** Runs downloads while the handlers send the data to the clients */
+    private final ExecutorService downloads;
+    private final ConfigWatcher configWatcher;
+    private final AdminServer admin;
+    private final CacheJanitor janitor;
     
     public Server (Config config) throws IOException
     {
         port = config.getPort();
         this.config = config;
 
+        configWatcher = startConfigWatcher ();
+        loadNegativeCache ();
+        // Start to index the cache
+        CacheIndex.get(config);
+        janitor = new CacheJanitor (config);
+        admin = startAdminServer ();
+        
         log.info("Opening connection on port "+port);
-        socket = new ServerSocket (port);
+        executor = createExecutor (config);
+        if (Config.FRONTEND_NIO.equals (config.getServerFrontend()))
+        {
+            downloads = executor;
+            socket = null;
+            nio = new NioServer (config, executor);
+        }
+        else
+        {
+            // A bounded pool can't run downloads: All threads might be busy
+            // waiting for downloads which sit in the queue
+            downloads = executor instanceof ThreadPoolExecutor
+                    ? Executors.newCachedThreadPool(new WorkerThreadFactory ("dsmp-download-"))
+                    : executor;
+
+            // A channel (in blocking mode) gives the client sockets channels, too,
+            // so RequestHandler can send files with transferTo()
+            socket = ServerSocketChannel.open();
+            socket.socket().setReuseAddress(true);
+            socket.socket().bind(new InetSocketAddress (port));
+            nio = null;
+        }
     }
 
-    private static boolean run = true;
+    private volatile boolean run = true;
     
     public void terminateAll ()
     {
         // TODO Implement a way to gracefully stop the proxy
         run = false;
+        
+        if (nio != null)
+            nio.terminateAll();
+        else
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (IOException e)
+            {
+                log.error("Error closing server socket", e);
+            }
+        }
+        executor.shutdown();
+        downloads.shutdown();
+        if (configWatcher != null)
+            configWatcher.close();
+        if (admin != null)
+            admin.close();
+        janitor.close();
+        Prefetcher.shutdownAll();
+        UpstreamClient.shutdownAll();
+        CacheIndex.shutdownAll();
+        saveNegativeCache ();
+    }
+    
+    /** Reload the config when the file changes. */
+    private ConfigWatcher startConfigWatcher ()
+    {
+        try
+        {
+            return new ConfigWatcher (config);
+        }
+        catch (IOException e)
+        {
+            log.warn ("Can't watch "+config.getConfigFile().getAbsolutePath()+"; changes need a restart", e);
+            return null;
+        }
+    }
+    
+    /** Serve the metrics if the config has an admin port. */
+    private AdminServer startAdminServer () throws IOException
+    {
+        int adminPort = config.getAdminPort();
+        if (adminPort == 0)
+            return null;
+        return new AdminServer (config, config.getAdminAddress(), adminPort);
+    }
+    
+    /** The admin server or <code>null</code> if it isn't enabled. */
+    public AdminServer getAdminServer ()
+    {
+        return admin;
+    }
+    
+    private void loadNegativeCache ()
+    {
+        File file = config.getNegativeCacheFile();
+        if (file == null)
+            return;
+        
+        NegativeCache cache = ProxyDownload.getNegativeCache();
+        cache.setMaxEntries(config.getNegativeCacheMaxEntries());
+        try
+        {
+            cache.load(file);
+        }
+        catch (IOException e)
+        {
+            log.warn ("Error loading failed downloads from "+file.getAbsolutePath(), e);
+        }
+    }
+    
+    /** Save the failed downloads if the config says where. */
+    public void saveNegativeCache ()
+    {
+        File file = config.getNegativeCacheFile();
+        if (file == null)
+            return;
+        
+        try
+        {
+            ProxyDownload.getNegativeCache().save(file);
+            log.info ("Saved failed downloads to "+file.getAbsolutePath());
+        }
+        catch (IOException e)
+        {
+            log.warn ("Error saving failed downloads to "+file.getAbsolutePath(), e);
+        }
     }
     
     public void handleRequests ()
     {
+        if (nio != null)
+        {
+            nio.handleRequests();
+            return;
+        }
+        
         while (run)
         {
             Socket clientSocket;
 
             try
             {
-                clientSocket = socket.accept();
+                clientSocket = socket.accept().socket();
             }
             catch (IOException e)
             {
+                if (!run)
+                    break;
+                
                 log.error("Error acception connection from client", e);
                 continue;
             }
             
-//            config.reload ();
-            Thread t = new RequestHandler (clientSocket, config);
-            t.start();
+            RequestHandler handler = new RequestHandler (clientSocket, config, downloads,
+                    executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor)executor).getQueue() : null);
+            try
+            {
+                executor.execute(handler);
+            }
+            catch (RejectedExecutionException e)
+            {
+                log.warn("Too many connections; refusing "+clientSocket.getInetAddress());
+                handler.refuse ();
+            }
         }
         
         try
@@ -84,4 +245,59 @@ public class Server
         }
     }
     
+    /**
+     * Create the executor which runs the <code>RequestHandler</code>s.
+     * 
+     * <p>If virtual threads are requested but the JVM doesn't support them,
+     * fall back to the bounded pool.
+     */
+    public static ExecutorService createExecutor (Config config)
+    {
+        if (Config.EXECUTOR_VIRTUAL.equals (config.getServerExecutor()))
+        {
+            try
+            {
+                // Looked up reflectively so DSMP still runs on JVMs before Java 21
+                Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                ExecutorService result = (ExecutorService)m.invoke(null);
+                log.info("Handling connections with virtual threads");
+                return result;
+            }
+            catch (NoSuchMethodException e)
+            {
+                log.warn("Virtual threads need Java 21 or better; using a thread pool instead");
+            }
+            catch (Exception e)
+            {
+                log.warn("Can't create virtual thread executor; using a thread pool instead", e);
+            }
+        }
+        
+        int maxThreads = config.getMaxThreads();
+        int queueSize = config.getQueueSize();
+        BlockingQueue<Runnable> queue = queueSize == 0
+                ? new SynchronousQueue<Runnable> ()
+                : new ArrayBlockingQueue<Runnable> (queueSize);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor (maxThreads, maxThreads,
+                60, TimeUnit.SECONDS, queue, new WorkerThreadFactory ("dsmp-worker-"));
+        pool.allowCoreThreadTimeOut(true);
+        log.info("Handling connections with up to "+maxThreads+" threads and a queue of "+queueSize);
+        return pool;
+    }
+    
+    private static class WorkerThreadFactory implements ThreadFactory
+    {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger ();
+        
+        public WorkerThreadFactory (String prefix)
+        {
+            this.prefix = prefix;
+        }
+        
+        public Thread newThread (Runnable r)
+        {
+            return new Thread (r, prefix+count.incrementAndGet());
+        }
+    }
 }
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import org.apache.commons.httpclient.Credentials;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+import org.apache.commons.lang.ObjectUtils;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+
+/**
+ * The HTTP client which is used for all downloads.
+ * 
+ * <p>All downloads share one pool of connections, so the connections
+ * (and the authentication with the proxy) to the remote repositories
+ * are reused. When the config changes the proxy or the limits of the
+ * pool, a new client is created. The old one is shut down after its
+ * last running download. Requests which still have an older snapshot of
+ * the config get the new client, too.
+ * 
+ * @author digulla
+ * 
+ */
+public class UpstreamClient
+{
+    public static final Logger log = Logger.getLogger(UpstreamClient.class);
+
+    private static volatile UpstreamClient current;
+
+    private final MultiThreadedHttpConnectionManager manager;
+    private final HttpClient client;
+    private final IdleConnectionTimeoutThread idleThread;
+    private final HostConfiguration direct;
+    private final HostConfiguration proxied;
+
+    // The settings this client was created with
+    private final String proxyHost;
+    private final int proxyPort;
+    private final String proxyUser;
+    private final String proxyPassword;
+    private final int maxConnections;
+    private final int maxConnectionsPerHost;
+    private final int idleTimeout;
+    private final int connectTimeout;
+    private final int readTimeout;
+
+    /** The newest config generation with these settings */
+    private long generation;
+    /** Requests which got this client from <code>get()</code> and haven't released it yet */
+    private int active;
+    private boolean retired;
+
+    private UpstreamClient (Config config)
+    {
+        proxyHost = config.getProxyHost();
+        proxyPort = config.getProxyPort();
+        proxyUser = config.getProxyUsername();
+        proxyPassword = config.getProxyPassword();
+        maxConnections = config.getUpstreamMaxConnections();
+        maxConnectionsPerHost = config.getUpstreamMaxConnectionsPerHost();
+        idleTimeout = config.getUpstreamIdleTimeout();
+        connectTimeout = config.getUpstreamConnectTimeout();
+        readTimeout = config.getUpstreamReadTimeout();
+        generation = config.getGeneration();
+
+        manager = new MultiThreadedHttpConnectionManager ();
+        HttpConnectionManagerParams params = manager.getParams();
+        params.setMaxTotalConnections(maxConnections);
+        params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+        params.setConnectionTimeout(connectTimeout * 1000);
+        params.setSoTimeout(readTimeout * 1000);
+        params.setStaleCheckingEnabled(true);
+
+        client = new HttpClient (manager);
+
+        direct = new HostConfiguration ();
+        proxied = new HostConfiguration ();
+        if (proxyHost != null)
+        {
+            proxied.setProxy(proxyHost, proxyPort);
+            Credentials credentials = new UsernamePasswordCredentials(proxyUser, proxyPassword);
+            AuthScope scope = new AuthScope(proxyHost, proxyPort, AuthScope.ANY_REALM);
+            client.getState().setProxyCredentials(scope, credentials);
+        }
+
+        idleThread = new IdleConnectionTimeoutThread ();
+        idleThread.setName("dsmp-upstream-idle");
+        idleThread.addConnectionManager(manager);
+        idleThread.setConnectionTimeout(idleTimeout * 1000L);
+        idleThread.setTimeoutInterval(Math.max (1000L, idleTimeout * 1000L / 2));
+        idleThread.start();
+
+        log.info ("Created upstream client with "+maxConnections+" connections ("
+                +maxConnectionsPerHost+" per host)"+(proxyHost == null ? "" : " via proxy "+proxyHost+":"+proxyPort));
+    }
+
+    /**
+     * Get the client for the current config and reserve it for one request:
+     * Call <code>execute()</code> next; it's shut down only after
+     * <code>release()</code>.
+     * 
+     * <p>If the settings have changed since the last call, a new client is
+     * created, but only for a config which is newer than the one of the
+     * current client.
+     */
+    public static UpstreamClient get (Config config)
+    {
+        UpstreamClient result = current;
+        if (result != null && result.reserve(config))
+            return result;
+
+        synchronized (UpstreamClient.class)
+        {
+            result = current;
+            if (result != null && result.reserve(config))
+                return result;
+
+            UpstreamClient old = result;
+            result = new UpstreamClient (config);
+            result.reserve(config);
+            current = result;
+            if (old != null)
+                old.retire();
+            return result;
+        }
+    }
+
+    /** Shut down the current client, for example when the proxy stops. */
+    public static void shutdownAll ()
+    {
+        synchronized (UpstreamClient.class)
+        {
+            if (current != null)
+                current.retire();
+            current = null;
+        }
+    }
+
+    /**
+     * Count a request if this client can be used for <code>config</code>:
+     * It has the same settings or it was built from a newer config.
+     */
+    private synchronized boolean reserve (Config config)
+    {
+        if (retired)
+            return false;
+        long configGeneration = config.getGeneration();
+        if (matches (config))
+            generation = Math.max (generation, configGeneration);
+        else if (generation < configGeneration)
+            return false;
+        active ++;
+        return true;
+    }
+
+    private boolean matches (Config config)
+    {
+        return ObjectUtils.equals(proxyHost, config.getProxyHost())
+            && proxyPort == config.getProxyPort()
+            && ObjectUtils.equals(proxyUser, config.getProxyUsername())
+            && ObjectUtils.equals(proxyPassword, config.getProxyPassword())
+            && maxConnections == config.getUpstreamMaxConnections()
+            && maxConnectionsPerHost == config.getUpstreamMaxConnectionsPerHost()
+            && idleTimeout == config.getUpstreamIdleTimeout()
+            && connectTimeout == config.getUpstreamConnectTimeout()
+            && readTimeout == config.getUpstreamReadTimeout();
+    }
+
+    /**
+     * Send a request to the remote repository. Call <code>release()</code>
+     * when the response has been read.
+     */
+    public int execute (HttpMethod method, boolean useProxy) throws IOException
+    {
+        String host = method.getURI().getHost();
+        boolean ok = false;
+        long start = System.nanoTime();
+        try
+        {
+            int status = client.executeMethod(useProxy ? proxied : direct, method);
+            ok = true;
+            return status;
+        }
+        finally
+        {
+            Metrics.upstream(host, System.nanoTime() - start);
+            if (!ok)
+                release (method);
+        }
+    }
+
+    /**
+     * Return the connection of <code>method</code> to the pool.
+     */
+    public void release (HttpMethod method)
+    {
+        method.releaseConnection();
+
+        boolean shutdown;
+        synchronized (this)
+        {
+            active --;
+            shutdown = retired && active == 0;
+        }
+        if (shutdown)
+            shutdown ();
+    }
+
+    /**
+     * This client isn't used for new requests anymore. Shut it down as
+     * soon as the running ones are done.
+     */
+    private void retire ()
+    {
+        boolean shutdown;
+        synchronized (this)
+        {
+            retired = true;
+            shutdown = active == 0;
+        }
+        if (shutdown)
+            shutdown ();
+        else
+            manager.closeIdleConnections(0);
+    }
+
+    private void shutdown ()
+    {
+        log.debug ("Shutting down old upstream client");
+        idleThread.shutdown();
+        manager.shutdown();
+    }
+}
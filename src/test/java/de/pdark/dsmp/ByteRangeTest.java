@@ -0,0 +1,73 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.List;
+
+public class ByteRangeTest
+{
+    @Test
+    public void testSingle () throws Exception
+    {
+        assertEquals ("[0-99]", ByteRange.parse("bytes=0-99", 1000).toString());
+        assertEquals ("[500-999]", ByteRange.parse("bytes=500-", 1000).toString());
+        assertEquals ("[900-999]", ByteRange.parse("bytes=-100", 1000).toString());
+        assertEquals ("[0-999]", ByteRange.parse("bytes=-5000", 1000).toString());
+        assertEquals ("[990-999]", ByteRange.parse("Bytes=990-5000 ", 1000).toString());
+    }
+
+    @Test
+    public void testMultiple () throws Exception
+    {
+        List<ByteRange> ranges = ByteRange.parse("bytes=500-599, 0-99", 1000);
+        assertEquals ("[0-99, 500-599]", ranges.toString());
+        assertEquals (100, ranges.get(0).getLength());
+        assertEquals ("bytes 500-599/1000", ranges.get(1).toContentRange(1000));
+        
+        // Overlapping and adjacent ranges are merged
+        assertEquals ("[0-199]", ByteRange.parse("bytes=0-99,100-149,50-199", 1000).toString());
+    }
+
+    @Test
+    public void testUnsatisfiable () throws Exception
+    {
+        assertTrue (ByteRange.parse("bytes=1000-", 1000).isEmpty());
+        assertTrue (ByteRange.parse("bytes=-0", 1000).isEmpty());
+        assertTrue (ByteRange.parse("bytes=0-10", 0).isEmpty());
+        assertEquals ("[0-9]", ByteRange.parse("bytes=2000-3000,0-9", 1000).toString());
+    }
+
+    @Test
+    public void testIgnored () throws Exception
+    {
+        assertNull (ByteRange.parse("items=0-10", 1000));
+        assertNull (ByteRange.parse("bytes=10-0", 1000));
+        assertNull (ByteRange.parse("bytes=a-b", 1000));
+        assertNull (ByteRange.parse("bytes=10", 1000));
+        assertNull (ByteRange.parse("bytes=1-2-3", 1000));
+        
+        StringBuilder many = new StringBuilder ("bytes=0-0");
+        for (int i=1; i<=ByteRange.MAX_RANGES; i++)
+            many.append(",").append(i*2).append("-").append(i*2);
+        assertNull (ByteRange.parse(many.toString(), 1000));
+    }
+}
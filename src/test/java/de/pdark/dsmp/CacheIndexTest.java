@@ -0,0 +1,200 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+public class CacheIndexTest
+{
+    private TempCache temp;
+    private File cacheDir;
+    private File patchesDir;
+
+    @Test
+    public void testCachedFilesAreIndexed () throws Exception
+    {
+        FileUtils.writeStringToFile(new File (cacheDir, "repo/a/b/1/b-1.pom"), "<project/>");
+        CacheIndex index = createIndex ("");
+        
+        CacheIndex.Entry e = index.lookup(new URL ("http://repo/a/b/1/b-1.pom"));
+        assertNotNull (e);
+        assertEquals (10, e.getLength());
+        assertEquals ("application/xml", e.getContentType());
+        assertEquals (false, e.isPatch());
+        
+        // The index answers without looking at the disk
+        assertTrue (e.getFile().delete());
+        assertNotNull (index.lookup(new URL ("http://repo/a/b/1/b-1.pom")));
+        
+        CacheIndex.forget(e.getFile());
+        assertNull (index.lookup(new URL ("http://repo/a/b/1/b-1.pom")));
+    }
+
+    @Test
+    public void testPortIsPartOfThePath () throws Exception
+    {
+        FileUtils.writeStringToFile(new File (cacheDir, "repo/8081/a/b-1.jar"), "jar");
+        CacheIndex index = createIndex ("");
+        
+        assertNotNull (index.lookup(new URL ("http://repo:8081/a/b-1.jar")));
+        assertNull (index.lookup(new URL ("http://repo/a/b-1.jar")));
+    }
+
+    @Test
+    public void testFilesAddedLaterAreFound () throws Exception
+    {
+        CacheIndex index = createIndex ("");
+        File f = new File (cacheDir, "repo/a/b/1/b-1.jar");
+        FileUtils.writeStringToFile(f, "jar");
+        
+        assertNotNull (index.lookup(new URL ("http://repo/a/b/1/b-1.jar")));
+        
+        FileUtils.writeStringToFile(f, "new jar");
+        index.update(f);
+        assertEquals (7, index.lookup(new URL ("http://repo/a/b/1/b-1.jar")).getLength());
+    }
+
+    @Test
+    public void testRecentFailuresDontTouchTheDisk () throws Exception
+    {
+        CacheIndex index = createIndex ("");
+        assertTrue (index.isComplete());
+        File f = new File (cacheDir, "repo/a/b/1/b-1.jar");
+        URL url = new URL ("http://repo/a/b/1/b-1.jar");
+        ProxyDownload.getNegativeCache().put(url.toString(), "HTTP/1.1 404 Not Found", 60000);
+        try
+        {
+            FileUtils.writeStringToFile(f, "jar");
+            long hits = ProxyDownload.getNegativeCache().getHits();
+            assertNull (index.lookup(url));
+            assertFalse (index.contains(f));
+            assertEquals (hits, ProxyDownload.getNegativeCache().getHits());
+        }
+        finally
+        {
+            ProxyDownload.getNegativeCache().remove(url.toString());
+        }
+        assertNotNull (index.lookup(url));
+        assertTrue (index.contains(f));
+    }
+
+    @Test
+    public void testPatchesWin () throws Exception
+    {
+        FileUtils.writeStringToFile(new File (cacheDir, "repo/a/b/1/b-1.pom"), "cached");
+        FileUtils.writeStringToFile(new File (patchesDir, "repo/a/b/1/b-1.pom"), "patched");
+        CacheIndex index = createIndex ("");
+        
+        CacheIndex.Entry e = index.lookup(new URL ("http://repo/a/b/1/b-1.pom"));
+        assertTrue (e.isPatch());
+        assertEquals (7, e.getLength());
+    }
+
+    @Test
+    public void testChecksumsOfPatchesAreGenerated () throws Exception
+    {
+        FileUtils.writeStringToFile(new File (patchesDir, "repo/a/b/1/b-1.pom"), "patched");
+        CacheIndex index = createIndex ("");
+        
+        CacheIndex.Entry e = index.lookup(new URL ("http://repo/a/b/1/b-1.pom.sha1"));
+        assertNotNull (e);
+        assertTrue (e.isPatch());
+        assertTrue (e.getFile().exists());
+    }
+
+    @Test
+    public void testNewPatchesAreSeen () throws Exception
+    {
+        CacheIndex index = createIndex ("");
+        URL url = new URL ("http://repo/a/b/1/b-1.pom");
+        assertNull (index.lookup(url));
+        
+        FileUtils.writeStringToFile(new File (patchesDir, "repo/a/b/1/b-1.pom"), "patched");
+        CacheIndex.Entry e = null;
+        for (int i=0; i<100 && (e == null || e.getLength() != 7); i++)
+        {
+            Thread.sleep(100);
+            e = index.lookup(url);
+        }
+        assertNotNull (e);
+        assertTrue (e.isPatch());
+        assertEquals (7, e.getLength());
+    }
+
+    @Test
+    public void testDisabledIndexAsksTheDisk () throws Exception
+    {
+        CacheIndex index = createIndex ("<index enabled=\"false\" />");
+        File f = new File (cacheDir, "repo/a/b/1/b-1.pom");
+        FileUtils.writeStringToFile(f, "<project/>");
+        
+        assertNotNull (index.lookup(new URL ("http://repo/a/b/1/b-1.pom")));
+        assertTrue (f.delete());
+        assertNull (index.lookup(new URL ("http://repo/a/b/1/b-1.pom")));
+        assertEquals (0, index.size());
+    }
+
+    @Test
+    public void testOldSnapshotKeepsTheNewIndex () throws Exception
+    {
+        Config old = temp.createConfig ("");
+        CacheIndex oldIndex = CacheIndex.get(old);
+        Config changed = temp.createConfig ("<index enabled=\"false\" />");
+        CacheIndex index = CacheIndex.get(changed);
+        assertNotSame (oldIndex, index);
+        
+        // For example a download which started before the config was reloaded
+        assertSame (index, CacheIndex.get(old));
+        assertSame (index, CacheIndex.get(changed));
+    }
+
+    private CacheIndex createIndex (String extra) throws Exception
+    {
+        CacheIndex index = CacheIndex.get(temp.createConfig (extra));
+        assertTrue (index.awaitScan(10, TimeUnit.SECONDS));
+        return index;
+    }
+
+    @Before
+    public void setUp () throws Exception
+    {
+        temp = new TempCache ("index");
+        cacheDir = temp.getCacheDir();
+        patchesDir = temp.getPatchesDir();
+    }
+
+    @After
+    public void tearDown () throws Exception
+    {
+        CacheIndex.shutdownAll();
+        temp.delete();
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URL;
+
+public class CacheJanitorTest
+{
+    private TempCache temp;
+    private File cacheDir;
+    private File patchesDir;
+
+    @Test
+    public void testGroupKey () throws Exception
+    {
+        assertEquals ("repo/a/b-1.jar", CacheJanitor.getGroupKey("repo/a/b-1.jar"));
+        assertEquals ("repo/a/b-1.jar", CacheJanitor.getGroupKey("repo/a/b-1.jar.sha1"));
+        assertEquals ("repo/a/b-1.jar", CacheJanitor.getGroupKey("repo/a/b-1.jar.asc.md5"));
+        assertEquals ("repo/a/b-1.pom", CacheJanitor.getGroupKey("repo/a/b-1.pom"+GzipVariants.SUFFIX));
+        assertEquals ("repo/a/b-1.pom", CacheJanitor.getGroupKey("repo/a/b-1.pom.bak"));
+        assertEquals ("repo/a/b-1.pom", CacheJanitor.getGroupKey("repo/a/b-1.pom"+ProxyDownload.VALIDATED_SUFFIX));
+        assertEquals ("repo/a/b-1.pom", CacheJanitor.getGroupKey("repo/a/b-1.pom"+CacheJanitor.STATUS_SUFFIX));
+        assertEquals ("repo/a/.sha1", CacheJanitor.getGroupKey("repo/a/.sha1"));
+    }
+
+    @Test
+    public void testNoLimit () throws Exception
+    {
+        write ("repo/a/1/a-1.jar", 1000, 10);
+        assertEquals (0, CacheJanitor.clean(temp.createConfig ("")));
+        assertTrue (new File (cacheDir, "repo/a/1/a-1.jar").exists());
+    }
+
+    @Test
+    public void testNoLimitForgetsUses () throws Exception
+    {
+        Config config = temp.createConfig ("<cache-limit files=\"10\" />");
+        assertTrue (CacheJanitor.track(config));
+        CacheJanitor.touch("repo/nolimit/1/nolimit-1.jar");
+        assertTrue (CacheJanitor.isUsed("repo/nolimit/1/nolimit-1.jar"));
+        
+        assertEquals (0, CacheJanitor.clean(temp.createConfig ("")));
+        assertFalse (CacheJanitor.isUsed("repo/nolimit/1/nolimit-1.jar"));
+        CacheJanitor.touch("repo/nolimit/1/nolimit-1.jar");
+        assertFalse (CacheJanitor.isUsed("repo/nolimit/1/nolimit-1.jar"));
+    }
+
+    @Test
+    public void testColdFilesAreEvictedWithSidecars () throws Exception
+    {
+        write ("repo/old/1/old-1.jar", 1000, 30);
+        write ("repo/old/1/old-1.jar.sha1", 40, 30);
+        write ("repo/mid/1/mid-1.jar", 1000, 20);
+        write ("repo/new/1/new-1.jar", 1000, 10);
+        write ("repo/new/1/new-1.jar.sha1", 40, 10);
+        
+        Config config = temp.createConfig ("<cache-limit size=\"2000\" />");
+        assertEquals (3, CacheJanitor.clean(config));
+        
+        assertFalse (new File (cacheDir, "repo/old/1/old-1.jar").exists());
+        assertFalse (new File (cacheDir, "repo/old/1/old-1.jar.sha1").exists());
+        assertFalse (new File (cacheDir, "repo/mid/1/mid-1.jar").exists());
+        assertTrue (new File (cacheDir, "repo/new/1/new-1.jar").exists());
+        assertTrue (new File (cacheDir, "repo/new/1/new-1.jar.sha1").exists());
+        assertEquals (1040, CacheJanitor.getCacheSize());
+        assertEquals (2, CacheJanitor.getCacheFiles());
+    }
+
+    @Test
+    public void testStatusFilesOfOlderVersions () throws Exception
+    {
+        write ("repo/old/1/old-1.jar", 1000, 30);
+        write ("repo/old/1/old-1.jar.status", 20, 30);
+        write ("repo/new/1/new-1.jar", 1000, 10);
+        write ("repo/new/1/new-1.jar.status", 20, 10);
+        write ("repo/gone/1/gone-1.jar.status", 20, 10);
+        
+        Config config = temp.createConfig ("<cache-limit size=\"1500\" />");
+        assertEquals (3, CacheJanitor.clean(config));
+        
+        // Evicted with the file
+        assertFalse (new File (cacheDir, "repo/old/1/old-1.jar.status").exists());
+        assertTrue (new File (cacheDir, "repo/new/1/new-1.jar.status").exists());
+        // Orphaned
+        assertFalse (new File (cacheDir, "repo/gone/1/gone-1.jar.status").exists());
+        assertEquals (1020, CacheJanitor.getCacheSize());
+    }
+
+    @Test
+    public void testUsedFilesAreKept () throws Exception
+    {
+        write ("repo/used/1/used-1.jar", 1000, 30);
+        write ("repo/new/1/new-1.jar", 1000, 10);
+        
+        Config config = temp.createConfig ("<cache-limit files=\"1\" />");
+        CacheJanitor.track(config);
+        // Finding the file in the index counts as a use
+        CacheIndex.get(config).lookup(new URL ("http://repo/used/1/used-1.jar.sha1"));
+        CacheIndex.get(config).lookup(new URL ("http://repo/used/1/used-1.jar"));
+        
+        assertEquals (1, CacheJanitor.clean(config));
+        assertTrue (new File (cacheDir, "repo/used/1/used-1.jar").exists());
+        assertFalse (new File (cacheDir, "repo/new/1/new-1.jar").exists());
+    }
+
+    @Test
+    public void testRecentFilesAndPatchesAreKept () throws Exception
+    {
+        write ("repo/old/1/old-1.jar", 1000, 30);
+        File recent = new File (cacheDir, "repo/recent/1/recent-1.jar");
+        FileUtils.writeByteArrayToFile(recent, new byte[1000]);
+        File patch = new File (patchesDir, "repo/old/1/old-1.jar");
+        FileUtils.writeByteArrayToFile(patch, new byte[1000]);
+        patch.setLastModified(System.currentTimeMillis() - 100*60*1000L);
+        
+        Config config = temp.createConfig ("<cache-limit size=\"100\" />");
+        assertEquals (1, CacheJanitor.clean(config));
+        assertFalse (new File (cacheDir, "repo/old/1/old-1.jar").exists());
+        assertTrue (recent.exists());
+        assertTrue (patch.exists());
+    }
+
+    @Test
+    public void testSameContentCountsOnce () throws Exception
+    {
+        write ("central/x/1/x-1.jar", 1000, 30);
+        File mirror = new File (cacheDir, "mirror/x/1/x-1.jar");
+        mirror.getParentFile().mkdirs();
+        java.nio.file.Files.createLink(mirror.toPath(), new File (cacheDir, "central/x/1/x-1.jar").toPath());
+        
+        assertEquals (0, CacheJanitor.clean(temp.createConfig ("<cache-limit size=\"1500\" />")));
+        assertEquals (1000, CacheJanitor.getCacheSize());
+        assertEquals (2, CacheJanitor.getCacheFiles());
+    }
+
+    @Test
+    public void testRebalance () throws Exception
+    {
+        for (int i=0; i<20; i++)
+        {
+            write ("repo/x/"+i+"/x-"+i+".jar", 100, 10);
+            write ("repo/x/"+i+"/x-"+i+".jar.sha1", 40, 10);
+        }
+        // A new file which might still be written
+        write ("repo/new/1/new-1.jar", 100, 0);
+        
+        Config config = temp.createConfig ("<directories cache=\"cache\" patches=\"patches\"><cache dir=\"disk2\" /></directories>", "");
+        CacheRoots roots = config.getCacheRoots();
+        File disk2 = new File (temp.getBaseDir(), "disk2");
+        int expected = 0;
+        for (int i=0; i<20; i++)
+        {
+            if (roots.getHome("repo/x/"+i+"/x-"+i+".jar").equals(disk2))
+                expected += 2;
+        }
+        assertTrue (expected > 0);
+        // Files are found before they are moved
+        assertEquals (new File (cacheDir, "repo/x/0/x-0.jar"), CacheIndex.get(config).lookup(new URL ("http://repo/x/0/x-0.jar")).getFile());
+        
+        assertEquals (expected, CacheJanitor.rebalance(config));
+        assertEquals (0, CacheJanitor.rebalance(config));
+        for (int i=0; i<20; i++)
+        {
+            String key = "repo/x/"+i+"/x-"+i+".jar";
+            File home = roots.getHome(key);
+            File other = home.equals(disk2) ? cacheDir : disk2;
+            assertTrue (key, new File (home, key).exists());
+            assertTrue (key, new File (home, key+".sha1").exists());
+            assertFalse (key, new File (other, key).exists());
+            assertEquals (key, new File (home, key), CacheIndex.get(config).lookup(new URL ("http://"+key)).getFile());
+        }
+        assertTrue (new File (cacheDir, "repo/new/1/new-1.jar").exists());
+    }
+
+    /** Write a file of <code>size</code> bytes which was changed <code>age</code> minutes ago */
+    private void write (String path, int size, int age) throws Exception
+    {
+        File f = new File (cacheDir, path);
+        FileUtils.writeByteArrayToFile(f, new byte[size]);
+        f.setLastModified(System.currentTimeMillis() - age*60*1000L);
+    }
+
+    @Before
+    public void setUp () throws Exception
+    {
+        temp = new TempCache ("janitor");
+        cacheDir = temp.getCacheDir();
+        patchesDir = temp.getPatchesDir();
+    }
+
+    @After
+    public void tearDown () throws Exception
+    {
+        CacheIndex.shutdownAll();
+        temp.delete();
+    }
+}
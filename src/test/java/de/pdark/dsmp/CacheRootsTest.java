@@ -0,0 +1,132 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class CacheRootsTest
+{
+    private File baseDir;
+    private File a;
+    private File b;
+    private File c;
+
+    @Test
+    public void testSingleRoot () throws Exception
+    {
+        CacheRoots roots = new CacheRoots (a);
+        assertEquals (new File (a, "repo/x/1/x-1.jar"), roots.getFile("repo/x/1/x-1.jar"));
+        assertEquals (a, roots.getRoot(new File (a, "repo/x/1/x-1.jar")));
+        assertNull (roots.getRoot(new File (b, "repo/x/1/x-1.jar")));
+    }
+
+    @Test
+    public void testSidecarsShareTheHome () throws Exception
+    {
+        CacheRoots roots = new CacheRoots (Arrays.asList(a, b, c), Collections.<File>emptyList());
+        for (int i=0; i<100; i++)
+        {
+            String key = "repo/x/"+i+"/x-"+i+".jar";
+            File home = roots.getHome(key);
+            assertEquals (key, home, roots.getHome(key+".sha1"));
+            assertEquals (key, home, roots.getHome(key+".asc.md5"));
+            assertEquals (key, home, roots.getHome(key+".bak"));
+            // Stable across instances
+            assertEquals (key, home, new CacheRoots (Arrays.asList(a, b, c), Collections.<File>emptyList()).getHome(key));
+        }
+    }
+
+    @Test
+    public void testAddingARootMovesFewFiles () throws Exception
+    {
+        CacheRoots before = new CacheRoots (Arrays.asList(a, b), Collections.<File>emptyList());
+        CacheRoots after = new CacheRoots (Arrays.asList(a, b, c), Collections.<File>emptyList());
+        int[] counts = new int[3];
+        int moved = 0;
+        int n = 3000;
+        for (int i=0; i<n; i++)
+        {
+            String key = "repo/x/"+i+"/x-"+i+".jar";
+            File home = after.getHome(key);
+            counts[Arrays.asList(a, b, c).indexOf(home)] ++;
+            if (!home.equals(before.getHome(key)))
+            {
+                // Files only move to the new directory
+                assertEquals (key, c, home);
+                moved ++;
+            }
+        }
+        assertEquals (counts[2], moved);
+        for (int count: counts)
+            assertTrue (Arrays.toString(counts), count > n/4 && count < n/2);
+    }
+
+    @Test
+    public void testMetadataRoot () throws Exception
+    {
+        CacheRoots roots = new CacheRoots (Arrays.asList(a, b, c), Collections.singletonList(c));
+        for (int i=0; i<100; i++)
+        {
+            assertEquals (c, roots.getHome("repo/x/"+i+"/x-"+i+".pom"));
+            assertEquals (c, roots.getHome("repo/x/"+i+"/x-"+i+".pom.sha1"));
+            assertEquals (c, roots.getHome("repo/x/"+i+"/maven-metadata.xml"));
+            assertFalse (c.equals(roots.getHome("repo/x/"+i+"/x-"+i+".jar")));
+        }
+    }
+
+    @Test
+    public void testFindFilesOutsideOfTheirHome () throws Exception
+    {
+        CacheRoots roots = new CacheRoots (Arrays.asList(a, b), Collections.<File>emptyList());
+        String key = "repo/x/1/x-1.jar";
+        File home = roots.getFile(key);
+        assertEquals (home, roots.find(key));
+        
+        File other = new File (home.getAbsolutePath().startsWith(a.getAbsolutePath()) ? b : a, key);
+        FileUtils.writeStringToFile(other, "x");
+        assertEquals (other, roots.find(key));
+        
+        FileUtils.writeStringToFile(home, "x");
+        assertEquals (home, roots.find(key));
+    }
+
+    @Before
+    public void setUp () throws Exception
+    {
+        baseDir = new File(FileUtils.getTempDirectory(), "dsmp-roots-"+System.nanoTime());
+        a = new File (baseDir, "a");
+        b = new File (baseDir, "b");
+        c = new File (baseDir, "c");
+    }
+
+    @After
+    public void tearDown () throws Exception
+    {
+        FileUtils.deleteDirectory(baseDir);
+    }
+}
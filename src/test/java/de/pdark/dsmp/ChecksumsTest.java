@@ -0,0 +1,54 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ChecksumsTest
+{
+    @Test
+    public void testChecksums () throws Exception
+    {
+        Checksums checksums = new Checksums ();
+        byte[] data = "xabcx".getBytes("ISO-8859-1");
+        checksums.update(data, 1, 3);
+        
+        assertEquals ("900150983cd24fb0d6963f7d28e17f72", checksums.get("md5"));
+        assertEquals ("a9993e364706816aba3e25717850c26c9cd0d89d", checksums.get("sha1"));
+        assertEquals ("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", checksums.get("sha256"));
+    }
+
+    @Test
+    public void testParse () throws Exception
+    {
+        assertEquals ("a9993e364706816aba3e25717850c26c9cd0d89d", Checksums.parse("A9993E364706816ABA3E25717850C26C9CD0D89D\n"));
+        assertEquals ("a9993e364706816aba3e25717850c26c9cd0d89d", Checksums.parse("a9993e364706816aba3e25717850c26c9cd0d89d  b-1.jar\n"));
+        assertNull (Checksums.parse(" \n"));
+    }
+
+    @Test
+    public void testIsSidecar () throws Exception
+    {
+        assertTrue (Checksums.isSidecar("/a/b/1/b-1.jar.sha1"));
+        assertTrue (Checksums.isSidecar("/a/b/1/b-1.jar.asc"));
+        assertFalse (Checksums.isSidecar("/a/b/1/b-1.jar"));
+    }
+}
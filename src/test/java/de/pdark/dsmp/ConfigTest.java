@@ -17,9 +17,11 @@ package de.pdark.dsmp;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -71,6 +73,21 @@ public class ConfigTest
         }
     }
 
+    @Test
+    public void testGetServerExecutor () throws Exception
+    {
+        assertEquals (Config.EXECUTOR_POOL, config.getServerExecutor());
+        assertEquals (20, config.getMaxThreads());
+        assertEquals (100, config.getQueueSize());
+    }
+
+    @Test
+    public void testGetAdmin () throws Exception
+    {
+        assertEquals (0, config.getAdminPort());
+        assertEquals ("127.0.0.1", config.getAdminAddress());
+    }
+
     @Test
     public void testGetCacheDirectory () throws Exception
     {
@@ -179,6 +196,185 @@ public class ConfigTest
     {
         assertFalse (config.isAllowed(new URL ("http://people.apache.org/maven-snapshot-repository/org/apache/maven/plugins/maven-source-plugin/")));
     }
+
+    @Test
+    public void testIsAllowedGlob () throws Exception
+    {
+        assertFalse (config.isAllowed("http://glob.example/org/x/1.0-SNAPSHOT/x-1.0-SNAPSHOT.jar"));
+        assertTrue (config.isAllowed("http://glob.example/org/x/1.0-SNAPSHOT/x-1.0-SNAPSHOT.pom"));
+    }
+
+    @Test
+    public void testCacheControl () throws Exception
+    {
+        assertEquals ("max-age=60", config.getCacheControl("http://repo1.maven.org/maven2/org/x/maven-metadata.xml"));
+        assertEquals ("no-cache", config.getCacheControl("http://repo1.maven.org/maven2/org/x/1.0-SNAPSHOT/x-1.0-SNAPSHOT.jar"));
+        assertEquals ("max-age=31536000, immutable", config.getCacheControl("http://repo1.maven.org/maven2/org/x/1.0/x-1.0.jar"));
+        assertNull (config.getCacheControl("http://other.example/org/x/1.0/x-1.0.jar"));
+    }
+
+    @Test
+    public void testPolicies () throws Exception
+    {
+        assertEquals (5*60*1000L, config.getTTL("http://repo1.maven.org/maven2/org/x/maven-metadata.xml"));
+        assertEquals (90*1000L, config.getTTL("http://repo1.maven.org/maven2/org/x/1.0-SNAPSHOT/x-1.0-SNAPSHOT.jar"));
+        assertEquals (-1, config.getTTL("http://repo1.maven.org/maven2/org/apache/x/1.0/x-1.0.jar"));
+        assertEquals (24*60*60*1000L, config.getTTL("http://repo1.maven.org/maven2/org/x/1.0/x-1.0.jar"));
+        assertEquals (-1, config.getTTL("http://other.example/org/x/1.0/x-1.0.jar"));
+        
+        long now = System.currentTimeMillis();
+        assertFalse (config.isExpired("http://repo1.maven.org/maven2/org/x/maven-metadata.xml", now - 60*1000L));
+        assertTrue (config.isExpired("http://repo1.maven.org/maven2/org/x/maven-metadata.xml", now - 10*60*1000L));
+        assertFalse (config.isExpired("http://other.example/org/x/1.0/x-1.0.jar", 0));
+    }
+
+    @Test
+    public void testCacheLimitDefaults () throws Exception
+    {
+        assertEquals (0, config.getCacheLimitSize());
+        assertEquals (0, config.getCacheLimitFiles());
+        assertEquals (5*60*1000L, config.getCacheLimitInterval());
+    }
+
+    @Test
+    public void testCacheRoots () throws Exception
+    {
+        assertEquals (1, config.getCacheRoots().getRoots().size());
+        
+        File baseDir = new File(FileUtils.getTempDirectory(), "dsmp-"+System.currentTimeMillis());
+        try
+        {
+            System.clearProperty("dsmp.conf");
+            File file = new File (baseDir, "dsmp.conf.xml");
+            FileUtils.writeStringToFile(file, "<dsmp-config>\n"
+                    + "<directories cache=\"cache\" patches=\"patches\">\n"
+                    + "  <cache dir=\"disk2\" />\n"
+                    + "  <cache dir=\"fast\" metadata=\"true\" />\n"
+                    + "</directories>\n"
+                    + "</dsmp-config>\n", "UTF-8");
+            config = new Config (baseDir.getAbsolutePath());
+            config.reload();
+            
+            CacheRoots roots = config.getCacheRoots();
+            assertEquals (3, roots.getRoots().size());
+            assertEquals (new File (baseDir, "cache"), config.getCacheDirectory());
+            assertEquals (new File (baseDir, "fast"), roots.getHome("repo/a/b/1/b-1.pom"));
+            assertTrue (new File (baseDir, "disk2").isDirectory());
+            
+            FileUtils.writeStringToFile(file, "<dsmp-config>\n"
+                    + "<directories cache=\"cache\" patches=\"patches\">\n"
+                    + "  <cache dir=\"cache/sub\" />\n"
+                    + "</directories>\n"
+                    + "</dsmp-config>\n", "UTF-8");
+            config = new Config (baseDir.getAbsolutePath());
+            try
+            {
+                config.reload();
+                fail ("Overlapping cache directories were accepted");
+            }
+            catch (RuntimeException e)
+            {
+                assertTrue (e.getMessage(), e.getMessage().contains("overlap"));
+            }
+        }
+        finally
+        {
+            FileUtils.deleteDirectory(baseDir);
+        }
+    }
+
+    @Test
+    public void testIsAllowedRegex () throws Exception
+    {
+        assertFalse (config.isAllowed("http://regex.example/org/x/1.0/x-1.0.tar.gz"));
+        assertTrue (config.isAllowed("http://regex.example/org/x/1.0/x-1.0.jar"));
+    }
+
+    @Test
+    public void testRedirectRegex () throws Exception
+    {
+        assertEquals ("http://maven.sateh.com/maven2/org/x",
+                config.getMirror("http://regex.example/m2/org/x"));
+        assertEquals ("http://regex.example/org/x", config.getMirror("http://regex.example/org/x"));
+    }
+
+    @Test
+    public void testRuleHits () throws Exception
+    {
+        RuleSet.Rule<String> rule = config.getMirrors().getRules().get(0);
+        long hits = rule.getHits();
+        config.getMirror("http://repo1.maven.org/maven2/org/x");
+        config.getMirror("http://maven.sateh.com/maven2/org/x");
+        assertEquals (hits + 1, rule.getHits());
+    }
+
+
+    @Test
+    public void testSnapshotDoesNotChange () throws Exception
+    {
+        File baseDir = new File(FileUtils.getTempDirectory(), "dsmp-"+System.currentTimeMillis());
+        try
+        {
+            File file = writeConfig (baseDir, 1234, 0);
+            config = new Config (baseDir.getAbsolutePath());
+            config.reload();
+            Config snapshot = config.snapshot();
+            
+            writeConfig (baseDir, 4321, file.lastModified() + 2000);
+            config.reload();
+            assertEquals (4321, config.getPort());
+            assertEquals (1234, snapshot.getPort());
+            
+            // Errors don't change the config
+            FileUtils.writeStringToFile(file, "<dsmp-config>", "UTF-8");
+            file.setLastModified(file.lastModified() + 4000);
+            config.reload();
+            assertEquals (4321, config.getPort());
+        }
+        finally
+        {
+            FileUtils.deleteDirectory(baseDir);
+        }
+    }
+
+    @Test
+    public void testWatcherReloadsConfig () throws Exception
+    {
+        File baseDir = new File(FileUtils.getTempDirectory(), "dsmp-"+System.currentTimeMillis());
+        ConfigWatcher watcher = null;
+        try
+        {
+            File file = writeConfig (baseDir, 1234, 0);
+            config = new Config (baseDir.getAbsolutePath());
+            config.reload();
+            watcher = new ConfigWatcher (config);
+            
+            writeConfig (baseDir, 4321, file.lastModified() + 2000);
+            long end = System.currentTimeMillis() + 30000;
+            while (config.getPort() != 4321 && System.currentTimeMillis() < end)
+                Thread.sleep (50);
+            assertEquals (4321, config.getPort());
+        }
+        finally
+        {
+            if (watcher != null)
+                watcher.close();
+            FileUtils.deleteDirectory(baseDir);
+        }
+    }
+
+    private File writeConfig (File baseDir, int port, long lastModified) throws Exception
+    {
+        System.clearProperty("dsmp.conf");
+        File file = new File (baseDir, "dsmp.conf.xml");
+        FileUtils.writeStringToFile(file, "<dsmp-config>\n"
+                + "<directories cache=\"cache\" patches=\"patches\" />\n"
+                + "<server port=\""+port+"\" />\n"
+                + "</dsmp-config>\n", "UTF-8");
+        if (lastModified != 0)
+            file.setLastModified(lastModified);
+        return file;
+    }
     
     private File oldBaseDir;
     
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+public class ContentStoreTest
+{
+    private TempCache temp;
+    private File cacheDir;
+
+    @Test
+    public void testStore () throws Exception
+    {
+        Config config = temp.createConfig ("<dedup enabled=\"true\" min-size=\"100\" />");
+        File a = write ("central/x/1/x-1.jar", 1000, 1);
+        File b = write ("mirror/x/1/x-1.jar", 1000, 1);
+        File c = write ("mirror/y/1/y-1.jar", 1000, 2);
+        a.setLastModified(System.currentTimeMillis() - 60*60*1000L);
+        
+        assertFalse (ContentStore.store(a, sha256 (a), config));
+        long deduplicated = ContentStore.getDeduplicatedFiles();
+        assertTrue (ContentStore.store(b, sha256 (b), config));
+        assertFalse (ContentStore.store(c, sha256 (c), config));
+        
+        assertEquals (deduplicated + 1, ContentStore.getDeduplicatedFiles());
+        assertEquals (3, ContentStore.getLinks(a));
+        assertEquals (3, ContentStore.getLinks(b));
+        assertEquals (2, ContentStore.getLinks(c));
+        assertTrue (ContentStore.getBlob(cacheDir, sha256 (a)).isFile());
+        // The date of the content is shared; b was just confirmed, a wasn't
+        assertEquals (a.lastModified(), b.lastModified());
+        assertTrue (System.currentTimeMillis() - a.lastModified() > 50*60*1000L);
+        assertTrue (System.currentTimeMillis() - ProxyDownload.getLastValidated(b) < 60*1000L);
+        assertTrue (System.currentTimeMillis() - ProxyDownload.getLastValidated(a) > 50*60*1000L);
+    }
+
+    @Test
+    public void testSmallFilesAndDisabled () throws Exception
+    {
+        File a = write ("central/x/1/x-1.pom", 50, 1);
+        File b = write ("central/x/1/x-1.jar", 1000, 1);
+        
+        assertFalse (ContentStore.store(a, sha256 (a), temp.createConfig ("<dedup enabled=\"true\" min-size=\"100\" />")));
+        assertFalse (ContentStore.store(b, sha256 (b), temp.createConfig ("")));
+        assertEquals (1, ContentStore.getLinks(a));
+        assertEquals (1, ContentStore.getLinks(b));
+        assertFalse (ContentStore.getBlobsDirectory(cacheDir).exists());
+    }
+
+    @Test
+    public void testCollect () throws Exception
+    {
+        Config config = temp.createConfig ("<dedup enabled=\"true\" min-size=\"100\" />");
+        File a = write ("central/x/1/x-1.jar", 1000, 1);
+        File b = write ("mirror/x/1/x-1.jar", 1000, 1);
+        String sha256 = sha256 (a);
+        ContentStore.store(a, sha256, config);
+        ContentStore.store(b, sha256, config);
+        
+        assertTrue (a.delete());
+        assertEquals (0, ContentStore.collect(config));
+        assertTrue (b.delete());
+        assertEquals (1, ContentStore.collect(config));
+        assertFalse (ContentStore.getBlob(cacheDir, sha256).exists());
+    }
+
+    /** Write a file of <code>size</code> bytes which all have the value <code>fill</code> */
+    private File write (String path, int size, int fill) throws Exception
+    {
+        byte[] data = new byte[size];
+        java.util.Arrays.fill(data, (byte)fill);
+        File f = new File (cacheDir, path);
+        FileUtils.writeByteArrayToFile(f, data);
+        return f;
+    }
+
+    private String sha256 (File f) throws Exception
+    {
+        return Checksums.calc(f).get("sha256");
+    }
+
+    @Before
+    public void setUp () throws Exception
+    {
+        temp = new TempCache ("store");
+        cacheDir = temp.getCacheDir();
+    }
+
+    @After
+    public void tearDown () throws Exception
+    {
+        temp.delete();
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A tiny HTTP server which plays a remote Maven repository in tests.
+ * 
+ * @author digulla
+ * 
+ */
+public class FakeRepository
+{
+    private final ServerSocket socket;
+    private final Map<String, byte[]> files = new ConcurrentHashMap<String, byte[]> ();
+    private final Map<String, Long> modified = new ConcurrentHashMap<String, Long> ();
+    private final AtomicInteger requests = new AtomicInteger ();
+    private final AtomicInteger connections = new AtomicInteger ();
+    private final ConcurrentHashMap<String, AtomicInteger> requestsByPath = new ConcurrentHashMap<String, AtomicInteger> ();
+    private volatile long delay;
+    private volatile boolean sendLength = true;
+    private volatile long bandwidth;
+    private volatile double errorRate;
+    private volatile double notFoundRate;
+    private volatile boolean run = true;
+
+    public FakeRepository () throws IOException
+    {
+        socket = new ServerSocket (0);
+        Thread t = new Thread ("fake-repository") {
+            @Override
+            public void run ()
+            {
+                acceptLoop ();
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** The URL of the root of the repository (with a trailing slash). */
+    public String getURL ()
+    {
+        return "http://localhost:"+socket.getLocalPort()+"/";
+    }
+
+    public void put (String path, String content) throws IOException
+    {
+        put (path, content.getBytes("ISO-8859-1"));
+    }
+
+    public void put (String path, byte[] content)
+    {
+        put (path, content, System.currentTimeMillis());
+    }
+
+    /** Add a file which was changed at <code>lastModified</code> (for If-Modified-Since). */
+    public void put (String path, byte[] content, long lastModified)
+    {
+        files.put("/"+path, content);
+        modified.put("/"+path, lastModified);
+    }
+
+    public void remove (String path)
+    {
+        files.remove("/"+path);
+        modified.remove("/"+path);
+    }
+
+    /** Wait this many milliseconds before answering a request. */
+    public void setDelay (long delay)
+    {
+        this.delay = delay;
+    }
+
+    /** Send at most this many bytes per second (0 means no limit). */
+    public void setBandwidth (long bytesPerSecond)
+    {
+        this.bandwidth = bytesPerSecond;
+    }
+
+    /** Answer this fraction of the requests with "503 Service Unavailable". */
+    public void setErrorRate (double errorRate)
+    {
+        this.errorRate = errorRate;
+    }
+
+    /** Answer this fraction of the requests with "404 Not Found", even if the file exists. */
+    public void setNotFoundRate (double notFoundRate)
+    {
+        this.notFoundRate = notFoundRate;
+    }
+
+    /**
+     * If <code>false</code>, the repository doesn't send a Content-Length header
+     * and closes the connection after the body instead.
+     */
+    public void setSendLength (boolean sendLength)
+    {
+        this.sendLength = sendLength;
+    }
+
+    /** The number of requests which were answered so far. */
+    public int getRequests ()
+    {
+        return requests.get();
+    }
+
+    /** The number of requests for <code>path</code> which were answered so far. */
+    public int getRequests (String path)
+    {
+        AtomicInteger count = requestsByPath.get("/"+path);
+        return count == null ? 0 : count.get();
+    }
+
+    /** The number of connections which were accepted so far. */
+    public int getConnections ()
+    {
+        return connections.get();
+    }
+
+    public void close () throws IOException
+    {
+        run = false;
+        socket.close();
+    }
+
+    private void acceptLoop ()
+    {
+        while (run)
+        {
+            final Socket client;
+            try
+            {
+                client = socket.accept();
+            }
+            catch (IOException e)
+            {
+                return;
+            }
+            connections.incrementAndGet();
+
+            Thread t = new Thread ("fake-repository-connection") {
+                @Override
+                public void run ()
+                {
+                    try
+                    {
+                        serve (client);
+                    }
+                    catch (IOException e)
+                    {
+                        // Client went away
+                    }
+                    finally
+                    {
+                        try
+                        {
+                            client.close();
+                        }
+                        catch (IOException e)
+                        {
+                            // Ignore
+                        }
+                    }
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    private void serve (Socket client) throws IOException
+    {
+        InputStream in = new BufferedInputStream (client.getInputStream());
+        OutputStream out = new BufferedOutputStream (client.getOutputStream());
+
+        String requestLine;
+        while ((requestLine = readLine (in)) != null)
+        {
+            boolean close = false;
+            long ifModifiedSince = -1;
+            String line;
+            while ((line = readLine (in)) != null && line.length() > 0)
+            {
+                if (line.equalsIgnoreCase("Connection: close"))
+                    close = true;
+                if (line.regionMatches(true, 0, "If-Modified-Since:", 0, 18))
+                    ifModifiedSince = Response.parseDate(line.substring(18));
+            }
+
+            String[] parts = requestLine.split(" ");
+            String path = parts[1];
+            if (path.startsWith("http://"))
+                path = path.substring(path.indexOf('/', 7));
+
+            requests.incrementAndGet();
+            AtomicInteger count = new AtomicInteger ();
+            AtomicInteger old = requestsByPath.putIfAbsent(path, count);
+            (old == null ? count : old).incrementAndGet();
+            if (delay > 0)
+            {
+                try
+                {
+                    Thread.sleep(delay);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            byte[] content = files.get(path);
+            Long lastModified = modified.get(path);
+            double random = errorRate > 0 || notFoundRate > 0 ? ThreadLocalRandom.current().nextDouble() : 1;
+            if (random < errorRate)
+            {
+                out.write("HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\n\r\n".getBytes("ISO-8859-1"));
+            }
+            else if (content == null || random < errorRate + notFoundRate)
+            {
+                out.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n".getBytes("ISO-8859-1"));
+            }
+            else if (ifModifiedSince != -1 && lastModified != null && lastModified.longValue() / 1000 <= ifModifiedSince / 1000)
+            {
+                out.write("HTTP/1.1 304 Not Modified\r\n\r\n".getBytes("ISO-8859-1"));
+            }
+            else if (!sendLength)
+            {
+                out.write("HTTP/1.1 200 OK\r\nConnection: close\r\n\r\n".getBytes("ISO-8859-1"));
+                if (!"HEAD".equals (parts[0]))
+                    writeBody (out, content);
+                out.flush();
+                return;
+            }
+            else
+            {
+                out.write(("HTTP/1.1 200 OK\r\nContent-Length: "+content.length+"\r\n\r\n").getBytes("ISO-8859-1"));
+                if (!"HEAD".equals (parts[0]))
+                    writeBody (out, content);
+            }
+            out.flush();
+
+            if (close)
+                return;
+        }
+    }
+
+    private void writeBody (OutputStream out, byte[] content) throws IOException
+    {
+        long limit = bandwidth;
+        if (limit <= 0)
+        {
+            out.write(content);
+            return;
+        }
+
+        int piece = 8*1024;
+        for (int pos=0; pos<content.length; pos+=piece)
+        {
+            out.write(content, pos, Math.min (piece, content.length - pos));
+            out.flush();
+            try
+            {
+                Thread.sleep(piece * 1000L / limit);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private String readLine (InputStream in) throws IOException
+    {
+        StringBuilder buffer = new StringBuilder ();
+        int c;
+        while ((c = in.read()) != -1)
+        {
+            if (c == '\n')
+                return buffer.toString();
+            if (c != '\r')
+                buffer.append((char)c);
+        }
+        return buffer.length() == 0 ? null : buffer.toString();
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HotCacheTest
+{
+    @Test
+    public void testGetAndPut () throws Exception
+    {
+        HotCache cache = new HotCache ();
+        File f = new File ("a.pom");
+        assertNull (cache.get(f, 4, 1000, false));
+        
+        cache.put(f, 4, 1000, response ("HEAD", "BODY"), 4, 10000);
+        assertEquals ("HEADBODY", string (cache.get(f, 4, 1000, false)));
+        assertEquals ("HEAD", string (cache.get(f, 4, 1000, true)));
+        assertEquals (2, cache.getHits());
+        assertEquals (1, cache.getMisses());
+    }
+
+    @Test
+    public void testChangedFileIsDropped () throws Exception
+    {
+        HotCache cache = new HotCache ();
+        File f = new File ("a.pom");
+        cache.put(f, 4, 1000, response ("HEAD", "BODY"), 4, 10000);
+        
+        assertNull (cache.get(f, 4, 2000, false));
+        assertEquals (0, cache.getCount());
+        
+        cache.put(f, 4, 1000, response ("HEAD", "BODY"), 4, 10000);
+        cache.remove(f);
+        assertNull (cache.get(f, 4, 1000, false));
+    }
+
+    @Test
+    public void testBudget () throws Exception
+    {
+        HotCache cache = new HotCache ();
+        for (int i=0; i<100; i++)
+            cache.put(new File (i+".pom"), 96, 1000, response ("HEAD", new String (new char[96])), 4, 5000);
+        
+        assertTrue (String.valueOf (cache.getSize()), cache.getSize() <= 5000);
+        assertTrue (cache.getEvictions() > 0);
+    }
+
+    @Test
+    public void testPopularFilesStay () throws Exception
+    {
+        HotCache cache = new HotCache ();
+        String body = new String (new char[96]);
+        File popular = new File ("popular.pom");
+        for (int i=0; i<20; i++)
+            cache.get(popular, 96, 1000, false);
+        cache.put(popular, 96, 1000, response ("HEAD", body), 4, 1000);
+        
+        // Files which are requested only once don't push it out
+        for (int i=0; i<100; i++)
+        {
+            File f = new File (i+".pom");
+            cache.get(f, 96, 1000, false);
+            cache.put(f, 96, 1000, response ("HEAD", body), 4, 1000);
+        }
+        
+        assertNotNull (cache.get(popular, 96, 1000, false));
+    }
+
+    @Test
+    public void testConcurrentReaders () throws Exception
+    {
+        final HotCache cache = new HotCache ();
+        final File f = new File ("a.pom");
+        cache.put(f, 4, 1000, response ("HEAD", "BODY"), 4, 10000);
+        
+        final AtomicInteger errors = new AtomicInteger ();
+        Thread[] threads = new Thread[4];
+        for (int i=0; i<threads.length; i++)
+        {
+            final int id = i;
+            threads[i] = new Thread ()
+            {
+                @Override
+                public void run ()
+                {
+                    try
+                    {
+                        for (int j=0; j<10000; j++)
+                        {
+                            if (!"HEADBODY".equals (string (cache.get(f, 4, 1000, false))))
+                                errors.incrementAndGet();
+                            
+                            File other = new File (id+"-"+(j % 50)+".pom");
+                            if (cache.get(other, 4, 1000, false) == null)
+                                cache.put(other, 4, 1000, response ("HEAD", "BODY"), 4, 10000);
+                        }
+                    }
+                    catch (Exception e)
+                    {
+                        errors.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t: threads)
+            t.join();
+        
+        assertEquals (0, errors.get());
+        assertEquals (cache.getCount() * 8, cache.getSize());
+        assertTrue (String.valueOf (cache.getSize()), cache.getSize() <= 10000);
+    }
+
+    private ByteBuffer response (String header, String body) throws Exception
+    {
+        byte[] bytes = (header + body).getBytes("ISO-8859-1");
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+        return buffer;
+    }
+
+    private String string (ByteBuffer buffer) throws Exception
+    {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String (bytes, "ISO-8859-1");
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HttpRequestParserTest
+{
+    private HttpRequestParser parser = new HttpRequestParser (HttpRequestParser.MAX_HEADER_SIZE);
+    private HttpRequest request = new HttpRequest ();
+
+    @Test
+    public void testGet () throws Exception
+    {
+        byte[] data = bytes ("GET http://repo/a/b.pom HTTP/1.1\r\n"
+                + "Host: repo\r\n"
+                + "proxy-connection:  Keep-Alive \r\n"
+                + "If-Modified-Since: Sat, 29 Oct 1994 19:43:31 GMT\r\n"
+                + "If-None-Match: \"1a-2b\"\r\n"
+                + "If-Range: \"1a-2b\"\r\n"
+                + "User-Agent: Apache-Maven/3.9\r\n"
+                + "RANGE: bytes=0-99\r\n"
+                + "\r\n");
+        assertEquals (data.length, parser.parse(data, 0, data.length, request));
+        assertEquals ("GET", request.getMethod());
+        assertEquals ("http://repo/a/b.pom", request.getDownloadURL());
+        assertTrue (request.isHttp11());
+        assertFalse (request.isHeadOnly());
+        assertTrue (request.isKeepAlive());
+        assertFalse (request.isClose());
+        assertEquals ("Sat, 29 Oct 1994 19:43:31 GMT", request.getIfModifiedSince());
+        assertEquals ("bytes=0-99", request.getRange());
+        assertEquals ("\"1a-2b\"", request.getIfNoneMatch());
+        assertEquals ("\"1a-2b\"", request.getIfRange());
+    }
+
+    @Test
+    public void testAcceptEncoding () throws Exception
+    {
+        byte[] data = bytes ("GET http://repo/a/b.pom HTTP/1.1\r\nAccept-Encoding: deflate, GZIP;q=0.5\r\n\r\n");
+        parser.parse(data, 0, data.length, request);
+        assertEquals ("deflate, GZIP;q=0.5", request.getAcceptEncoding());
+        assertTrue (request.acceptsGzip());
+        
+        request.setAcceptEncoding("gzip; q=0.0, identity");
+        assertFalse (request.acceptsGzip());
+        request.setAcceptEncoding("*");
+        assertTrue (request.acceptsGzip());
+        request.setAcceptEncoding("deflate");
+        assertFalse (request.acceptsGzip());
+    }
+
+    @Test
+    public void testHeadWithLineFeeds () throws Exception
+    {
+        byte[] data = bytes ("\r\nHEAD http://repo/a/b.pom HTTP/1.0\nConnection: TE, close\n\n");
+        assertEquals (data.length, parser.parse(data, 0, data.length, request));
+        assertTrue (request.isHeadOnly());
+        assertFalse (request.isHttp11());
+        assertTrue (request.isClose());
+        assertFalse (request.isKeepAlive());
+    }
+
+    @Test
+    public void testOtherMethod () throws Exception
+    {
+        byte[] data = bytes ("POST http://repo/a HTTP/1.1\r\n\r\n");
+        assertEquals (data.length, parser.parse(data, 0, data.length, request));
+        assertEquals ("POST", request.getMethod());
+        assertNull (request.getDownloadURL());
+    }
+
+    @Test
+    public void testPipelined () throws Exception
+    {
+        byte[] data = bytes ("GET http://repo/a HTTP/1.1\r\nConnection: keep-alive\r\n\r\nGET http://repo/b HTTP/1.1\r\n\r\n");
+        int len = parser.parse(data, 0, data.length, request);
+        assertEquals ("http://repo/a", request.getDownloadURL());
+        assertTrue (request.isKeepAlive());
+
+        assertEquals (data.length - len, parser.parse(data, len, data.length - len, request));
+        assertEquals ("http://repo/b", request.getDownloadURL());
+        assertFalse (request.isKeepAlive());
+    }
+
+    @Test
+    public void testIncomplete () throws Exception
+    {
+        byte[] data = bytes ("GET http://repo/a HTTP/1.1\r\nHost: repo\r\n\r\n");
+        for (int i=0; i<data.length; i++)
+            assertEquals (-1, parser.parse(data, 0, i, request));
+        assertEquals (data.length, parser.parse(data, 0, data.length, request));
+        assertEquals ("http://repo/a", request.getDownloadURL());
+    }
+
+    @Test(expected=HeaderTooLarge.class)
+    public void testTooLarge () throws Exception
+    {
+        parser = new HttpRequestParser (100);
+        StringBuilder buffer = new StringBuilder ("GET http://repo/a HTTP/1.1\r\n");
+        while (buffer.length() < 200)
+            buffer.append ("X-Header: 1234567890\r\n");
+        byte[] data = bytes (buffer.toString());
+        parser.parse(data, 0, data.length, request);
+    }
+
+    private byte[] bytes (String s) throws Exception
+    {
+        return s.getBytes("ISO-8859-1");
+    }
+}
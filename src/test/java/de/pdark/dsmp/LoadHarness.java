@@ -0,0 +1,606 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Put DSMP under load: Start a proxy and a fake remote repository in this
+ * JVM and let a number of clients resolve artifacts like Maven does (the
+ * POM and its checksum of many artifacts, the jars of a few, on keep-alive
+ * connections). Popular artifacts are asked for more often, so most
+ * requests are hits after a while.
+ * 
+ * <p>At the end, it prints the throughput and the latencies of hits and
+ * misses. The first request for a file counts as a miss, all later ones
+ * as hits.
+ * 
+ * <p>This isn't a test; run it with
+ * <code>java -cp target/classes:target/test-classes:&lt;dependencies&gt; de.pdark.dsmp.LoadHarness clients=50 seconds=60</code>
+ * (<code>mvn dependency:build-classpath</code> prints the dependencies).
+ * All fields of <code>Options</code> can be set like this.
+ * 
+ * @author digulla
+ * 
+ */
+public class LoadHarness
+{
+    /** The settings of a run. */
+    public static class Options
+    {
+        /** The number of clients; each one has its own thread and connection */
+        public int clients = 20;
+        /** How long to run */
+        public int seconds = 30;
+        /** Requests per connection before the client opens a new one (1 means no keep-alive) */
+        public int requestsPerConnection = 100;
+        /** The number of artifacts in the repository */
+        public int artifacts = 2000;
+        public int pomSize = 4*1024;
+        /** The fraction of the artifacts whose jar is downloaded, too */
+        public double jarRate = 0.1;
+        public int jarSize = 1024*1024;
+        /** The fraction of the artifacts which don't exist in the repository */
+        public double missingRate = 0.02;
+        /** Milliseconds until the repository answers */
+        public long latency = 20;
+        /** Bytes per second which the repository sends per connection (0 means no limit) */
+        public long bandwidth = 0;
+        /** The fraction of the requests which the repository answers with 503 */
+        public double errorRate = 0;
+        /** The fraction of the requests which the repository answers with 404 although the file exists */
+        public double notFoundRate = 0;
+        /** <code>blocking</code> or <code>nio</code> */
+        public String frontend = Config.FRONTEND_BLOCKING;
+        /** More elements for the config of the proxy */
+        public String config = "";
+
+        /** Set the fields from arguments like <code>clients=50</code>. */
+        public void parse (String[] args) throws Exception
+        {
+            for (String arg: args)
+            {
+                int pos = arg.indexOf('=');
+                if (pos == -1)
+                    throw new IllegalArgumentException ("Expected name=value but was "+arg);
+                
+                Field field = Options.class.getField(arg.substring(0, pos));
+                String value = arg.substring(pos + 1);
+                if (field.getType() == int.class)
+                    field.setInt(this, Integer.parseInt(value));
+                else if (field.getType() == long.class)
+                    field.setLong(this, Long.parseLong(value));
+                else if (field.getType() == double.class)
+                    field.setDouble(this, Double.parseDouble(value));
+                else
+                    field.set(this, value);
+            }
+        }
+
+        @Override
+        public String toString ()
+        {
+            StringBuilder buffer = new StringBuilder ();
+            for (Field field: Options.class.getFields())
+            {
+                try
+                {
+                    buffer.append (field.getName()).append ('=').append (field.get(this)).append (' ');
+                }
+                catch (IllegalAccessException e)
+                {
+                    throw new RuntimeException (e);
+                }
+            }
+            return buffer.toString().trim();
+        }
+    }
+
+    /** What a request was counted as */
+    public enum Category
+    {
+        /** The file was asked for before */
+        HIT,
+        /** The first request for the file */
+        MISS,
+        /** 404 */
+        NOT_FOUND,
+        /** Any other status */
+        ERROR,
+        /** The connection broke */
+        FAILED
+    }
+
+    /** The latencies of one client, by category, in nanoseconds */
+    private static class Samples
+    {
+        private final long[][] values = new long[Category.values().length][1024];
+        private final int[] counts = new int[Category.values().length];
+        private long bytes;
+
+        public void add (Category category, long nanos)
+        {
+            int i = category.ordinal();
+            if (counts[i] == values[i].length)
+                values[i] = Arrays.copyOf(values[i], values[i].length * 2);
+            values[i][counts[i]++] = nanos;
+        }
+    }
+
+    /** The numbers of a run. */
+    public static class Result
+    {
+        private final long[][] latencies = new long[Category.values().length][];
+        private final long bytes;
+        private final long millis;
+        private final int upstreamRequests;
+
+        private Result (List<Samples> samples, long millis, int upstreamRequests)
+        {
+            long total = 0;
+            for (Category category: Category.values())
+            {
+                int i = category.ordinal();
+                int n = 0;
+                for (Samples s: samples)
+                    n += s.counts[i];
+                
+                long[] all = new long[n];
+                n = 0;
+                for (Samples s: samples)
+                {
+                    System.arraycopy(s.values[i], 0, all, n, s.counts[i]);
+                    n += s.counts[i];
+                }
+                Arrays.sort(all);
+                latencies[i] = all;
+            }
+            for (Samples s: samples)
+                total += s.bytes;
+            
+            this.bytes = total;
+            this.millis = millis;
+            this.upstreamRequests = upstreamRequests;
+        }
+
+        public int getCount (Category category)
+        {
+            return latencies[category.ordinal()].length;
+        }
+
+        public int getTotalCount ()
+        {
+            int result = 0;
+            for (long[] l: latencies)
+                result += l.length;
+            return result;
+        }
+
+        /** The bytes of all bodies which the clients received. */
+        public long getBytes ()
+        {
+            return bytes;
+        }
+
+        /** The number of requests which reached the remote repository. */
+        public int getUpstreamRequests ()
+        {
+            return upstreamRequests;
+        }
+
+        /**
+         * The latency which <code>quantile</code> of the requests didn't exceed.
+         * 
+         * @param quantile For example 0.99
+         * @return nanoseconds or -1 if there were no requests in the category.
+         */
+        public long getLatency (Category category, double quantile)
+        {
+            long[] l = latencies[category.ordinal()];
+            if (l.length == 0)
+                return -1;
+            int index = (int)Math.ceil(quantile * l.length) - 1;
+            return l[Math.max (0, Math.min (l.length - 1, index))];
+        }
+
+        @Override
+        public String toString ()
+        {
+            double seconds = millis / 1000.0;
+            StringBuilder buffer = new StringBuilder ();
+            buffer.append (String.format(Locale.US, "%d requests in %.1fs: %.0f requests/s, %.1f MB/s, %d upstream requests%n",
+                    getTotalCount(), seconds, getTotalCount() / seconds, bytes / seconds / (1024*1024), upstreamRequests));
+            buffer.append (String.format(Locale.US, "%-10s %9s %10s %10s %10s %10s%n", "", "count", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+            for (Category category: Category.values())
+            {
+                if (getCount (category) == 0)
+                    continue;
+                buffer.append (String.format(Locale.US, "%-10s %9d %10.3f %10.3f %10.3f %10.3f%n",
+                        category.name().toLowerCase(), getCount (category),
+                        getLatency (category, 0.5) / 1e6, getLatency (category, 0.99) / 1e6,
+                        getLatency (category, 0.999) / 1e6, getLatency (category, 1.0) / 1e6));
+            }
+            return buffer.toString();
+        }
+    }
+
+    private final Options options;
+    private final ConcurrentHashMap<String, Boolean> seen = new ConcurrentHashMap<String, Boolean> ();
+    private File baseDir;
+    private FakeRepository repo;
+    private Server server;
+    private Thread serverThread;
+    private int port;
+
+    public LoadHarness (Options options)
+    {
+        this.options = options;
+    }
+
+    public static void main (String[] args) throws Exception
+    {
+        Options options = new Options ();
+        options.parse(args);
+        System.out.println (options);
+        
+        // Failed downloads are counted; logging each one would slow everything down
+        Logger.getRootLogger().setLevel(Level.FATAL);
+        Logger.getLogger("de.pdark").setLevel(Level.FATAL);
+        Logger.getLogger("downloadLog").setLevel(Level.FATAL);
+        
+        Result result = new LoadHarness (options).run();
+        System.out.print (result);
+        System.exit(0);
+    }
+
+    /** Start everything, run the clients and stop everything again. */
+    public Result run () throws Exception
+    {
+        start ();
+        try
+        {
+            final long deadline = System.currentTimeMillis() + options.seconds * 1000L;
+            final List<Samples> samples = new ArrayList<Samples> ();
+            List<Thread> threads = new ArrayList<Thread> ();
+            for (int i=0; i<options.clients; i++)
+            {
+                final Samples s = new Samples ();
+                samples.add(s);
+                Thread t = new Thread ("load-client-"+i) {
+                    @Override
+                    public void run ()
+                    {
+                        runClient (deadline, s);
+                    }
+                };
+                threads.add(t);
+            }
+            
+            long start = System.currentTimeMillis();
+            for (Thread t: threads)
+                t.start();
+            for (Thread t: threads)
+                t.join();
+            long millis = System.currentTimeMillis() - start;
+            
+            return new Result (samples, millis, repo.getRequests());
+        }
+        finally
+        {
+            stop ();
+        }
+    }
+
+    private void start () throws Exception
+    {
+        baseDir = new File (FileUtils.getTempDirectory(), "dsmp-load-"+System.currentTimeMillis());
+        baseDir.mkdirs();
+        
+        repo = new FakeRepository ();
+        repo.setDelay(options.latency);
+        repo.setBandwidth(options.bandwidth);
+        repo.setErrorRate(options.errorRate);
+        repo.setNotFoundRate(options.notFoundRate);
+        
+        byte[] jar = new byte[options.jarSize];
+        ThreadLocalRandom.current().nextBytes(jar);
+        String jarSha1 = sha1 (jar);
+        StringBuilder padding = new StringBuilder ();
+        while (padding.length() < options.pomSize)
+            padding.append ("  <!-- padding -->\n");
+        for (int i=0; i<options.artifacts; i++)
+        {
+            if (isMissing (i))
+                continue;
+            
+            byte[] pom = ("<project><artifactId>a"+i+"</artifactId>\n"+padding+"</project>\n").getBytes("ISO-8859-1");
+            repo.put(getPath (i, "pom"), pom);
+            repo.put(getPath (i, "pom")+".sha1", sha1 (pom));
+            repo.put(getPath (i, "jar"), jar);
+            repo.put(getPath (i, "jar")+".sha1", jarSha1);
+        }
+        
+        ServerSocket tmp = new ServerSocket (0);
+        port = tmp.getLocalPort();
+        tmp.close();
+        
+        System.clearProperty("dsmp.conf");
+        FileUtils.writeStringToFile(new File (baseDir, "dsmp.conf.xml"),
+                "<dsmp-config>\n"
+                + "<directories cache=\"cache\" patches=\"patches\" />\n"
+                + "<server port=\""+port+"\" frontend=\""+options.frontend+"\" max-threads=\""+Math.max (50, options.clients * 2)+"\" />\n"
+                + options.config
+                + "</dsmp-config>\n", "ISO-8859-1");
+        Config config = new Config (baseDir.getAbsolutePath());
+        config.reload();
+        
+        server = new Server (config);
+        serverThread = new Thread ("load-server") {
+            @Override
+            public void run ()
+            {
+                server.handleRequests();
+            }
+        };
+        serverThread.start();
+    }
+
+    private void stop () throws Exception
+    {
+        if (server != null)
+        {
+            server.terminateAll();
+            serverThread.join(10000);
+        }
+        if (repo != null)
+            repo.close();
+        FileUtils.deleteDirectory(baseDir);
+    }
+
+    private String sha1 (byte[] data)
+    {
+        Checksums checksums = new Checksums ();
+        checksums.update(data, 0, data.length);
+        return checksums.get("sha1");
+    }
+
+    /** Spread the missing artifacts evenly */
+    private boolean isMissing (int i)
+    {
+        return options.missingRate > 0 && (int)(i * options.missingRate) != (int)((i + 1) * options.missingRate);
+    }
+
+    private boolean hasJar (int i)
+    {
+        return options.jarRate > 0 && (int)(i * options.jarRate) != (int)((i + 1) * options.jarRate);
+    }
+
+    private String getPath (int i, String ext)
+    {
+        return "maven2/org/example/group"+(i % 50)+"/a"+i+"/1.0/a"+i+"-1.0."+ext;
+    }
+
+    /** The files which Maven asks for to resolve one artifact */
+    private void resolve (ThreadLocalRandom random, List<String> queue)
+    {
+        // Popular artifacts are asked for more often
+        double r = random.nextDouble();
+        int i = (int)(options.artifacts * r * r * r);
+        
+        queue.add(getPath (i, "pom"));
+        if (isMissing (i))
+            return;
+        queue.add(getPath (i, "pom")+".sha1");
+        if (hasJar (i))
+        {
+            queue.add(getPath (i, "jar"));
+            queue.add(getPath (i, "jar")+".sha1");
+        }
+    }
+
+    private void runClient (long deadline, Samples samples)
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        List<String> queue = new ArrayList<String> ();
+        Connection connection = null;
+        
+        while (System.currentTimeMillis() < deadline)
+        {
+            if (queue.isEmpty())
+                resolve (random, queue);
+            String path = queue.remove(0);
+            
+            long start = System.nanoTime();
+            try
+            {
+                if (connection == null)
+                    connection = new Connection (port);
+                connection.requests ++;
+                boolean last = connection.requests >= options.requestsPerConnection;
+                
+                connection.out.write(("GET "+repo.getURL()+path+" HTTP/1.1\r\n"
+                        + "Host: localhost\r\n"
+                        + "User-Agent: Apache-Maven/3.9.6 (LoadHarness)\r\n"
+                        + (last ? "Connection: close\r\n" : "")
+                        + "\r\n").getBytes("ISO-8859-1"));
+                connection.out.flush();
+                
+                int status = connection.readResponse ();
+                long time = System.nanoTime() - start;
+                
+                if (status == 200)
+                    samples.add(seen.putIfAbsent(path, Boolean.TRUE) == null ? Category.MISS : Category.HIT, time);
+                else if (status == 404)
+                    samples.add(Category.NOT_FOUND, time);
+                else
+                    samples.add(Category.ERROR, time);
+                samples.bytes += connection.bodyLength;
+                
+                if (last || connection.closed)
+                {
+                    connection.close();
+                    connection = null;
+                }
+            }
+            catch (IOException e)
+            {
+                samples.add(Category.FAILED, System.nanoTime() - start);
+                if (connection != null)
+                    connection.close();
+                connection = null;
+            }
+        }
+        if (connection != null)
+            connection.close();
+    }
+
+    /** A connection of a client to the proxy */
+    private static class Connection
+    {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final byte[] buffer = new byte[64*1024];
+        private int requests;
+        /** The server has closed the connection */
+        private boolean closed;
+        private long bodyLength;
+
+        public Connection (int port) throws IOException
+        {
+            socket = new Socket ("localhost", port);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(60000);
+            in = new BufferedInputStream (socket.getInputStream(), buffer.length);
+            out = socket.getOutputStream();
+        }
+
+        /**
+         * Read a response and skip the body.
+         * 
+         * @return The status code.
+         */
+        public int readResponse () throws IOException
+        {
+            String statusLine = readLine ();
+            if (statusLine == null)
+                throw new IOException ("The proxy closed the connection");
+            String[] parts = statusLine.split(" ");
+            if (parts.length < 2)
+                throw new IOException ("Invalid status line: "+statusLine);
+            int status = Integer.parseInt(parts[1]);
+            
+            long length = -1;
+            boolean chunked = false;
+            String line;
+            while ((line = readLine ()) != null && line.length() > 0)
+            {
+                int pos = line.indexOf(':');
+                if (pos == -1)
+                    continue;
+                String name = line.substring(0, pos).trim();
+                String value = line.substring(pos + 1).trim();
+                if ("Content-length".equalsIgnoreCase(name))
+                    length = Long.parseLong(value);
+                else if ("Transfer-encoding".equalsIgnoreCase(name))
+                    chunked = "chunked".equalsIgnoreCase(value);
+                else if ("Connection".equalsIgnoreCase(name))
+                    closed = "close".equalsIgnoreCase(value);
+            }
+            
+            bodyLength = 0;
+            if (status == 304 || status == 204)
+                return status;
+            if (chunked)
+            {
+                long size;
+                while ((size = Long.parseLong(readLine ().trim(), 16)) > 0)
+                {
+                    skip (size);
+                    readLine ();
+                }
+                while ((line = readLine ()) != null && line.length() > 0)
+                    ; // Trailer
+            }
+            else if (length >= 0)
+                skip (length);
+            else
+            {
+                // The body ends with the connection
+                int len;
+                while ((len = in.read(buffer)) != -1)
+                    bodyLength += len;
+                closed = true;
+            }
+            return status;
+        }
+
+        private void skip (long length) throws IOException
+        {
+            while (length > 0)
+            {
+                int len = in.read(buffer, 0, (int)Math.min (buffer.length, length));
+                if (len == -1)
+                    throw new IOException ("The proxy closed the connection in the body");
+                length -= len;
+                bodyLength += len;
+            }
+        }
+
+        private String readLine () throws IOException
+        {
+            StringBuilder line = new StringBuilder ();
+            int c;
+            while ((c = in.read()) != -1)
+            {
+                if (c == '\n')
+                    return line.toString();
+                if (c != '\r')
+                    line.append ((char)c);
+            }
+            return line.length() == 0 ? null : line.toString();
+        }
+
+        public void close ()
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (IOException e)
+            {
+                // Ignore
+            }
+        }
+    }
+}
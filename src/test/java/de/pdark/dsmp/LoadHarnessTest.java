@@ -0,0 +1,52 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LoadHarnessTest
+{
+    @Test
+    public void testBlocking () throws Exception
+    {
+        check (Config.FRONTEND_BLOCKING);
+    }
+
+    @Test
+    public void testNio () throws Exception
+    {
+        check (Config.FRONTEND_NIO);
+    }
+
+    private void check (String frontend) throws Exception
+    {
+        LoadHarness.Options options = new LoadHarness.Options ();
+        options.parse(new String[] { "clients=4", "seconds=1", "artifacts=100", "jarRate=0.2",
+                "jarSize=65536", "latency=5", "requestsPerConnection=10", "frontend="+frontend });
+        LoadHarness.Result result = new LoadHarness (options).run();
+
+        String msg = result.toString();
+        assertEquals (msg, 0, result.getCount(LoadHarness.Category.FAILED));
+        assertEquals (msg, 0, result.getCount(LoadHarness.Category.ERROR));
+        assertTrue (msg, result.getCount(LoadHarness.Category.MISS) > 0);
+        assertTrue (msg, result.getCount(LoadHarness.Category.HIT) > 0);
+        assertTrue (msg, result.getUpstreamRequests() < result.getTotalCount());
+        assertTrue (msg, result.getLatency(LoadHarness.Category.MISS, 0.5) <= result.getLatency(LoadHarness.Category.MISS, 0.99));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MetricsTest
+{
+    @Test
+    public void testBucketOf () throws Exception
+    {
+        assertEquals (0, Histogram.bucketOf(0));
+        assertEquals (0, Histogram.bucketOf(64));
+        assertEquals (1, Histogram.bucketOf(65));
+        assertEquals (1, Histogram.bucketOf(128));
+        assertEquals (2, Histogram.bucketOf(129));
+        assertEquals (Histogram.MAX_SHIFT - Histogram.MIN_SHIFT, Histogram.bucketOf(1L << Histogram.MAX_SHIFT));
+        assertEquals (Histogram.MAX_SHIFT - Histogram.MIN_SHIFT + 1, Histogram.bucketOf((1L << Histogram.MAX_SHIFT) + 1));
+        assertEquals (Histogram.MAX_SHIFT - Histogram.MIN_SHIFT + 1, Histogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testHistogram () throws Exception
+    {
+        Histogram h = new Histogram ();
+        h.record(10000);       // 10us
+        h.record(100000);      // 100us
+        h.record(2000000000L); // 2s
+        assertEquals (3, h.getCount());
+        assertEquals (2000110, h.getSum());
+        
+        StringBuilder buffer = new StringBuilder ();
+        h.appendTo(buffer, "test_seconds", "path=\"hit\"");
+        String text = buffer.toString();
+        assertTrue (text, text.contains("test_seconds_bucket{path=\"hit\",le=\"6.4E-5\"} 1\n"));
+        assertTrue (text, text.contains("test_seconds_bucket{path=\"hit\",le=\"1.28E-4\"} 2\n"));
+        assertTrue (text, text.contains("test_seconds_bucket{path=\"hit\",le=\"1.048576\"} 2\n"));
+        assertTrue (text, text.contains("test_seconds_bucket{path=\"hit\",le=\"2.097152\"} 3\n"));
+        assertTrue (text, text.contains("test_seconds_bucket{path=\"hit\",le=\"+Inf\"} 3\n"));
+        assertTrue (text, text.contains("test_seconds_sum{path=\"hit\"} 2.00011\n"));
+        assertTrue (text, text.endsWith("test_seconds_count{path=\"hit\"} 3\n"));
+    }
+
+    @Test
+    public void testOutcomeOfDownloadFailed () throws Exception
+    {
+        assertEquals (Metrics.Outcome.NOT_FOUND, Metrics.Outcome.of(new DownloadFailed ("HTTP/1.1 404 Not Found")));
+        assertEquals (Metrics.Outcome.NOT_FOUND, Metrics.Outcome.of(new DownloadFailed ("HTTP/1.1 410 Gone")));
+        assertEquals (Metrics.Outcome.NEGATIVE, Metrics.Outcome.of(new DownloadFailed ("HTTP/1.1 404 Not Found", true)));
+        assertEquals (Metrics.Outcome.DENIED, Metrics.Outcome.of(new DownloadFailed ("HTTP/1.1 403 Download denied by rule in DSMP config")));
+        assertEquals (Metrics.Outcome.ERROR, Metrics.Outcome.of(new DownloadFailed ("HTTP/1.1 502 Bad Gateway")));
+        assertEquals (Metrics.Outcome.ERROR, Metrics.Outcome.of(new DownloadFailed ("garbage")));
+    }
+
+    @Test
+    public void testRuleHits () throws Exception
+    {
+        TempCache temp = new TempCache ("metrics");
+        try
+        {
+            Config config = temp.createConfig ("<deny glob=\"**/*-sources.jar\" />\n"
+                + "<deny glob=\"**/*-sources.jar\" />\n"
+                + "<cache-control url=\"http://repo.example/\" value=\"max-age=60\" />\n");
+            config.isAllowed("http://repo.example/a/1/a-1-sources.jar");
+            config.getCacheControl("http://repo.example/a/1/a-1.jar");
+            config.getCacheControl("http://repo.example/a/1/a-1.pom");
+            
+            String text = Metrics.render(config);
+            assertTrue (text, text.contains("dsmp_rule_hits_total{set=\"allow-deny\",rule=\"glob **/*-sources.jar\"} 1\n"));
+            assertTrue (text, text.contains("dsmp_rule_hits_total{set=\"cache-control\",rule=\"prefix http://repo.example/\"} 2\n"));
+            assertEquals (text, text.indexOf("rule=\"glob **/*-sources.jar\""), text.lastIndexOf("rule=\"glob **/*-sources.jar\""));
+        }
+        finally
+        {
+            temp.delete();
+        }
+    }
+
+    @Test
+    public void testRequestCounts () throws Exception
+    {
+        long before = Metrics.getRequests(HttpRequest.HEAD, Metrics.Outcome.PATCH);
+        long other = Metrics.getRequests("PUT", Metrics.Outcome.INVALID);
+        Metrics.request(HttpRequest.HEAD, Metrics.Outcome.PATCH, 1000);
+        Metrics.request("PUT", Metrics.Outcome.INVALID, 1000);
+        Metrics.request(null, Metrics.Outcome.INVALID, 1000);
+        assertEquals (before + 1, Metrics.getRequests(HttpRequest.HEAD, Metrics.Outcome.PATCH));
+        assertEquals (other + 2, Metrics.getRequests("PUT", Metrics.Outcome.INVALID));
+    }
+}
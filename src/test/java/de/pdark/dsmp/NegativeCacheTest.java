@@ -0,0 +1,113 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.File;
+
+public class NegativeCacheTest
+{
+    private static final String NOT_FOUND = "HTTP/1.1 404 Not Found";
+
+    @Test
+    public void testPutAndGet () throws Exception
+    {
+        NegativeCache cache = new NegativeCache (100);
+        assertNull (cache.get("http://repo/a.jar"));
+        
+        cache.put("http://repo/a.jar", NOT_FOUND, 60000);
+        assertEquals (NOT_FOUND, cache.get("http://repo/a.jar"));
+        assertNull (cache.get("http://repo/b.jar"));
+        assertEquals (1, cache.getHits());
+    }
+
+    @Test
+    public void testExpiry () throws Exception
+    {
+        NegativeCache cache = new NegativeCache (100);
+        cache.put("http://repo/a.jar", NOT_FOUND, 50);
+        assertEquals (NOT_FOUND, cache.get("http://repo/a.jar"));
+        
+        Thread.sleep(100);
+        assertNull (cache.get("http://repo/a.jar"));
+        assertEquals (0, cache.size());
+    }
+
+    @Test
+    public void testZeroTTLIsIgnored () throws Exception
+    {
+        NegativeCache cache = new NegativeCache (100);
+        cache.put("http://repo/a.jar", NOT_FOUND, 0);
+        assertNull (cache.get("http://repo/a.jar"));
+    }
+
+    @Test
+    public void testMaxEntries () throws Exception
+    {
+        NegativeCache cache = new NegativeCache (100);
+        for (int i=0; i<1000; i++)
+            cache.put("http://repo/"+i+".jar", NOT_FOUND, 60000);
+        
+        assertTrue (String.valueOf (cache.size()), cache.size() <= 100);
+        assertEquals (NOT_FOUND, cache.get("http://repo/999.jar"));
+    }
+
+    @Test
+    public void testSaveAndLoad () throws Exception
+    {
+        File file = File.createTempFile("negative-cache", ".txt");
+        try
+        {
+            NegativeCache cache = new NegativeCache (100);
+            cache.put("http://repo/a.jar", NOT_FOUND, 60000);
+            cache.put("http://repo/b.jar", "HTTP/1.1 410 Gone", 60000);
+            cache.save(file);
+            
+            NegativeCache loaded = new NegativeCache (100);
+            loaded.load(file);
+            assertEquals (2, loaded.size());
+            assertEquals (NOT_FOUND, loaded.get("http://repo/a.jar"));
+            assertEquals ("HTTP/1.1 410 Gone", loaded.get("http://repo/b.jar"));
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testBloomFilter () throws Exception
+    {
+        BloomFilter filter = new BloomFilter (1000);
+        for (int i=0; i<1000; i++)
+            filter.add("http://repo/"+i+".jar");
+        
+        int falsePositives = 0;
+        for (int i=0; i<1000; i++)
+        {
+            assertTrue (filter.mightContain("http://repo/"+i+".jar"));
+            if (filter.mightContain("http://other/"+i+".jar"))
+                falsePositives ++;
+        }
+        assertFalse (String.valueOf (falsePositives), falsePositives > 50);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class PrefetcherTest
+{
+    private static final String REPO = "http://repo.example/maven2/";
+    
+    private TempCache temp;
+    private File cacheDir;
+
+    @Test
+    public void testResolve () throws Exception
+    {
+        Map<String, String> properties = new HashMap<String, String> ();
+        properties.put("a", "1");
+        properties.put("b", "${a}.2");
+        assertEquals ("1.2.3", Prefetcher.resolve("${b}.3", properties));
+        assertEquals ("x", Prefetcher.resolve("x", properties));
+        assertNull (Prefetcher.resolve("${c}", properties));
+        assertNull (Prefetcher.resolve(null, properties));
+    }
+
+    @Test
+    public void testParse () throws Exception
+    {
+        Config config = temp.createConfig ("");
+        write ("org/p/parent/1/parent-1.pom", pom ("<groupId>org.p</groupId><artifactId>parent</artifactId><version>1</version>"
+                + "<properties><lib.version>2.0</lib.version></properties>"
+                + "<dependencyManagement><dependencies>"
+                + "<dependency><groupId>org.m</groupId><artifactId>managed</artifactId><version>${lib.version}</version></dependency>"
+                + "</dependencies></dependencyManagement>"));
+        File f = write ("org/c/child/3/child-3.pom", pom ("<parent><groupId>org.p</groupId><artifactId>parent</artifactId><version>1</version></parent>"
+                + "<groupId>org.c</groupId><artifactId>child</artifactId><version>3</version>"
+                + "<dependencies>"
+                + "<dependency><groupId>org.m</groupId><artifactId>managed</artifactId></dependency>"
+                + "<dependency><groupId>${project.groupId}</groupId><artifactId>sibling</artifactId><version>${project.version}</version><classifier>x</classifier></dependency>"
+                + "<dependency><groupId>org.t</groupId><artifactId>test</artifactId><version>1</version><scope>test</scope></dependency>"
+                + "<dependency><groupId>org.o</groupId><artifactId>optional</artifactId><version>1</version><optional>true</optional></dependency>"
+                + "<dependency><groupId>org.r</groupId><artifactId>range</artifactId><version>[1.0,2.0)</version></dependency>"
+                + "<dependency><groupId>org.f</groupId><artifactId>fixed</artifactId><version>[1.5]</version><type>pom</type></dependency>"
+                + "<dependency><groupId>org.u</groupId><artifactId>unknown</artifactId><version>${nope}</version></dependency>"
+                + "</dependencies>"));
+        
+        List<URL> parent = new ArrayList<URL> ();
+        List<URL> dependencies = new ArrayList<URL> ();
+        Prefetcher.parse(new URL (REPO+"org/c/child/3/child-3.pom"), f, config, parent, dependencies);
+        
+        assertEquals ("["+REPO+"org/p/parent/1/parent-1.pom]", parent.toString());
+        assertEquals ("["+REPO+"org/m/managed/2.0/managed-2.0.pom, "
+                + REPO+"org/m/managed/2.0/managed-2.0.jar, "
+                + REPO+"org/c/sibling/3/sibling-3.pom, "
+                + REPO+"org/c/sibling/3/sibling-3-x.jar, "
+                + REPO+"org/r/range/maven-metadata.xml, "
+                + REPO+"org/f/fixed/1.5/fixed-1.5.pom]", dependencies.toString());
+    }
+
+    @Test
+    public void testPrefetch () throws Exception
+    {
+        FakeRepository repo = new FakeRepository ();
+        try
+        {
+            repo.put("org/a/a/1/a-1.pom", pom ("<groupId>org.a</groupId><artifactId>a</artifactId><version>1</version>"
+                    + "<dependencies><dependency><groupId>org.b</groupId><artifactId>b</artifactId><version>1</version></dependency></dependencies>"));
+            repo.put("org/b/b/1/b-1.pom", pom ("<groupId>org.b</groupId><artifactId>b</artifactId><version>1</version>"
+                    + "<dependencies><dependency><groupId>org.c</groupId><artifactId>c</artifactId><version>1</version></dependency></dependencies>"));
+            repo.put("org/b/b/1/b-1.jar", "jar b");
+            repo.put("org/c/c/1/c-1.pom", pom ("<groupId>org.c</groupId><artifactId>c</artifactId><version>1</version>"));
+            Config config = temp.createConfig ("<prefetch enabled=\"true\" depth=\"1\" rate=\"0\" />");
+            
+            URL url = new URL (repo.getURL()+"org/a/a/1/a-1.pom");
+            long used = Prefetcher.getUsed();
+            new ProxyDownload (url, RequestHandler.getCacheFile(url, config), config).download();
+            
+            File jar = RequestHandler.getCacheFile(new URL (repo.getURL()+"org/b/b/1/b-1.jar"), config);
+            File pom = RequestHandler.getCacheFile(new URL (repo.getURL()+"org/b/b/1/b-1.pom"), config);
+            for (int i=0; i<200 && !(jar.exists() && pom.exists()); i++)
+                Thread.sleep(25);
+            Thread.sleep(200);
+            assertTrue (pom.exists());
+            assertEquals ("jar b", FileUtils.readFileToString(jar));
+            // Too deep
+            assertEquals (0, repo.getRequests("org/c/c/1/c-1.pom"));
+            
+            assertTrue (CacheIndex.get(config).lookup(new URL (repo.getURL()+"org/b/b/1/b-1.jar")) != null);
+            assertEquals (used + 1, Prefetcher.getUsed());
+        }
+        finally
+        {
+            repo.close();
+        }
+    }
+
+    private String pom (String content)
+    {
+        return "<?xml version=\"1.0\"?>\n<project xmlns=\"http://maven.apache.org/POM/4.0.0\"><modelVersion>4.0.0</modelVersion>"
+                + content + "</project>\n";
+    }
+
+    private File write (String path, String content) throws Exception
+    {
+        File f = RequestHandler.getCacheFile(new URL (REPO+path), cacheDir);
+        FileUtils.writeStringToFile(f, content, "UTF-8");
+        return f;
+    }
+
+    @Before
+    public void setUp () throws Exception
+    {
+        temp = new TempCache ("prefetch");
+        cacheDir = temp.getCacheDir();
+    }
+
+    @After
+    public void tearDown () throws Exception
+    {
+        Prefetcher.shutdownAll();
+        temp.delete();
+    }
+}
@@ -16,18 +16,29 @@
 package de.pdark.dsmp;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import org.apache.commons.httpclient.methods.GetMethod;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 
 public class ProxyDownloadTest
 {
+    private TempCache temp;
     private File cacheDir;
     private Config config;
 
@@ -53,11 +64,445 @@ public class ProxyDownloadTest
         assertEquals (7616, f.length());
     }
     
+    @Test
+    public void testConcurrentDownloadsAreCoalesced () throws Exception
+    {
+        FakeRepository repo = new FakeRepository ();
+        try
+        {
+            repo.put("a/b/1/b-1.jar", "jar content");
+            repo.setDelay(300);
+            Config config = temp.createConfig ("");
+            
+            final URL url = new URL (repo.getURL()+"a/b/1/b-1.jar");
+            final File f = RequestHandler.getCacheFile(url, config.getCacheDirectory());
+            List<Throwable> errors = downloadConcurrently (url, f, config, 5);
+            
+            assertEquals (errors.toString(), 0, errors.size());
+            assertEquals (1, repo.getRequests("a/b/1/b-1.jar"));
+            assertEquals ("jar content", org.apache.commons.io.FileUtils.readFileToString(f));
+        }
+        finally
+        {
+            repo.close();
+        }
+    }
+
+    @Test
+    public void testSameContentIsStoredOnce () throws Exception
+    {
+        FakeRepository central = new FakeRepository ();
+        FakeRepository mirror = new FakeRepository ();
+        try
+        {
+            byte[] content = new byte[10000];
+            content[0] = 1;
+            central.put("a/b/1/b-1.jar", content);
+            mirror.put("a/b/1/b-1.jar", content);
+            Config config = temp.createConfig ("<dedup enabled=\"true\" />");
+            
+            URL url = new URL (central.getURL()+"a/b/1/b-1.jar");
+            File first = RequestHandler.getCacheFile(url, config);
+            new ProxyDownload (url, first, config).download();
+            url = new URL (mirror.getURL()+"a/b/1/b-1.jar");
+            File second = RequestHandler.getCacheFile(url, config);
+            new ProxyDownload (url, second, config).download();
+            
+            // Both files and the blob
+            assertEquals (3, ContentStore.getLinks(first));
+            assertEquals (3, ContentStore.getLinks(second));
+            assertTrue (java.util.Arrays.equals(content, org.apache.commons.io.FileUtils.readFileToByteArray(second)));
+            // The checksums are separate files
+            assertEquals (1, ContentStore.getLinks(new File (second.getAbsolutePath()+".sha1")));
+        }
+        finally
+        {
+            central.close();
+            mirror.close();
+        }
+    }
+
+    @Test
+    public void testCoalescedDownloadsShareFailure () throws Exception
+    {
+        FakeRepository repo = new FakeRepository ();
+        try
+        {
+            repo.setDelay(300);
+            Config config = temp.createConfig ("");
+            
+            URL url = new URL (repo.getURL()+"a/b/1/missing.jar");
+            File f = RequestHandler.getCacheFile(url, config.getCacheDirectory());
+            List<Throwable> errors = downloadConcurrently (url, f, config, 5);
+            
+            assertEquals (5, errors.size());
+            for (Throwable t: errors)
+                assertTrue (t.toString(), t instanceof DownloadFailed && ((DownloadFailed)t).getStatusLine().contains("404"));
+            assertEquals (1, repo.getRequests());
+        }
+        finally
+        {
+            repo.close();
+        }
+    }
+
+    @Test
+    public void testNotFoundIsRemembered () throws Exception
+    {
+        FakeRepository repo = new FakeRepository ();
+        try
+        {
+            Config config = temp.createConfig ("");
+            URL url = new URL (repo.getURL()+"a/b/1/missing.pom");
+            File f = RequestHandler.getCacheFile(url, config.getCacheDirectory());
+            
+            for (int i=0; i<3; i++)
+            {
+                try
+                {
+                    new ProxyDownload (url, f, config).download();
+                    fail ("Download should fail");
+                }
+                catch (DownloadFailed e)
+                {
+                    assertTrue (e.getStatusLine(), e.getStatusLine().contains("404"));
+                }
+            }
+            
+            assertEquals (1, repo.getRequests());
+            assertFalse (new File (f.getAbsolutePath()+".status").exists());
+        }
+        finally
+        {
+            repo.close();
+        }
+    }
+
+    @Test
+    public void testNotFoundIsForgottenWithoutTTL () throws Exception
+    {
+        FakeRepository repo = new FakeRepository ();
+        try
+        {
+            Config config = temp.createConfig ("<negative-cache ttl=\"0\" />");
+            URL url = new URL (repo.getURL()+"a/b/1/missing.pom");
+            File f = RequestHandler.getCacheFile(url, config.getCacheDirectory());
+            
+            for (int i=0; i<2; i++)
+            {
+                try
+                {
+                    new ProxyDownload (url, f, config).download();
+                    fail ("Download should fail");
+                }
+                catch (DownloadFailed e)
+                {
+                    // Expected
+                }
+            }
+            
+            assertEquals (2, repo.getRequests());
+        }
+        finally
+        {
+            repo.close();
+        }
+    }
+
+    @Test
+    public void testChecksumsAreVerifiedAndWritten () throws Exception
+    {
+        FakeRepository repo = new FakeRepository ();
+        try
+        {
+            repo.put("a/b/1/b-1.jar", "abc");
+            repo.put("a/b/1/b-1.jar.sha1", "a9993e364706816aba3e25717850c26c9cd0d89d  b-1.jar\n");
+            Config config = temp.createConfig ("");
+            
+            URL url = new URL (repo.getURL()+"a/b/1/b-1.jar");
+            File f = RequestHandler.getCacheFile(url, config.getCacheDirectory());
+            new ProxyDownload (url, f, config).download();
+            
+            assertEquals ("abc", org.apache.commons.io.FileUtils.readFileToString(f));
+            assertEquals ("a9993e364706816aba3e25717850c26c9cd0d89d",
+                    Checksums.parse(org.apache.commons.io.FileUtils.readFileToString(new File (f.getAbsolutePath()+".sha1"))));
+            assertEquals ("900150983cd24fb0d6963f7d28e17f72",
+                    Checksums.parse(org.apache.commons.io.FileUtils.readFileToString(new File (f.getAbsolutePath()+".md5"))));
+            assertTrue (new File (f.getAbsolutePath()+".sha256").exists());
+            
+            // The checksum is served from the cache
+            assertTrue (CacheIndex.get(config).lookup(new URL (url+".sha1")) != null);
+        }
+        finally
+        {
+            repo.close();
+        }
+    }
+
+    @Test
+    public void testVerifiedChecksumIsKept () throws Exception
+    {
+        FakeRepository repo = new FakeRepository ();
+        try
+        {
+            repo.put("a/b/1/b-1.jar", "abc");
+            repo.put("a/b/1/b-1.jar.sha1", "a9993e364706816aba3e25717850c26c9cd0d89d  b-1.jar\n");
+            Config config = temp.createConfig ("<checksums generate=\"false\" verify=\"true\" />");
+            
+            URL url = new URL (repo.getURL()+"a/b/1/b-1.jar");
+            File f = RequestHandler.getCacheFile(url, config.getCacheDirectory());
+            new ProxyDownload (url, f, config).download();
+            
+            // The file of the remote repository, byte by byte
+            assertEquals ("a9993e364706816aba3e25717850c26c9cd0d89d  b-1.jar\n",
+                    org.apache.commons.io.FileUtils.readFileToString(new File (f.getAbsolutePath()+".sha1")));
+            assertFalse (new File (f.getAbsolutePath()+".md5").exists());
+            assertEquals (1, repo.getRequests("a/b/1/b-1.jar.sha1"));
+        }
+        finally
+        {
+            repo.close();
+        }
+    }
+
+    @Test
+    public void testCorruptDownloadIsRejected () throws Exception
+    {
+        FakeRepository repo = new FakeRepository ();
+        try
+        {
+            repo.put("a/b/1/b-1.jar", "abd");
+            repo.put("a/b/1/b-1.jar.sha1", "a9993e364706816aba3e25717850c26c9cd0d89d\n");
+            Config config = temp.createConfig ("");
+            
+            URL url = new URL (repo.getURL()+"a/b/1/b-1.jar");
+            File f = RequestHandler.getCacheFile(url, config.getCacheDirectory());
+            try
+            {
+                new ProxyDownload (url, f, config).download();
+                fail ("Corrupt download should fail");
+            }
+            catch (IOException e)
+            {
+                assertTrue (e.getCause().getMessage(), e.getCause().getMessage().contains("corrupt"));
+            }
+            
+            assertFalse (f.exists());
+            assertFalse (new File (f.getAbsolutePath()+".new").exists());
+            assertFalse (new File (f.getAbsolutePath()+".sha1").exists());
+        }
+        finally
+        {
+            repo.close();
+        }
+    }
+
+    @Test
+    public void testConnectionsAreReused () throws Exception
+    {
+        FakeRepository repo = new FakeRepository ();
+        try
+        {
+            repo.put("a/b/1/b-1.pom", "pom content");
+            repo.put("a/b/1/b-1.jar", "jar content");
+            Config config = temp.createConfig ("");
+            
+            for (String name: new String[] { "b-1.pom", "b-1.jar" })
+            {
+                URL url = new URL (repo.getURL()+"a/b/1/"+name);
+                File f = RequestHandler.getCacheFile(url, config.getCacheDirectory());
+                new ProxyDownload (url, f, config).download();
+            }
+            
+            assertEquals (1, repo.getRequests("a/b/1/b-1.pom"));
+            assertEquals (1, repo.getRequests("a/b/1/b-1.jar"));
+            // One for the files and one for their checksums, which are downloaded at the same time
+            assertEquals (2, repo.getConnections());
+        }
+        finally
+        {
+            repo.close();
+        }
+    }
+
+    @Test
+    public void testUpstreamClientIsRebuiltWhenSettingsChange () throws Exception
+    {
+        Config config = temp.createConfig ("");
+        UpstreamClient client = UpstreamClient.get(config);
+        assertSame (client, UpstreamClient.get(config));
+        
+        Config changed = temp.createConfig ("<upstream max-connections-per-host=\"3\" />");
+        assertEquals (3, changed.getUpstreamMaxConnectionsPerHost());
+        assertTrue (changed.getGeneration() > config.getGeneration());
+        UpstreamClient newer = UpstreamClient.get(changed);
+        assertNotSame (client, newer);
+        // A request with an old snapshot must not bring back the old settings
+        assertSame (newer, UpstreamClient.get(config));
+        
+        // The old client is still reserved, so it can still send requests
+        FakeRepository repo = new FakeRepository ();
+        try
+        {
+            repo.put("a.txt", "a");
+            GetMethod get = new GetMethod (repo.getURL()+"a.txt");
+            assertEquals (200, client.execute(get, false));
+            client.release(get);
+            client.release(new GetMethod ());
+        }
+        finally
+        {
+            repo.close();
+        }
+        newer.release(new GetMethod ());
+        newer.release(new GetMethod ());
+    }
+
+    @Test
+    public void testExpiredFileIsRevalidated () throws Exception
+    {
+        FakeRepository repo = new FakeRepository ();
+        try
+        {
+            repo.put("a/b/maven-metadata.xml", "v1".getBytes("ISO-8859-1"), System.currentTimeMillis() - 60000);
+            Config config = temp.createConfig ("<policy glob=\"**/maven-metadata.xml\" ttl=\"0\" />");
+            
+            URL url = new URL (repo.getURL()+"a/b/maven-metadata.xml");
+            File f = RequestHandler.getCacheFile(url, config.getCacheDirectory());
+            new ProxyDownload (url, f, config).download();
+            assertEquals ("v1", org.apache.commons.io.FileUtils.readFileToString(f));
+            assertEquals (1, repo.getRequests("a/b/maven-metadata.xml"));
+            
+            // Expired but not modified: One conditional GET for all clients
+            long lastModified = System.currentTimeMillis() - 10000;
+            f.setLastModified(lastModified);
+            long revalidated = ProxyDownload.getRevalidatedCount();
+            repo.setDelay(300);
+            List<Throwable> errors = downloadConcurrently (url, f, config, 5);
+            assertEquals (errors.toString(), 0, errors.size());
+            assertEquals (2, repo.getRequests("a/b/maven-metadata.xml"));
+            assertEquals (1, ProxyDownload.getRevalidatedCount() - revalidated);
+            // The date of the content (which clients use to validate their copies) stays
+            assertEquals (lastModified / 1000, f.lastModified() / 1000);
+            assertTrue (System.currentTimeMillis() - ProxyDownload.getLastValidated(f) < 5000);
+            assertEquals ("v1", org.apache.commons.io.FileUtils.readFileToString(f));
+            
+            // Modified: The new file replaces the old one
+            repo.setDelay(0);
+            repo.put("a/b/maven-metadata.xml", "v2".getBytes("ISO-8859-1"), System.currentTimeMillis() + 60000);
+            new ProxyDownload (url, f, config).download();
+            assertEquals (3, repo.getRequests("a/b/maven-metadata.xml"));
+            assertEquals ("v2", org.apache.commons.io.FileUtils.readFileToString(f));
+            
+            // Gone: Keep using the old file
+            repo.remove("a/b/maven-metadata.xml");
+            new ProxyDownload (url, f, config).download();
+            assertEquals (4, repo.getRequests("a/b/maven-metadata.xml"));
+            assertEquals ("v2", org.apache.commons.io.FileUtils.readFileToString(f));
+            assertTrue (f.exists());
+        }
+        finally
+        {
+            repo.close();
+        }
+    }
+    
+    @Test
+    public void testFreshFileIsNotRevalidated () throws Exception
+    {
+        FakeRepository repo = new FakeRepository ();
+        try
+        {
+            repo.put("a/b/maven-metadata.xml", "v1");
+            Config config = temp.createConfig ("<policy glob=\"**/maven-metadata.xml\" ttl=\"1h\" />");
+            
+            URL url = new URL (repo.getURL()+"a/b/maven-metadata.xml");
+            File f = RequestHandler.getCacheFile(url, config.getCacheDirectory());
+            new ProxyDownload (url, f, config).download();
+            new ProxyDownload (url, f, config).download();
+            assertEquals (1, repo.getRequests("a/b/maven-metadata.xml"));
+            
+            // Releases never expire
+            url = new URL (repo.getURL()+"a/b/1/b-1.jar");
+            repo.put("a/b/1/b-1.jar", "jar");
+            f = RequestHandler.getCacheFile(url, config.getCacheDirectory());
+            new ProxyDownload (url, f, config).download();
+            f.setLastModified(0);
+            new ProxyDownload (url, f, config).download();
+            assertEquals (1, repo.getRequests("a/b/1/b-1.jar"));
+        }
+        finally
+        {
+            repo.close();
+        }
+    }
+    
+    @Test
+    public void testGzipVariantIsWritten () throws Exception
+    {
+        FakeRepository repo = new FakeRepository ();
+        try
+        {
+            StringBuilder pom = new StringBuilder ("<project>");
+            for (int i=0; i<100; i++)
+                pom.append ("<dependency>"+i+"</dependency>");
+            pom.append ("</project>");
+            repo.put("a/b/1/b-1.pom", pom.toString());
+            repo.put("a/b/1/b-1.jar", pom.toString());
+            Config config = temp.createConfig ("");
+            
+            URL url = new URL (repo.getURL()+"a/b/1/b-1.pom");
+            File f = RequestHandler.getCacheFile(url, config.getCacheDirectory());
+            new ProxyDownload (url, f, config).download();
+            File variant = GzipVariants.getVariant(f);
+            assertTrue (variant.exists());
+            assertTrue (variant.length() < f.length() / 5);
+            assertEquals (f.lastModified(), variant.lastModified());
+            
+            url = new URL (repo.getURL()+"a/b/1/b-1.jar");
+            f = RequestHandler.getCacheFile(url, config.getCacheDirectory());
+            new ProxyDownload (url, f, config).download();
+            assertFalse (GzipVariants.getVariant(f).exists());
+        }
+        finally
+        {
+            repo.close();
+        }
+    }
+    
+    private List<Throwable> downloadConcurrently (final URL url, final File f, final Config config, int count) throws Exception
+    {
+        final List<Throwable> errors = new CopyOnWriteArrayList<Throwable> ();
+        List<Thread> threads = new ArrayList<Thread> ();
+        for (int i=0; i<count; i++)
+        {
+            Thread t = new Thread () {
+                @Override
+                public void run ()
+                {
+                    try
+                    {
+                        new ProxyDownload (url, f, config).download();
+                    }
+                    catch (Throwable e)
+                    {
+                        errors.add(e);
+                    }
+                }
+            };
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t: threads)
+            t.join(10000);
+        return errors;
+    }
+
     @Before
     public void setUp () throws Exception
     {
-        cacheDir = new File(org.apache.commons.io.FileUtils.getTempDirectory(), System.currentTimeMillis() + "");
-        cacheDir.mkdirs();
+        temp = new TempCache ("download");
+        cacheDir = temp.getCacheDir();
         config = new Config("src/test/resources");
         System.setProperty("dsmp.conf", "dsmp-test.conf.xml");
         config.reload ();
@@ -67,6 +512,7 @@ public class ProxyDownloadTest
     public void tearDown () throws Exception
     {
         System.clearProperty("dsmp.conf");
+        temp.delete();
     }
 
 }
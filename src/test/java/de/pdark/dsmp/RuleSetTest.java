@@ -0,0 +1,86 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class RuleSetTest
+{
+    @Test
+    public void testTrieFindsFirstRule () throws Exception
+    {
+        RuleTrie trie = new RuleTrie.Builder (false)
+            .add("http://a/b/c/", 0)
+            .add("http://a/", 1)
+            .add("http://a/b/", 2)
+            .build();
+        
+        assertEquals (0, trie.find("http://a/b/c/x"));
+        assertEquals (1, trie.find("http://a/b/x"));
+        assertEquals (1, trie.find("http://a/x"));
+        assertEquals (RuleTrie.NO_MATCH, trie.find("http://b/x"));
+        assertEquals (RuleTrie.NO_MATCH, trie.find("http://a"));
+    }
+
+    @Test
+    public void testReversedTrie () throws Exception
+    {
+        RuleTrie trie = new RuleTrie.Builder (true)
+            .add(".example.com", 0)
+            .add("localhost", 1)
+            .build();
+        
+        assertEquals (0, trie.find("repo.example.com"));
+        assertEquals (1, trie.find("localhost"));
+        assertEquals (RuleTrie.NO_MATCH, trie.find("example.org"));
+        assertEquals (RuleTrie.NO_MATCH, trie.find("example.com"));
+    }
+
+    @Test
+    public void testPatternBeforePrefix () throws Exception
+    {
+        RuleSet<String> rules = new RuleSet.Builder<String> ()
+            .add(RuleSet.Kind.GLOB, "http://a/*/x.jar", "glob")
+            .add(RuleSet.Kind.PREFIX, "http://a/", "prefix")
+            .add(RuleSet.Kind.REGEX, "http://a/.*\\.pom", "regex")
+            .build();
+        
+        assertEquals ("glob", rules.find("http://a/b/x.jar").getValue());
+        assertEquals ("prefix", rules.find("http://a/b/c/x.jar").getValue());
+        // The prefix comes first
+        assertEquals ("prefix", rules.find("http://a/b/x.pom").getValue());
+        assertNull (rules.find("http://b/x.pom"));
+        
+        assertEquals (1, rules.getRules().get(0).getHits());
+        assertEquals (2, rules.getRules().get(1).getHits());
+        assertEquals (0, rules.getRules().get(2).getHits());
+    }
+
+    @Test
+    public void testGlobToRegex () throws Exception
+    {
+        assertEquals ("\\Qhttp://a/\\E[^/]*\\Q/\\E.*\\Q.j\\E[^/]\\Qr\\E", RuleSet.globToRegex("http://a/*/**.j?r"));
+    }
+
+    @Test(expected=RuntimeException.class)
+    public void testBadRegex () throws Exception
+    {
+        new RuleSet.Builder<String> ().add(RuleSet.Kind.REGEX, "http://a/(", "x");
+    }
+}
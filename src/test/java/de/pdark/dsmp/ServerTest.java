@@ -0,0 +1,682 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+public class ServerTest
+{
+    private File baseDir;
+    private int port;
+    private Server server;
+    private Thread serverThread;
+
+    @Test
+    public void testBlockingCacheHit () throws Exception
+    {
+        startServer ("blocking");
+
+        String response = request ("GET http://repo.example/maven2/a/b/1/b-1.pom HTTP/1.1\r\nHost: repo.example\r\nConnection: close\r\n\r\n");
+        assertTrue (response, response.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue (response, response.contains("Content-length: 7\r\n"));
+        assertTrue (response, response.endsWith("\r\n\r\n<pom/>\n"));
+    }
+
+    @Test
+    public void testNioCacheHit () throws Exception
+    {
+        startServer ("nio");
+
+        String response = request ("GET http://repo.example/maven2/a/b/1/b-1.pom HTTP/1.1\r\nHost: repo.example\r\nConnection: close\r\n\r\n");
+        assertTrue (response, response.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue (response, response.contains("Content-length: 7\r\n"));
+        assertTrue (response, response.endsWith("\r\n\r\n<pom/>\n"));
+    }
+
+    @Test
+    public void testNioPipelined () throws Exception
+    {
+        startServer ("nio");
+
+        String get = "GET http://repo.example/maven2/a/b/1/b-1.pom HTTP/1.1\r\nProxy-Connection: Keep-Alive\r\n\r\n";
+        String last = "HEAD http://repo.example/maven2/a/b/1/b-1.pom HTTP/1.1\r\nConnection: close\r\n\r\n";
+        String response = request (get+get+last);
+
+        int count = response.split("HTTP/1.1 200 OK", -1).length - 1;
+        assertEquals (response, 3, count);
+        assertTrue (response, response.endsWith("Content-type: application/xml\r\nAccept-ranges: bytes\r\nConnection: close\r\n\r\n"));
+    }
+
+    @Test
+    public void testBlockingConditional () throws Exception
+    {
+        checkConditional ("blocking");
+    }
+
+    @Test
+    public void testNioConditional () throws Exception
+    {
+        checkConditional ("nio");
+    }
+
+    private void checkConditional (String frontend) throws Exception
+    {
+        startServer (frontend, "<cache-control glob=\"**/*.pom\" value=\"max-age=3600\" />\n");
+        File pom = new File (baseDir, "cache/repo.example/maven2/a/b/1/b-1.pom");
+        String etag = Response.getETag(pom.length(), pom.lastModified());
+        
+        String response = request ("GET http://repo.example/maven2/a/b/1/b-1.pom HTTP/1.1\r\nConnection: close\r\n\r\n");
+        assertTrue (response, response.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue (response, response.contains("ETag: "+etag+"\r\n"));
+        assertTrue (response, response.contains("Last-modified: "+Response.formatDate(pom.lastModified())+"\r\n"));
+        assertTrue (response, response.contains("Cache-control: max-age=3600\r\n"));
+
+        response = request ("GET http://repo.example/maven2/a/b/1/b-1.pom HTTP/1.1\r\nIf-None-Match: \"x\", "+etag+"\r\nConnection: close\r\n\r\n");
+        assertTrue (response, response.startsWith("HTTP/1.1 304 Not Modified\r\n"));
+        assertTrue (response, response.contains("Cache-control: max-age=3600\r\n"));
+        assertTrue (response, response.endsWith("\r\n\r\n"));
+
+        // If-None-Match wins over If-Modified-Since
+        response = request ("GET http://repo.example/maven2/a/b/1/b-1.pom HTTP/1.1\r\nIf-None-Match: \"x\"\r\n"
+                + "If-Modified-Since: "+Response.formatDate(pom.lastModified())+"\r\nConnection: close\r\n\r\n");
+        assertTrue (response, response.startsWith("HTTP/1.1 200 OK\r\n"));
+
+        response = request ("GET http://repo.example/maven2/a/b/1/b-1.pom HTTP/1.1\r\n"
+                + "If-Modified-Since: "+Response.formatDate(pom.lastModified())+"\r\nConnection: close\r\n\r\n");
+        assertTrue (response, response.startsWith("HTTP/1.1 304 Not Modified\r\n"));
+
+        response = request ("GET http://repo.example/maven2/a/b/1/b-1.pom HTTP/1.1\r\n"
+                + "If-Modified-Since: "+Response.formatDate(pom.lastModified() - 60000)+"\r\nConnection: close\r\n\r\n");
+        assertTrue (response, response.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue (response, response.endsWith("\r\n\r\n<pom/>\n"));
+    }
+
+    @Test
+    public void testBlockingRange () throws Exception
+    {
+        checkRange ("blocking");
+    }
+
+    @Test
+    public void testNioRange () throws Exception
+    {
+        checkRange ("nio");
+    }
+
+    private void checkRange (String frontend) throws Exception
+    {
+        startServer (frontend);
+        writeJar ("large.jar", 5000);
+        File jar = new File (baseDir, "cache/repo.example/maven2/large.jar");
+        String etag = Response.getETag(jar.length(), jar.lastModified());
+        String get = "GET http://repo.example/maven2/large.jar HTTP/1.1\r\nConnection: close\r\n";
+
+        String response = request (get+"\r\n");
+        assertTrue (response, response.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue (response, response.contains("Accept-ranges: bytes\r\n"));
+
+        response = request (get+"Range: bytes=10-19\r\n\r\n");
+        assertTrue (response, response.startsWith("HTTP/1.1 206 Partial Content\r\n"));
+        assertTrue (response, response.contains("Content-range: bytes 10-19/5000\r\n"));
+        assertTrue (response, response.contains("Content-length: 10\r\n"));
+        assertEquals ("klmnopqrst", body (response));
+
+        response = request (get+"Range: bytes=-1\r\nIf-Range: "+etag+"\r\n\r\n");
+        assertTrue (response, response.startsWith("HTTP/1.1 206 Partial Content\r\n"));
+        assertEquals ("x", body (response));
+
+        response = request (get+"Range: bytes=26-27,0-1\r\n\r\n");
+        assertTrue (response, response.startsWith("HTTP/1.1 206 Partial Content\r\n"));
+        assertTrue (response, response.contains("Content-type: multipart/byteranges; boundary="));
+        String body = body (response);
+        assertTrue (response, response.contains("Content-length: "+body.length()+"\r\n"));
+        int first = body.indexOf("Content-range: bytes 0-1/5000\r\n\r\nab\r\n--");
+        int second = body.indexOf("Content-range: bytes 26-27/5000\r\n\r\nab\r\n--");
+        assertTrue (body, first != -1 && second > first);
+        assertTrue (body, body.endsWith("--\r\n"));
+
+        response = request (get+"Range: bytes=6000-\r\n\r\n");
+        assertTrue (response, response.startsWith("HTTP/1.1 416 Range Not Satisfiable\r\n"));
+        assertTrue (response, response.contains("Content-range: bytes */5000\r\n"));
+
+        // The client has an old version: Send the whole file
+        response = request (get+"Range: bytes=10-19\r\nIf-Range: \"x\"\r\n\r\n");
+        assertTrue (response, response.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertEquals (5000, body (response).length());
+    }
+
+    private String body (String response)
+    {
+        return response.substring(response.indexOf("\r\n\r\n") + 4);
+    }
+
+    @Test
+    public void testBlockingGzip () throws Exception
+    {
+        checkGzip ("blocking");
+    }
+
+    @Test
+    public void testNioGzip () throws Exception
+    {
+        checkGzip ("nio");
+    }
+
+    private void checkGzip (String frontend) throws Exception
+    {
+        startServer (frontend);
+        File pom = new File (baseDir, "cache/repo.example/maven2/a/b/2/b-2.pom");
+        FileUtils.writeStringToFile(pom, content (5000), "ISO-8859-1");
+        writeJar ("large.jar", 5000);
+        String get = "GET http://repo.example/maven2/a/b/2/b-2.pom HTTP/1.1\r\nConnection: close\r\n";
+
+        // The variant is written in the background
+        String response = request (get+"Accept-Encoding: gzip, deflate\r\n\r\n");
+        assertFalse (response, response.contains("Content-encoding: gzip\r\n"));
+        assertTrue (response, response.contains("Vary: Accept-Encoding\r\n"));
+        File variant = GzipVariants.getVariant(pom);
+        for (int i=0; i<100 && !variant.exists(); i++)
+            Thread.sleep(50);
+        assertEquals (pom.lastModified(), variant.lastModified());
+
+        response = request (get+"Accept-Encoding: gzip, deflate\r\n\r\n");
+        assertTrue (response, response.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue (response, response.contains("Content-encoding: gzip\r\n"));
+        assertTrue (response, response.contains("Vary: Accept-Encoding\r\n"));
+        assertTrue (response, response.contains("Content-type: application/xml\r\n"));
+        assertTrue (response, response.contains("Content-length: "+variant.length()+"\r\n"));
+        InputStream in = new GZIPInputStream (new ByteArrayInputStream (body (response).getBytes("ISO-8859-1")));
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream ();
+        IOUtils.copy(in, buffer);
+        assertEquals (content (5000), buffer.toString("ISO-8859-1"));
+
+        String etag = Response.getETag(variant.length(), variant.lastModified());
+        response = request (get+"Accept-Encoding: gzip\r\nIf-None-Match: "+etag+"\r\n\r\n");
+        assertTrue (response, response.startsWith("HTTP/1.1 304 Not Modified\r\n"));
+        assertTrue (response, response.contains("Vary: Accept-Encoding\r\n"));
+
+        // Clients which don't want gzip, ranges and jars get the file itself
+        response = request (get+"\r\n");
+        assertEquals (content (5000), body (response));
+        assertTrue (response, response.contains("Vary: Accept-Encoding\r\n"));
+        response = request (get+"Accept-Encoding: gzip;q=0, identity\r\n\r\n");
+        assertEquals (content (5000), body (response));
+        response = request (get+"Accept-Encoding: gzip\r\nRange: bytes=0-1\r\n\r\n");
+        assertEquals ("ab", body (response));
+        assertTrue (response, response.startsWith("HTTP/1.1 206 Partial Content\r\n"));
+        assertTrue (response, response.contains("Vary: Accept-Encoding\r\n"));
+        response = request ("GET http://repo.example/maven2/large.jar HTTP/1.1\r\nAccept-Encoding: gzip\r\nConnection: close\r\n\r\n");
+        assertFalse (response, response.contains("Vary:"));
+        response = request ("GET http://repo.example/maven2/large.jar HTTP/1.1\r\nRange: bytes=0-1\r\nConnection: close\r\n\r\n");
+        assertTrue (response, response.startsWith("HTTP/1.1 206 Partial Content\r\n"));
+        assertFalse (response, response.contains("Vary:"));
+        Thread.sleep(200);
+        assertFalse (GzipVariants.getVariant(new File (baseDir, "cache/repo.example/maven2/large.jar")).exists());
+    }
+
+    @Test
+    public void testBlockingPersistent () throws Exception
+    {
+        checkPersistent ("blocking");
+    }
+
+    @Test
+    public void testNioPersistent () throws Exception
+    {
+        checkPersistent ("nio");
+    }
+
+    /**
+     * HTTP/1.1 connections stay open without asking. The server closes them
+     * after <code>max-requests</code> or when they are idle for too long.
+     */
+    private void checkPersistent (String frontend) throws Exception
+    {
+        startServer (frontend, " keep-alive-timeout=\"1\" max-requests=\"3\"", "");
+        String get = "GET http://repo.example/maven2/a/b/1/b-1.pom HTTP/1.1\r\n\r\n";
+
+        long start = System.currentTimeMillis();
+        String response = request (get);
+        assertTrue (response, response.endsWith("\r\n\r\n<pom/>\n"));
+        assertFalse (response, response.contains("Connection:"));
+        // Closed by the idle timeout
+        assertTrue (System.currentTimeMillis() - start >= 900);
+
+        response = request (get+get+get+get);
+        int count = response.split("HTTP/1.1 200 OK", -1).length - 1;
+        assertEquals (response, 3, count);
+        assertTrue (response, response.endsWith("Connection: close\r\n\r\n<pom/>\n"));
+    }
+
+    /**
+     * Idle keep-alive connections must not keep all threads of the pool
+     * while other connections wait in the queue.
+     */
+    @Test
+    public void testBlockingMoreClientsThanThreads () throws Exception
+    {
+        startServer ("blocking", " max-threads=\"2\" queue-size=\"10\" keep-alive-timeout=\"30\"", "");
+        String get = "GET http://repo.example/maven2/a/b/1/b-1.pom HTTP/1.1\r\n\r\n";
+
+        long start = System.currentTimeMillis();
+        List<Socket> sockets = new ArrayList<Socket> ();
+        try
+        {
+            for (int i=0; i<5; i++)
+            {
+                Socket socket = new Socket ("localhost", port);
+                socket.setSoTimeout(10000);
+                sockets.add(socket);
+                socket.getOutputStream().write(get.getBytes("ISO-8859-1"));
+                socket.getOutputStream().flush();
+            }
+            for (Socket socket: sockets)
+            {
+                InputStream in = socket.getInputStream();
+                StringBuilder response = new StringBuilder ();
+                int c;
+                while (!response.toString().endsWith("<pom/>\n") && (c = in.read()) != -1)
+                    response.append((char)c);
+                assertTrue (response.toString(), response.toString().startsWith("HTTP/1.1 200 OK\r\n"));
+            }
+        }
+        finally
+        {
+            for (Socket socket: sockets)
+                socket.close();
+        }
+        // Much less than the keep-alive timeout
+        assertTrue (System.currentTimeMillis() - start < 10000);
+    }
+
+    @Test
+    public void testNioDenied () throws Exception
+    {
+        startServer ("nio");
+
+        String response = request ("GET http://denied.example/x.pom HTTP/1.1\r\nConnection: close\r\n\r\n");
+        assertTrue (response, response.startsWith("HTTP/1.1 403 "));
+    }
+
+    @Test
+    public void testBlockingHeaderTooLarge () throws Exception
+    {
+        checkHeaderTooLarge ("blocking");
+    }
+
+    @Test
+    public void testNioHeaderTooLarge () throws Exception
+    {
+        checkHeaderTooLarge ("nio");
+    }
+
+    private void checkHeaderTooLarge (String frontend) throws Exception
+    {
+        startServer (frontend);
+
+        StringBuilder buffer = new StringBuilder ("GET http://repo.example/maven2/a/b/1/b-1.pom HTTP/1.1\r\n");
+        while (buffer.length() <= HttpRequestParser.MAX_HEADER_SIZE)
+            buffer.append ("X-Padding: 0123456789012345678901234567890123456789\r\n");
+        buffer.append ("\r\n");
+
+        String response = request (buffer.toString());
+        assertTrue (response, response.startsWith(HeaderTooLarge.STATUS_LINE+"\r\n"));
+    }
+
+    @Test
+    public void testTransferPaths () throws Exception
+    {
+        startServer ("blocking", "<serving copy-below=\"1k\" mmap-above=\"100k\" mmap-cache=\"1m\" />\n");
+        writeJar ("small.jar", 500);
+        writeJar ("medium.jar", 50000);
+        writeJar ("large.jar", 200000);
+
+        long copy = Response.Transfer.COPY.getBytes();
+        long sendfile = Response.Transfer.SENDFILE.getBytes();
+        long mmap = Response.Transfer.MMAP.getBytes();
+
+        for (String name: new String[] { "small.jar", "medium.jar", "large.jar" })
+        {
+            String response = request ("GET http://repo.example/maven2/"+name+" HTTP/1.1\r\nConnection: close\r\n\r\n");
+            int pos = response.indexOf("\r\n\r\n") + 4;
+            assertEquals (name, new File (baseDir, "cache/repo.example/maven2/"+name).length(), response.length() - pos);
+            assertEquals ('x', response.charAt(response.length()-1));
+        }
+
+        assertEquals (500, Response.Transfer.COPY.getBytes() - copy);
+        assertEquals (50000, Response.Transfer.SENDFILE.getBytes() - sendfile);
+        assertEquals (200000, Response.Transfer.MMAP.getBytes() - mmap);
+    }
+
+    @Test
+    public void testHotCache () throws Exception
+    {
+        startServer ("nio", "<hot-cache size=\"1m\" max-object=\"1k\" />\n");
+        writeJar ("large.jar", 5000);
+        long hot = Response.Transfer.HOT.getResponses();
+
+        for (int i=0; i<3; i++)
+        {
+            String response = request ("GET http://repo.example/maven2/a/b/1/b-1.pom HTTP/1.1\r\nConnection: close\r\n\r\n");
+            assertTrue (response, response.startsWith("HTTP/1.1 200 OK\r\nDate: "));
+            assertTrue (response, response.contains("Content-length: 7\r\n"));
+            assertTrue (response, response.endsWith("\r\n\r\n<pom/>\n"));
+        }
+        String response = request ("HEAD http://repo.example/maven2/a/b/1/b-1.pom HTTP/1.1\r\nConnection: close\r\n\r\n");
+        assertTrue (response, response.startsWith("HTTP/1.1 200 OK\r\nDate: "));
+        assertTrue (response, response.endsWith("Content-type: application/xml\r\nAccept-ranges: bytes\r\nConnection: close\r\n\r\n"));
+        assertEquals (4, Response.Transfer.HOT.getResponses() - hot);
+
+        // Too big for the cache
+        request ("GET http://repo.example/maven2/large.jar HTTP/1.1\r\nConnection: close\r\n\r\n");
+        assertEquals (4, Response.Transfer.HOT.getResponses() - hot);
+    }
+
+    @Test
+    public void testBlockingMiss () throws Exception
+    {
+        checkMiss ("blocking", true);
+    }
+
+    @Test
+    public void testBlockingMissChunked () throws Exception
+    {
+        checkMiss ("blocking", false);
+    }
+
+    @Test
+    public void testNioMiss () throws Exception
+    {
+        checkMiss ("nio", true);
+    }
+
+    @Test
+    public void testNioMissChunked () throws Exception
+    {
+        checkMiss ("nio", false);
+    }
+
+    @Test
+    public void testBlockingDeletedFile () throws Exception
+    {
+        checkDeletedFile ("blocking");
+    }
+
+    @Test
+    public void testNioDeletedFile () throws Exception
+    {
+        checkDeletedFile ("nio");
+    }
+
+    /** Files which are deleted from the cache are downloaded again, even though the index knew them. */
+    private void checkDeletedFile (String frontend) throws Exception
+    {
+        FakeRepository repo = new FakeRepository ();
+        try
+        {
+            repo.put("a/b/1/b-1.pom", "<pom/>\n");
+            startServer (frontend);
+
+            String response = request ("GET "+repo.getURL()+"a/b/1/b-1.pom HTTP/1.1\r\nConnection: close\r\n\r\n");
+            assertTrue (response, response.endsWith("\r\n\r\n<pom/>\n"));
+            File f = RequestHandler.getCacheFile(new URL (repo.getURL()+"a/b/1/b-1.pom"), new File (baseDir, "cache"));
+            assertTrue (f.delete());
+
+            response = request ("GET "+repo.getURL()+"a/b/1/b-1.pom HTTP/1.1\r\nConnection: close\r\n\r\n");
+            assertTrue (response, response.endsWith("\r\n\r\n<pom/>\n"));
+            assertEquals (2, repo.getRequests("a/b/1/b-1.pom"));
+        }
+        finally
+        {
+            repo.close();
+        }
+    }
+
+    private void checkMiss (String frontend, boolean sendLength) throws Exception
+    {
+        FakeRepository repo = new FakeRepository ();
+        try
+        {
+            String content = content (300000);
+            repo.put("a/b/1/b-1.jar", content);
+            repo.setSendLength(sendLength);
+            // Slow enough that the client gets the file while it is downloaded
+            repo.setBandwidth(1024*1024);
+            startServer (frontend);
+            long followed = Response.Transfer.FOLLOW.getResponses();
+
+            String response = request ("GET "+repo.getURL()+"a/b/1/b-1.jar HTTP/1.1\r\nConnection: close\r\n\r\n");
+            int pos = response.indexOf("\r\n\r\n") + 4;
+            String header = response.substring(0, pos);
+            String body = response.substring(pos);
+            assertTrue (header, header.startsWith("HTTP/1.1 200 OK\r\n"));
+            assertEquals (1, Response.Transfer.FOLLOW.getResponses() - followed);
+            if (sendLength)
+                assertTrue (header, header.contains("Content-length: 300000\r\n"));
+            else
+            {
+                assertTrue (header, header.contains("Transfer-Encoding: chunked\r\n"));
+                body = dechunk (body);
+            }
+            assertEquals (content, body);
+
+            // The second request is a cache hit
+            assertEquals (1, repo.getRequests("a/b/1/b-1.jar"));
+            response = request ("GET "+repo.getURL()+"a/b/1/b-1.jar HTTP/1.1\r\nConnection: close\r\n\r\n");
+            assertTrue (response.endsWith(content));
+            assertEquals (1, repo.getRequests("a/b/1/b-1.jar"));
+        }
+        finally
+        {
+            repo.close();
+        }
+    }
+
+    private String dechunk (String body)
+    {
+        StringBuilder buffer = new StringBuilder ();
+        int pos = 0;
+        while (true)
+        {
+            int end = body.indexOf("\r\n", pos);
+            int len = Integer.parseInt(body.substring(pos, end), 16);
+            pos = end + 2;
+            if (len == 0)
+            {
+                assertEquals ("\r\n", body.substring(pos));
+                return buffer.toString();
+            }
+            buffer.append (body, pos, pos + len);
+            pos += len;
+            assertEquals ("\r\n", body.substring(pos, pos + 2));
+            pos += 2;
+        }
+    }
+
+    private String content (int size)
+    {
+        StringBuilder buffer = new StringBuilder (size);
+        for (int i=0; i<size-1; i++)
+            buffer.append ((char)('a' + i % 26));
+        buffer.append ('x');
+        return buffer.toString();
+    }
+
+    private void writeJar (String name, int size) throws Exception
+    {
+        FileUtils.writeStringToFile(new File (baseDir, "cache/repo.example/maven2/"+name), content (size), "ISO-8859-1");
+    }
+
+    @Test
+    public void testBlockingMetrics () throws Exception
+    {
+        checkMetrics ("blocking");
+    }
+
+    @Test
+    public void testNioMetrics () throws Exception
+    {
+        checkMetrics ("nio");
+    }
+
+    private void checkMetrics (String frontend) throws Exception
+    {
+        int adminPort = freePort ();
+        startServer (frontend, "<admin port=\""+adminPort+"\" />\n");
+        assertEquals (adminPort, server.getAdminServer().getPort());
+        assertTrue (server.getAdminServer().getAddress().isLoopbackAddress());
+
+        long hits = Metrics.getRequests(HttpRequest.GET, Metrics.Outcome.HIT);
+        long denied = Metrics.getRequests(HttpRequest.GET, Metrics.Outcome.DENIED);
+        request ("GET http://repo.example/maven2/a/b/1/b-1.pom HTTP/1.1\r\nConnection: close\r\n\r\n");
+        request ("GET http://denied.example/a.jar HTTP/1.1\r\nConnection: close\r\n\r\n");
+        assertEquals (hits + 1, Metrics.getRequests(HttpRequest.GET, Metrics.Outcome.HIT));
+        assertEquals (denied + 1, Metrics.getRequests(HttpRequest.GET, Metrics.Outcome.DENIED));
+
+        String response = request (adminPort, "GET /metrics HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        assertTrue (response, response.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue (response, response.contains("Content-type: "+AdminServer.CONTENT_TYPE+"\r\n"));
+        assertTrue (response, response.contains("\ndsmp_requests_total{method=\"GET\",outcome=\"hit\"} "+(hits + 1)+"\n"));
+        assertTrue (response, response.contains("\n# TYPE dsmp_request_duration_seconds histogram\n"));
+        assertTrue (response, response.contains("\ndsmp_request_duration_seconds_bucket{path=\"hit\",le=\"+Inf\"} "));
+        assertTrue (response, response.contains("\ndsmp_index_entries "));
+        assertTrue (response, response.contains("\ndsmp_config_reloads_total{result=\"ok\"} "));
+
+        response = request (adminPort, "GET /other HTTP/1.0\r\n\r\n");
+        assertTrue (response, response.startsWith("HTTP/1.1 404 Not Found\r\n"));
+    }
+
+    private int freePort () throws Exception
+    {
+        ServerSocket tmp = new ServerSocket (0);
+        try
+        {
+            return tmp.getLocalPort();
+        }
+        finally
+        {
+            tmp.close();
+        }
+    }
+
+    /** Send <code>text</code> and read the answer until the server closes the connection. */
+    private String request (String text) throws Exception
+    {
+        return request (port, text);
+    }
+
+    private String request (int port, String text) throws Exception
+    {
+        Socket socket = new Socket ("localhost", port);
+        try
+        {
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            out.write(text.getBytes("ISO-8859-1"));
+            out.flush();
+
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream ();
+            IOUtils.copy(in, buffer);
+            return buffer.toString("ISO-8859-1");
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+    private void startServer (String frontend) throws Exception
+    {
+        startServer (frontend, "");
+    }
+
+    private void startServer (String frontend, String extraConfig) throws Exception
+    {
+        startServer (frontend, "", extraConfig);
+    }
+
+    private void startServer (String frontend, String serverAttributes, String extraConfig) throws Exception
+    {
+        ServerSocket tmp = new ServerSocket (0);
+        port = tmp.getLocalPort();
+        tmp.close();
+
+        FileUtils.writeStringToFile(new File (baseDir, "dsmp.conf.xml"),
+                "<dsmp-config>\n"
+                + "<directories cache=\"cache\" patches=\"patches\" />\n"
+                + "<server port=\""+port+"\" frontend=\""+frontend+"\""+serverAttributes+" />\n"
+                + "<deny url=\"http://denied.example/\" />\n"
+                + extraConfig
+                + "</dsmp-config>\n", "ISO-8859-1");
+        Config config = new Config (baseDir.getAbsolutePath());
+        config.reload();
+
+        File pom = new File (baseDir, "cache/repo.example/maven2/a/b/1/b-1.pom");
+        FileUtils.writeStringToFile(pom, "<pom/>\n", "ISO-8859-1");
+
+        server = new Server (config);
+        // Tests write more files; the scan must not see them half written
+        assertTrue (CacheIndex.get(config).awaitScan(10, TimeUnit.SECONDS));
+        serverThread = new Thread () {
+            @Override
+            public void run ()
+            {
+                server.handleRequests();
+            }
+        };
+        serverThread.start();
+    }
+
+    @Before
+    public void setUp () throws Exception
+    {
+        baseDir = new File(FileUtils.getTempDirectory(), "dsmp-"+System.currentTimeMillis());
+        baseDir.mkdirs();
+        System.clearProperty("dsmp.conf");
+    }
+
+    @After
+    public void tearDown () throws Exception
+    {
+        if (server != null)
+        {
+            server.terminateAll();
+            serverThread.join(10000);
+        }
+        FileUtils.deleteDirectory(baseDir);
+    }
+}
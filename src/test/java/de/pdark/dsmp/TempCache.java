@@ -0,0 +1,86 @@
+/*
+ * Copyright 2002-2005 The Apache Software Foundation.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.pdark.dsmp;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A cache and a patches directory in a new temporary directory, with a
+ * config which uses them.
+ * 
+ * @author digulla
+ * 
+ */
+public class TempCache
+{
+    private final File baseDir;
+    private final File cacheDir;
+    private final File patchesDir;
+
+    /** @param name Part of the name of the directory, to find leftovers of a test */
+    public TempCache (String name)
+    {
+        baseDir = new File (FileUtils.getTempDirectory(), "dsmp-"+name+"-"+System.nanoTime());
+        cacheDir = new File (baseDir, "cache");
+        patchesDir = new File (baseDir, "patches");
+        cacheDir.mkdirs();
+        patchesDir.mkdirs();
+    }
+
+    public File getBaseDir ()
+    {
+        return baseDir;
+    }
+
+    public File getCacheDir ()
+    {
+        return cacheDir;
+    }
+
+    public File getPatchesDir ()
+    {
+        return patchesDir;
+    }
+
+    /**
+     * Write a config with the default directories and load it.
+     * 
+     * @param extra More elements for the config, for example <code>&lt;dedup enabled="true" /&gt;</code>
+     */
+    public Config createConfig (String extra) throws IOException
+    {
+        return createConfig ("<directories cache=\"cache\" patches=\"patches\" />", extra);
+    }
+
+    /** Write a config with other directories (relative to the base directory) and load it. */
+    public Config createConfig (String directories, String extra) throws IOException
+    {
+        System.clearProperty("dsmp.conf");
+        FileUtils.writeStringToFile(new File (baseDir, "dsmp.conf.xml"),
+                "<dsmp-config>"+directories+extra+"</dsmp-config>");
+        Config config = new Config (baseDir.getAbsolutePath());
+        config.reload();
+        return config;
+    }
+
+    public void delete () throws IOException
+    {
+        FileUtils.deleteDirectory(baseDir);
+    }
+}